@@ -23,7 +23,6 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -54,10 +53,6 @@ public class BleAttribute
 
     HashMap<BleGattID, Integer> mHandleMap = new HashMap<BleGattID, Integer>();
 
-    HashMap<String, ArrayList<PrepareWriteContext>> writeQueue = new HashMap<String, ArrayList<PrepareWriteContext>>();
-
-    HashMap<String, Integer> writeSizeQueue = new HashMap<String, Integer>();
-
     @SuppressWarnings({
             "rawtypes", "unchecked"
     })
@@ -93,8 +88,22 @@ public class BleAttribute
     {
         mID = attrID;
 
-        mMaxLength = BleConstants.GATT_MAX_CHAR_VALUE_LENGTH;
-        mValue = new byte[mMaxLength];
+        mMaxLength = BleConstants.GATT_MAX_ATTR_LEN;
+        mValue = new byte[BleConstants.GATT_MAX_CHAR_VALUE_LENGTH];
+    }
+
+    /**
+     * Values longer than GATT_MAX_CHAR_VALUE_LENGTH come from long reads and
+     * prepared writes, the buffer only grows when one shows up.
+     */
+    private void ensureCapacity(int length)
+    {
+        if (mValue == null || mValue.length < length) {
+            byte[] value = new byte[length];
+            if (mValue != null)
+                System.arraycopy(mValue, 0, value, 0, mValue.length);
+            mValue = value;
+        }
     }
 
     /**
@@ -360,6 +369,7 @@ public class BleAttribute
             if (length > mMaxLength) {
                 length = mMaxLength;
             }
+            ensureCapacity(length);
             System.arraycopy(value, 0, mValue, 0, length);
         }
         mLength = length;
@@ -418,6 +428,7 @@ public class BleAttribute
     {
         if (length > mMaxLength)
             length = mMaxLength;
+        ensureCapacity(length);
         System.arraycopy(value, 0, mValue, 0, length);
         mLength = length;
         mDirty = true;
@@ -467,6 +478,7 @@ public class BleAttribute
             if (offset + totalsize > this.mMaxLength) {
                 return 13;
             }
+            ensureCapacity(offset + len);
             System.arraycopy(value, 0, this.mValue, offset, len);
             if (!this.mIsFixed)
                 this.mLength = (offset + len);
@@ -56,6 +56,7 @@ public class BleCharacteristic extends BleAttribute
     private int mWriteType;
     private byte mAuthReq;
     private int mPermission = 0;
+    private volatile BleValueRing mStream;
 
     /** @hide */
     @SuppressWarnings({
@@ -93,6 +94,47 @@ public class BleCharacteristic extends BleAttribute
         this.mProp = prop;
     }
 
+    /**
+     * Switches this characteristic to streaming mode. Notifications are then
+     * appended to a preallocated ring of capacity samples instead of replacing
+     * the characteristic value, and the application drains them in batches
+     * from {@link #getStream()}. Meant for high rate characteristics where
+     * getting a callback and a new value array per notification is too
+     * expensive.
+     * 
+     * @param capacity amount of samples kept before overwriting the oldest.
+     * @param maxLength biggest notification value expected, longer ones are
+     *            dropped and counted by {@link BleValueRing#getOversized()}.
+     * @see BleClientService#onCharacteristicStream(android.bluetooth.BluetoothDevice,
+     *      BleCharacteristic)
+     */
+    public void enableStreaming(int capacity, int maxLength)
+    {
+        mStream = new BleValueRing(capacity, maxLength);
+    }
+
+    /**
+     * Goes back to storing each notification as the characteristic value.
+     * Samples still in the ring are lost.
+     */
+    public void disableStreaming()
+    {
+        mStream = null;
+    }
+
+    public boolean isStreaming()
+    {
+        return mStream != null;
+    }
+
+    /**
+     * Returns the ring notifications go to, or null if streaming is disabled.
+     */
+    public BleValueRing getStream()
+    {
+        return mStream;
+    }
+
     private BleGattID getBleGattId(int handle)
     {
         for (Map.Entry<BleGattID, Integer> entry : mHandleMap.entrySet()) {
@@ -20,9 +20,10 @@
 package com.broadcom.bt.le.api;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -70,6 +71,11 @@ public abstract class BleClientProfile
     private Map<BluetoothDevice, List<BleClientService>> mRegisteredServices;
     private GattServiceConnection mSvcConn;
     private Context mContext;
+    private int mTimeout = 0;
+    private int mNotifyBatchCount = 0;
+    private int mNotifyBatchLatency = 0;
+    private Map<BluetoothDevice, Integer> mMtuMap =
+            new ConcurrentHashMap<BluetoothDevice, Integer>();
 
     /**
      * Creates a BlueClientProfile given this profile's UUID and client
@@ -89,9 +95,10 @@ public abstract class BleClientProfile
         this.mConnectingDevices = new ArrayList<BluetoothDevice>();
         this.mDisconnectingDevices = new ArrayList<BluetoothDevice>();
 
-        this.mClientIDToDeviceMap = new HashMap<Integer, BluetoothDevice>();
-        this.mDeviceToClientIDMap = new HashMap<BluetoothDevice, Integer>();
-        mRegisteredServices = new HashMap<BluetoothDevice, List<BleClientService>>();
+        // written from binder callbacks, read from application threads
+        this.mClientIDToDeviceMap = new ConcurrentHashMap<Integer, BluetoothDevice>();
+        this.mDeviceToClientIDMap = new ConcurrentHashMap<BluetoothDevice, Integer>();
+        mRegisteredServices = new ConcurrentHashMap<BluetoothDevice, List<BleClientService>>();
 
         this.mCallback = new BleClientCallback();
         this.mSvcConn = new GattServiceConnection(context);
@@ -216,6 +223,147 @@ public abstract class BleClientProfile
         throw new BondRequiredException();
     }
 
+    /**
+     * Sets how long, in milliseconds, a GATT operation issued by this profile
+     * can go unanswered before it fails with {@link BleConstants#GATT_ERROR}.
+     * The value is kept and applied again every time the profile gets
+     * registered.
+     * 
+     * @param timeout operation timeout in milliseconds, must be positive.
+     */
+    public void setTimeout(int timeout)
+    {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("timeout must be positive");
+
+        this.mTimeout = timeout;
+        if (this.mClientIf != BleConstants.GATT_SERVICE_PRIMARY)
+            applyTimeout();
+    }
+
+    /**
+     * Returns the operation timeout set with {@link #setTimeout(int)}, 0 if
+     * the framework default is in use.
+     */
+    public int getTimeout()
+    {
+        return this.mTimeout;
+    }
+
+    private void applyTimeout()
+    {
+        if (this.mTimeout <= 0 || this.mService == null)
+            return;
+
+        try
+        {
+            this.mService.setTimeout(this.mClientIf, this.mTimeout);
+        } catch (RemoteException e) {
+            Log.e(TAG, "setTimeout() - " + e.toString());
+        }
+    }
+
+    /**
+     * Lets the framework group notifications for this profile, up to maxCount
+     * values are delivered per binder call and no value waits more than
+     * maxLatency milliseconds. Worth it for devices notifying many times a
+     * second, {@link BleClientService#onCharacteristicChanged} keeps being
+     * called once per value. A maxCount of 1 disables batching.
+     * 
+     * @param maxCount values per batch.
+     * @param maxLatency milliseconds, 0 for the framework default.
+     */
+    public void setNotificationBatching(int maxCount, int maxLatency)
+    {
+        if (maxCount <= 0 || maxLatency < 0)
+            throw new IllegalArgumentException("invalid batching parameters");
+
+        this.mNotifyBatchCount = maxCount;
+        this.mNotifyBatchLatency = maxLatency;
+        if (this.mClientIf != BleConstants.GATT_SERVICE_PRIMARY)
+            applyNotificationBatching();
+    }
+
+    private void applyNotificationBatching()
+    {
+        if (this.mNotifyBatchCount <= 0 || this.mService == null)
+            return;
+
+        try
+        {
+            this.mService.setNotificationBatching(this.mClientIf, this.mNotifyBatchCount,
+                    this.mNotifyBatchLatency);
+        } catch (RemoteException e) {
+            Log.e(TAG, "setNotificationBatching() - " + e.toString());
+        }
+    }
+
+    /**
+     * Asks the remote device to use a bigger ATT MTU. Links start at
+     * {@link BleConstants#GATT_DEFAULT_MTU} bytes which leaves 20 bytes per
+     * write, a bigger MTU lets long values go in fewer packets. The result is
+     * reported on {@link #onMtuChanged(BluetoothDevice, int, int)}.
+     * 
+     * @param device connected remote device.
+     * @param mtu requested MTU, between {@link BleConstants#GATT_DEFAULT_MTU}
+     *            and {@link BleConstants#GATT_MAX_MTU}.
+     * @return {@link BleConstants#GATT_SUCCESS} if the request was sent.
+     */
+    public int requestMtu(BluetoothDevice device, int mtu)
+    {
+        Log.d(TAG, "requestMtu (" + this.mAppUuid + ") " + device.getAddress() + " " + mtu);
+
+        if (mtu < BleConstants.GATT_DEFAULT_MTU || mtu > BleConstants.GATT_MAX_MTU)
+            throw new IllegalArgumentException("invalid mtu " + mtu);
+
+        int connId = getConnIdForDevice(device);
+        if (connId == BleConstants.GATT_INVALID_CONN_ID)
+            return BleConstants.GATT_INVALID_CONN_ID;
+
+        try
+        {
+            this.mService.requestMtu(connId, mtu);
+        } catch (RemoteException e) {
+            Log.e(TAG, "requestMtu() - " + e.toString());
+            return BleConstants.GATT_ERROR;
+        }
+        return BleConstants.GATT_SUCCESS;
+    }
+
+    /**
+     * Returns what the service measured for one kind of operation against a
+     * remote device, counted since the service started and across
+     * reconnections.
+     * 
+     * @param device remote device, it doesn't need to be connected.
+     * @param operation one of the BleConstants.GATT_OP_* values.
+     * @return values indexed by the BleConstants.GATT_STAT_* constants with
+     *         latencies in microseconds, null if the service couldn't be
+     *         reached.
+     */
+    public long[] getOperationStats(BluetoothDevice device, int operation)
+    {
+        try
+        {
+            return this.mService.getOperationStats(device.getAddress(), operation);
+        } catch (RemoteException e) {
+            Log.e(TAG, "getOperationStats() - " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the ATT MTU in use with a remote device, the default one until a
+     * {@link #requestMtu(BluetoothDevice, int)} succeeds.
+     */
+    public int getMtu(BluetoothDevice device)
+    {
+        Integer mtu = this.mMtuMap.get(device);
+        if (mtu == null)
+            return BleConstants.GATT_DEFAULT_MTU;
+        return mtu.intValue();
+    }
+
     /**
      * Defines how aggressive the local devices scans for remote LE devices when
      * a background connection has been requested.
@@ -267,6 +415,58 @@ public abstract class BleClientProfile
         return ret;
     }
 
+    /**
+     * Connects to a group of remote devices in parallel. <br>
+     * <br>
+     * The framework keeps up to maxConcurrent connection attempts running,
+     * every attempt is given timeout milliseconds and devices that fail are
+     * retried up to retries times with an increasing delay. Each device that
+     * connects goes through {@link #onDeviceConnected(BluetoothDevice)} as
+     * with {@link #connect(BluetoothDevice)}, and once every device is done
+     * {@link #onConnectCompleted(List, List)} reports the overall result.
+     * 
+     * @param devices remote devices to connect to.
+     * @param maxConcurrent connection attempts allowed at the same time.
+     * @param timeout milliseconds per attempt, 0 for the profile timeout.
+     * @param retries extra attempts for each device that fails.
+     * @return {@link BleConstants#GATT_SUCCESS} or
+     *         {@link BleConstants#GATT_ERROR}
+     */
+    public int connect(List<BluetoothDevice> devices, int maxConcurrent, int timeout,
+            int retries)
+    {
+        Log.d(TAG, "connect (" + this.mAppUuid + ") " + devices.size() + " devices");
+
+        if (maxConcurrent <= 0 || timeout < 0 || retries < 0)
+            throw new IllegalArgumentException("invalid connection parameters");
+
+        String[] addresses = new String[devices.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            BluetoothDevice device = devices.get(i);
+            addresses[i] = device.getAddress();
+
+            synchronized (this.mConnectingDevices) {
+                this.mConnectingDevices.add(device);
+            }
+
+            synchronized (this.mDisconnectingDevices) {
+                this.mDisconnectingDevices.remove(device);
+            }
+        }
+
+        int ret = BleConstants.GATT_SUCCESS;
+        try
+        {
+            this.mService.openMultiple(this.mClientIf, addresses, maxConcurrent, timeout,
+                    retries);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.toString());
+            ret = BleConstants.GATT_ERROR;
+        }
+
+        return ret;
+    }
+
     /**
      * Prepares a background connection to a remote Bluetooth device. <br>
      * <br>
@@ -353,7 +553,7 @@ public abstract class BleClientProfile
         {
             this.mService.close(this.mClientIf,
                     device.getAddress(),
-                    ((Integer) this.mDeviceToClientIDMap.get(device)).intValue(),
+                    getConnIdForDevice(device),
                     true);
         } catch (RemoteException e) {
             Log.e(TAG, e.toString());
@@ -382,12 +582,12 @@ public abstract class BleClientProfile
             return BleConstants.GATT_ERROR;
         }
         
-        if (!mRegisteredServices.containsKey(device)){
+        List<BleClientService> services = mRegisteredServices.get(device);
+        if (services == null){
             Log.e(TAG, "no services registered");
             return BleConstants.GATT_ERROR;
         }
 
-        List<BleClientService> services = mRegisteredServices.get(device);
         if (services.size()>0) {
             Log.v(TAG, "refreshing first service");
             services.get(0).refresh(device);
@@ -407,12 +607,12 @@ public abstract class BleClientProfile
         Log.d(TAG, "refreshService (" + this.mAppUuid + ") address = s "
                 + device.getAddress() + "service = " + service.getServiceId());
 
-        if (!mRegisteredServices.containsKey(device)){
+        List<BleClientService> services = mRegisteredServices.get(device);
+        if (services == null){
             Log.e(TAG, "device doesn't provide this service");
             return BleConstants.GATT_ERROR;
         }
         
-        List<BleClientService> services = mRegisteredServices.get(device);
         if (!services.contains(service)){
             service.refresh(device);
             return BleConstants.GATT_SUCCESS;
@@ -504,11 +704,12 @@ public abstract class BleClientProfile
      */
     int getConnIdForDevice(BluetoothDevice d)
     {
-        if (!this.mDeviceToClientIDMap.containsKey(d)) {
+        Integer connId = d != null ? this.mDeviceToClientIDMap.get(d) : null;
+        if (connId == null) {
             return 65535;
         }
 
-        return ((Integer) this.mDeviceToClientIDMap.get(d)).intValue();
+        return connId.intValue();
     }
 
     /**
@@ -605,6 +806,43 @@ public abstract class BleClientProfile
         refresh(device);
     }
 
+    /**
+     * Called once a {@link #connect(List, int, int, int)} request is done.
+     * 
+     * @param connected devices that got connected, their services are being
+     *            refreshed as usual.
+     * @param failed devices that couldn't be connected after all retries.
+     */
+    public void onConnectCompleted(List<BluetoothDevice> connected,
+            List<BluetoothDevice> failed)
+    {
+        Log.d(TAG, "onConnectCompleted");
+    }
+
+    /**
+     * Called when an MTU request completes.
+     * 
+     * @param status {@link BleConstants#GATT_SUCCESS} if the MTU changed.
+     * @param mtu MTU in use from now on.
+     */
+    public void onMtuChanged(BluetoothDevice device, int status, int mtu)
+    {
+        Log.d(TAG, "onMtuChanged");
+    }
+
+    /**
+     * Called when the connection came back after the service lost its link
+     * to the device for a moment. Services, characteristics and enabled
+     * notifications are as they were, requests that were in flight when the
+     * link went down already failed.
+     * 
+     * @param device Identifies the remote device.
+     */
+    public void onLinkRestored(BluetoothDevice device)
+    {
+        Log.d(TAG, "onLinkRestored");
+    }
+
     /**
      * Called when the profile is disconnected from the peer.
      * 
@@ -691,6 +929,8 @@ public abstract class BleClientProfile
                     + client_if);
 
             BleClientProfile.this.mClientIf = client_if;
+            BleClientProfile.this.applyTimeout();
+            BleClientProfile.this.applyNotificationBatching();
             BleClientProfile.this.onProfileRegistered();
         }
 
@@ -760,12 +1000,70 @@ public abstract class BleClientProfile
             BluetoothDevice d = (BluetoothDevice) BleClientProfile.this.mClientIDToDeviceMap
                     .get(new Integer(connID));
 
-            BleClientProfile.this.mDeviceToClientIDMap.remove(d);
+            if (mRequiredServices != null)
+                for (BleClientService s : mRequiredServices)
+                    s.onConnectionClosed(connID);
+            if (mOptionalServices != null)
+                for (BleClientService s : mOptionalServices)
+                    s.onConnectionClosed(connID);
+
+            if (d != null) {
+                BleClientProfile.this.mDeviceToClientIDMap.remove(d);
+                BleClientProfile.this.mMtuMap.remove(d);
+            }
             BleClientProfile.this.mClientIDToDeviceMap.remove(new Integer(connID));
             BleClientProfile.this.mConnectedDevices.remove(d);
             BleClientProfile.this.mDisconnectingDevices.remove(d);
         }
 
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+            Log.d(TAG, "BleClientCallback::onOpenMultipleCompleted ("
+                    + BleClientProfile.this.mAppUuid + ") connected = " + connected.length
+                    + " failed = " + failed.length);
+
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            List<BluetoothDevice> connectedDevices = new ArrayList<BluetoothDevice>();
+            List<BluetoothDevice> failedDevices = new ArrayList<BluetoothDevice>();
+
+            for (String address : connected)
+                connectedDevices.add(adapter.getRemoteDevice(address));
+
+            for (String address : failed) {
+                BluetoothDevice d = adapter.getRemoteDevice(address);
+                synchronized (BleClientProfile.this.mConnectingDevices) {
+                    BleClientProfile.this.mConnectingDevices.remove(d);
+                }
+                failedDevices.add(d);
+            }
+
+            BleClientProfile.this.onConnectCompleted(connectedDevices, failedDevices);
+        }
+
+        public void onMtuChanged(int connID, int status, int mtu) {
+            Log.d(TAG, "BleClientCallback::onMtuChanged ("
+                    + BleClientProfile.this.mAppUuid + ") connID = " + connID + " status = "
+                    + status + " mtu = " + mtu);
+
+            BluetoothDevice d = BleClientProfile.this.mClientIDToDeviceMap.get(connID);
+            if (d == null)
+                return;
+
+            BleClientProfile.this.mMtuMap.put(d, Integer.valueOf(mtu));
+            BleClientProfile.this.onMtuChanged(d, status, mtu);
+        }
+
+        public void onLinkRestored(int connID, String address) {
+            Log.d(TAG, "BleClientCallback::onLinkRestored ("
+                    + BleClientProfile.this.mAppUuid + ") connID = " + connID + " address = "
+                    + address);
+
+            BluetoothDevice d = BleClientProfile.this.mClientIDToDeviceMap.get(connID);
+            if (d == null)
+                return;
+
+            BleClientProfile.this.onLinkRestored(d);
+        }
+
         public void onSearchResult(int connID, BluetoothGattID srvcId) {
             Log.d(TAG, "BleClientCallback::onSearchResult ("
                     + BleClientProfile.this.mAppUuid + ") connID = " + connID + " svcId: id = "
@@ -851,7 +1149,8 @@ public abstract class BleClientProfile
                 return;
             }
 
-            BleClientProfile.this.mRegisteredServices.put(device, services);
+            BleClientProfile.this.mRegisteredServices.put(device,
+                    Collections.unmodifiableList(services));
             Log.d(TAG, "the num of Srvs found match the required srv size ");
             onDeviceConnected(device);
 
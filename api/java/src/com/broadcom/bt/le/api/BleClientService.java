@@ -27,9 +27,13 @@ import com.broadcom.bt.service.gatt.BluetoothGattCharDescrID;
 import com.broadcom.bt.service.gatt.BluetoothGattCharID;
 import com.broadcom.bt.service.gatt.BluetoothGattID;
 import com.broadcom.bt.service.gatt.BluetoothGattInclSrvcID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a low energy service in the client role. <br>
@@ -50,11 +54,17 @@ public abstract class BleClientService
 
     private BleClientProfile mProfile = null;
     private BleGattID mServiceId = null;
-    private HashMap<BluetoothDevice, ArrayList<ServiceData>> mdeviceToDataMap =
-            new HashMap<BluetoothDevice, ArrayList<ServiceData>>();
+    /*
+     * every device maps to an immutable list of service instances, replaced as
+     * a whole when instances are added so readers never need a lock
+     */
+    private ConcurrentHashMap<BluetoothDevice, List<ServiceData>> mdeviceToDataMap =
+            new ConcurrentHashMap<BluetoothDevice, List<ServiceData>>();
     private BleCharacteristicDataCallback mCallback =
             new BleCharacteristicDataCallback();
     private boolean mReadDescriptors = true;
+    private NotificationIndex<BluetoothDevice, BleCharacteristic> mNotifyIndex =
+            new NotificationIndex<BluetoothDevice, BleCharacteristic>();
 
     /**
      * Creates a new Bluetooth Low Energy service identified by the given UUID.
@@ -108,9 +118,9 @@ public abstract class BleClientService
         if (s == null) {
             return ret;
         }
-        s.writeIndex = s.characteristics.indexOf(characteristic);
+        int writeIndex = s.getCharacteristics().indexOf(characteristic);
 
-        if ((s.characteristics != null) && (s.writeIndex >= BleConstants.GATT_SERVICE_PRIMARY)) {
+        if (writeIndex >= BleConstants.GATT_SERVICE_PRIMARY) {
             Log.d(TAG, "writeCharacteristic found characteristic in array:");
             Log.d(TAG,
                     "Service = [instanceID = " + instanceId + " svcid = "
@@ -162,18 +172,98 @@ public abstract class BleClientService
         return ret;
     }
 
+    /**
+     * Queues the value of a characteristic as part of a reliable write. <br>
+     * <br>
+     * Nothing is sent to the remote device until
+     * {@link #executeWrite(BluetoothDevice, boolean)} is called, then every
+     * queued characteristic is written and gets its own
+     * onWriteCharacteristicComplete callback. Values can be as long as
+     * {@link BleConstants#GATT_MAX_ATTR_LEN}.
+     * 
+     * @param remoteDevice Identifies the remote device to write to.
+     * @param instanceId - Instance id of this service.
+     * @param characteristic - Characteristic to be written
+     * @return BleConstants.GATT_SUCCESS if the value was queued
+     * @see {@link #onWriteCharacteristicComplete(int, BluetoothDevice, BleCharacteristic)}
+     */
+    public int prepareWriteCharacteristic(BluetoothDevice remoteDevice, int instanceId,
+            BleCharacteristic characteristic)
+    {
+        Log.d(TAG, "prepareWriteCharacteristic");
+
+        int connID = mProfile.getConnIdForDevice(remoteDevice);
+        if (connID == BleConstants.GATT_INVALID_CONN_ID)
+            return BleConstants.GATT_INVALID_CONN_ID;
+
+        byte[] value = characteristic.getValue();
+        if (value == null)
+            return BleConstants.GATT_ILLEGAL_PARAMETER;
+
+        BleGattID svcId = new BleGattID(instanceId, mServiceId.getUuid(),
+                mServiceId.getServiceType());
+        BluetoothGattCharID charID = new BluetoothGattCharID(svcId, characteristic.getID());
+        try {
+            characteristic.setDirty(false);
+            mProfile.getGattService().prepareWrite(connID, charID, 0,
+                    characteristic.getAuthReq(), value);
+        } catch (RemoteException e) {
+            Log.d(TAG, "prepareWriteCharacteristic" + e.toString());
+            return BleConstants.GATT_ERROR;
+        }
+        return BleConstants.GATT_SUCCESS;
+    }
+
+    /**
+     * Writes every value queued with
+     * {@link #prepareWriteCharacteristic(BluetoothDevice, int, BleCharacteristic)},
+     * or drops them all if execute is false.
+     */
+    public int executeWrite(BluetoothDevice remoteDevice, boolean execute)
+    {
+        Log.d(TAG, "executeWrite " + execute);
+
+        int connID = mProfile.getConnIdForDevice(remoteDevice);
+        if (connID == BleConstants.GATT_INVALID_CONN_ID)
+            return BleConstants.GATT_INVALID_CONN_ID;
+
+        try {
+            mProfile.getGattService().executeWrite(connID, execute);
+        } catch (RemoteException e) {
+            Log.d(TAG, "executeWrite" + e.toString());
+            return BleConstants.GATT_ERROR;
+        }
+        return BleConstants.GATT_SUCCESS;
+    }
+
     /**
      * Retrieves an array of all characteristics included in this service. The
      * characteristics and descriptors are read when this service is refreshed
-     * using the refresh function.
+     * using the refresh function. The returned array is a copy, changes to it
+     * don't affect the service.
      */
     public ArrayList<BleCharacteristic> getAllCharacteristics(BluetoothDevice remoteDevice)
     {
         Log.d(TAG, "getAllCharacteristics");
 
+        List<BleCharacteristic> l = getCharacteristicList(remoteDevice);
+        if (null != l) {
+            return new ArrayList<BleCharacteristic>(l);
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link #getAllCharacteristics(BluetoothDevice)} without the
+     * copy. The list is an unmodifiable snapshot taken when the last refresh
+     * completed, a refresh in progress publishes a new list instead of
+     * changing this one, so it can be used from any thread without locking.
+     */
+    public List<BleCharacteristic> getCharacteristicList(BluetoothDevice remoteDevice)
+    {
         ServiceData s = getServiceData(remoteDevice, mServiceId.getInstanceID());
         if (null != s) {
-            return s.characteristics;
+            return s.getCharacteristics();
         }
         return null;
     }
@@ -191,8 +281,9 @@ public abstract class BleClientService
             Log.d(TAG, "getCharacterisic - Service data not found");
             return null;
         }
-        for (int i = 0; i < s.characteristics.size(); i++) {
-            BleCharacteristic c = s.characteristics.get(i);
+        List<BleCharacteristic> characteristics = s.getCharacteristics();
+        for (int i = 0; i < characteristics.size(); i++) {
+            BleCharacteristic c = characteristics.get(i);
             if (c != null) {
                 if (c.getID() != null) {
                     if ((c.getID().toString().equals(characteristicID.toString()))
@@ -217,12 +308,12 @@ public abstract class BleClientService
     public int[] getAllServiceInstanceIds(BluetoothDevice remoteDevice)
     {
         Log.d(TAG, "getAllServiceInstanceIds");
-        ArrayList<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
+        List<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
         if (s != null) {
             int[] instanceIds = new int[s.size()];
 
             for (int i = 0; i < s.size(); i++) {
-                instanceIds[i] = s.get(0).instanceID;
+                instanceIds[i] = s.get(i).instanceID;
             }
 
             return instanceIds;
@@ -247,7 +338,7 @@ public abstract class BleClientService
     {
         Log.d(TAG, "Refresh (" + mServiceId.toString() + ")");
 
-        ArrayList<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
+        List<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
         if (s != null) {
             ServiceData sd = s.get(0);
             Log.e(TAG,
@@ -288,6 +379,97 @@ public abstract class BleClientService
         return ret;
     }
 
+    /**
+     * Reads a list of characteristics, and optionally all their descriptors,
+     * from the remote device in a single request. The requests are pipelined
+     * on the server side and the results are delivered together to
+     * {@link #onReadMultipleComplete(int, BluetoothDevice, ArrayList)}.
+     * 
+     * @param remoteDevice Identifies the remote device to read from.
+     * @param characteristics Characteristics of this service to read.
+     * @param readDescriptors true to also read every descriptor of the given
+     *            characteristics.
+     * @return {@link BleConstants#GATT_SUCCESS} if the read was initiated
+     *         successfully.
+     */
+    public int readCharacteristics(BluetoothDevice remoteDevice,
+            List<BleCharacteristic> characteristics, boolean readDescriptors)
+    {
+        Log.d(TAG, "readCharacteristics - svc UUID = " + getServiceId().getUuid().toString()
+                + ", count = " + characteristics.size());
+
+        int connID = mProfile.getConnIdForDevice(remoteDevice);
+        if (connID == BleConstants.GATT_INVALID_CONN_ID)
+            return BleConstants.GATT_INVALID_CONN_ID;
+
+        BluetoothGattValues targets = new BluetoothGattValues();
+        byte authReq = BleConstants.GATT_AUTH_REQ_NONE;
+        for (BleCharacteristic c : characteristics) {
+            targets.add(c.getID(), null, BleConstants.GATT_SUCCESS, null);
+            if (c.getAuthReq() > authReq)
+                authReq = c.getAuthReq();
+            if (!readDescriptors)
+                continue;
+            for (BleDescriptor d : c.getAllDescriptors())
+                targets.add(c.getID(), d.getID(), BleConstants.GATT_SUCCESS, null);
+        }
+
+        try {
+            mProfile.getGattService().readMultiple(connID, getBatchServiceId(), targets,
+                    authReq);
+        } catch (RemoteException e) {
+            Log.d(TAG, "readCharacteristics " + e.toString());
+            return BleConstants.GATT_ERROR;
+        }
+        return BleConstants.GATT_SUCCESS;
+    }
+
+    /**
+     * Reads the value of every characteristic of this service with the given
+     * UUID in a single read by type request. Results are delivered to
+     * {@link #onReadMultipleComplete(int, BluetoothDevice, ArrayList)}.
+     * 
+     * @return {@link BleConstants#GATT_SUCCESS} if the read was initiated
+     *         successfully.
+     */
+    public int readCharacteristicsByUuid(BluetoothDevice remoteDevice, BleGattID uuid)
+    {
+        Log.d(TAG, "readCharacteristicsByUuid - svc UUID = "
+                + getServiceId().getUuid().toString() + ", uuid = " + uuid);
+
+        int connID = mProfile.getConnIdForDevice(remoteDevice);
+        if (connID == BleConstants.GATT_INVALID_CONN_ID)
+            return BleConstants.GATT_INVALID_CONN_ID;
+
+        try {
+            mProfile.getGattService().readUsingCharUuid(connID, getBatchServiceId(), uuid,
+                    BleConstants.GATT_AUTH_REQ_NONE);
+        } catch (RemoteException e) {
+            Log.d(TAG, "readCharacteristicsByUuid " + e.toString());
+            return BleConstants.GATT_ERROR;
+        }
+        return BleConstants.GATT_SUCCESS;
+    }
+
+    private BleGattID getBatchServiceId()
+    {
+        return new BleGattID(mServiceId.getInstanceID(), getServiceId().getUuid(),
+                getServiceId().getServiceType());
+    }
+
+    /**
+     * Called once a batch read started with
+     * {@link #readCharacteristics(BluetoothDevice, List, boolean)} or
+     * {@link #readCharacteristicsByUuid(BluetoothDevice, BleGattID)} completes.
+     * The list holds every characteristic and descriptor that got a value, status
+     * is the last error seen or {@link BleConstants#GATT_SUCCESS}.
+     */
+    public void onReadMultipleComplete(int status, BluetoothDevice remoteDevice,
+            ArrayList<BleAttribute> attributes)
+    {
+        Log.d(TAG, "onReadMultipleComplete status=" + status);
+    }
+
     /**
      * Called to indicate a write operation to a characteristic on a remote
      * device has competed.
@@ -331,6 +513,22 @@ public abstract class BleClientService
         Log.d(TAG, "onCharacteristicChanged");
     }
 
+    /**
+     * Callback indicating values are waiting on the ring of a characteristic in
+     * streaming mode. It is invoked once for new samples, further
+     * notifications are only appended until the application drains the ring.
+     * If it returns having drained only part of the ring it gets invoked again
+     * for the rest. Values longer than the ring slots are counted by
+     * {@link BleValueRing#getOversized()} instead of being stored.
+     * 
+     * @see BleCharacteristic#enableStreaming(int, int)
+     */
+    public void onCharacteristicStream(BluetoothDevice remoteDevice,
+            BleCharacteristic characteristic)
+    {
+        Log.d(TAG, "onCharacteristicStream");
+    }
+
     /**
      * Callback indicating a refresh has been completed for this service.
      */
@@ -434,24 +632,22 @@ public abstract class BleClientService
     {
         Log.d(TAG, "setInstanceID address = " + remoteDevice.getAddress());
 
-        ServiceData sd = getServiceData(remoteDevice, instanceId);
         mServiceId.setInstanceId(instanceId);
+        ServiceData sd = getServiceData(remoteDevice, instanceId);
         if (null == sd) {
             Log.d(TAG, "setInstanceID setting instance id (" + instanceId + ")");
 
-            sd = new ServiceData();
-            sd.instanceID = mServiceId.getInstanceID();
-            sd.serviceType = mServiceId.getServiceType();
-            ArrayList<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
-            if (null == s) {
-                s = new ArrayList<ServiceData>();
+            sd = new ServiceData(instanceId, mServiceId.getServiceType());
+            synchronized (mdeviceToDataMap) {
+                List<ServiceData> old = mdeviceToDataMap.get(remoteDevice);
+                ArrayList<ServiceData> s = new ArrayList<ServiceData>();
+                if (null != old) {
+                    s.addAll(old);
+                }
+                s.add(sd);
+                mdeviceToDataMap.put(remoteDevice, Collections.unmodifiableList(s));
             }
-            s.add(sd);
-            mdeviceToDataMap.put(remoteDevice, s);
         }
-
-        sd.instanceID = mServiceId.getInstanceID();
-        sd.serviceType = mServiceId.getServiceType();
         try
         {
             int connID = BleConstants.GATT_INVALID_CONN_ID;
@@ -470,6 +666,34 @@ public abstract class BleClientService
     {
     }
 
+    /** @hide */
+    void onConnectionClosed(int connID)
+    {
+        mNotifyIndex.remove(connID);
+    }
+
+    /**
+     * Rebuilds the notification lookup for a connection, called once
+     * discovery of this service completes.
+     */
+    private void indexCharacteristics(int connID)
+    {
+        BluetoothDevice device = mProfile.getDeviceforConnId(connID);
+        if (device == null)
+            return;
+
+        mNotifyIndex.putDevice(connID, device);
+        List<ServiceData> services = mdeviceToDataMap.get(device);
+        if (services == null)
+            return;
+
+        for (ServiceData sd : services) {
+            mNotifyIndex.clearService(connID, sd.instanceID);
+            for (BleCharacteristic c : sd.getCharacteristics())
+                mNotifyIndex.put(connID, sd.instanceID, c.getInstanceID(), c);
+        }
+    }
+
     /** @hide */
     void setProfile(BleClientProfile profile)
     {
@@ -482,7 +706,7 @@ public abstract class BleClientService
                 + " instanceID = " + instanceID);
 
         ServiceData sData = null;
-        ArrayList<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
+        List<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
         if (s != null) {
             for (int i = 0; i < s.size(); i++) {
                 if (s.get(i).instanceID == instanceID) {
@@ -501,7 +725,7 @@ public abstract class BleClientService
                 + " currentinstanceID = " + currentInstanceID);
 
         ServiceData sData = null;
-        ArrayList<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
+        List<ServiceData> s = mdeviceToDataMap.get(remoteDevice);
         if (s != null) {
             for (int i = 0; i < s.size(); i++) {
                 if (s.get(i).instanceID != currentInstanceID)
@@ -719,6 +943,13 @@ public abstract class BleClientService
     protected void onServiceRefreshed(int connID)
     {
         Log.d(TAG, "onServiceRefreshed");
+        BluetoothDevice device = mProfile.getDeviceforConnId(connID);
+        List<ServiceData> services = device != null ? mdeviceToDataMap.get(device) : null;
+        if (services != null) {
+            for (ServiceData sd : services)
+                sd.publish();
+        }
+        indexCharacteristics(connID);
         onRefreshComplete(mProfile.getDeviceforConnId(connID));
         Log.d(TAG, "onRefreshComplete done");
         mProfile.onServiceRefreshed(this, mProfile.getDeviceforConnId(connID));
@@ -752,7 +983,7 @@ public abstract class BleClientService
                 ServiceData s = BleClientService.this.getServiceData(
                         BleClientService.this.mProfile.getDeviceforConnId(connID),
                         svcId.getInstanceID());
-                s.characteristics.clear();
+                s.beginRefresh();
 
                 Log.d(BleClientService.TAG,
                         "characteristic ID = " + characteristicID.toString() + "instance ID = "
@@ -771,7 +1002,7 @@ public abstract class BleClientService
                         BleClientService.this.mProfile.getDeviceforConnId(connID), characteristic,
                         svcId.getInstanceID());
 
-                s.characteristics.add(characteristic);
+                s.addCharacteristic(characteristic);
                 BleClientService.this.readFirstCharDescriptor(
                         BleClientService.this.mProfile.getDeviceforConnId(connID),
                         BleApiHelper.gatt2BleID(svcId),
@@ -968,7 +1199,7 @@ public abstract class BleClientService
                         BleClientService.this.mProfile.getDeviceforConnId(connID), characteristic,
                         svcId.getInstanceID());
 
-                s.characteristics.add(characteristic);
+                s.addCharacteristic(characteristic);
 
                 BleClientService.this.readFirstCharDescriptor(
                         BleClientService.this.mProfile.getDeviceforConnId(connID),
@@ -1087,6 +1318,40 @@ public abstract class BleClientService
                 }
         }
 
+        @Override
+        public void onReadMultipleValues(int connID, int status, BluetoothGattID svcId,
+                BluetoothGattValues values)
+        {
+            Log.d(BleClientService.TAG, "onReadMultipleValues status = " + status
+                    + " count = " + values.size());
+
+            BleGattID bleSvcId = BleApiHelper.gatt2BleID(svcId);
+            ArrayList<BleAttribute> attributes = new ArrayList<BleAttribute>(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                if (values.getStatus(i) != BleConstants.GATT_SUCCESS)
+                    continue;
+
+                BleGattID charId = BleApiHelper.gatt2BleID(values.getCharId(i));
+                BleAttribute a;
+                if (values.getDescrId(i) != null)
+                    a = findDescriptor(connID, bleSvcId, charId,
+                            BleApiHelper.gatt2BleID(values.getDescrId(i)));
+                else
+                    a = findCharacteristic(connID, bleSvcId, charId);
+
+                if (a == null) {
+                    Log.e(BleClientService.TAG, "onReadMultipleValues() - attribute not found "
+                            + charId);
+                    continue;
+                }
+                a.setValue(values.getValue(i));
+                attributes.add(a);
+            }
+
+            BleClientService.this.onReadMultipleComplete(status,
+                    BleClientService.this.mProfile.getDeviceforConnId(connID), attributes);
+        }
+
         @Override
         public void onWriteCharValue(int connID, int status, BluetoothGattID svcId,
                 BluetoothGattID characteristicID)
@@ -1135,20 +1400,21 @@ public abstract class BleClientService
             ServiceData s = BleClientService.this.getServiceData(
                     BleClientService.this.mProfile.getDeviceforConnId(connID), instanceID);
 
+            List<BleCharacteristic> characteristics = s.getCharacteristics();
             int i;
-            for (i = 0; i < s.characteristics.size(); i++) {
-                BleCharacteristic cTemp = s.characteristics.get(i);
+            for (i = 0; i < characteristics.size(); i++) {
+                BleCharacteristic cTemp = characteristics.get(i);
                 if (c.getID().equals(cTemp.getID()))
                 {
                     break;
                 }
             }
-            if (i + 1 < s.characteristics.size()) {
+            if (i + 1 < characteristics.size()) {
                 Log.d(BleClientService.TAG, "findNextCharacteristic position =  " + i
                         + "connID = " + connID + " next characteristic :"
-                        + s.characteristics.get(i + 1).getID().toString());
+                        + characteristics.get(i + 1).getID().toString());
 
-                return s.characteristics.get(i + 1);
+                return characteristics.get(i + 1);
             }
             return null;
         }
@@ -1163,17 +1429,13 @@ public abstract class BleClientService
             ServiceData s = BleClientService.this.getServiceData(
                     BleClientService.this.mProfile.getDeviceforConnId(connID),
                     svcId.getInstanceID());
+            if (s == null)
+                return null;
 
-            for (int i = 0; i < s.characteristics.size(); i++) {
-                BleCharacteristic c = s.characteristics.get(i);
-                if ((!c.getID().toString().equals(characteristicID.toString()))
-                        || (c.getInstanceID() != characteristicID.getInstanceID()))
-                    continue;
+            BleCharacteristic c = s.findCharacteristic(characteristicID);
+            if (c != null)
                 Log.d(BleClientService.TAG, "findCharacteristic - found");
-                return c;
-            }
-
-            return null;
+            return c;
         }
 
         BleDescriptor findDescriptor(int connID, BleGattID svcId, BleGattID characteristicID,
@@ -1223,20 +1485,8 @@ public abstract class BleClientService
         public void onNotify(int connId, String address, BluetoothGattID svcId,
                 BluetoothGattID characteristicID, boolean isNotify, byte[] data)
         {
-            Log.d(BleClientService.TAG, "onNotify " + connId + " " + address);
-
-            BleCharacteristic c = findCharacteristic(connId,
-                    BleApiHelper.gatt2BleID(svcId), BleApiHelper.gatt2BleID(characteristicID));
-
-            if (c != null)
-            {
-                c.setValue(data);
-                BleClientService.this.onCharacteristicChanged(
-                        BleClientService.this.mProfile.getDeviceforConnId(connId), c);
-            } else {
-                Log.d(BleClientService.TAG, "onNotify Characteristic not found" + connId
-                        + " " + address);
-            }
+            deliverNotification(connId, address, svcId, characteristicID, data,
+                    System.nanoTime(), false);
 
             if (!isNotify)
             {
@@ -1247,6 +1497,87 @@ public abstract class BleClientService
             }
         }
 
+        @Override
+        public void onNotifyBatch(int connId, String address, BluetoothGattNotifications batch)
+        {
+            // streams are signalled once the whole batch is in their ring
+            ArrayList<BleCharacteristic> streams = null;
+            int count = batch.size();
+            for (int i = 0; i < count; i++) {
+                BleCharacteristic c = deliverNotification(connId, address, batch.getSvcId(i),
+                        batch.getCharId(i), batch.getValue(i), batch.getTimestamp(i), true);
+                if (c != null) {
+                    if (streams == null)
+                        streams = new ArrayList<BleCharacteristic>();
+                    streams.add(c);
+                }
+            }
+
+            if (streams != null) {
+                BluetoothDevice device = mNotifyIndex.getDevice(connId);
+                for (BleCharacteristic c : streams)
+                    signalStream(device, c);
+            }
+        }
+
+        private void signalStream(BluetoothDevice device, BleCharacteristic c)
+        {
+            // the app may stop streaming from its own callback
+            BleValueRing ring;
+            do {
+                BleClientService.this.onCharacteristicStream(device, c);
+                ring = c.getStream();
+            } while (ring != null && ring.resignal());
+        }
+
+        /**
+         * @return with deferStream set, the characteristic whose stream the
+         *         caller has to signal, null if there is none.
+         */
+        private BleCharacteristic deliverNotification(int connId, String address,
+                BluetoothGattID svcId, BluetoothGattID characteristicID, byte[] data,
+                long timestamp, boolean deferStream)
+        {
+            // fast path, resolved by instance ids without any allocation
+            BleCharacteristic c = mNotifyIndex.get(connId, svcId.getInstanceID(),
+                    characteristicID.getInstanceID());
+            BluetoothDevice device = mNotifyIndex.getDevice(connId);
+
+            if (c == null || device == null || !c.getID().sameUuid(characteristicID)) {
+                Log.d(BleClientService.TAG, "onNotify " + connId + " " + address
+                        + " not indexed, searching");
+                c = findCharacteristic(connId, BleApiHelper.gatt2BleID(svcId),
+                        BleApiHelper.gatt2BleID(characteristicID));
+                device = BleClientService.this.mProfile.getDeviceforConnId(connId);
+                if (c != null && device != null) {
+                    mNotifyIndex.putDevice(connId, device);
+                    mNotifyIndex.put(connId, svcId.getInstanceID(),
+                            characteristicID.getInstanceID(), c);
+                }
+            }
+
+            if (c != null)
+            {
+                BleValueRing stream = c.getStream();
+                if (stream != null) {
+                    // one copy into the ring, the app gets called once per
+                    // batch instead of once per value
+                    if (stream.append(data, timestamp)) {
+                        if (deferStream)
+                            return c;
+                        signalStream(device, c);
+                    }
+                } else {
+                    c.setValue(data);
+                    BleClientService.this.onCharacteristicChanged(device, c);
+                }
+            } else {
+                Log.d(BleClientService.TAG, "onNotify Characteristic not found" + connId
+                        + " " + address);
+            }
+            return null;
+        }
+
         @Override
         public void onGetFirstIncludedService(int connID, int status, BluetoothGattID svcId,
                 BluetoothGattID inclsvcId)
@@ -1284,18 +1615,81 @@ public abstract class BleClientService
 
     }
 
+    /**
+     * One instance of this service on a remote device. Applications only see
+     * the published characteristic list, which is never modified. Discovery
+     * fills a private list that replaces it in a single step once the refresh
+     * completes.
+     */
     class ServiceData
     {
-        public int instanceID = -1;
-        public int writeIndex = -1;
-        public int serviceType = -1;
+        public final int instanceID;
+        public final int serviceType;
 
-        public ArrayList<BleCharacteristic> characteristics = new ArrayList<BleCharacteristic>();
+        private volatile List<BleCharacteristic> mCharacteristics =
+                Collections.emptyList();
+        private ArrayList<BleCharacteristic> mRefreshing = null;
 
-        ServiceData()
+        ServiceData(int instanceID, int serviceType)
         {
+            this.instanceID = instanceID;
+            this.serviceType = serviceType;
         }
 
+        /**
+         * Characteristics as of the last completed refresh.
+         */
+        List<BleCharacteristic> getCharacteristics()
+        {
+            return mCharacteristics;
+        }
+
+        synchronized void beginRefresh()
+        {
+            mRefreshing = new ArrayList<BleCharacteristic>();
+        }
+
+        synchronized void addCharacteristic(BleCharacteristic c)
+        {
+            if (mRefreshing == null)
+                mRefreshing = new ArrayList<BleCharacteristic>(mCharacteristics);
+            mRefreshing.add(c);
+        }
+
+        /**
+         * Makes the characteristics found by the current refresh visible.
+         */
+        synchronized void publish()
+        {
+            if (mRefreshing == null)
+                return;
+            mCharacteristics = Collections.unmodifiableList(mRefreshing);
+            mRefreshing = null;
+        }
+
+        /**
+         * Looks on the refresh in progress first, discovery callbacks need
+         * characteristics that aren't published yet.
+         */
+        synchronized BleCharacteristic findCharacteristic(BleGattID id)
+        {
+            if (mRefreshing != null) {
+                BleCharacteristic c = find(mRefreshing, id);
+                if (c != null)
+                    return c;
+            }
+            return find(mCharacteristics, id);
+        }
+
+        private BleCharacteristic find(List<BleCharacteristic> l, BleGattID id)
+        {
+            for (int i = 0; i < l.size(); i++) {
+                BleCharacteristic c = l.get(i);
+                if (c.getID().sameUuid(id) && c.getInstanceID() == id.getInstanceID())
+                    return c;
+            }
+            return null;
+        }
     }
 
 }
@@ -141,9 +141,33 @@ public abstract class BleConstants
     public static final int GATT_UUID_TYPE_16 = 2;
     public static final int PREPARE_QUEUE_SIZE = 200;
     public static final int GATT_MAX_CHAR_VALUE_LENGTH = 100;
+    public static final int GATT_MAX_ATTR_LEN = 512;
     public static final int GATT_CLIENT_CONFIG_NOTIFICATION_BIT = 1;
     public static final int GATT_CLIENT_CONFIG_INDICATION_BIT = 2;
     public static final int GATT_INVALID_CONN_ID = 65535;
+    public static final int GATT_DEFAULT_MTU = 23;
+    public static final int GATT_MAX_MTU = 517;
+    public static final int GATT_OP_CONNECT = 0;
+    public static final int GATT_OP_DISCOVER_SERVICES = 1;
+    public static final int GATT_OP_DISCOVER_CHARACTERISTICS = 2;
+    public static final int GATT_OP_DISCOVER_DESCRIPTORS = 3;
+    public static final int GATT_OP_READ = 4;
+    public static final int GATT_OP_WRITE_REQ = 5;
+    public static final int GATT_OP_WRITE_CMD = 6;
+    public static final int GATT_OP_NOTIFICATION = 7;
+    public static final int GATT_OP_MTU = 8;
+    public static final int GATT_OP_RESTORE = 9;
+    public static final int GATT_STAT_COUNT = 0;
+    public static final int GATT_STAT_ERRORS = 1;
+    public static final int GATT_STAT_IN_FLIGHT = 2;
+    public static final int GATT_STAT_MAX_IN_FLIGHT = 3;
+    public static final int GATT_STAT_BYTES = 4;
+    public static final int GATT_STAT_MEAN_US = 5;
+    public static final int GATT_STAT_P50_US = 6;
+    public static final int GATT_STAT_P90_US = 7;
+    public static final int GATT_STAT_P99_US = 8;
+    public static final int GATT_STAT_MAX_US = 9;
+    public static final int GATT_STAT_SIZE = 10;
     public static final int VALUE_DIRTY = 1;
     public static final int USER_DESCRIPTION_DIRTY = 2;
     public static final int EXT_PROP_DIRTY = 4;
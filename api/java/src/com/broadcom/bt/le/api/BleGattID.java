@@ -21,9 +21,9 @@ package com.broadcom.bt.le.api;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
 
 import com.broadcom.bt.service.gatt.BluetoothGattID;
+import com.broadcom.bt.service.gatt.GattUuidTable;
 
 import java.util.UUID;
 
@@ -33,9 +33,9 @@ import java.util.UUID;
 public final class BleGattID extends BluetoothGattID
         implements Parcelable
 {
+    @SuppressWarnings("unused")
     private static final String TAG = "BleGattID";
     
-    private static final String BASE_UUID_TPL = "%08x-0000-1000-8000-00805f9b34fb";
     @SuppressWarnings({
             "rawtypes", "unchecked"
     })
@@ -126,18 +126,21 @@ public final class BleGattID extends BluetoothGattID
     }
 
     /**
-     * Get the UUID type represented by this BleGattID (16 or 128 bit).
+     * Creates a BleGattID out of an UUID as printed by gatttool, short values
+     * (ie 2902) become 16 bit ids, anything else is parsed as a 128 bit UUID.
+     */
+    public static BleGattID fromString(String uuid) {
+        if (uuid.length() <= 4)
+            return new BleGattID(GattUuidTable.parseUuid16(uuid));
+        return new BleGattID(uuid);
+    }
+
+    /**
+     * Get the UUID type represented by this BleGattID (16 or 128 bit). 16 bit
+     * UUIDs are returned from the shared {@link GattUuidTable}.
      */
     public UUID getUuid() {
-        if (getUuidType() == BleConstants.GATT_UUID_TYPE_128) {
-            //Log.v(TAG, "returning 128b BleGattID " + super.getUuid());
-            return super.getUuid();
-        }
-        //Log.v(TAG, "making uuid out of 16b gattID " + Integer.toHexString(this.getUuid16()));
-        return UUID.fromString(String.format(BASE_UUID_TPL,
-                new Object[] {
-                    Integer.valueOf(getUuid16())
-                }));
+        return super.getUuid();
     }
 
     public int getUuid16() {
@@ -166,7 +169,7 @@ public final class BleGattID extends BluetoothGattID
     }
 
     public int hashCode() {
-        return getUuid().hashCode();
+        return super.hashCode();
     }
 
     public boolean equals(Object target) {
@@ -179,15 +182,10 @@ public final class BleGattID extends BluetoothGattID
         }
 
         if (!(target instanceof BleGattID)) {
-            Log.v(TAG, "Invalid instance, trying with super me: " + this.getClass() + " target: " + target.getClass());
             return super.equals(target);
         }
 
-        BleGattID lhs = (BleGattID) target;
-        UUID mine = this.getUuid();
-        UUID other = lhs.getUuid();
-        Log.v(TAG, "compairing " + mine + " " + other);
-        return getUuid().equals(lhs.getUuid());
+        return sameUuid((BleGattID) target);
     }
 
     public int describeContents() {
@@ -26,9 +26,9 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.ServiceManager;
 import android.util.Log;
 
 import com.broadcom.bt.le.api.exceptions.BondRequiredException;
@@ -59,18 +59,18 @@ public abstract class BleServerProfile
         mConnMap = new HashMap<String, Integer>();
         mMtuMap = new HashMap<Integer, Integer>();
         mSvcConn = new GattServiceConnection(null);
-        Intent i = new Intent();
-        i.setClassName("com.broadcom.bt.app.system",
-                "com.broadcom.bt.app.system.GattService");
-        mCtxt.bindService(i, mSvcConn, 1);
 
-        throw new RuntimeException("Not implemented");
+        IBinder b = ServiceManager.getService(BleConstants.BLUETOOTH_LE_SERVICE);
+        if (b == null) {
+            throw new RuntimeException("Bluetooth Low Energy service not available");
+        }
+        mSvcConn.onServiceConnected(null, b);
     }
 
     public synchronized void finish()
     {
         if (mSvcConn != null) {
-            mCtxt.unbindService(mSvcConn);
+            mSvcConn.onServiceDisconnected(null);
             mSvcConn = null;
         }
     }
@@ -180,6 +180,18 @@ public abstract class BleServerProfile
         mMtuMap.put(Integer.valueOf(connId), Integer.valueOf(mtuSize));
     }
 
+    /**
+     * Returns the MTU negotiated by a client, the default one if it never
+     * asked for a different value.
+     */
+    public int getMtuSize(int connId)
+    {
+        Integer mtu = mMtuMap.get(Integer.valueOf(connId));
+        if (mtu == null)
+            return BleConstants.GATT_DEFAULT_MTU;
+        return mtu.intValue();
+    }
+
     public boolean setEncryption(String bdaddr, byte action) throws BondRequiredException
     {
         BluetoothDevice d = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(bdaddr);
@@ -279,15 +291,20 @@ public abstract class BleServerProfile
                     + connId);
 
             mProfile.onClientConnected(bdaddr, isConnected);
-            if (isConnected)
+            if (isConnected) {
                 mProfile.mConnMap.put(bdaddr, Integer.valueOf(connId));
-            else
-                mProfile.mConnMap.remove(bdaddr);
+                return;
+            }
+            mProfile.mConnMap.remove(bdaddr);
+            mProfile.mMtuMap.remove(Integer.valueOf(connId));
+            for (int i = 0; i < mProfile.mServiceArr.size(); i++)
+                mProfile.mServiceArr.get(i).onClientDisconnected(connId);
         }
 
         public void onAttributeMtuExchange(String address, int connId, int transId, int mtuSize)
         {
             Log.i("BleServerProfile", "onAttributeMtuExchange");
+            mProfile.setMtuSize(connId, mtuSize);
         }
 
         public void onAppRegisterCompleted(int status, int serIf) {
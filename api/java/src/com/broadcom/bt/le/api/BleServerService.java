@@ -27,16 +27,15 @@ import com.broadcom.bt.service.gatt.BluetoothGattID;
 import com.broadcom.bt.service.gatt.IBluetoothGatt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
 
 public abstract class BleServerService
 {
     private final String TAG = "BleServerService";
 
-    private HashMap<Integer, BleCharacteristic> mCharHdlMap = null;
+    private ServerAttributeTable<BleCharacteristic, AttributeRequestInfo> mAttributes = null;
     private HashMap<Integer, BleServerService> mServiceHdlMap = null;
-    private HashMap<Integer, AttributeRequestInfo> mAttrReqMap = null;
 
     private ArrayList<BleCharacteristic> mCharQueue = null;
     private ArrayList<BleDescriptor> mDirtyDescQueue = null;
@@ -65,190 +64,248 @@ public abstract class BleServerService
     {
         public void handleMessage(Message msg)
         {
-            /**
-             * TODO: fixme some day
-             */
-            /**
-             * Log.i("BleServerService", "Handler: Handling message " +
-             * msg.what); BleServerService.HandlerMessage mHdlmsg =
-             * (BleServerService.HandlerMessage) msg.obj; BleCharacteristic
-             * charObj = null; BleDescriptor descObj = null; ArrayList
-             * dataList2; byte retValue; switch (msg.what) { case 0: charObj =
-             * (BleCharacteristic) BleServerService.this.mCharQueue.get(0); if
-             * (mHdlmsg.mStatus == 0) { if (!charObj.isRegistered()) {
-             * charObj.addHandle(mHdlmsg.mUuid, mHdlmsg.mHandle);
-             * Log.i("BleServerService", "Adding Handle " + mHdlmsg.mHandle +
-             * "for UUID" + mHdlmsg.mUuid);
-             * BleServerService.this.mCharHdlMap.put(
-             * Integer.valueOf(mHdlmsg.mHandle), charObj); } if
-             * (!charObj.getDirtyDescQueue().isEmpty()) {
-             * Log.i("BleServerService",
-             * "Adding Characteristic descriptors now");
-             * BleServerService.this.addCharacteristic(charObj, false); return;
-             * } } BleServerService.this.onCharacteristicAdded(mHdlmsg.mStatus,
-             * charObj); synchronized (this) {
-             * BleServerService.this.mCharQueue.remove(0); if
-             * (!BleServerService.this.mCharQueue.isEmpty()) {
-             * Log.i("BleServerService",
-             * "Handle: Start adding a new characteristic...");
-             * BleServerService.this.addCharacteristic( (BleCharacteristic)
-             * BleServerService.this.mCharQueue.get(0), false); } } break; case
-             * 1: BleGattID uuid = mHdlmsg.mUuid; Log.e("BleServerService",
-             * "Handle UUID =" + uuid); charObj = (BleCharacteristic)
-             * BleServerService.this.mCharQueue.get(0); if (charObj == null) {
-             * Log.e("BleServerService",
-             * "onCharacteristicAdded: Should n't be null"); return; } if
-             * (mHdlmsg.mStatus == 0) { charObj.addHandle(uuid,
-             * mHdlmsg.mHandle); Log.i("BleServerService", "Adding Handle " +
-             * mHdlmsg.mHandle + "for UUID" + mHdlmsg.mUuid); if
-             * (charObj.getDescriptor(uuid) != null) {
-             * charObj.updateDirtyDescQueue(); } ArrayList dirtyDescQueue =
-             * charObj.getDirtyDescQueue();
-             * BleServerService.this.mCharHdlMap.put(
-             * Integer.valueOf(mHdlmsg.mHandle), charObj); if
-             * (!dirtyDescQueue.isEmpty()) { Log.i("BleServerService",
-             * "Adding further Characteristic descriptors now");
-             * BleServerService.this.addCharacteristic(charObj, false); return;
-             * } Log.i("BleServerService",
-             * "One complete characteristic added successfully.."); for
-             * (Map.Entry entry : BleServerService.this.mCharHdlMap .entrySet())
-             * { Log.e( "BleServerService", "mCharHdlMap: Key = " +
-             * entry.getKey() + "Attribute =" + entry.getValue()); } }
-             * BleServerService.this.onCharacteristicAdded(mHdlmsg.mStatus,
-             * charObj); synchronized (this) {
-             * BleServerService.this.mCharQueue.remove(0); if
-             * (!BleServerService.this.mCharQueue.isEmpty()) {
-             * Log.i("BleServerService",
-             * "Handle: Start adding a new characteristic...");
-             * BleServerService.this.addCharacteristic( (BleCharacteristic)
-             * BleServerService.this.mCharQueue.get(0), false); } } break; case
-             * 2: BleCharacteristic tempObj = (BleCharacteristic)
-             * BleServerService.this.mCharHdlMap
-             * .get(Integer.valueOf(mHdlmsg.mAttrInfo.mAttrHandle)); ArrayList
-             * dataList = null; if (!mHdlmsg.mAttrInfo.mIsPrep) { if (tempObj !=
-             * null) { Log.e("BleServerService", "###Offset is " +
-             * mHdlmsg.mAttrInfo.mOffset + " len is " + mHdlmsg.mAttrInfo.mLen);
-             * byte status = tempObj.setValue(mHdlmsg.mAttrInfo.mData,
-             * mHdlmsg.mAttrInfo.mOffset, mHdlmsg.mAttrInfo.mLen,
-             * mHdlmsg.mAttrInfo.mAttrHandle, mHdlmsg.mAttrInfo.mLen,
-             * mHdlmsg.mAttrInfo.mAddress); Log.i("BleServerService",
-             * "SetValue status =" + status + " ");
-             * BleServerService.this.onCharacteristicWrite(
-             * mHdlmsg.mAttrInfo.mAddress, tempObj); if
-             * (mHdlmsg.mAttrInfo.mNeedRsp) {
-             * BleServerService.this.sendResponse( mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, mHdlmsg.mAttrInfo.mAttrHandle,
-             * mHdlmsg.mAttrInfo.mOffset, mHdlmsg.mAttrInfo.mData, status,
-             * true); } } else { Log.e("BleServerService",
-             * "Attribute_Write: Error Invalid handle");
-             * BleServerService.this.sendResponse(mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, mHdlmsg.mAttrInfo.mAttrHandle,
-             * mHdlmsg.mAttrInfo.mOffset, mHdlmsg.mAttrInfo.mData, 1, true); } }
-             * else { PrepareWriteContext context = new PrepareWriteContext(
-             * mHdlmsg.mAttrInfo.mOffset, mHdlmsg.mAttrInfo.mData,
-             * mHdlmsg.mAttrInfo.mAttrHandle); if ((dataList = (ArrayList)
-             * tempObj.writeQueue .get(mHdlmsg.mAttrInfo.mAddress)) == null) {
-             * Log.i("BleServerService",
-             * "Preparing write for first time for address: " +
-             * mHdlmsg.mAttrInfo.mAddress); dataList = new ArrayList();
-             * dataList.add(context);
-             * tempObj.writeQueue.put(mHdlmsg.mAttrInfo.mAddress, dataList);
-             * tempObj.writeSizeQueue.put(mHdlmsg.mAttrInfo.mAddress,
-             * Integer.valueOf(mHdlmsg.mAttrInfo.mData.length)); } else {
-             * Log.i("BleServerService", "Adding more entries for address: " +
-             * mHdlmsg.mAttrInfo.mAddress); int queueSize = 0; if ((queueSize =
-             * ((Integer) tempObj.writeSizeQueue
-             * .get(mHdlmsg.mAttrInfo.mAddress)).intValue()) +
-             * mHdlmsg.mAttrInfo.mData.length > 200) { Log.e("BleServerService",
-             * "#### Prepare failed: Exceeding prepare queue size");
-             * tempObj.writeQueue.remove(mHdlmsg.mAttrInfo.mAddress);
-             * tempObj.writeSizeQueue.remove(mHdlmsg.mAttrInfo.mAddress);
-             * BleServerService.this.sendResponse( mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, mHdlmsg.mAttrInfo.mAttrHandle,
-             * mHdlmsg.mAttrInfo.mOffset, mHdlmsg.mAttrInfo.mData, 9, false);
-             * return; } dataList.add(context);
-             * tempObj.writeQueue.put(mHdlmsg.mAttrInfo.mAddress, dataList);
-             * tempObj.writeSizeQueue.put(mHdlmsg.mAttrInfo.mAddress,
-             * Integer.valueOf(queueSize + mHdlmsg.mAttrInfo.mData.length)); }
-             * BleServerService.this.sendResponse(mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, mHdlmsg.mAttrInfo.mAttrHandle,
-             * mHdlmsg.mAttrInfo.mOffset, mHdlmsg.mAttrInfo.mData, 0, false); }
-             * break; case 7: dataList2 = null; retValue = 0; for (Map.Entry
-             * entry : BleServerService.this.mCharHdlMap.entrySet()) {
-             * BleCharacteristic tempOb = (BleCharacteristic) entry.getValue();
-             * if ((dataList2 = (ArrayList) tempOb.writeQueue
-             * .get(mHdlmsg.mAttrInfo.mAddress)) != null) { if
-             * (mHdlmsg.mAttrInfo.mExecWriteMtu == 0) {
-             * Log.e("BleServerService",
-             * "## Flushing out all prepared writes for address: " +
-             * mHdlmsg.mAttrInfo.mAddress); dataList2.clear(); } else { for
-             * (PrepareWriteContext context : dataList2) {
-             * Log.e("BleServerService", "##### Setting char value from offset "
-             * + context.mOffset + " to a length of " + context.mData.length +
-             * " into handle " + context.mHandle); retValue =
-             * tempOb.setValue(context.mData, context.mOffset,
-             * context.mData.length, context.mHandle, ((Integer)
-             * tempOb.writeSizeQueue
-             * .get(mHdlmsg.mAttrInfo.mAddress)).intValue(),
-             * mHdlmsg.mAttrInfo.mAddress); } } } else { Log.e(
-             * "BleServerService",
-             * "####ExecuteWrite: No prep write queue in char " +
-             * tempOb.getHandle(tempOb.getID())); continue; }
-             * tempOb.writeQueue.remove(mHdlmsg.mAttrInfo.mAddress);
-             * tempOb.writeSizeQueue.remove(mHdlmsg.mAttrInfo.mAddress);
-             * BleServerService.this.sendResponse(mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, 0, 0, new byte[1], retValue, true);
-             * if (retValue == 0) { BleServerService.this.onCharacteristicWrite(
-             * mHdlmsg.mAttrInfo.mAddress, tempOb); } } break; case 3:
-             * BleCharacteristic charObj2 = (BleCharacteristic)
-             * BleServerService.this.mCharHdlMap
-             * .get(Integer.valueOf(mHdlmsg.mAttrInfo.mAttrHandle));
-             * Log.d("BleServerService", "Handle Message: ATTRIBUTE_READ"); if
-             * (charObj2 == null) { Log.e("BleServerService",
-             * "Atrribute read error. Invalid attribute handle" +
-             * mHdlmsg.mAttrInfo.mAttrHandle);
-             * BleServerService.this.sendResponse(mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, mHdlmsg.mAttrInfo.mAttrHandle,
-             * mHdlmsg.mAttrInfo.mOffset, new byte[1], 1, false); return; }
-             * BleServerService.this.mAttrReqMap.put(
-             * Integer.valueOf(mHdlmsg.mAttrInfo.mTransId), mHdlmsg.mAttrInfo);
-             * BleServerService
-             * .this.onCharacteristicRead(mHdlmsg.mAttrInfo.mAddress,
-             * mHdlmsg.mAttrInfo.mTransId, mHdlmsg.mAttrInfo.mAttrHandle,
-             * charObj2); break; case 4: Log.i("BleServerService",
-             * "Handle Value Indication"); break; case 5:
-             * Log.i("BleServerService", "Handle Value Notification"); break;
-             * case 6: Log.i("BleServerService", "AttributeMtuExchange"); }
-             **/
+            Log.i(TAG, "Handler: Handling message " + msg.what);
+            HandlerMessage hdlMsg = (HandlerMessage) msg.obj;
+            switch (msg.what) {
+                case CHAR_ADDED:
+                    onHandleAdded(hdlMsg, false);
+                    break;
+                case CHAR_DESC_ADDED:
+                    onHandleAdded(hdlMsg, true);
+                    break;
+                case ATTRIBUTE_WRITE:
+                    onAttributeWrite(hdlMsg.mAttrInfo);
+                    break;
+                case EXECUTE_WRITE:
+                    onExecuteWrite(hdlMsg.mAttrInfo);
+                    break;
+                case ATTRIBUTE_READ:
+                    onAttributeRead(hdlMsg.mAttrInfo);
+                    break;
+                case HDL_VAL_INDICATION:
+                    Log.i(TAG, "Handle Value Indication");
+                    break;
+                case HDL_VAL_NOTIFICATION:
+                    Log.i(TAG, "Handle Value Notification");
+                    break;
+                case MTU_EXCHANGE:
+                    Log.i(TAG, "AttributeMtuExchange");
+                    break;
+            }
         }
-
     };
 
+    /**
+     * A characteristic value or one of its descriptors got its handle, keep
+     * adding descriptors until the characteristic is complete and then move
+     * to the next queued characteristic.
+     */
+    private void onHandleAdded(HandlerMessage hdlMsg, boolean isDescriptor)
+    {
+        BleCharacteristic charObj;
+        synchronized (this) {
+            if (mCharQueue.isEmpty()) {
+                Log.e(TAG, "onHandleAdded: no characteristic being added");
+                return;
+            }
+            charObj = mCharQueue.get(0);
+        }
+
+        if (hdlMsg.mStatus == BleConstants.GATT_SUCCESS) {
+            if (isDescriptor || !charObj.isRegistered()) {
+                charObj.addHandle(hdlMsg.mUuid, hdlMsg.mHandle);
+                Log.i(TAG, "Adding Handle " + hdlMsg.mHandle + " for UUID " + hdlMsg.mUuid);
+                int valueHandle = -1;
+                if (isDescriptor
+                        && hdlMsg.mUuid.getUuid16() == BleConstants.GATT_UUID_CHAR_CLIENT_CONFIG16)
+                    valueHandle = charObj.getHandle(charObj.getID());
+                mAttributes.put(hdlMsg.mHandle, charObj, valueHandle);
+            }
+            if (isDescriptor && charObj.getDescriptor(hdlMsg.mUuid) != null)
+                charObj.updateDirtyDescQueue();
+            if (!charObj.getDirtyDescQueue().isEmpty()) {
+                Log.i(TAG, "Adding further characteristic descriptors now");
+                addCharacteristic(charObj, false);
+                return;
+            }
+        }
+
+        onCharacteristicAdded(hdlMsg.mStatus, charObj);
+        synchronized (this) {
+            mCharQueue.remove(0);
+            if (mCharQueue.isEmpty())
+                return;
+            charObj = mCharQueue.get(0);
+        }
+        Log.i(TAG, "Start adding a new characteristic...");
+        addCharacteristic(charObj, false);
+    }
+
+    private void onAttributeWrite(AttributeRequestInfo attrInfo)
+    {
+        BleCharacteristic charObj = mAttributes.get(attrInfo.mAttrHandle);
+        if (charObj == null) {
+            Log.e(TAG, "Attribute write error. Invalid handle " + attrInfo.mAttrHandle);
+            if (attrInfo.mNeedRsp)
+                sendResponse(attrInfo.mConnId, attrInfo, null,
+                        BleConstants.GATT_INVALID_HANDLE, true);
+            return;
+        }
+
+        if (!attrInfo.mIsPrep) {
+            byte status = charObj.setValue(attrInfo.mData, attrInfo.mOffset, attrInfo.mLen,
+                    attrInfo.mAttrHandle, attrInfo.mLen, attrInfo.mAddress);
+            Log.i(TAG, "SetValue status = " + status);
+            if (status == BleConstants.GATT_SUCCESS) {
+                mAttributes.invalidate(attrInfo.mAttrHandle);
+                if (attrInfo.mOffset == 0 && mAttributes.isClientConfig(attrInfo.mAttrHandle))
+                    mAttributes.setClientConfig(attrInfo.mConnId, attrInfo.mAttrHandle,
+                            clientConfig(attrInfo.mData));
+            }
+            onCharacteristicWrite(attrInfo.mAddress, charObj);
+            if (attrInfo.mNeedRsp)
+                sendResponse(attrInfo.mConnId, attrInfo, attrInfo.mData, status, true);
+            return;
+        }
+
+        if (!mAttributes.addPrepared(attrInfo.mConnId, attrInfo.mAttrHandle, attrInfo.mOffset,
+                attrInfo.mData, BleConstants.PREPARE_QUEUE_SIZE)) {
+            Log.e(TAG, "Prepare failed: Exceeding prepare queue size");
+            mAttributes.clearPrepared(attrInfo.mConnId);
+            sendResponse(attrInfo.mConnId, attrInfo, attrInfo.mData,
+                    BleConstants.GATT_PREPARE_Q_FULL, false);
+            return;
+        }
+        sendResponse(attrInfo.mConnId, attrInfo, attrInfo.mData, BleConstants.GATT_SUCCESS,
+                false);
+    }
+
+    /**
+     * Applies or drops every write prepared by this client on this service,
+     * in the order they came. The server expects a single response per
+     * service.
+     */
+    private void onExecuteWrite(AttributeRequestInfo attrInfo)
+    {
+        int connId = attrInfo.mConnId;
+        int count = attrInfo.mExecWriteMtu == 0 ? 0 : mAttributes.getPreparedCount(connId);
+        byte retValue = BleConstants.GATT_SUCCESS;
+        for (int i = 0; i < count; i++) {
+            int handle = mAttributes.getPreparedHandle(connId, i);
+            int offset = mAttributes.getPreparedOffset(connId, i);
+            byte[] data = mAttributes.getPreparedValue(connId, i);
+            BleCharacteristic charObj = mAttributes.get(handle);
+            Log.i(TAG, "Setting char value from offset " + offset + " to a length of "
+                    + data.length + " into handle " + handle);
+            byte ret = charObj == null ? BleConstants.GATT_INVALID_HANDLE
+                    : charObj.setValue(data, offset, data.length, handle, data.length,
+                            attrInfo.mAddress);
+            if (ret != BleConstants.GATT_SUCCESS)
+                retValue = ret;
+            mAttributes.invalidate(handle);
+        }
+
+        /* one onCharacteristicWrite per characteristic, on the first write to it */
+        for (int i = 0; i < count && retValue == BleConstants.GATT_SUCCESS; i++) {
+            BleCharacteristic charObj = mAttributes.get(mAttributes.getPreparedHandle(connId, i));
+            boolean first = true;
+            for (int j = 0; j < i && first; j++)
+                first = mAttributes.get(mAttributes.getPreparedHandle(connId, j)) != charObj;
+            if (first)
+                onCharacteristicWrite(attrInfo.mAddress, charObj);
+        }
+        mAttributes.clearPrepared(connId);
+        sendResponse(connId, attrInfo, null, retValue, true);
+    }
+
+    /**
+     * Client configuration descriptors are answered with what this client
+     * wrote and read blobs from the value it got at offset 0, everything else
+     * goes to onCharacteristicRead.
+     */
+    private void onAttributeRead(AttributeRequestInfo attrInfo)
+    {
+        BleCharacteristic charObj = mAttributes.get(attrInfo.mAttrHandle);
+        if (charObj == null) {
+            Log.e(TAG, "Attribute read error. Invalid attribute handle "
+                    + attrInfo.mAttrHandle);
+            sendResponse(attrInfo.mConnId, attrInfo, null, BleConstants.GATT_INVALID_HANDLE,
+                    false);
+            return;
+        }
+
+        byte[] data = null;
+        if (mAttributes.isClientConfig(attrInfo.mAttrHandle)) {
+            int config = mAttributes.getClientConfig(attrInfo.mConnId, attrInfo.mAttrHandle);
+            data = new byte[] { (byte) config, (byte) (config >> 8) };
+        } else if (attrInfo.mOffset > 0)
+            data = mAttributes.getReadCache(attrInfo.mConnId, attrInfo.mAttrHandle);
+        if (data != null) {
+            if (attrInfo.mOffset > data.length) {
+                sendResponse(attrInfo.mConnId, attrInfo, null, BleConstants.GATT_INVALID_OFFSET,
+                        false);
+                return;
+            }
+            if (attrInfo.mOffset > 0)
+                data = Arrays.copyOfRange(data, attrInfo.mOffset, data.length);
+            sendResponse(attrInfo.mConnId, attrInfo, data, BleConstants.GATT_SUCCESS, false);
+            return;
+        }
+
+        mAttributes.setPendingRead(attrInfo.mConnId, attrInfo.mTransId, attrInfo);
+        onCharacteristicRead(attrInfo.mAddress, attrInfo.mTransId, attrInfo.mAttrHandle,
+                charObj);
+    }
+
+    private void sendResponse(int connId, AttributeRequestInfo attrInfo, byte[] data,
+            int statusCode, boolean isWrite)
+    {
+        if (mService == null)
+            return;
+        try {
+            mService.GATTServer_SendRsp(connId, attrInfo.mTransId, (byte) statusCode,
+                    attrInfo.mAttrHandle, attrInfo.mOffset, data, (byte) 0, isWrite);
+        } catch (Throwable t) {
+            Log.e(TAG, "sendResponse", t);
+        }
+    }
+
+    private static int clientConfig(byte[] data)
+    {
+        if (data == null || data.length == 0)
+            return 0;
+        return (data[0] & 0xff) | (data.length > 1 ? (data[1] & 0xff) << 8 : 0);
+    }
+
+    /**
+     * Drops what a client left behind, called by the profile when it
+     * disconnects.
+     */
+    void onClientDisconnected(int connId)
+    {
+        mAttributes.remove(connId);
+    }
+
     int getConnId(String address)
     {
         if (this.mProfileHandle == null)
             return -1;
-        HashMap connMap = this.mProfileHandle.getConnMap();
-        return ((Integer) connMap.get(address)).intValue();
+        Integer connId = this.mProfileHandle.getConnMap().get(address);
+        return connId == null ? -1 : connId.intValue();
     }
 
     public BleServerService(BleGattID serviceId, int numHandles)
     {
-        /**
-         * TODO: implement
-         */
         this.mServiceId = serviceId;
         this.mNumHandles = numHandles;
         this.mSupTransport = 2;
         this.mGattServiceCallback = new BleServiceCallback(this);
-        this.mCharHdlMap = new HashMap();
-        this.mServiceHdlMap = new HashMap();
-        this.mCharQueue = new ArrayList();
-        this.mAttrReqMap = new HashMap();
+        this.mAttributes = new ServerAttributeTable<BleCharacteristic, AttributeRequestInfo>();
+        this.mServiceHdlMap = new HashMap<Integer, BleServerService>();
+        this.mCharQueue = new ArrayList<BleCharacteristic>();
 
         if (this.mServiceId.getServiceType() == -1)
             this.mServiceId.setServiceType(0);
-        throw new RuntimeException("not implemented");
 
     }
 
@@ -259,18 +316,17 @@ public abstract class BleServerService
         this.mSupTransport = supTransport;
         this.mGattServiceCallback = new BleServiceCallback(this);
 
-        this.mCharHdlMap = new HashMap();
-        this.mCharQueue = new ArrayList();
-        this.mServiceHdlMap = new HashMap();
-        this.mAttrReqMap = new HashMap();
+        this.mAttributes = new ServerAttributeTable<BleCharacteristic, AttributeRequestInfo>();
+        this.mCharQueue = new ArrayList<BleCharacteristic>();
+        this.mServiceHdlMap = new HashMap<Integer, BleServerService>();
 
         if (this.mServiceId.getServiceType() == -1)
             this.mServiceId.setServiceType(0);
-        throw new RuntimeException("not implemented");
     }
 
     protected void setServiceHandle(int svcHandle) {
         this.mSvcHandle = svcHandle;
+        this.mAttributes.setRange(svcHandle, svcHandle < 0 ? 0 : this.mNumHandles);
     }
 
     protected void setServiceInstance(int svcInstance) {
@@ -375,8 +431,8 @@ public abstract class BleServerService
             return;
         }
 
-        AttributeRequestInfo attrInfo = (AttributeRequestInfo) this.mAttrReqMap
-                .remove(Integer.valueOf(transId));
+        AttributeRequestInfo attrInfo = this.mAttributes.takePendingRead(getConnId(address),
+                transId);
         if (attrInfo == null)
         {
             Log.e("BleServerService",
@@ -387,6 +443,8 @@ public abstract class BleServerService
         byte[] dataToSend = null;
         if (attrInfo.mOffset == 0) {
             dataToSend = data;
+            if (statusCode == BleConstants.GATT_SUCCESS)
+                this.mAttributes.putReadCache(attrInfo.mConnId, attrInfo.mAttrHandle, data);
         } else {
             dataToSend = new byte[data.length - attrInfo.mOffset];
             System.arraycopy(data, attrInfo.mOffset, dataToSend, 0, dataToSend.length);
@@ -436,6 +494,32 @@ public abstract class BleServerService
             }
     }
 
+    /**
+     * Notifies value to every connected client that enabled notifications
+     * on attrHandle, one call no matter how many clients are subscribed.
+     */
+    public void broadcastNotification(int attrHandle, byte[] value)
+    {
+        if (this.mService != null)
+            try {
+                this.mService.GATTServer_BroadcastNotification(attrHandle, value);
+            } catch (Throwable t) {
+                Log.e("BleServerService", "broadcastNotification", t);
+            }
+    }
+
+    /**
+     * Returns the client configuration bits a client wrote for a
+     * characteristic, see
+     * {@link BleConstants#GATT_CLIENT_CONFIG_NOTIFICATION_BIT} and
+     * {@link BleConstants#GATT_CLIENT_CONFIG_INDICATION_BIT}.
+     */
+    public int getClientConfig(String address, BleCharacteristic charObj)
+    {
+        return this.mAttributes.getClientConfig(getConnId(address),
+                charObj.getHandle(charObj.getID()));
+    }
+
     public void sendIndication(String address, int attrHandle, byte[] value)
     {
         int connId = getConnId(address);
@@ -477,15 +561,11 @@ public abstract class BleServerService
                 }
                 else if (dirtyMask) {
                     Log.i("BleServerService", "GATTServer_AddCharValue");
-                    HashMap<String, Integer> connMap = this.mProfileHandle.getConnMap();
-
-                    int clientCfg;
-                    for (Map.Entry<String, Integer> entry : connMap.entrySet()) {
-                        String address = (String) entry.getKey();
-                        int connId = ((Integer) entry.getValue()).intValue();
-                        clientCfg = 0;
-                    }
-
+                    int valueHandle = charObj.getHandle(charObj.getID());
+                    this.mAttributes.invalidate(valueHandle);
+                    if (charObj.isNotifyable())
+                        broadcastNotification(valueHandle, charObj.getValue());
+                    charObj.setDirty(false);
                     return;
                 }
             } else {
@@ -553,8 +633,8 @@ public abstract class BleServerService
     public void onCharacteristicRead(String address, int transId, int attrHandle,
             BleCharacteristic charObj)
     {
-        AttributeRequestInfo attrInfo = (AttributeRequestInfo) this.mAttrReqMap
-                .remove(Integer.valueOf(transId));
+        AttributeRequestInfo attrInfo = this.mAttributes.takePendingRead(getConnId(address),
+                transId);
         Log.d("BleServerService", "Inside onCharacteristicRead()");
         if (attrInfo == null)
         {
@@ -613,6 +693,7 @@ public abstract class BleServerService
         byte[] dataToSend = null;
         if (attrInfo.mOffset == 0) {
             dataToSend = data;
+            this.mAttributes.putReadCache(attrInfo.mConnId, attrInfo.mAttrHandle, data);
         } else {
             dataToSend = new byte[data.length - attrInfo.mOffset];
             System.arraycopy(data, attrInfo.mOffset, dataToSend, 0, dataToSend.length);
@@ -733,8 +814,7 @@ public abstract class BleServerService
         public void onResponseSendCompleted(byte status, int attrHandle)
         {
             Log.i("BleServerService", "onResponseSendCompleted");
-            BleCharacteristic charObj = (BleCharacteristic) BleServerService.this.mCharHdlMap
-                    .get(Integer.valueOf(attrHandle));
+            BleCharacteristic charObj = BleServerService.this.mAttributes.get(attrHandle);
             this.mGattService.onResponseSendCompleted(status, charObj);
         }
 
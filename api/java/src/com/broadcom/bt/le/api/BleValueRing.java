@@ -0,0 +1,234 @@
+/************************************************************************************
+ *
+ *  Copyright (C) 2012      Naranjo Manuel Francisco <naranjo.manuel@gmail.com>
+ *  Copyright (C) 2009-2011 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ************************************************************************************/
+
+package com.broadcom.bt.le.api;
+
+/**
+ * Bounded ring of attribute values used by {@link BleCharacteristic} in
+ * streaming mode. <br>
+ * <br>
+ * All the storage is allocated up front: capacity slots of maxLength bytes
+ * each. Incoming notifications are copied once into the next free slot and
+ * the application drains them in batches. When the ring is full the oldest
+ * sample is overwritten and the overrun counter increases, so a slow consumer
+ * can tell exactly how many samples it lost. Values longer than maxLength
+ * are not stored either, they are counted apart as oversized.
+ */
+public class BleValueRing
+{
+    private final byte[] mData;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+    private final int mCapacity;
+    private final int mMaxLength;
+
+    private int mHead = 0; // next slot to read
+    private int mCount = 0;
+    private long mTotal = 0;
+    private long mOverruns = 0;
+    private long mOversized = 0;
+    private boolean mSignalled = false;
+
+    /**
+     * @param capacity amount of samples the ring can hold.
+     * @param maxLength biggest value that can be stored, longer values are
+     *            dropped and counted by {@link #getOversized()}.
+     */
+    public BleValueRing(int capacity, int maxLength)
+    {
+        if (capacity <= 0 || maxLength <= 0)
+            throw new IllegalArgumentException("capacity and maxLength must be positive");
+
+        mCapacity = capacity;
+        mMaxLength = maxLength;
+        mData = new byte[capacity * maxLength];
+        mLengths = new int[capacity];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Appends a value, overwriting the oldest one if the ring is full.
+     * 
+     * @return true if the consumer should be told there's new data, that is
+     *         the first append since it last drained the ring.
+     */
+    public synchronized boolean append(byte[] value, long timestamp)
+    {
+        if (value != null && value.length > mMaxLength) {
+            mOversized++;
+            return false;
+        }
+
+        int slot;
+        if (mCount == mCapacity) {
+            slot = mHead;
+            mHead = (mHead + 1) % mCapacity;
+            mOverruns++;
+        } else {
+            slot = (mHead + mCount) % mCapacity;
+            mCount++;
+        }
+
+        int length = 0;
+        if (value != null) {
+            length = value.length;
+            System.arraycopy(value, 0, mData, slot * mMaxLength, length);
+        }
+        mLengths[slot] = length;
+        mTimestamps[slot] = timestamp;
+        mTotal++;
+
+        if (mSignalled)
+            return false;
+        mSignalled = true;
+        return true;
+    }
+
+    /**
+     * Moves up to lengths.length samples out of the ring. Values are packed
+     * back to back into buffer, their sizes go into lengths and, if not null,
+     * their arrival time (System.nanoTime()) into timestamps. A sample
+     * longer than the whole buffer can never be drained, it is dropped and
+     * counted by {@link #getOversized()} so the ones behind it still come
+     * out.
+     * 
+     * @return amount of samples copied, it stops early if buffer runs out of
+     *         space.
+     */
+    public synchronized int drain(byte[] buffer, int[] lengths, long[] timestamps)
+    {
+        int n = 0;
+        int offset = 0;
+        int dropped = 0;
+        while (mCount > 0 && n < lengths.length) {
+            int length = mLengths[mHead];
+            if (length > buffer.length) {
+                mHead = (mHead + 1) % mCapacity;
+                mCount--;
+                mOversized++;
+                dropped++;
+                continue;
+            }
+            if (offset + length > buffer.length)
+                break;
+
+            System.arraycopy(mData, mHead * mMaxLength, buffer, offset, length);
+            lengths[n] = length;
+            if (timestamps != null && n < timestamps.length)
+                timestamps[n] = mTimestamps[mHead];
+            offset += length;
+            n++;
+            mHead = (mHead + 1) % mCapacity;
+            mCount--;
+        }
+
+        // anything left gets signalled again, see resignal
+        if (n > 0 || dropped > 0 || mCount == 0)
+            mSignalled = false;
+        return n;
+    }
+
+    /**
+     * Copies the oldest sample into value and removes it.
+     * 
+     * @return the sample length, or -1 if the ring is empty.
+     */
+    public synchronized int read(byte[] value)
+    {
+        if (mCount == 0) {
+            mSignalled = false;
+            return -1;
+        }
+
+        int length = Math.min(mLengths[mHead], value.length);
+        System.arraycopy(mData, mHead * mMaxLength, value, 0, length);
+        mHead = (mHead + 1) % mCapacity;
+        mCount--;
+        mSignalled = false;
+        return length;
+    }
+
+    /**
+     * For the caller of the consumer once it returns: if it drained part of
+     * the ring and left samples behind, they have to be signalled again as
+     * no append may come to do it.
+     * 
+     * @return true if the consumer should be called again.
+     */
+    public synchronized boolean resignal()
+    {
+        if (mSignalled || mCount == 0)
+            return false;
+        mSignalled = true;
+        return true;
+    }
+
+    /**
+     * Amount of samples waiting to be drained.
+     */
+    public synchronized int available()
+    {
+        return mCount;
+    }
+
+    /**
+     * Amount of samples that were overwritten before being drained.
+     */
+    public synchronized long getOverruns()
+    {
+        return mOverruns;
+    }
+
+    /**
+     * Amount of values that were longer than maxLength, or than the buffer
+     * given to drain, and got dropped.
+     */
+    public synchronized long getOversized()
+    {
+        return mOversized;
+    }
+
+    /**
+     * Amount of samples appended since the ring was created or cleared.
+     */
+    public synchronized long getTotal()
+    {
+        return mTotal;
+    }
+
+    public int getCapacity()
+    {
+        return mCapacity;
+    }
+
+    public int getMaxLength()
+    {
+        return mMaxLength;
+    }
+
+    public synchronized void clear()
+    {
+        mHead = 0;
+        mCount = 0;
+        mTotal = 0;
+        mOverruns = 0;
+        mOversized = 0;
+        mSignalled = false;
+    }
+}
@@ -0,0 +1,162 @@
+/************************************************************************************
+ *
+ *  Copyright (C) 2012      Naranjo Manuel Francisco <naranjo.manuel@gmail.com>
+ *  Copyright (C) 2009-2011 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ************************************************************************************/
+
+package com.broadcom.bt.le.api;
+
+import java.util.Arrays;
+
+/**
+ * Per connection lookup table used to resolve incoming notifications.
+ * <br>
+ * <br>
+ * Entries are indexed by connection id, then by service and characteristic
+ * instance id. Instance ids are assigned by the framework in discovery order,
+ * so they are small and dense and a plain array per service is enough. The
+ * connection ids are kept sorted and looked up with a binary search, plus a
+ * cache of the last hit since notifications usually come in bursts from the
+ * same device. Nothing is allocated on lookup.
+ * 
+ * @hide
+ */
+public final class NotificationIndex<D, A>
+{
+    private static final class Connection
+    {
+        Object device;
+        Object[][] attributes = new Object[1][];
+    }
+
+    private int[] mConnIds = new int[4];
+    private Connection[] mConnections = new Connection[4];
+    private int mCount = 0;
+    private int mLastIndex = -1;
+
+    private int indexOf(int connId)
+    {
+        int last = mLastIndex;
+        if (last >= 0 && last < mCount && mConnIds[last] == connId)
+            return last;
+
+        int i = Arrays.binarySearch(mConnIds, 0, mCount, connId);
+        if (i >= 0)
+            mLastIndex = i;
+        return i;
+    }
+
+    private Connection getOrCreate(int connId)
+    {
+        int i = indexOf(connId);
+        if (i >= 0)
+            return mConnections[i];
+
+        i = -(i + 1);
+        if (mCount == mConnIds.length) {
+            mConnIds = Arrays.copyOf(mConnIds, mCount * 2);
+            mConnections = Arrays.copyOf(mConnections, mCount * 2);
+        }
+        System.arraycopy(mConnIds, i, mConnIds, i + 1, mCount - i);
+        System.arraycopy(mConnections, i, mConnections, i + 1, mCount - i);
+        Connection c = new Connection();
+        mConnIds[i] = connId;
+        mConnections[i] = c;
+        mCount++;
+        mLastIndex = i;
+        return c;
+    }
+
+    /**
+     * Sets the device a connection id belongs to.
+     */
+    public synchronized void putDevice(int connId, D device)
+    {
+        getOrCreate(connId).device = device;
+    }
+
+    /**
+     * Registers an attribute for (connId, service instance, characteristic
+     * instance).
+     */
+    public synchronized void put(int connId, int svcInstance, int charInstance, A attribute)
+    {
+        if (svcInstance < 0 || charInstance < 0)
+            return;
+
+        Connection c = getOrCreate(connId);
+        if (svcInstance >= c.attributes.length)
+            c.attributes = Arrays.copyOf(c.attributes, svcInstance + 1);
+
+        Object[] chars = c.attributes[svcInstance];
+        if (chars == null)
+            chars = c.attributes[svcInstance] = new Object[Math.max(8, charInstance + 1)];
+        else if (charInstance >= chars.length)
+            chars = c.attributes[svcInstance] = Arrays.copyOf(chars,
+                    Math.max(chars.length * 2, charInstance + 1));
+        chars[charInstance] = attribute;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized A get(int connId, int svcInstance, int charInstance)
+    {
+        int i = indexOf(connId);
+        if (i < 0 || svcInstance < 0 || charInstance < 0)
+            return null;
+
+        Object[][] attributes = mConnections[i].attributes;
+        if (svcInstance >= attributes.length)
+            return null;
+        Object[] chars = attributes[svcInstance];
+        if (chars == null || charInstance >= chars.length)
+            return null;
+        return (A) chars[charInstance];
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized D getDevice(int connId)
+    {
+        int i = indexOf(connId);
+        return i < 0 ? null : (D) mConnections[i].device;
+    }
+
+    /**
+     * Drops every attribute registered for a service instance, used before
+     * indexing it again after a refresh.
+     */
+    public synchronized void clearService(int connId, int svcInstance)
+    {
+        int i = indexOf(connId);
+        if (i < 0 || svcInstance < 0 || svcInstance >= mConnections[i].attributes.length)
+            return;
+        mConnections[i].attributes[svcInstance] = null;
+    }
+
+    /**
+     * Forgets everything about a connection.
+     */
+    public synchronized void remove(int connId)
+    {
+        int i = indexOf(connId);
+        if (i < 0)
+            return;
+        System.arraycopy(mConnIds, i + 1, mConnIds, i, mCount - i - 1);
+        System.arraycopy(mConnections, i + 1, mConnections, i, mCount - i - 1);
+        mCount--;
+        mConnections[mCount] = null;
+        mLastIndex = -1;
+    }
+}
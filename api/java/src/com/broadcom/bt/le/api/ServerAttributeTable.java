@@ -0,0 +1,321 @@
+/************************************************************************************
+ *
+ *  Copyright (C) 2012      Naranjo Manuel Francisco <naranjo.manuel@gmail.com>
+ *  Copyright (C) 2009-2011 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ************************************************************************************/
+
+package com.broadcom.bt.le.api;
+
+import java.util.Arrays;
+
+/**
+ * Attributes of a local service plus what every connected client did with
+ * them.
+ * <br>
+ * <br>
+ * A service owns a contiguous handle range, so attributes are stored in
+ * arrays indexed by handle minus the first handle of the service. Each
+ * connection gets the same kind of arrays for its client configuration
+ * bits and the last value it read, plus its queue of prepared writes and
+ * the read waiting for the application. Connections are found like in
+ * {@link NotificationIndex}, a sorted array of connection ids with a cache
+ * of the last hit. Once a connection is known nothing is allocated while
+ * handling its requests.
+ *
+ * @hide
+ */
+public final class ServerAttributeTable<A, R>
+{
+    private static final class Connection
+    {
+        short[] clientConfig;
+        byte[][] readCache;
+        int pendingTransId;
+        Object pendingRead;
+        int preparedCount;
+        int preparedBytes;
+        int[] preparedHandle = new int[4];
+        int[] preparedOffset = new int[4];
+        byte[][] preparedValue = new byte[4][];
+
+        Connection(int count)
+        {
+            clientConfig = new short[count];
+            readCache = new byte[count][];
+        }
+    }
+
+    private int mStart = -1;
+    private Object[] mAttributes = new Object[0];
+    /* for client configuration descriptors the value handle they belong to, -1 otherwise */
+    private int[] mConfigOf = new int[0];
+    /* for values their client configuration descriptor, -1 if they have none */
+    private int[] mConfigHandle = new int[0];
+
+    private int[] mConnIds = new int[4];
+    private Connection[] mConnections = new Connection[4];
+    private int mCount = 0;
+    private int mLastIndex = -1;
+
+    /**
+     * Sets the handle range of the service, forgets every attribute and
+     * connection state.
+     */
+    public synchronized void setRange(int start, int count)
+    {
+        count = Math.max(count, 0);
+        mStart = start;
+        mAttributes = new Object[count];
+        mConfigOf = new int[count];
+        mConfigHandle = new int[count];
+        Arrays.fill(mConfigOf, -1);
+        Arrays.fill(mConfigHandle, -1);
+        Arrays.fill(mConnections, 0, mCount, null);
+        mCount = 0;
+        mLastIndex = -1;
+    }
+
+    private int index(int handle)
+    {
+        int i = handle - mStart;
+        return mStart < 0 || i < 0 || i >= mAttributes.length ? -1 : i;
+    }
+
+    /**
+     * Maps handle to the attribute owning it.
+     *
+     * @param valueHandle for client configuration descriptors the handle of
+     *            the value they configure, -1 for anything else.
+     */
+    public synchronized void put(int handle, A attribute, int valueHandle)
+    {
+        int i = index(handle);
+        if (i < 0)
+            return;
+        mAttributes[i] = attribute;
+        int v = index(valueHandle);
+        if (v >= 0) {
+            mConfigOf[i] = valueHandle;
+            mConfigHandle[v] = handle;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized A get(int handle)
+    {
+        int i = index(handle);
+        return i < 0 ? null : (A) mAttributes[i];
+    }
+
+    public synchronized boolean isClientConfig(int handle)
+    {
+        int i = index(handle);
+        return i >= 0 && mConfigOf[i] >= 0;
+    }
+
+    private int indexOf(int connId)
+    {
+        int last = mLastIndex;
+        if (last >= 0 && last < mCount && mConnIds[last] == connId)
+            return last;
+
+        int i = Arrays.binarySearch(mConnIds, 0, mCount, connId);
+        if (i >= 0)
+            mLastIndex = i;
+        return i;
+    }
+
+    private Connection find(int connId)
+    {
+        int i = indexOf(connId);
+        return i < 0 ? null : mConnections[i];
+    }
+
+    private Connection getOrCreate(int connId)
+    {
+        int i = indexOf(connId);
+        if (i >= 0)
+            return mConnections[i];
+
+        i = -(i + 1);
+        if (mCount == mConnIds.length) {
+            mConnIds = Arrays.copyOf(mConnIds, mCount * 2);
+            mConnections = Arrays.copyOf(mConnections, mCount * 2);
+        }
+        System.arraycopy(mConnIds, i, mConnIds, i + 1, mCount - i);
+        System.arraycopy(mConnections, i, mConnections, i + 1, mCount - i);
+        Connection c = new Connection(mAttributes.length);
+        mConnIds[i] = connId;
+        mConnections[i] = c;
+        mCount++;
+        mLastIndex = i;
+        return c;
+    }
+
+    /**
+     * Stores what a client wrote to a client configuration descriptor.
+     */
+    public synchronized void setClientConfig(int connId, int handle, int value)
+    {
+        int i = index(handle);
+        if (i < 0 || mConfigOf[i] < 0)
+            return;
+        getOrCreate(connId).clientConfig[i] = (short) value;
+    }
+
+    /**
+     * Client configuration bits of a client, handle can be the descriptor
+     * or the value it configures.
+     */
+    public synchronized int getClientConfig(int connId, int handle)
+    {
+        int i = index(handle);
+        if (i >= 0 && mConfigHandle[i] >= 0)
+            i = index(mConfigHandle[i]);
+        Connection c = find(connId);
+        if (i < 0 || c == null || mConfigOf[i] < 0)
+            return 0;
+        return c.clientConfig[i] & 0xffff;
+    }
+
+    /**
+     * Remembers the read a client is waiting for, ATT allows a single
+     * outstanding request per client.
+     */
+    public synchronized void setPendingRead(int connId, int transId, R request)
+    {
+        Connection c = getOrCreate(connId);
+        c.pendingTransId = transId;
+        c.pendingRead = request;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized R takePendingRead(int connId, int transId)
+    {
+        Connection c = find(connId);
+        if (c == null || c.pendingRead == null || c.pendingTransId != transId)
+            return null;
+        R r = (R) c.pendingRead;
+        c.pendingRead = null;
+        return r;
+    }
+
+    /**
+     * Keeps the value a client got for a read at offset 0, read blob
+     * requests that follow are answered from it so a long read sees a
+     * single version of the value.
+     */
+    public synchronized void putReadCache(int connId, int handle, byte[] value)
+    {
+        int i = index(handle);
+        if (i >= 0)
+            getOrCreate(connId).readCache[i] = value;
+    }
+
+    public synchronized byte[] getReadCache(int connId, int handle)
+    {
+        int i = index(handle);
+        Connection c = find(connId);
+        return i < 0 || c == null ? null : c.readCache[i];
+    }
+
+    /**
+     * Drops the cached value of handle for every client, called when the
+     * value changes.
+     */
+    public synchronized void invalidate(int handle)
+    {
+        int i = index(handle);
+        if (i < 0)
+            return;
+        for (int c = 0; c < mCount; c++)
+            mConnections[c].readCache[i] = null;
+    }
+
+    /**
+     * Queues a prepared write, value is kept as given.
+     *
+     * @return false if the client queue would go over maxBytes, the queue is
+     *         left untouched.
+     */
+    public synchronized boolean addPrepared(int connId, int handle, int offset, byte[] value,
+            int maxBytes)
+    {
+        Connection c = getOrCreate(connId);
+        int len = value == null ? 0 : value.length;
+        if (c.preparedBytes + len > maxBytes)
+            return false;
+
+        int n = c.preparedCount;
+        if (n == c.preparedHandle.length) {
+            c.preparedHandle = Arrays.copyOf(c.preparedHandle, n * 2);
+            c.preparedOffset = Arrays.copyOf(c.preparedOffset, n * 2);
+            c.preparedValue = Arrays.copyOf(c.preparedValue, n * 2);
+        }
+        c.preparedHandle[n] = handle;
+        c.preparedOffset[n] = offset;
+        c.preparedValue[n] = value;
+        c.preparedCount++;
+        c.preparedBytes += len;
+        return true;
+    }
+
+    public synchronized int getPreparedCount(int connId)
+    {
+        Connection c = find(connId);
+        return c == null ? 0 : c.preparedCount;
+    }
+
+    public synchronized int getPreparedHandle(int connId, int i)
+    {
+        return find(connId).preparedHandle[i];
+    }
+
+    public synchronized int getPreparedOffset(int connId, int i)
+    {
+        return find(connId).preparedOffset[i];
+    }
+
+    public synchronized byte[] getPreparedValue(int connId, int i)
+    {
+        return find(connId).preparedValue[i];
+    }
+
+    public synchronized void clearPrepared(int connId)
+    {
+        Connection c = find(connId);
+        if (c == null)
+            return;
+        Arrays.fill(c.preparedValue, 0, c.preparedCount, null);
+        c.preparedCount = 0;
+        c.preparedBytes = 0;
+    }
+
+    /**
+     * Forgets everything about a connection.
+     */
+    public synchronized void remove(int connId)
+    {
+        int i = indexOf(connId);
+        if (i < 0)
+            return;
+        System.arraycopy(mConnIds, i + 1, mConnIds, i, mCount - i - 1);
+        System.arraycopy(mConnections, i + 1, mConnections, i, mCount - i - 1);
+        mCount--;
+        mConnections[mCount] = null;
+        mLastIndex = -1;
+    }
+}
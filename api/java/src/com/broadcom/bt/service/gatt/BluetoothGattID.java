@@ -20,8 +20,6 @@ package com.broadcom.bt.service.gatt;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
-
 import com.broadcom.bt.le.api.BleConstants;
 
 import java.util.UUID;
@@ -30,10 +28,18 @@ public class BluetoothGattID
         implements Parcelable
 {
     private int mInstId = 0;
-    private UUID mUuid128 = null;
+    /*
+     * UUIDs are always kept in their 128 bit form as two longs, 16 bit ones
+     * get expanded against the SIG base, so equals and hashCode never need to
+     * build strings or UUID objects.
+     */
+    private long mMsb = 0;
+    private long mLsb = 0;
+    private UUID mUuid = null;
     private int mUuid16 = -1;
     private int mType = -1;
     private int mServiceType = -1;
+    @SuppressWarnings("unused")
     private static final String TAG = "BluetoothGattID";
     
     @SuppressWarnings({"unchecked", "rawtypes"})
@@ -69,11 +75,37 @@ public class BluetoothGattID
         }
     }
 
+    private void init128(long msb, long lsb) {
+        this.mMsb = msb;
+        this.mLsb = lsb;
+        this.mUuid16 = GattUuidTable.toUuid16(msb, lsb);
+        this.mType = BleConstants.GATT_UUID_TYPE_128;
+    }
+
+    private void init128(UUID uuid) {
+        init128(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (this.mUuid16 < 0)
+            this.mUuid = uuid;
+    }
+
+    private void init128(String sUUID) {
+        if (GattUuidTable.isCanonical(sUUID))
+            init128(GattUuidTable.parseMsb(sUUID), GattUuidTable.parseLsb(sUUID));
+        else
+            init128(UUID.fromString(sUUID));
+    }
+
+    private void init16(int uuid) {
+        this.mUuid16 = uuid;
+        this.mMsb = GattUuidTable.msb16(uuid);
+        this.mLsb = GattUuidTable.BASE_UUID_LSB;
+        this.mType = BleConstants.GATT_UUID_TYPE_16;
+    }
+
     public BluetoothGattID(int instId, UUID uuid)
     {
         this.mInstId = instId;
-        this.mUuid128 = uuid;
-        this.mType = BleConstants.GATT_UUID_TYPE_128;
+        init128(uuid);
     }
 
     public BluetoothGattID(int instId, UUID uuid, int serviceType) {
@@ -84,18 +116,14 @@ public class BluetoothGattID
     public BluetoothGattID(int instId, long uuidLsb, long uuidMsb)
     {
         this.mInstId = instId;
-        this.mUuid128 = new UUID(uuidMsb, uuidLsb);
-        this.mType = BleConstants.GATT_UUID_TYPE_128;
+        init128(uuidMsb, uuidLsb);
     }
 
     public BluetoothGattID(long uuidLsb, long uuidMsb, int uuidType) {
-        if (uuidType == BleConstants.GATT_UUID_TYPE_128) {
-            this.mUuid128 = new UUID(uuidMsb, uuidLsb);
-            this.mType = BleConstants.GATT_UUID_TYPE_128;
-        } else {
-            this.mUuid16 = (int) uuidLsb;
-            this.mType = BleConstants.GATT_UUID_TYPE_16;
-        }
+        if (uuidType == BleConstants.GATT_UUID_TYPE_128)
+            init128(uuidMsb, uuidLsb);
+        else
+            init16((int) uuidLsb);
     }
 
     public BluetoothGattID(int instId, int uuidType, long uuidLsb, long uuidMsb) {
@@ -117,8 +145,7 @@ public class BluetoothGattID
 
     public BluetoothGattID(int instId, String sUUID) {
         this.mInstId = instId;
-        this.mUuid128 = UUID.fromString(sUUID);
-        this.mType = BleConstants.GATT_UUID_TYPE_128;
+        init128(sUUID);
     }
 
     public BluetoothGattID(int instId, String sUUID, int serviceType) {
@@ -129,8 +156,7 @@ public class BluetoothGattID
     public BluetoothGattID(int instId, int uuid)
     {
         this.mInstId = instId;
-        this.mUuid16 = uuid;
-        this.mType = BleConstants.GATT_UUID_TYPE_16;
+        init16(uuid);
     }
 
     public BluetoothGattID(int instId, int iUUID, int serviceType) {
@@ -140,8 +166,7 @@ public class BluetoothGattID
 
     public BluetoothGattID(UUID uuid)
     {
-        this.mUuid128 = uuid;
-        this.mType = BleConstants.GATT_UUID_TYPE_128;
+        init128(uuid);
     }
 
     public BluetoothGattID(UUID uuid, int serviceType) {
@@ -150,8 +175,7 @@ public class BluetoothGattID
     }
 
     public BluetoothGattID(String sUUID) {
-        this.mUuid128 = UUID.fromString(sUUID);
-        this.mType = BleConstants.GATT_UUID_TYPE_128;
+        init128(sUUID);
     }
 
     public BluetoothGattID(String sUUID, int serviceType) {
@@ -161,27 +185,20 @@ public class BluetoothGattID
 
     public BluetoothGattID(int uuid)
     {
-        this.mUuid16 = uuid;
-        this.mType = BleConstants.GATT_UUID_TYPE_16;
+        init16(uuid);
     }
 
     public UUID getUuid()
     {
-        if (this.mUuid128==null)
-            return UUID.fromString(this.toString());
-        return this.mUuid128;
+        if (this.mUuid16 > -1)
+            return GattUuidTable.uuid16(this.mUuid16);
+        if (this.mUuid == null)
+            this.mUuid = new UUID(this.mMsb, this.mLsb);
+        return this.mUuid;
     }
 
     public int getUuid16()
     {
-        if (this.mUuid16 < 0){
-            String uuid = mUuid128.toString();
-            if (uuid.startsWith("0000") && uuid.endsWith("-0000-1000-8000-00805f9b34fb")){
-                uuid=uuid.split("-")[0];
-                return Integer.parseInt(uuid, 16);
-            }
-            Log.v(TAG, "tried to extract UUID 16 from non SIG UUID16");
-        }
         return this.mUuid16;
     }
 
@@ -211,60 +228,50 @@ public class BluetoothGattID
 
     public long getLeastSignificantBits() {
         if (this.mType == BleConstants.GATT_UUID_TYPE_128)
-            return this.mUuid128.getLeastSignificantBits();
+            return this.mLsb;
         return this.mUuid16;
     }
 
     public long getMostSignificantBits() {
         if (this.mType == BleConstants.GATT_UUID_TYPE_128)
-            return this.mUuid128.getMostSignificantBits();
+            return this.mMsb;
         return 0L;
     }
 
+    /**
+     * Returns true if both ids refer to the same 128 bit UUID, no matter
+     * their type or instance id.
+     */
+    public boolean sameUuid(BluetoothGattID target) {
+        return target != null && this.mLsb == target.mLsb && this.mMsb == target.mMsb;
+    }
+
     public int hashCode()
     {
-        if (this.mType == BleConstants.GATT_UUID_TYPE_128) {
-            return this.mUuid128.hashCode();
-        }
-        return new Integer(this.mUuid16).hashCode();
+        return GattUuidTable.hashCode(this.mMsb, this.mLsb);
     }
 
     public boolean equals(Object target)
     {
-        Log.v(TAG, "comparing " + this + " with " + target);
-        
         if (target == null) {
             return false;
         }
 
         if (this == target) {
-            Log.v(TAG, "same object");
             return true;
         }
         
         if (!(target instanceof BluetoothGattID)) {
-            Log.v(TAG, "wrong instance, comparing string level");
-            return this.toString().toLowerCase().equals(target.toString().toLowerCase());
+            return this.toString().equalsIgnoreCase(target.toString());
         }
 
         BluetoothGattID targetId = (BluetoothGattID) target;
-        if (this.mType != targetId.getUuidType()) {
-            Log.v(TAG, "different types!, comparing String level");
-            return this.toString().toLowerCase().equals(targetId.toString().toLowerCase());
+        if (this.mType != targetId.mType) {
+            // 16 vs 128 bits, we only care about the expanded uuid
+            return sameUuid(targetId);
         }
         
-        if ((this.mType == BleConstants.GATT_UUID_TYPE_128)
-                && (targetId.getInstanceID() == this.mInstId)
-                && (this.mUuid128.equals(targetId.getUuid())))
-        {
-            Log.v(TAG, "128b equals");
-            return true;
-        }
-
-        Log.v(TAG, "comparing 16b");
-        return (this.mType == BleConstants.GATT_UUID_TYPE_16)
-                && (targetId.getInstanceID() == this.mInstId)
-                && (this.mUuid16 == targetId.getUuid16());
+        return (targetId.mInstId == this.mInstId) && sameUuid(targetId);
     }
 
     public int describeContents()
@@ -278,23 +285,21 @@ public class BluetoothGattID
         dest.writeInt(this.mServiceType);
 
         if (this.mType == BleConstants.GATT_UUID_TYPE_128)
-            dest.writeString(this.mUuid128.toString());
+            dest.writeString(this.getUuid().toString());
         else
             dest.writeInt(this.mUuid16);
     }
 
     public String toString()
     {
-        if (this.mType == BleConstants.GATT_UUID_TYPE_128) {
-            return this.mUuid128 == null ? null : this.mUuid128.toString();
+        if (this.mType == BleConstants.GATT_UUID_TYPE_128
+                || this.mType == BleConstants.GATT_UUID_TYPE_16) {
+            return this.getUuid().toString();
         }
-        return String.valueOf(String.format("0000%04x-0000-1000-8000-00805f9b34fb",
-                new Object[] {
-                    Integer.valueOf(0x0ffff & this.mUuid16)
-                }));
+        return null;
     }
     
     public static BluetoothGattID getUuuid128FromUuid16(int uuid16){
-        return new BluetoothGattID(new BluetoothGattID(uuid16).toString());
+        return new BluetoothGattID(GattUuidTable.uuid16(uuid16));
     }
 }
@@ -0,0 +1,148 @@
+/************************************************************************************
+ *
+ *  Copyright (C) 2012      Naranjo Manuel Francisco <naranjo.manuel@gmail.com>
+ *  Copyright (C) 2009-2011 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ************************************************************************************/
+package com.broadcom.bt.service.gatt;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+
+/**
+ * Group of notifications from one connection delivered in a single binder
+ * transaction. Each entry keeps the attribute handle, the ids of the service
+ * and characteristic it belongs to, the time it arrived (System.nanoTime())
+ * and the value.
+ */
+public final class BluetoothGattNotifications
+        implements Parcelable
+{
+    private final ArrayList<BluetoothGattID> mSvcIds = new ArrayList<BluetoothGattID>();
+    private final ArrayList<BluetoothGattID> mCharIds = new ArrayList<BluetoothGattID>();
+    private final ArrayList<byte[]> mValues = new ArrayList<byte[]>();
+    private int[] mHandles = new int[8];
+    private long[] mTimestamps = new long[8];
+    private int mBytes = 0;
+
+    @SuppressWarnings({
+            "unchecked", "rawtypes"
+    })
+    public static final Parcelable.Creator<BluetoothGattNotifications> CREATOR =
+            new Parcelable.Creator()
+            {
+                public BluetoothGattNotifications createFromParcel(Parcel source) {
+                    BluetoothGattNotifications ret = new BluetoothGattNotifications();
+                    int count = source.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int handle = source.readInt();
+                        long timestamp = source.readLong();
+                        BluetoothGattID svcId = BluetoothGattID.CREATOR.createFromParcel(source);
+                        BluetoothGattID charId = BluetoothGattID.CREATOR.createFromParcel(source);
+                        ret.add(handle, svcId, charId, timestamp, source.createByteArray());
+                    }
+                    return ret;
+                }
+
+                public BluetoothGattNotifications[] newArray(int size) {
+                    return new BluetoothGattNotifications[size];
+                }
+            };
+
+    public BluetoothGattNotifications()
+    {
+    }
+
+    /**
+     * Appends a notification, returns the amount of entries after adding it.
+     */
+    public int add(int handle, BluetoothGattID svcId, BluetoothGattID charId, long timestamp,
+            byte[] value)
+    {
+        int i = this.mValues.size();
+        if (i == this.mHandles.length) {
+            int[] handles = new int[i * 2];
+            long[] timestamps = new long[i * 2];
+            System.arraycopy(this.mHandles, 0, handles, 0, i);
+            System.arraycopy(this.mTimestamps, 0, timestamps, 0, i);
+            this.mHandles = handles;
+            this.mTimestamps = timestamps;
+        }
+        this.mHandles[i] = handle;
+        this.mTimestamps[i] = timestamp;
+        this.mSvcIds.add(svcId);
+        this.mCharIds.add(charId);
+        this.mValues.add(value);
+        if (value != null)
+            this.mBytes += value.length;
+        return i + 1;
+    }
+
+    public int size()
+    {
+        return this.mValues.size();
+    }
+
+    /**
+     * Sum of the value lengths, used to flush before the parcel gets too big.
+     */
+    public int getValueBytes()
+    {
+        return this.mBytes;
+    }
+
+    public int getHandle(int index)
+    {
+        return this.mHandles[index];
+    }
+
+    public BluetoothGattID getSvcId(int index)
+    {
+        return this.mSvcIds.get(index);
+    }
+
+    public BluetoothGattID getCharId(int index)
+    {
+        return this.mCharIds.get(index);
+    }
+
+    public long getTimestamp(int index)
+    {
+        return this.mTimestamps[index];
+    }
+
+    public byte[] getValue(int index)
+    {
+        return this.mValues.get(index);
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        int count = this.mValues.size();
+        dest.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            dest.writeInt(this.mHandles[i]);
+            dest.writeLong(this.mTimestamps[i]);
+            this.mSvcIds.get(i).writeToParcel(dest, flags);
+            this.mCharIds.get(i).writeToParcel(dest, flags);
+            dest.writeByteArray(this.mValues.get(i));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/************************************************************************************
+ *
+ *  Copyright (C) 2012      Naranjo Manuel Francisco <naranjo.manuel@gmail.com>
+ *  Copyright (C) 2009-2011 Broadcom Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ************************************************************************************/
+package com.broadcom.bt.service.gatt;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+
+/**
+ * List of characteristic/descriptor values moved in a single binder
+ * transaction. Used both to describe what a batch read should fetch, in which
+ * case values are left empty, and to return the results.
+ */
+public final class BluetoothGattValues
+        implements Parcelable
+{
+    private final ArrayList<BluetoothGattID> mCharIds = new ArrayList<BluetoothGattID>();
+    private final ArrayList<BluetoothGattID> mDescrIds = new ArrayList<BluetoothGattID>();
+    private final ArrayList<byte[]> mValues = new ArrayList<byte[]>();
+    private int[] mStatus = new int[8];
+
+    @SuppressWarnings({
+            "unchecked", "rawtypes"
+    })
+    public static final Parcelable.Creator<BluetoothGattValues> CREATOR =
+            new Parcelable.Creator()
+            {
+                public BluetoothGattValues createFromParcel(Parcel source) {
+                    BluetoothGattValues ret = new BluetoothGattValues();
+                    int count = source.readInt();
+                    for (int i = 0; i < count; i++) {
+                        BluetoothGattID charId = BluetoothGattID.CREATOR.createFromParcel(source);
+                        BluetoothGattID descrId = null;
+                        if (source.readInt() != 0)
+                            descrId = BluetoothGattID.CREATOR.createFromParcel(source);
+                        int status = source.readInt();
+                        ret.add(charId, descrId, status, source.createByteArray());
+                    }
+                    return ret;
+                }
+
+                public BluetoothGattValues[] newArray(int size) {
+                    return new BluetoothGattValues[size];
+                }
+            };
+
+    public BluetoothGattValues()
+    {
+    }
+
+    /**
+     * Appends an entry, descrId is null when the entry refers to the
+     * characteristic value. Returns the index of the new entry.
+     */
+    public int add(BluetoothGattID charId, BluetoothGattID descrId, int status, byte[] value)
+    {
+        int i = this.mCharIds.size();
+        if (i == this.mStatus.length) {
+            int[] status2 = new int[i * 2];
+            System.arraycopy(this.mStatus, 0, status2, 0, i);
+            this.mStatus = status2;
+        }
+        this.mCharIds.add(charId);
+        this.mDescrIds.add(descrId);
+        this.mValues.add(value);
+        this.mStatus[i] = status;
+        return i;
+    }
+
+    public void set(int index, int status, byte[] value)
+    {
+        this.mStatus[index] = status;
+        this.mValues.set(index, value);
+    }
+
+    public int size()
+    {
+        return this.mCharIds.size();
+    }
+
+    public BluetoothGattID getCharId(int index)
+    {
+        return this.mCharIds.get(index);
+    }
+
+    public BluetoothGattID getDescrId(int index)
+    {
+        return this.mDescrIds.get(index);
+    }
+
+    public int getStatus(int index)
+    {
+        return this.mStatus[index];
+    }
+
+    public byte[] getValue(int index)
+    {
+        return this.mValues.get(index);
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        int count = this.mCharIds.size();
+        dest.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            this.mCharIds.get(i).writeToParcel(dest, flags);
+            BluetoothGattID descrId = this.mDescrIds.get(i);
+            if (descrId != null) {
+                dest.writeInt(1);
+                descrId.writeToParcel(dest, flags);
+            } else {
+                dest.writeInt(0);
+            }
+            dest.writeInt(this.mStatus[i]);
+            dest.writeByteArray(this.mValues.get(i));
+        }
+    }
+}
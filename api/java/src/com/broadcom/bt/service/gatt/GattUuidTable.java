@@ -0,0 +1,173 @@
+/************************************************************************************
+ *
+ *  Copyright (C) 2012      Naranjo Manuel Francisco <naranjo.manuel@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ************************************************************************************/
+package com.broadcom.bt.service.gatt;
+
+import java.util.UUID;
+
+/**
+ * Flyweight table for GATT UUIDs.
+ * <p>
+ * Every UUID is handled as its two 64 bit halves, 16 bit SIG UUIDs are
+ * expanded against the Bluetooth base UUID with shifts instead of going
+ * through String.format and UUID.fromString, and the {@link UUID} instances
+ * for 16 bit UUIDs are interned so that discovering the same descriptor type
+ * on every characteristic doesn't create a new object each time.
+ */
+public final class GattUuidTable
+{
+    /** most significant bits of 00000000-0000-1000-8000-00805f9b34fb */
+    public static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    /** least significant bits of 00000000-0000-1000-8000-00805f9b34fb */
+    public static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /*
+     * 16 bit UUIDs are interned lazily in pages of 256 entries, so we only pay
+     * for the ranges actually in use (0x18xx services, 0x29xx descriptors,
+     * 0x2axx characteristics). Races while filling the table are harmless, the
+     * worst case is that two equal UUID instances get created.
+     */
+    private static final UUID[][] sUuid16Pages = new UUID[0x10000 >> PAGE_BITS][];
+
+    private GattUuidTable() {
+    }
+
+    /**
+     * Returns the interned 128 bit UUID for a 16 bit SIG UUID.
+     */
+    public static UUID uuid16(int uuid16) {
+        uuid16 &= 0xffff;
+        UUID[] page = sUuid16Pages[uuid16 >> PAGE_BITS];
+        if (page == null) {
+            page = new UUID[PAGE_SIZE];
+            sUuid16Pages[uuid16 >> PAGE_BITS] = page;
+        }
+
+        UUID ret = page[uuid16 & PAGE_MASK];
+        if (ret == null) {
+            ret = new UUID(msb16(uuid16), BASE_UUID_LSB);
+            page[uuid16 & PAGE_MASK] = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the interned UUID for a pair of halves, only 16 bit SIG UUIDs are
+     * interned, anything else is allocated.
+     */
+    public static UUID uuid(long msb, long lsb) {
+        int u16 = toUuid16(msb, lsb);
+        if (u16 > -1)
+            return uuid16(u16);
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Most significant bits of the 128 bit form of a 16 bit UUID.
+     */
+    public static long msb16(int uuid16) {
+        return BASE_UUID_MSB | ((long) (uuid16 & 0xffff) << 32);
+    }
+
+    /**
+     * Returns the 16 bit UUID if msb/lsb are on top of the SIG base UUID, -1
+     * otherwise.
+     */
+    public static int toUuid16(long msb, long lsb) {
+        if (lsb != BASE_UUID_LSB)
+            return -1;
+        if ((msb & 0xffff0000ffffffffL) != BASE_UUID_MSB)
+            return -1;
+        return (int) (msb >>> 32);
+    }
+
+    /**
+     * Same value as {@link UUID#hashCode()} so ids and UUIDs spread the same
+     * way on hashed collections.
+     */
+    public static int hashCode(long msb, long lsb) {
+        long hilo = msb ^ lsb;
+        return ((int) (hilo >> 32)) ^ (int) hilo;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Parses hex digits in s[start, end) into a long, dashes are skipped so
+     * this can walk the halves of a canonical UUID string without splitting
+     * it.
+     *
+     * @throws NumberFormatException on non hex characters or more than 16
+     *             digits.
+     */
+    public static long parseHex(String s, int start, int end) {
+        long ret = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '-')
+                continue;
+            int d = hexDigit(c);
+            if (d < 0 || ++digits > 16)
+                throw new NumberFormatException("invalid uuid " + s);
+            ret = (ret << 4) | d;
+        }
+        return ret;
+    }
+
+    /**
+     * Tells if s looks like a canonical 8-4-4-4-12 UUID string.
+     */
+    public static boolean isCanonical(String s) {
+        return s.length() == 36 && s.charAt(8) == '-' && s.charAt(13) == '-'
+                && s.charAt(18) == '-' && s.charAt(23) == '-';
+    }
+
+    /**
+     * Most significant bits of a canonical UUID string.
+     */
+    public static long parseMsb(String s) {
+        return parseHex(s, 0, 18);
+    }
+
+    /**
+     * Least significant bits of a canonical UUID string.
+     */
+    public static long parseLsb(String s) {
+        return parseHex(s, 19, 36);
+    }
+
+    /**
+     * Parses a 16 bit UUID as printed by gatttool (ie 2902).
+     */
+    public static int parseUuid16(String s) {
+        return (int) parseHex(s, 0, s.length()) & 0xffff;
+    }
+}
@@ -47,7 +47,6 @@ public abstract class AbstractConnection
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -57,12 +56,36 @@ public abstract class AbstractConnection
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
                 Log.println(l, TAG, "NULL");
     }    
+
+    /**
+     * Told about every message that goes through any connection, from the
+     * thread reading or sending it, so it must be quick.
+     */
+    public interface MessageTracer
+    {
+        /**
+         * @param type one of Message.MessageType.
+         */
+        void messageIn(byte type, long serial);
+
+        void messageOut(byte type, long serial);
+    }
+
+    private static volatile MessageTracer sTracer;
+
+    /**
+     * @param tracer null stops tracing.
+     */
+    public static synchronized void setMessageTracer(MessageTracer tracer)
+    {
+        sTracer = tracer;
+    }
     
     protected class FallbackContainer
     {
@@ -70,13 +93,15 @@ public abstract class AbstractConnection
 
         public synchronized void add(String path, ExportedObject eo)
         {
-            debug(DEBUG, "Adding fallback on " + path + " of " + eo);
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Adding fallback on " + path + " of " + eo);
             fallbacks.put(path.split("/"), eo);
         }
 
         public synchronized void remove(String path)
         {
-            debug(DEBUG, "Removing fallback on " + path);
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Removing fallback on " + path);
             fallbacks.remove(path.split("/"));
         }
 
@@ -87,16 +112,19 @@ public abstract class AbstractConnection
             ExportedObject bestobject = null;
             String[] pathel = path.split("/");
             for (String[] fbpath : fallbacks.keySet()) {
-                debug(VERBOSE, "Trying fallback path " + Arrays.deepToString(fbpath)
-                        + " to match " + Arrays.deepToString(pathel));
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Trying fallback path " + Arrays.deepToString(fbpath)
+                            + " to match " + Arrays.deepToString(pathel));
                 for (i = 0; i < pathel.length && i < fbpath.length; i++)
                     if (!pathel[i].equals(fbpath[i]))
                         break;
                 if (i > 0 && i == fbpath.length && i > best)
                     bestobject = fallbacks.get(fbpath);
-                debug(VERBOSE, "Matches " + i + " bestobject now " + bestobject);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Matches " + i + " bestobject now " + bestobject);
             }
-            debug(DEBUG, "Found fallback for " + path + " of " + bestobject);
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Found fallback for " + path + " of " + bestobject);
             return bestobject;
         }
     }
@@ -121,7 +149,8 @@ public abstract class AbstractConnection
                         // being available.
                         m = readIncoming();
                         if (m != null) {
-                            debug(VERBOSE, "Got Incoming Message: " + m);
+                            if (DBusLog.isLoggable(VERBOSE))
+                                debug(VERBOSE, "Got Incoming Message: " + m);
                             synchronized (this) {
                                 notifyAll();
                             }
@@ -248,7 +277,8 @@ public abstract class AbstractConnection
                         debug(VERBOSE, "Notified");
                         if (outgoing.size() > 0)
                             m = outgoing.remove();
-                        debug(DEBUG, "Got message: " + m);
+                        if (DBusLog.isLoggable(DEBUG))
+                            debug(DEBUG, "Got message: " + m);
                     }
                 if (null != m)
                     sendMessage(m);
@@ -532,12 +562,14 @@ public abstract class AbstractConnection
 
     void queueOutgoing(Message m)
     {
-        synchronized (outgoing) {
-            if (null == outgoing)
-                return;
-            outgoing.add(m);
+        // the sender thread clears outgoing once it quits
+        EfficientQueue ogq = outgoing;
+        if (null == ogq)
+            return;
+        synchronized (ogq) {
+            ogq.add(m);
             debug(DEBUG, "Notifying outgoing thread");
-            outgoing.notifyAll();
+            ogq.notifyAll();
         }
     }
 
@@ -662,10 +694,12 @@ public abstract class AbstractConnection
         // stop the main thread
         _run = false;
 
-        // unblock the sending thread.
-        synchronized (outgoing) {
-            outgoing.notifyAll();
-        }
+        // unblock the sending thread, unless it's gone already.
+        EfficientQueue ogq = outgoing;
+        if (null != ogq)
+            synchronized (ogq) {
+                ogq.notifyAll();
+            }
 
         // disconnect from the trasport layer
         try {
@@ -722,7 +756,8 @@ public abstract class AbstractConnection
     public <A> void callWithCallback(DBusInterface object, String m, CallbackHandler<A> callback,
             Object... parameters)
     {
-        debug(VERBOSE, "callWithCallback(" + object + "," + m + ", " + callback);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "callWithCallback(" + object + "," + m + ", " + callback);
         Class[] types = new Class[parameters.length];
         for (int i = 0; i < parameters.length; i++)
             types[i] = parameters[i].getClass();
@@ -781,7 +816,8 @@ public abstract class AbstractConnection
 
     private void handleMessage(final MethodCall m) throws DBusException
     {
-        debug(DEBUG, "Handling incoming method call: " + m);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Handling incoming method call: " + m);
 
         ExportedObject eo = null;
         Method meth = null;
@@ -812,7 +848,8 @@ public abstract class AbstractConnection
                 eo = exportedObjects.get(m.getPath());
             }
             if (null != eo && null == eo.object.get()) {
-                debug(INFO, "Unexporting " + m.getPath() + " implicitly");
+                if (DBusLog.isLoggable(INFO))
+                    debug(INFO, "Unexporting " + m.getPath() + " implicitly");
                 unExportObject(m.getPath());
                 eo = null;
             }
@@ -830,11 +867,14 @@ public abstract class AbstractConnection
                 return;
             }
             {
-                debug(VERBOSE, "Searching for method " + m.getName()
-                        + " with signature " + m.getSig());
-                debug(VERBOSE, "List of methods on " + eo + ":");
-                for (MethodTuple mt : eo.methods.keySet())
-                    debug(VERBOSE, "   " + mt + " => " + eo.methods.get(mt));
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Searching for method " + m.getName()
+                            + " with signature " + m.getSig());
+                if (DBusLog.isLoggable(VERBOSE)) {
+                    debug(VERBOSE, "List of methods on " + eo + ":");
+                    for (MethodTuple mt : eo.methods.keySet())
+                        debug(VERBOSE, "   " + mt + " => " + eo.methods.get(mt));
+                }
             }
             meth = eo.methods.get(new MethodTuple(m.getName(), m.getSig()));
             if (null == meth) {
@@ -856,7 +896,8 @@ public abstract class AbstractConnection
         final boolean noreply = (1 == (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED));
         final DBusCallInfo info = new DBusCallInfo(m);
         final AbstractConnection conn = this;
-        debug(VERBOSE, "Adding Runnable for method " + meth);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Adding Runnable for method " + meth);
         addRunnable(new Runnable()
         {
             private boolean run = false;
@@ -866,13 +907,15 @@ public abstract class AbstractConnection
                 if (run)
                     return;
                 run = true;
-                debug(DEBUG, "Running method " + me + " for remote call");
+                if (DBusLog.isLoggable(DEBUG))
+                    debug(DEBUG, "Running method " + me + " for remote call");
                 try {
                     Type[] ts = me.getGenericParameterTypes();
                     m.setArgs(Marshalling.deSerializeParameters(m.getParameters(), ts, conn));
-                    debug(VERBOSE,
-                            "Deserialised " + Arrays.deepToString(m.getParameters()) + " to types "
-                                    + Arrays.deepToString(ts));
+                    if (DBusLog.isLoggable(VERBOSE))
+                        debug(VERBOSE,
+                                "Deserialised " + Arrays.deepToString(m.getParameters()) + " to types "
+                                        + Arrays.deepToString(ts));
                 } catch (Exception e) {
                     debug(ERROR, e);
                     try {
@@ -889,8 +932,9 @@ public abstract class AbstractConnection
                     }
                     Object result;
                     try {
-                        debug(VERBOSE, "Invoking Method: " + me + " on " + ob
-                                + " with parameters " + Arrays.deepToString(m.getParameters()));
+                        if (DBusLog.isLoggable(VERBOSE))
+                            debug(VERBOSE, "Invoking Method: " + me + " on " + ob
+                                    + " with parameters " + Arrays.deepToString(m.getParameters()));
                         result = me.invoke(ob, m.getParameters());
                     } catch (InvocationTargetException ITe) {
                         debug(ERROR, ITe.getCause());
@@ -942,7 +986,8 @@ public abstract class AbstractConnection
     })
     private void handleMessage(final DBusSignal s)
     {
-        debug(DEBUG, "Handling incoming signal: " + s);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Handling incoming signal: " + s);
         Vector<DBusSigHandler<? extends DBusSignal>> v = new Vector<DBusSigHandler<? extends DBusSignal>>();
         synchronized (handledSignals) {
             Vector<DBusSigHandler<? extends DBusSignal>> t;
@@ -953,20 +998,25 @@ public abstract class AbstractConnection
                     .get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), null));
             if (null != t)
                 v.addAll(t);
-            t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), null, s
-                    .getSource()));
-            if (null != t)
-                v.addAll(t);
-            t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), s
-                    .getSource()));
-            if (null != t)
-                v.addAll(t);
+            // peer to peer signals carry no sender, the lookups above already
+            // found every handler
+            if (null != s.getSource()) {
+                t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), null, s
+                        .getSource()));
+                if (null != t)
+                    v.addAll(t);
+                t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(),
+                        s.getPath(), s.getSource()));
+                if (null != t)
+                    v.addAll(t);
+            }
         }
         if (0 == v.size())
             return;
         final AbstractConnection conn = this;
         for (final DBusSigHandler<? extends DBusSignal> h : v) {
-            debug(VERBOSE, "Adding Runnable for signal " + s + " with handler " + h);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Adding Runnable for signal " + s + " with handler " + h);
             addRunnable(new Runnable() {
                 private boolean run = false;
 
@@ -1000,7 +1050,8 @@ public abstract class AbstractConnection
 
     private void handleMessage(final Error err)
     {
-        debug(DEBUG, "Handling incoming error: " + err);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Handling incoming error: " + err);
         MethodCall m = null;
         if (null == pendingCalls)
             return;
@@ -1014,13 +1065,15 @@ public abstract class AbstractConnection
             DBusAsyncReply asr = null;
             synchronized (pendingCallbacks) {
                 cbh = pendingCallbacks.remove(m);
-                debug(VERBOSE, cbh + " = pendingCallbacks.remove(" + m + ")");
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, cbh + " = pendingCallbacks.remove(" + m + ")");
                 asr = pendingCallbackReplys.remove(m);
             }
             // queue callback for execution
             if (null != cbh) {
                 final CallbackHandler fcbh = cbh;
-                debug(VERBOSE, "Adding Error Runnable with callback handler " + fcbh);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Adding Error Runnable with callback handler " + fcbh);
                 addRunnable(new Runnable() {
                     private boolean run = false;
 
@@ -1030,7 +1083,8 @@ public abstract class AbstractConnection
                             return;
                         run = true;
                         try {
-                            debug(VERBOSE, "Running Error Callback for " + err);
+                            if (DBusLog.isLoggable(VERBOSE))
+                                debug(VERBOSE, "Running Error Callback for " + err);
                             DBusCallInfo info = new DBusCallInfo(err);
                             synchronized (infomap) {
                                 infomap.put(Thread.currentThread(), info);
@@ -1058,7 +1112,8 @@ public abstract class AbstractConnection
     @SuppressWarnings("unchecked")
     private void handleMessage(final MethodReturn mr)
     {
-        debug(DEBUG, "Handling incoming method return: " + mr);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Handling incoming method return: " + mr);
         MethodCall m = null;
         if (null == pendingCalls)
             return;
@@ -1073,15 +1128,17 @@ public abstract class AbstractConnection
             DBusAsyncReply asr = null;
             synchronized (pendingCallbacks) {
                 cbh = pendingCallbacks.remove(m);
-                debug(VERBOSE, cbh + " = pendingCallbacks.remove(" + m + ")");
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, cbh + " = pendingCallbacks.remove(" + m + ")");
                 asr = pendingCallbackReplys.remove(m);
             }
             // queue callback for execution
             if (null != cbh) {
                 final CallbackHandler fcbh = cbh;
                 final DBusAsyncReply fasr = asr;
-                debug(VERBOSE, "Adding Runnable for method " + fasr.getMethod()
-                        + " with callback handler " + fcbh);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Adding Runnable for method " + fasr.getMethod()
+                            + " with callback handler " + fcbh);
                 addRunnable(new Runnable() {
                     private boolean run = false;
 
@@ -1091,7 +1148,8 @@ public abstract class AbstractConnection
                             return;
                         run = true;
                         try {
-                            debug(VERBOSE, "Running Callback for " + mr);
+                            if (DBusLog.isLoggable(VERBOSE))
+                                debug(VERBOSE, "Running Callback for " + mr);
                             DBusCallInfo info = new DBusCallInfo(mr);
                             synchronized (infomap) {
                                 infomap.put(Thread.currentThread(), info);
@@ -1142,6 +1200,9 @@ public abstract class AbstractConnection
             }
 
             transport.mout.writeMessage(m);
+            MessageTracer tracer = sTracer;
+            if (tracer != null)
+                tracer.messageOut(m.type, m.getSerial());
 
         } catch (Exception e) {
             debug(ERROR, e);
@@ -1160,7 +1221,8 @@ public abstract class AbstractConnection
                 }
             else if (m instanceof MethodCall)
                 try {
-                    debug(INFO, "Setting reply to " + m + " as an error");
+                    if (DBusLog.isLoggable(INFO))
+                        debug(INFO, "Setting reply to " + m + " as an error");
                     ((MethodCall) m).setReply(new Error(m, new DBusExecutionException(
                             _("Message Failed to Send: ") + e.getMessage())));
                 } catch (DBusException DBe) {
@@ -1188,6 +1250,9 @@ public abstract class AbstractConnection
         } catch (IOException IOe) {
             throw new FatalDBusException(IOe.getMessage());
         }
+        MessageTracer tracer = sTracer;
+        if (tracer != null && m != null)
+            tracer.messageIn(m.type, m.getSerial());
         return m;
     }
 
@@ -32,7 +32,6 @@ class ArrayFrob
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -42,7 +41,7 @@ class ArrayFrob
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -12,8 +12,8 @@
 package org.freedesktop.dbus;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 
@@ -23,7 +23,7 @@ import java.lang.reflect.Type;
  */
 abstract class Container
 {
-    private static Map<Type, Type[]> typecache = new HashMap<Type, Type[]>();
+    private static Map<Type, Type[]> typecache = new ConcurrentHashMap<Type, Type[]>();
 
     static void putTypeCache(Type k, Type[] v)
     {
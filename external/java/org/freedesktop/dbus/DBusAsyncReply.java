@@ -37,7 +37,6 @@ public class DBusAsyncReply<ReturnType>
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -46,7 +45,7 @@ public class DBusAsyncReply<ReturnType>
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -61,7 +61,6 @@ public class DBusConnection extends AbstractConnection
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -70,7 +69,7 @@ public class DBusConnection extends AbstractConnection
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -97,15 +96,17 @@ public class DBusConnection extends AbstractConnection
 
         public void handle(DBus.NameOwnerChanged noc)
         {
-            debug(DEBUG, "Received NameOwnerChanged(" + noc.name + "," + noc.old_owner
-                    + "," + noc.new_owner + ")");
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Received NameOwnerChanged(" + noc.name + "," + noc.old_owner
+                        + "," + noc.new_owner + ")");
             if ("".equals(noc.new_owner) && addresses.contains(noc.name))
                 remove(noc.name);
         }
 
         public boolean add(String address)
         {
-            debug(DEBUG, "Adding " + address);
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Adding " + address);
             synchronized (addresses) {
                 return addresses.add(address);
             }
@@ -161,7 +162,8 @@ public class DBusConnection extends AbstractConnection
         public boolean remove(Object o)
         {
 
-            debug(DEBUG, "Removing " + o);
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Removing " + o);
             synchronized (addresses) {
                 return addresses.remove(o);
             }
@@ -303,7 +305,8 @@ public class DBusConnection extends AbstractConnection
             }
             DBusConnection c = conn.get(s);
 
-            debug(VERBOSE, "Getting bus connection for " + s + ": " + c);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Getting bus connection for " + s + ": " + c);
             if (null != c) {
                 synchronized (c._reflock) {
                     c._refcount++;
@@ -312,7 +315,8 @@ public class DBusConnection extends AbstractConnection
             }
             else {
 
-                debug(DEBUG, "Creating new bus connection to: " + s);
+                if (DBusLog.isLoggable(DEBUG))
+                    debug(DEBUG, "Creating new bus connection to: " + s);
                 c = new DBusConnection(s);
                 conn.put(s, c);
                 return c;
@@ -368,13 +372,15 @@ public class DBusConnection extends AbstractConnection
     DBusInterface dynamicProxy(String source, String path) throws DBusException
     {
 
-        debug(INFO, "Introspecting " + path + " on " + source
-                + " for dynamic proxy creation");
+        if (DBusLog.isLoggable(INFO))
+            debug(INFO, "Introspecting " + path + " on " + source
+                    + " for dynamic proxy creation");
         try {
             DBus.Introspectable intro = getRemoteObject(source, path, DBus.Introspectable.class);
             String data = intro.Introspect();
 
-            debug(VERBOSE, "Got introspection data: " + data);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Got introspection data: " + data);
             String[] tags = data.split("[<>]");
             Vector<String> ifaces = new Vector<String>();
             for (String tag : tags) {
@@ -385,7 +391,8 @@ public class DBusConnection extends AbstractConnection
             Vector<Class<? extends Object>> ifcs = new Vector<Class<? extends Object>>();
             for (String iface : ifaces) {
 
-                debug(DEBUG, "Trying interface " + iface);
+                if (DBusLog.isLoggable(DEBUG))
+                    debug(DEBUG, "Trying interface " + iface);
                 int j = 0;
                 while (j >= 0) {
                     try {
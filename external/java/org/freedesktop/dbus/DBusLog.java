@@ -0,0 +1,62 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+ */
+
+package org.freedesktop.dbus;
+
+import android.util.Log;
+
+/**
+ * Level shared by every class in the library, the debug() helpers check it
+ * and call sites that build their message check it first with
+ * {@link #isLoggable(int)} so nothing gets formatted for a level that is
+ * off. Turning {@link #ENABLED} off compiles all of it out, like the
+ * upstream Debug.debug switch did. The level starts from the log.tag.DBus
+ * property and defaults to WARN.
+ */
+public final class DBusLog
+{
+    /** false compiles every guarded call out. */
+    public static final boolean ENABLED = true;
+
+    private static final String TAG = "DBus";
+
+    private static volatile int sLevel = initialLevel();
+
+    private DBusLog()
+    {
+    }
+
+    private static int initialLevel()
+    {
+        for (int l = Log.VERBOSE; l < Log.WARN; l++)
+            if (Log.isLoggable(TAG, l))
+                return l;
+        return Log.WARN;
+    }
+
+    /**
+     * @param level lowest android.util.Log level that gets built and logged.
+     */
+    public static void setLevel(int level)
+    {
+        sLevel = level;
+    }
+
+    public static int getLevel()
+    {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level)
+    {
+        return ENABLED && level >= sLevel;
+    }
+}
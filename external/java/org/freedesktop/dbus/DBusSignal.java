@@ -37,7 +37,6 @@ public class DBusSignal extends Message
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -46,7 +45,7 @@ public class DBusSignal extends Message
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -200,7 +199,8 @@ public class DBusSignal extends Message
         if (null == c)
             c = createSignalClass(intname, signame);
 
-        debug(DEBUG, "Converting signal to type: " + c);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Converting signal to type: " + c);
         Type[] types = typeCache.get(c);
         Constructor<? extends DBusSignal> con = conCache.get(c);
         if (null == types) {
@@ -227,8 +227,9 @@ public class DBusSignal extends Message
                 params[0] = getPath();
                 System.arraycopy(args, 0, params, 1, args.length);
 
-                debug(DEBUG, "Creating signal of type " + c + " with parameters "
-                        + Arrays.deepToString(params));
+                if (DBusLog.isLoggable(DEBUG))
+                    debug(DEBUG, "Creating signal of type " + c + " with parameters "
+                            + Arrays.deepToString(params));
                 s = (DBusSignal) con.newInstance(params);
             }
             s.headers = headers;
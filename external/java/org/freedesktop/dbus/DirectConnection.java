@@ -46,7 +46,6 @@ public class DirectConnection extends AbstractConnection
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -55,7 +54,7 @@ public class DirectConnection extends AbstractConnection
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -25,10 +25,9 @@ class EfficientQueue
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     private void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -96,7 +95,8 @@ class EfficientQueue
 
     public void add(Message m)
     {
-        debug(DEBUG, "Enqueueing Message " + m);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Enqueueing Message " + m);
         // put this at the end
         mv[end] = m;
         // move the end
@@ -123,7 +123,8 @@ class EfficientQueue
             start = 0;
         else
             start++;
-        debug(DEBUG, "Dequeueing " + m);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Dequeueing " + m);
         return m;
     }
 
@@ -25,10 +25,10 @@ import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.text.MessageFormat;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.types.DBusListType;
@@ -48,7 +48,6 @@ public class Marshalling
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -57,7 +56,7 @@ public class Marshalling
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -69,7 +68,7 @@ public class Marshalling
         debug(DEBUG, o);
     }
     
-    private static Map<Type, String[]> typeCache = new HashMap<Type, String[]>();
+    private static Map<Type, String[]> typeCache = new ConcurrentHashMap<Type, String[]>();
 
     /**
      * Will return the DBus type corresponding to the given Java type. Note,
@@ -127,16 +126,25 @@ public class Marshalling
         return recursiveGetDBusType(c, basic, 0);
     }
 
-    private static StringBuffer[] out = new StringBuffer[10];
+    /* scratch space, one set per thread */
+    private static final ThreadLocal<StringBuffer[]> scratch = new ThreadLocal<StringBuffer[]>() {
+        @Override
+        protected StringBuffer[] initialValue()
+        {
+            return new StringBuffer[10];
+        }
+    };
 
     @SuppressWarnings("unchecked")
     public static String[] recursiveGetDBusType(Type c, boolean basic, int level)
             throws DBusException
     {
+        StringBuffer[] out = scratch.get();
         if (out.length <= level) {
-            StringBuffer[] newout = new StringBuffer[out.length];
+            StringBuffer[] newout = new StringBuffer[level * 2];
             System.arraycopy(out, 0, newout, 0, out.length);
             out = newout;
+            scratch.set(out);
         }
         if (null == out[level])
             out[level] = new StringBuffer();
@@ -328,7 +336,8 @@ public class Marshalling
             throw new DBusException(_("Exporting non-exportable type ") + c);
         }
 
-        debug(VERBOSE, "Converted Java type: " + c + " to D-Bus Type: " + out[level]);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Converted Java type: " + c + " to D-Bus Type: " + out[level]);
 
         return new String[] {
             out[level].toString()
@@ -456,8 +465,9 @@ public class Marshalling
         if (null == parameters)
             return null;
         for (int i = 0; i < parameters.length; i++) {
-            debug(VERBOSE, "Converting " + i + " from " + parameters[i] + " to "
-                            + types[i]);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Converting " + i + " from " + parameters[i] + " to "
+                                + types[i]);
             if (null == parameters[i])
                 continue;
 
@@ -494,8 +504,9 @@ public class Marshalling
                 System.arraycopy(parameters, i + 1, exparams, i + newparams.length,
                         parameters.length - i - 1);
                 parameters = exparams;
-                debug(VERBOSE, "New params: " + Arrays.deepToString(parameters)
-                            + " new types: " + Arrays.deepToString(types));
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "New params: " + Arrays.deepToString(parameters)
+                                + " new types: " + Arrays.deepToString(types));
                 i--;
             } else if (types[i] instanceof TypeVariable &&
                     !(parameters[i] instanceof Variant))
@@ -511,8 +522,9 @@ public class Marshalling
     static Object deSerializeParameter(Object parameter, Type type, AbstractConnection conn)
             throws Exception
     {
-        debug(VERBOSE, "Deserializing from " + parameter.getClass() + " to " + 
-                type.getClass());
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Deserializing from " + parameter.getClass() + " to " + 
+                    type.getClass());
         if (null == parameter)
             return null;
 
@@ -546,7 +558,8 @@ public class Marshalling
         if (parameter instanceof Object[] &&
                 type instanceof Class &&
                 Struct.class.isAssignableFrom((Class) type)) {
-            debug(VERBOSE, "Creating Struct " + type + " from " + parameter);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Creating Struct " + type + " from " + parameter);
             Type[] ts = Container.getTypeCache(type);
             if (null == ts) {
                 Field[] fs = ((Class) type).getDeclaredFields();
@@ -645,7 +658,8 @@ public class Marshalling
     static List<Object> deSerializeParameters(List<Object> parameters, Type type,
             AbstractConnection conn) throws Exception
     {
-        debug(VERBOSE, "Deserializing from " + parameters + " to " + type);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Deserializing from " + parameters + " to " + type);
         if (null == parameters)
             return null;
         for (int i = 0; i < parameters.size(); i++) {
@@ -682,8 +696,9 @@ public class Marshalling
     static Object[] deSerializeParameters(Object[] parameters, Type[] types, AbstractConnection conn)
             throws Exception
     {
-        debug(VERBOSE, "Deserializing from " + Arrays.deepToString(parameters)
-                    + " to " + Arrays.deepToString(types));
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Deserializing from " + Arrays.deepToString(parameters)
+                        + " to " + Arrays.deepToString(types));
         if (null == parameters)
             return null;
 
@@ -45,7 +45,6 @@ public class Message
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -54,7 +53,7 @@ public class Message
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -232,7 +231,8 @@ public class Message
         synchronized (Message.class) {
             serial = ++globalserial;
         }
-        debug(DEBUG, "Creating message with serial " + serial);
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Creating message with serial " + serial);
         this.type = type;
         this.flags = flags;
         preallocate(4);
@@ -272,10 +272,12 @@ public class Message
         serial = ((Number) extract(Message.ArgumentType.UINT32_STRING, msg, 8)[0]).longValue();
         bytecounter = msg.length + headers.length + body.length;
 
-        debug(VERBOSE, headers);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, headers);
         Object[] hs = extract("a(yv)", headers, 0);
 
-        debug(VERBOSE, Arrays.deepToString(hs));
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, Arrays.deepToString(hs));
         for (Object o : (Vector<Object>) hs[0]) {
             this.headers.put((Byte) ((Object[]) o)[0],
                     ((Variant<Object>) ((Object[]) o)[1]).getValue());
@@ -307,7 +309,8 @@ public class Message
             if (increase < BUFFERINCREMENT)
                 increase = BUFFERINCREMENT;
 
-            debug(VERBOSE, "Resizing " + bufferuse);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Resizing " + bufferuse);
             byte[][] temp = new byte[wiredata.length + increase][];
             System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
             wiredata = temp;
@@ -335,7 +338,8 @@ public class Message
         } else {
             if (bufferuse == wiredata.length) {
 
-                debug(VERBOSE, "Resizing " + bufferuse);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Resizing " + bufferuse);
                 byte[][] temp = new byte[wiredata.length + BUFFERINCREMENT][];
                 System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
                 wiredata = temp;
@@ -356,7 +360,8 @@ public class Message
         } else {
             if (bufferuse == wiredata.length) {
 
-                debug(VERBOSE, "Resizing " + bufferuse);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Resizing " + bufferuse);
                 byte[][] temp = new byte[wiredata.length + BUFFERINCREMENT][];
                 System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
                 wiredata = temp;
@@ -461,9 +466,10 @@ public class Message
         else
             marshallintLittle(l, buf, ofs, width);
 
-        debug(VERBOSE,
-                "Marshalled int " + l + " to " + 
-                        HexDump.dumpHexString(buf, ofs, width));
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE,
+                    "Marshalled int " + l + " to " + 
+                            HexDump.dumpHexString(buf, ofs, width));
     }
 
     /**
@@ -599,10 +605,12 @@ public class Message
         try {
             int i = sigofs;
 
-            debug(VERBOSE, (Object) bytecounter);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, (Object) bytecounter);
 
-            debug(VERBOSE, "Appending type: " + ((char) sigb[i]) + " value: "
-                    + data);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Appending type: " + ((char) sigb[i]) + " value: "
+                        + data);
 
             // pad to the alignment of this type.
             pad(sigb[i]);
@@ -658,8 +666,9 @@ public class Message
                         throw new DBusException(_("System does not support UTF-8 encoding"));
                     }
 
-                    debug(VERBOSE, "Appending String of length "
-                            + payloadbytes.length);
+                    if (DBusLog.isLoggable(VERBOSE))
+                        debug(VERBOSE, "Appending String of length "
+                                + payloadbytes.length);
                     appendint(payloadbytes.length, 4);
                     appendBytes(payloadbytes);
                     appendBytes(padding[1]);
@@ -686,7 +695,7 @@ public class Message
                 // order. The length is the length from the end of the
                 // initial padding to the end of the last element.
                 {
-                    if (data instanceof Object[])
+                    if (data instanceof Object[] && DBusLog.isLoggable(VERBOSE))
                         debug(VERBOSE,
                                 "Appending array: " + Arrays.deepToString((Object[]) data));
                 }
@@ -774,8 +783,9 @@ public class Message
                         i = diff;
                     }
 
-                    debug(VERBOSE, "start: " + c + " end: " + bytecounter
-                            + " length: " + (bytecounter - c));
+                    if (DBusLog.isLoggable(VERBOSE))
+                        debug(VERBOSE, "start: " + c + " end: " + bytecounter
+                                + " length: " + (bytecounter - c));
                     marshallint(bytecounter - c, alen, 0, 4);
                     break;
                 case ArgumentType.STRUCT1:
@@ -847,10 +857,12 @@ public class Message
     public void pad(byte type)
     {
 
-        debug(VERBOSE, "padding for " + (char) type);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "padding for " + (char) type);
         int a = getAlignment(type);
 
-        debug(VERBOSE, preallocated + " " + paofs + " " + bytecounter + " " + a);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, preallocated + " " + paofs + " " + bytecounter + " " + a);
         int b = (int) ((bytecounter - preallocated) % a);
         if (0 == b)
             return;
@@ -861,7 +873,8 @@ public class Message
         } else
             appendBytes(padding[a]);
 
-        debug(VERBOSE, preallocated + " " + paofs + " " + bytecounter + " " + a);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, preallocated + " " + paofs + " " + bytecounter + " " + a);
     }
 
     /**
@@ -912,14 +925,16 @@ public class Message
     public void append(String sig, Object... data) throws DBusException
     {
 
-        debug(DEBUG,
-                "Appending sig: " + sig + " data: " + Arrays.deepToString(data));
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG,
+                    "Appending sig: " + sig + " data: " + Arrays.deepToString(data));
         byte[] sigb = sig.getBytes();
         int j = 0;
         for (int i = 0; i < sigb.length; i++) {
 
-            debug(VERBOSE, "Appending item: " + i + " " + ((char) sigb[i]) + " "
-                    + j);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Appending item: " + i + " " + ((char) sigb[i]) + " "
+                        + j);
             i = appendone(sigb, i, data[j++]);
         }
     }
@@ -934,7 +949,8 @@ public class Message
     public int align(int current, byte type)
     {
 
-        debug(VERBOSE, "aligning to " + (char) type);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "aligning to " + (char) type);
         int a = getAlignment(type);
         if (0 == (current % a))
             return current;
@@ -956,8 +972,9 @@ public class Message
             throws DBusException
     {
 
-        debug(VERBOSE, "Extracting type: " + ((char) sigb[ofs[0]])
-                + " from offset " + ofs[1]);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Extracting type: " + ((char) sigb[ofs[0]])
+                    + " from offset " + ofs[1]);
         Object rv = null;
         ofs[1] = align(ofs[1], sigb[ofs[0]]);
         switch (sigb[ofs[0]]) {
@@ -1017,7 +1034,8 @@ public class Message
             case ArgumentType.ARRAY:
                 long size = demarshallint(buf, ofs[1], 4);
 
-                debug(VERBOSE, "Reading array of size: " + size);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Reading array of size: " + size);
                 ofs[1] += 4;
                 byte algn = (byte) getAlignment(sigb[++ofs[0]]);
                 ofs[1] = align(ofs[1], sigb[ofs[0]]);
@@ -1076,8 +1094,9 @@ public class Message
                             int temp4 = Marshalling.getJavaType(temp3, temp, 1) - 1;
                             ofs[0] += temp4;
 
-                            debug(VERBOSE, "Aligned type: " + temp3 + " " + temp4
-                                    + " " + ofs[0]);
+                            if (DBusLog.isLoggable(VERBOSE))
+                                debug(VERBOSE, "Aligned type: " + temp3 + " " + temp4
+                                        + " " + ofs[0]);
                         }
                         int ofssave = ofs[0];
                         long end = ofs[1] + size;
@@ -1100,8 +1119,9 @@ public class Message
                             int temp4 = Marshalling.getJavaType(temp3, temp, 1) - 1;
                             ofs[0] += temp4;
 
-                            debug(VERBOSE, "Aligned type: " + temp3 + " " + temp4
-                                    + " " + ofs[0]);
+                            if (DBusLog.isLoggable(VERBOSE))
+                                debug(VERBOSE, "Aligned type: " + temp3 + " " + temp4
+                                        + " " + ofs[0]);
                         }
                         ofssave = ofs[0];
                         end = ofs[1] + size;
@@ -1123,11 +1143,12 @@ public class Message
                 break;
             case ArgumentType.DICT_ENTRY1:
                 Object[] decontents = new Object[2];
-                debug(VERBOSE,
-                        "Extracting Dict Entry ("
-                                + HexDump.dumpHexString(sigb,ofs[0], sigb.length-ofs[0])
-                                + ") from: " 
-                                + HexDump.dumpHexString(buf, ofs[1], buf.length - ofs[1]));
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE,
+                            "Extracting Dict Entry ("
+                                    + HexDump.dumpHexString(sigb,ofs[0], sigb.length-ofs[0])
+                                    + ") from: " 
+                                    + HexDump.dumpHexString(buf, ofs[1], buf.length - ofs[1]));
                 ofs[0]++;
                 decontents[0] = extractone(sigb, buf, ofs, true);
                 ofs[0]++;
@@ -1170,6 +1191,8 @@ public class Message
                 throw new UnknownTypeCodeException(sigb[ofs[0]]);
         }
 
+        if (!DBusLog.isLoggable(VERBOSE))
+            return rv;
         if (rv instanceof Object[])
             debug(VERBOSE, "Extracted: " + Arrays.deepToString((Object[]) rv)
                     + " (now at " + ofs[1] + ")");
@@ -1206,8 +1229,9 @@ public class Message
     public Object[] extract(String sig, byte[] buf, int[] ofs) throws DBusException
     {
 
-        debug(VERBOSE, "extract(" + sig + ",#" + buf.length + ", {" + ofs[0] + ","
-                + ofs[1] + "}");
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "extract(" + sig + ",#" + buf.length + ", {" + ofs[0] + ","
+                    + ofs[1] + "}");
         Vector<Object> rv = new Vector<Object>();
         byte[] sigb = sig.getBytes();
         for (int[] i = ofs; i[0] < sigb.length; i[0]++) {
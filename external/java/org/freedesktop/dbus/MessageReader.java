@@ -38,7 +38,6 @@ public class MessageReader
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -47,7 +46,7 @@ public class MessageReader
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -93,7 +92,8 @@ public class MessageReader
             return null;
         if (len[0] < 12) {
 
-            debug(DEBUG, "Only got " + len[0] + " of 12 bytes of header");
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Only got " + len[0] + " of 12 bytes of header");
             return null;
         }
 
@@ -126,7 +126,8 @@ public class MessageReader
         }
         if (len[1] < 4) {
 
-            debug(DEBUG, "Only got " + len[1] + " of 4 bytes of header");
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Only got " + len[1] + " of 4 bytes of header");
             return null;
         }
 
@@ -157,8 +158,9 @@ public class MessageReader
         }
         if (len[2] < headerlen) {
 
-            debug(DEBUG, "Only got " + len[2] + " of " + headerlen
-                    + " bytes of header");
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Only got " + len[2] + " of " + headerlen
+                        + " bytes of header");
             return null;
         }
 
@@ -182,8 +184,9 @@ public class MessageReader
         }
         if (len[3] < body.length) {
 
-            debug(DEBUG, "Only got " + len[3] + " of " + body.length
-                    + " bytes of body");
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Only got " + len[3] + " of " + body.length
+                        + " bytes of body");
             return null;
         }
 
@@ -208,10 +211,12 @@ public class MessageReader
                         }));
         }
         {
-            debug(VERBOSE, HexDump.dumpHexString(buf));
-            debug(VERBOSE, HexDump.dumpHexString(tbuf));
-            debug(VERBOSE, HexDump.dumpHexString(header));
-            debug(VERBOSE, HexDump.dumpHexString(body));
+            if (DBusLog.isLoggable(VERBOSE)) {
+                debug(VERBOSE, HexDump.dumpHexString(buf));
+                debug(VERBOSE, HexDump.dumpHexString(tbuf));
+                debug(VERBOSE, HexDump.dumpHexString(header));
+                debug(VERBOSE, HexDump.dumpHexString(body));
+            }
         }
         try {
             m.populate(buf, header, body);
@@ -231,7 +236,8 @@ public class MessageReader
             throw Re;
         }
         {
-            debug(INFO, "=> " + m);
+            if (DBusLog.isLoggable(INFO))
+                debug(INFO, "=> " + m);
         }
         buf = null;
         tbuf = null;
@@ -29,7 +29,6 @@ public class MessageWriter
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL=INFO;
     
     @SuppressWarnings("unused")
     private static void debug(Throwable o){
@@ -38,7 +37,7 @@ public class MessageWriter
     
     @SuppressWarnings("unused")
     private static void debug(int l, Object o){
-        if (l>=LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -62,7 +61,8 @@ public class MessageWriter
 
     public void writeMessage(Message m) throws IOException
     {
-        debug(INFO, "<= " + m);
+        if (DBusLog.isLoggable(INFO))
+            debug(INFO, "<= " + m);
         if (null == m)
             return;
         if (null == m.getWireData()) {
@@ -70,9 +70,10 @@ public class MessageWriter
             return;
         }
         for (byte[] buf : m.getWireData()) {
-            debug(VERBOSE,
-                        "(" + buf + "):" + (null == buf ? "" : 
-                            HexDump.dumpHexString(buf)));
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE,
+                            "(" + buf + "):" + (null == buf ? "" : 
+                                HexDump.dumpHexString(buf)));
             if (null == buf)
                 break;
             out.write(buf);
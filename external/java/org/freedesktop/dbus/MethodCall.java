@@ -32,7 +32,6 @@ public class MethodCall extends Message
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -41,7 +40,7 @@ public class MethodCall extends Message
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -116,7 +115,8 @@ public class MethodCall extends Message
 
         if (null != sig) {
 
-            debug(DEBUG, "Appending arguments with signature: " + sig);
+            if (DBusLog.isLoggable(DEBUG))
+                debug(DEBUG, "Appending arguments with signature: " + sig);
             hargs.add(new Object[] {
                     Message.HeaderField.SIGNATURE, new Object[] {
                             ArgumentType.SIGNATURE_STRING, sig
@@ -135,11 +135,13 @@ public class MethodCall extends Message
         if (null != sig)
             append(sig, args);
 
-        debug(DEBUG, "Appended body, type: " + sig + " start: " + c + " end: "
-                + bytecounter + " size: " + (bytecounter - c));
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Appended body, type: " + sig + " start: " + c + " end: "
+                    + bytecounter + " size: " + (bytecounter - c));
         marshallint(bytecounter - c, blen, 0, 4);
 
-        debug(DEBUG, "marshalled size (" + blen + "): " + HexDump.dumpHexString(blen));
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "marshalled size (" + blen + "): " + HexDump.dumpHexString(blen));
     }
 
     private static long REPLY_WAIT_TIMEOUT = 20000;
@@ -170,7 +172,8 @@ public class MethodCall extends Message
     public synchronized Message getReply(long timeout)
     {
 
-        debug(VERBOSE, "Blocking on " + this);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Blocking on " + this);
         if (null != reply)
             return reply;
         try {
@@ -190,7 +193,8 @@ public class MethodCall extends Message
     public synchronized Message getReply()
     {
 
-        debug(VERBOSE, "Blocking on " + this);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Blocking on " + this);
         if (null != reply)
             return reply;
         try {
@@ -204,7 +208,8 @@ public class MethodCall extends Message
     protected synchronized void setReply(Message reply)
     {
 
-        debug(VERBOSE, "Setting reply to " + this + " to " + reply);
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Setting reply to " + this + " to " + reply);
         this.reply = reply;
         notifyAll();
     }
@@ -23,7 +23,6 @@ class MethodTuple
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -32,7 +31,7 @@ class MethodTuple
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -55,7 +54,8 @@ class MethodTuple
         else
             this.sig = "";
 
-        debug(VERBOSE, "new MethodTuple(" + this.name + ", " + this.sig + ")");
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "new MethodTuple(" + this.name + ", " + this.sig + ")");
     }
 
     public boolean equals(Object o)
@@ -28,7 +28,6 @@ class ObjectTree
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -37,7 +36,7 @@ class ObjectTree
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -151,14 +150,16 @@ class ObjectTree
     public void add(String path, ExportedObject object, String data)
     {
 
-        debug(DEBUG, "Adding " + path + " to object tree");
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Adding " + path + " to object tree");
         root = recursiveAdd(root, path, object, data);
     }
 
     public void remove(String path)
     {
 
-        debug(DEBUG, "Removing " + path + " from object tree");
+        if (DBusLog.isLoggable(DEBUG))
+            debug(DEBUG, "Removing " + path + " from object tree");
         TreeNode t = recursiveFind(root, path);
         t.object = null;
         t.data = null;
@@ -38,7 +38,6 @@ class RemoteInvocationHandler implements InvocationHandler
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -47,7 +46,7 @@ class RemoteInvocationHandler implements InvocationHandler
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -77,9 +76,10 @@ class RemoteInvocationHandler implements InvocationHandler
         } else {
             try {
 
-                debug(VERBOSE,
-                        "Converting return parameters from " + Arrays.deepToString(rp)
-                                + " to type " + m.getGenericReturnType());
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE,
+                            "Converting return parameters from " + Arrays.deepToString(rp)
+                                    + " to type " + m.getGenericReturnType());
                 rp = Marshalling.deSerializeParameters(rp,
                         new Type[] {
                             m.getGenericReturnType()
@@ -174,7 +174,8 @@ class RemoteInvocationHandler implements InvocationHandler
             case CALL_TYPE_CALLBACK:
                 synchronized (conn.pendingCallbacks) {
 
-                    debug(VERBOSE, "Queueing Callback " + callback + " for " + call);
+                    if (DBusLog.isLoggable(VERBOSE))
+                        debug(VERBOSE, "Queueing Callback " + callback + " for " + call);
                     conn.pendingCallbacks.put(call, callback);
                     conn.pendingCallbackReplys.put(call, new DBusAsyncReply(call, m, conn));
                 }
@@ -13,6 +13,8 @@ package org.freedesktop.dbus;
 
 import static org.freedesktop.dbus.Gettext._;
 
+import android.net.Credentials;
+import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.util.Log;
@@ -46,7 +48,6 @@ public class Transport
     public static final int WARN = Log.WARN;
     public static final int ERROR = Log.ERROR;
     public static final int ASSERT = Log.ASSERT;
-    private static int LEVEL = INFO;
 
     @SuppressWarnings("unused")
     private static void debug(Throwable o) {
@@ -55,7 +56,7 @@ public class Transport
 
     @SuppressWarnings("unused")
     private static void debug(int l, Object o) {
-        if (l >= LEVEL)
+        if (DBusLog.isLoggable(l))
             if (o != null)
                 Log.println(l, TAG, o.toString());
             else
@@ -84,7 +85,8 @@ public class Transport
             {
                 String[] ss = s.split(" ");
 
-                debug(VERBOSE, "Creating command from: " + Arrays.toString(ss));
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Creating command from: " + Arrays.toString(ss));
                 if (ss[0].compareTo("OK")==0) {
                     command = COMMAND_OK;
                     data = ss[1];
@@ -123,7 +125,8 @@ public class Transport
                     throw new IOException(_("Invalid Command ") + ss[0]);
                 }
 
-                debug(VERBOSE, "Created command: " + this);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "Created command: " + this);
             }
 
             public int getCommand() {
@@ -264,8 +267,10 @@ public class Transport
         private String stupidlyEncode(String data)
         {
             String encoded = toHex(data.getBytes()).replace(" ", "");
-            Log.v(TAG, "stupidlyEnconde " + data);
-            Log.v(TAG, "result " + data);
+            if (DBusLog.isLoggable(VERBOSE)) {
+                Log.v(TAG, "stupidlyEnconde " + data);
+                Log.v(TAG, "result " + data);
+            }
             
             return encoded;
         }
@@ -370,7 +375,8 @@ public class Transport
                 }
             }
 
-            debug(VERBOSE, "received: " + sb);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "received: " + sb);
             try {
                 return new Command(sb.toString());
             } catch (Exception e) {
@@ -414,7 +420,8 @@ public class Transport
             sb.append('\r');
             sb.append('\n');
 
-            debug(VERBOSE, "sending: " + sb);
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "sending: " + sb);
             out.write(sb.toString().getBytes());
         }
 
@@ -424,7 +431,8 @@ public class Transport
                 case AUTH_SHA:
                     String[] reply = stupidlyDecode(c.getData()).split(" ");
 
-                    debug(VERBOSE, Arrays.toString(reply));
+                    if (DBusLog.isLoggable(VERBOSE))
+                        debug(VERBOSE, Arrays.toString(reply));
                     if (3 != reply.length) {
 
                         debug(DEBUG, "Reply is not length 3");
@@ -450,15 +458,17 @@ public class Transport
                         cookie = findCookie(context, ID);
                     if (null == cookie) {
 
-                        debug(DEBUG, "Did not find a cookie in context " + context
-                                + " with ID " + ID);
+                        if (DBusLog.isLoggable(DEBUG))
+                            debug(DEBUG, "Did not find a cookie in context " + context
+                                    + " with ID " + ID);
                         return ERROR;
                     }
                     String response = serverchallenge + ":" + clientchallenge + ":" + cookie;
                     buf = md.digest(response.getBytes());
 
-                    debug(VERBOSE,
-                            "Response: " + response + " hash: " + HexDump.dumpHexString(buf));
+                    if (DBusLog.isLoggable(VERBOSE))
+                        debug(VERBOSE,
+                                "Response: " + response + " hash: " + HexDump.dumpHexString(buf));
                     response = stupidlyEncode(buf);
                     c.setResponse(stupidlyEncode(clientchallenge + " " + response));
                     return OK;
@@ -507,8 +517,9 @@ public class Transport
                                 debug(IOe);
                             }
 
-                            debug(DEBUG, "Sending challenge: " + context + ' ' + id
-                                    + ' ' + challenge);
+                            if (DBusLog.isLoggable(DEBUG))
+                                debug(DEBUG, "Sending challenge: " + context + ' ' + id
+                                        + ' ' + challenge);
                             c.setResponse(stupidlyEncode(context + ' ' + id + ' ' + challenge));
                             return CONTINUE;
                         default:
@@ -524,8 +535,9 @@ public class Transport
                     byte[] buf = md.digest(prehash.getBytes());
                     String posthash = stupidlyEncode(buf);
 
-                    debug(DEBUG, "Authenticating Hash; data=" + prehash
-                            + " remote hash=" + hash + " local hash=" + posthash);
+                    if (DBusLog.isLoggable(DEBUG))
+                        debug(DEBUG, "Authenticating Hash; data=" + prehash
+                                + " remote hash=" + hash + " local hash=" + posthash);
                     if (0 == posthash.compareTo(hash))
                         return OK;
                     else
@@ -571,6 +583,18 @@ public class Transport
             }
         }
 
+        /**
+         * Returns true if the peer on us runs as root or as the same user as
+         * this process, according to the kernel.
+         */
+        public static boolean isTrustedPeer(LocalSocket us) throws IOException
+        {
+            Credentials cred = us.getPeerCredentials();
+            if (null == cred)
+                return false;
+            return cred.getUid() == 0 || cred.getUid() == android.os.Process.myUid();
+        }
+
         /**
          * performs SASL auth on the given streams. Mode selects whether to run
          * as a SASL server or client. Types is a bitmask of the available auth
@@ -582,6 +606,7 @@ public class Transport
                 InputStream in, LocalSocket us) throws IOException
         {
             String Uid = stupidlyEncode(""+0); // on Android only root allowed
+            String guid = null;
             Command c;
             int failed = 0;
             int current = 0;
@@ -589,7 +614,8 @@ public class Transport
 
             while (state != AUTHENTICATED && state != FAILED) {
 
-                debug(VERBOSE, "AUTH state: " + state);
+                if (DBusLog.isLoggable(VERBOSE))
+                    debug(VERBOSE, "AUTH state: " + state);
                 switch (mode) {
                     case MODE_CLIENT:
                         switch (state) {
@@ -707,7 +733,65 @@ public class Transport
                         }
                         break;
                     case MODE_SERVER:
-                        throw new RuntimeException("not supported on android");
+                        /*
+                         * only used for peer to peer connections on abstract
+                         * sockets. Only EXTERNAL is offered, checked against
+                         * the credentials the kernel gives for the peer, no
+                         * cookies.
+                         */
+                        switch (state) {
+                            case INITIAL_STATE:
+                                byte[] g = new byte[16];
+                                new Random().nextBytes(g);
+                                guid = toHex(g);
+                                state = WAIT_AUTH;
+                                break;
+                            case WAIT_AUTH:
+                                c = receive(in);
+                                switch (c.getCommand()) {
+                                    case COMMAND_AUTH:
+                                        if (0 != (c.getMechs() & types & AUTH_EXTERNAL)
+                                                && isTrustedPeer(us)) {
+                                            send(out, COMMAND_OK, guid);
+                                            state = WAIT_BEGIN;
+                                        } else
+                                            send(out, COMMAND_REJECTED,
+                                                    getTypes(types & AUTH_EXTERNAL));
+                                        break;
+                                    case COMMAND_ERROR:
+                                    case COMMAND_CANCEL:
+                                        send(out, COMMAND_REJECTED,
+                                                getTypes(types & AUTH_EXTERNAL));
+                                        break;
+                                    case COMMAND_BEGIN:
+                                        state = FAILED;
+                                        break;
+                                    default:
+                                        send(out, COMMAND_ERROR, "Got invalid command");
+                                        break;
+                                }
+                                break;
+                            case WAIT_BEGIN:
+                                c = receive(in);
+                                switch (c.getCommand()) {
+                                    case COMMAND_BEGIN:
+                                        state = AUTHENTICATED;
+                                        break;
+                                    case COMMAND_ERROR:
+                                    case COMMAND_CANCEL:
+                                        send(out, COMMAND_REJECTED,
+                                                getTypes(types & AUTH_EXTERNAL));
+                                        state = WAIT_AUTH;
+                                        break;
+                                    default:
+                                        send(out, COMMAND_ERROR, "Got invalid command");
+                                        break;
+                                }
+                                break;
+                            default:
+                                state = FAILED;
+                        }
+                        break;
                     default:
                         return false;
                 }
@@ -735,22 +819,82 @@ public class Transport
 
     public Transport(String address) throws IOException, ParseException
     {
-        connect(new LocalSocketAddress(address));
+        connect(address, 0);
     }
 
     public Transport(String address, int timeout) throws IOException, ParseException
     {
-        connect(new LocalSocketAddress(address), timeout);
+        connect(address, timeout);
     }
 
     public void connect(String address) throws IOException, ParseException
     {
-        connect(new LocalSocketAddress(address), 0);
+        connect(address, 0);
     }
 
+    /**
+     * Connects to address, either a plain abstract socket name or
+     * unix:abstract=name. With listen=true added, as DirectConnection
+     * documents, the socket is created here and the first peer connecting to
+     * it that runs as root or as this process's user is taken.
+     */
     public void connect(String address, int timeout) throws IOException, ParseException
     {
-        connect(new LocalSocketAddress(address), timeout);
+        String name = address;
+        boolean listen = false;
+        if (address.startsWith("unix:")) {
+            name = null;
+            for (String p : address.substring(5).split(",")) {
+                if (p.startsWith("abstract="))
+                    name = p.substring(9);
+                else if (p.equals("listen=true"))
+                    listen = true;
+            }
+            if (name == null)
+                throw new ParseException(_("Only abstract sockets are supported: ") + address, 0);
+        }
+
+        if (listen)
+            listen(new LocalSocketAddress(name), timeout);
+        else
+            connect(new LocalSocketAddress(name), timeout);
+    }
+
+    public void listen(LocalSocketAddress address, int timeout) throws IOException
+    {
+
+        if (DBusLog.isLoggable(INFO))
+            debug(INFO, "Listening on " + address.getName());
+        LocalServerSocket ss = new LocalServerSocket(address.getName());
+        LocalSocket us;
+        try {
+            // anyone can connect to an abstract socket, drop strangers
+            while (true) {
+                us = ss.accept();
+                if (SASL.isTrustedPeer(us))
+                    break;
+                debug(WARN, "Dropping untrusted peer on " + address.getName());
+                us.close();
+            }
+        } finally {
+            ss.close();
+        }
+
+        InputStream in = us.getInputStream();
+        OutputStream out = us.getOutputStream();
+        if (!(new SASL()).auth(SASL.MODE_SERVER, SASL.AUTH_EXTERNAL, out, in, us)) {
+            out.close();
+            throw new IOException(_("Failed to auth"));
+        }
+
+        if (DBusLog.isLoggable(VERBOSE))
+            debug(VERBOSE, "Setting timeout to " + timeout + " on Socket");
+        if (timeout == 1)
+            us.setSoTimeout(0);
+        else
+            us.setSoTimeout(timeout);
+        mout = new MessageWriter(out);
+        min = new MessageReader(in);
     }
 
     public void connect(LocalSocketAddress address) throws IOException
@@ -761,7 +905,8 @@ public class Transport
     public void connect(LocalSocketAddress address, int timeout) throws IOException
     {
 
-        debug(INFO, "Connecting to " + address);
+        if (DBusLog.isLoggable(INFO))
+            debug(INFO, "Connecting to " + address);
         OutputStream out = null;
         InputStream in = null;
         LocalSocket us = null;
@@ -783,7 +928,8 @@ public class Transport
         }
         if (null != us) {
 
-            debug(VERBOSE, "Setting timeout to " + timeout + " on Socket");
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Setting timeout to " + timeout + " on Socket");
             if (timeout == 1)
                 us.setSoTimeout(0);
             else
@@ -791,7 +937,8 @@ public class Transport
         }
         if (null != s) {
 
-            debug(VERBOSE, "Setting timeout to " + timeout + " on Socket");
+            if (DBusLog.isLoggable(VERBOSE))
+                debug(VERBOSE, "Setting timeout to " + timeout + " on Socket");
             s.setSoTimeout(timeout);
         }
         mout = new MessageWriter(out);
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+/**
+ * ATT MTU arithmetic shared by everything that splits values to fit in a
+ * single PDU.
+ * <p>
+ * Until an exchange MTU succeeds both sides have to assume the 23 bytes
+ * default, so a connection starts there and only moves once gatttool
+ * confirms the new value.
+ */
+public final class AttMtu {
+    /** MTU every LE link starts with */
+    public static final int DEFAULT = 23;
+
+    /** biggest MTU that makes sense, the longest attribute value plus headers */
+    public static final int MAX = 517;
+
+    /** longest attribute value ATT allows, reads and writes past it fail */
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    private AttMtu() {
+    }
+
+    public static boolean isValid(int mtu) {
+        return mtu >= DEFAULT && mtu <= MAX;
+    }
+
+    /**
+     * Value bytes in a write request or command, opcode and handle take 3.
+     */
+    public static int writePayload(int mtu) {
+        return mtu - 3;
+    }
+
+    /**
+     * Value bytes in a read or read blob response, opcode takes 1.
+     */
+    public static int readPayload(int mtu) {
+        return mtu - 1;
+    }
+
+    /**
+     * Value bytes in a prepare write request, opcode, handle and offset take 5.
+     */
+    public static int prepareWritePayload(int mtu) {
+        return mtu - 5;
+    }
+
+    /**
+     * How many PDUs of payload bytes a value of length bytes needs.
+     */
+    public static int chunks(int length, int payload) {
+        if (length <= 0)
+            return 1;
+        return (length + payload - 1) / payload;
+    }
+}
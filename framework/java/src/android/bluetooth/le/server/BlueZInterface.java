@@ -32,9 +32,11 @@ import org.bluez.Manager;
 import org.bluez.Service;
 import org.bluez.Watcher;
 import org.freedesktop.DBus;
-import org.freedesktop.DBus.NameOwnerChanged;
+import org.freedesktop.dbus.AbstractConnection;
 import org.freedesktop.dbus.DBusConnection;
+import org.freedesktop.dbus.DBusInterface;
 import org.freedesktop.dbus.DBusSigHandler;
+import org.freedesktop.dbus.DirectConnection;
 import org.freedesktop.dbus.Path;
 import org.freedesktop.dbus.Variant;
 import org.freedesktop.dbus.exceptions.DBusException;
@@ -67,13 +69,29 @@ public class BlueZInterface {
     private static final String DBUS_BLUEZ = "org.bluez";
 
     static String TAG = "BlueZInterface";
-    private DBusConnection bus = null;
+    private static String sBusAddress = null;
+    private AbstractConnection bus = null;
     private Manager manager = null;
     private Adapter adapter = null;
     private Listener listener = null;
     private CharacteristicWatcher mWatcher = null;
     private List<String> mWatchedServices = null;
 
+    /**
+     * Makes new connections talk to BlueZ over a peer to peer connection at
+     * address instead of the system bus, lets a stand in take its place in
+     * tests.
+     *
+     * @param address null goes back to the system bus.
+     */
+    public static synchronized void setBusAddress(String address) {
+        sBusAddress = address;
+    }
+
+    private static synchronized String getBusAddress() {
+        return sBusAddress;
+    }
+
     public BlueZInterface(Listener listener) {
         super();
         this.listener = listener;
@@ -109,7 +127,7 @@ public class BlueZInterface {
             for (String p : mWatchedServices) {
                 try {
                     Service s;
-                    s = bus.getRemoteObject(DBUS_BLUEZ, p, Service.class);
+                    s = getRemoteObject(p, Service.class);
                     s.UnregisterCharacteristicsWatcher(new Path(Watcher.PATH));
                 } catch (Exception e) {
                     Log.e(TAG, "failure while unregistering watcher", e);
@@ -145,8 +163,13 @@ public class BlueZInterface {
         }
 
         try {
-            Log.i(TAG, "getting on bus");
-            bus = DBusConnection.getConnection(DBusConnection.SYSTEM);
+            String address = getBusAddress();
+            Log.i(TAG, "getting on bus " + (address == null ? "system" : address));
+            AbstractConnection.setMessageTracer(TraceRing.DBUS_TRACER);
+            if (address == null)
+                bus = DBusConnection.getConnection(DBusConnection.SYSTEM);
+            else
+                bus = new DirectConnection(address);
 
             Log.i(TAG, "registering signals");
             // DBusSigHandler s = new DBusOwnerNameChanged(this);
@@ -160,13 +183,21 @@ public class BlueZInterface {
         Stop();
     }
 
+    @SuppressWarnings("unchecked")
+    private <I extends DBusInterface> I getRemoteObject(String path, Class<I> type)
+            throws DBusException {
+        if (bus instanceof DBusConnection)
+            return ((DBusConnection) bus).getRemoteObject(DBUS_BLUEZ, path, type);
+        return (I) ((DirectConnection) bus).getRemoteObject(path, type);
+    }
+
     private synchronized Manager getBluezManager() {
         if (bus == null)
             return null;
 
         Manager out;
         try {
-            out = bus.getRemoteObject(DBUS_BLUEZ, "/", Manager.class);
+            out = getRemoteObject("/", Manager.class);
         } catch (DBusException e) {
             Log.e(TAG, "BlueZ isn't available", e);
             return null;
@@ -175,7 +206,8 @@ public class BlueZInterface {
             return null;
         }
 
-        Log.d(TAG, "Got manager object");
+        if (ServerLog.debug())
+            Log.d(TAG, "Got manager object");
         return out;
     }
 
@@ -194,7 +226,7 @@ public class BlueZInterface {
         Adapter out;
         try {
             String p = manager.DefaultAdapter().toString();
-            out = bus.getRemoteObject(DBUS_BLUEZ, p, Adapter.class);
+            out = getRemoteObject(p, Adapter.class);
         } catch (DBusException e) {
             Log.e(TAG, "BlueZ issue", e);
             return null;
@@ -203,7 +235,8 @@ public class BlueZInterface {
             return null;
         }
 
-        Log.d(TAG, "Got manager object");
+        if (ServerLog.debug())
+            Log.d(TAG, "Got manager object");
         return out;
     }
 
@@ -217,10 +250,16 @@ public class BlueZInterface {
         manager = getBluezManager();
         adapter = getBluezAdapter();
 
+        if (bus == null)
+            return false;
+
+        if (listeners.containsKey(org.bluez.Adapter.DeviceFound.class))
+            return adapter != null;
+
         try {
             DBusSigHandler s = new DeviceFoundHandler(this);
             bus.addSigHandler(org.bluez.Adapter.DeviceFound.class, s);
-            listeners.put(NameOwnerChanged.class, s);
+            listeners.put(org.bluez.Adapter.DeviceFound.class, s);
         } catch (DBusException e) {
             Log.e(TAG, "failed registering for dbus signal", e);
         }
@@ -270,7 +309,7 @@ public class BlueZInterface {
         if (path == null)
             return null;
 
-        return bus.getRemoteObject(DBUS_BLUEZ, path, Device.class);
+        return getRemoteObject(path, Device.class);
     }
 
     private void checkBlueZStatus() throws BlueZConnectionError {
@@ -294,7 +333,8 @@ public class BlueZInterface {
             return null;
 
         Map<String, Variant> o = d.GetProperties();
-        Log.v(TAG, "device " + o);
+        if (ServerLog.verbose())
+            Log.v(TAG, "device " + o);
         return o;
     }
 
@@ -331,45 +371,54 @@ public class BlueZInterface {
             for (Path p : services) {
                 Service s;
                 try {
-                    s = bus.getRemoteObject(DBUS_BLUEZ, p.toString(), Service.class);
+                    s = getRemoteObject(p.toString(), Service.class);
                     Map<String, Variant> sprop = s.GetProperties();
-                    Log.d(TAG, "service " + sprop);
+                    if (ServerLog.debug())
+                        Log.d(TAG, "service " + sprop);
                     if (!sprop.containsKey("UUID")) {
-                        Log.d(TAG, "no uuid, can't compare");
+                        if (ServerLog.debug())
+                            Log.d(TAG, "no uuid, can't compare");
                         continue;
                     }
 
                     String s_uuid = sprop.get("UUID").getValue().toString().trim();
-                    Log.d(TAG, "service " + p.toString() + " " + s_uuid);
+                    if (ServerLog.debug())
+                        Log.d(TAG, "service " + p.toString() + " " + s_uuid);
 
                     if (s_uuid.length() > 8 && !s_uuid.endsWith("1000-8000-00805f9b34fb")) {
                         Log.e(TAG, "128b UUID with wrong ending");
                         continue;
                     }
 
-                    Log.d(TAG, "possible match");
+                    if (ServerLog.debug())
+                        Log.d(TAG, "possible match");
                     BluetoothGattID id;
                     if (s_uuid.length() <= 8) {
                         id = BluetoothGattID.getUuuid128FromUuid16(
                                 Integer.valueOf(s_uuid, 16));
-                        Log.d(TAG, "16b uuid: " + id);
+                        if (ServerLog.debug())
+                            Log.d(TAG, "16b uuid: " + id);
                     } else {
                         try {
                             id = new BluetoothGattID(s_uuid);
-                            Log.d(TAG, "128b uuid: " + id);
+                            if (ServerLog.debug())
+                                Log.d(TAG, "128b uuid: " + id);
                         } catch (IllegalArgumentException e) {
                             Log.e(TAG, "error parsing 128b uuid", e);
                             continue;
                         }
                     }
 
-                    if (serviceID == null)
+                    if (serviceID == null && ServerLog.verbose())
                         Log.v(TAG, "serviceID is null, I will match anyhing");
 
-                    Log.v(TAG, "compairing " + serviceID);
-                    Log.v(TAG, "with " + id);
+                    if (ServerLog.verbose())
+                        Log.v(TAG, "compairing " + serviceID);
+                    if (ServerLog.verbose())
+                        Log.v(TAG, "with " + id);
                     if (serviceID == null || serviceID.equals(id)) {
-                        Log.d(TAG, "match!");
+                        if (ServerLog.debug())
+                            Log.d(TAG, "match!");
                         out.put(p.toString(), id.toString());
                     }
 
@@ -409,17 +458,19 @@ public class BlueZInterface {
         Service s;
         List<Path> cha = null;
 
-        s = bus.getRemoteObject(DBUS_BLUEZ, serPath, Service.class);
+        s = getRemoteObject(serPath, Service.class);
         cha = s.DiscoverCharacteristics();
         for (Path p : cha) {
-            Characteristic c = bus.getRemoteObject(DBUS_BLUEZ, p.toString(),
+            Characteristic c = getRemoteObject(p.toString(),
                     Characteristic.class);
             Map<String, Variant> prop = c.GetProperties();
-            Log.v(TAG, "Char " + prop);
+            if (ServerLog.verbose())
+                Log.v(TAG, "Char " + prop);
             BluetoothGattID id = null;
             if (prop.containsKey("UUID")) {
                 Object u = c.GetProperties().get("UUID").getValue();
-                Log.v(TAG, "uuid " + u);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "uuid " + u);
                 id = new BluetoothGattID(u.toString());
             } else {
                 Log.e(TAG, "oops no uuid");
@@ -448,10 +499,11 @@ public class BlueZInterface {
     @SuppressWarnings("rawtypes")
     public Object GetCharacteristicValue(String path, String key) throws DBusException {
         Characteristic c;
-        c = bus.getRemoteObject(DBUS_BLUEZ, path,
+        c = getRemoteObject(path,
                 Characteristic.class);
         Map<String, Variant> p = c.GetProperties();
-        Log.v(TAG, "get char value char " + p);
+        if (ServerLog.verbose())
+            Log.v(TAG, "get char value char " + p);
         if (!p.containsKey(key))
             return null;
         return p.get(key).getValue();
@@ -459,7 +511,8 @@ public class BlueZInterface {
 
     public byte[] GetCharacteristicValueValue(String path) throws DBusException {
         Object o = GetCharacteristicValue(path, "Value");
-        Log.v(TAG, "got char value " + o);
+        if (ServerLog.verbose())
+            Log.v(TAG, "got char value " + o);
         byte[] d = (byte[]) o;
         String t = "";
         if (d != null)
@@ -467,7 +520,8 @@ public class BlueZInterface {
                 t += " " + Integer.toHexString(d[i]);
         else
             t = "NULL";
-        Log.v(TAG, "got char value " + t);
+        if (ServerLog.verbose())
+            Log.v(TAG, "got char value " + t);
         return d;
     }
 
@@ -491,13 +545,15 @@ public class BlueZInterface {
         @Override
         @SuppressWarnings("rawtypes")
         public void ValueChanged(Path characteristic, Map<String, Variant> values) {
-            Log.v(TAG, "CharacteristicWatcher.ValueChanged " + characteristic);
+            if (ServerLog.verbose())
+                Log.v(TAG, "CharacteristicWatcher.ValueChanged " + characteristic);
             newValue(characteristic.getPath());
         }
 
         @Override
         public void RawValueChanged(Path characteristic, List<Byte> values) {
-            Log.v(TAG, "CharacteristicWatcher.RawValueChanged " + characteristic);
+            if (ServerLog.verbose())
+                Log.v(TAG, "CharacteristicWatcher.RawValueChanged " + characteristic);
             newValue(characteristic.getPath());
         }
 
@@ -511,12 +567,13 @@ public class BlueZInterface {
     public boolean writeCharacteristicValue(String path, byte[] value) throws DBusException,
             BlueZConnectionError {
         checkBlueZStatus();
-        Characteristic c = bus.getRemoteObject(DBUS_BLUEZ, path,
+        Characteristic c = getRemoteObject(path,
                 Characteristic.class);
         String t = "";
         for (int i = 0; i < value.length; i++)
             t += " " + Integer.toHexString(value[i]);
-        Log.v(TAG, "setting Value to " + t);
+        if (ServerLog.verbose())
+            Log.v(TAG, "setting Value to " + t);
         c.SetProperty("Value", new Variant<byte[]>(value));
         return true;
     }
@@ -531,7 +588,8 @@ public class BlueZInterface {
         checkBlueZStatus();
 
         if (mWatcher == null) {
-            Log.v(TAG, "Exporting characteristic watcher");
+            if (ServerLog.verbose())
+                Log.v(TAG, "Exporting characteristic watcher");
             mWatcher = new CharacteristicWatcher();
             try {
                 bus.exportObject(Watcher.PATH, mWatcher);
@@ -539,7 +597,8 @@ public class BlueZInterface {
                 Log.e(TAG, "Failed to export watcher", e);
                 return REGISTER_RET_VALUES.ERROR;
             }
-            Log.v(TAG, "Exported");
+            if (ServerLog.verbose())
+                Log.v(TAG, "Exported");
 
             mWatchedServices = new Vector<String>();
         }
@@ -555,7 +614,7 @@ public class BlueZInterface {
         Service s = null;
 
         try {
-            s = bus.getRemoteObject(DBUS_BLUEZ, serPath, Service.class);
+            s = getRemoteObject(serPath, Service.class);
         } catch (Exception e) {
             Log.e(TAG, "failed getting service object", e);
             return REGISTER_RET_VALUES.ERROR;
@@ -16,16 +16,30 @@
 
 package android.bluetooth.le.server;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.freedesktop.dbus.Path;
 import org.freedesktop.dbus.Variant;
@@ -41,8 +55,11 @@ import android.content.Context;
 import android.content.IIntentReceiver;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Binder;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -57,6 +74,8 @@ import com.broadcom.bt.service.gatt.BluetoothGattCharDescrID;
 import com.broadcom.bt.service.gatt.BluetoothGattCharID;
 import com.broadcom.bt.service.gatt.BluetoothGattID;
 import com.broadcom.bt.service.gatt.BluetoothGattInclSrvcID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
 import com.broadcom.bt.service.gatt.IBluetoothGatt;
 
 public class BluetoothGatt extends IBluetoothGatt.Stub implements
@@ -92,7 +111,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             if (i.getAction().equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                 int s = i.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
                 if (s == BluetoothAdapter.STATE_ON) {
-                    Log.v(TAG, "enabling my interface");
+                    if (ServerLog.verbose())
+                        Log.v(TAG, "enabling my interface");
                     Thread a = new Thread() {
                         public void run() {
                             try {
@@ -104,23 +124,31 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                         }
                     };
                     a.start();
+                    GattToolWrapper.setStandbyPaused(false);
 
                 } else if (s == BluetoothAdapter.STATE_OFF) {
-                    Log.v(TAG, "bluez is down");
+                    if (ServerLog.verbose())
+                        Log.v(TAG, "bluez is down");
                     BluetoothGatt.this.mBluezInterface.Stop();
+                    // idle gatttool processes have nothing to attach to
+                    GattToolWrapper.setStandbyPaused(true);
                 }
             }
 
         }
     };
 
+    /* idle gatttool processes kept started for the next connect */
+    private static final int STANDBY_WORKERS = 1;
+
     /**
      * Constructor for the class, initializes the pieces needed by us.
      * 
      * @throws IOException if GattTool pool fails to initialize.
      */
     public BluetoothGatt() throws IOException {
-        Log.v(TAG, "new bluetoothGatt");
+        if (ServerLog.verbose())
+            Log.v(TAG, "new bluetoothGatt");
 
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         if (mAdapter == null)
@@ -135,6 +163,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         mBluezInterface = new BlueZInterface(this);
         mBluezInterface.Start();
 
+        GattToolWrapper.setStandbyWorkers(STANDBY_WORKERS);
+
         registerBroadcastReceiver(mReceiver,
                 new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
     }
@@ -201,7 +231,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                 line = line + ", data=\"" + data + "\"";
             if (ext != null)
                 line = line + ", extras: " + ext;
-            Log.v(TAG, line);
+            if (ServerLog.verbose())
+                Log.v(TAG, line);
             mFinished = true;
             notifyAll();
         }
@@ -228,7 +259,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                 Intent intent, int rc, String data, Bundle ext, boolean ord,
                 boolean sticky) {
             String line = "Broadcast received: " + intent;
-            Log.v(TAG, line);
+            if (ServerLog.verbose())
+                Log.v(TAG, line);
             receiver.onReceive(null, intent);
             notifyAll();
         }
@@ -250,15 +282,18 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         Log.i(TAG, "found class");
 
         for (Method m : c.getMethods()) {
-            Log.v(TAG, "m " + m.getName());
+            if (ServerLog.verbose())
+                Log.v(TAG, "m " + m.getName());
 
             if (m.getName().equals("broadcastIntent")) {
                 mBroadcast = m;
                 mBroadcastArgs = m.getParameterTypes();
-                Log.v(TAG, "found method, argument count " + mBroadcastArgs.length);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "found method, argument count " + mBroadcastArgs.length);
 
                 for (int i = 0; i < mBroadcastArgs.length; i++) {
-                    Log.v(TAG, "argument " + i + " " + mBroadcastArgs[i]);
+                    if (ServerLog.verbose())
+                        Log.v(TAG, "argument " + i + " " + mBroadcastArgs[i]);
                 }
                 return;
             }
@@ -274,7 +309,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     public void broadcastIntent(Intent intent) {
         if (mBroadcast == null) {
-            Log.v(TAG, "no broadcastIntent, sorry");
+            if (ServerLog.verbose())
+                Log.v(TAG, "no broadcastIntent, sorry");
             return;
         }
 
@@ -304,7 +340,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         }
 
         try {
-            Log.v(TAG, "broadcasting " + args);
+            if (ServerLog.verbose())
+                Log.v(TAG, "broadcasting " + args);
             mBroadcast.invoke(mAm, args);
         } catch (Exception e) {
             Log.e(TAG, "failed to broadcast signal!", e);
@@ -312,11 +349,13 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     }
 
     private void registerBroadcastReceiver(BroadcastReceiver receiver, IntentFilter filter) {
-        Log.v(TAG, "registering broadcast receiver");
+        if (ServerLog.verbose())
+            Log.v(TAG, "registering broadcast receiver");
         IBroadcastReceiver ireceiver = new IBroadcastReceiver(receiver);
         try {
             mAm.registerReceiver(null, null, ireceiver, filter, null);
-            Log.v(TAG, "registered");
+            if (ServerLog.verbose())
+                Log.v(TAG, "registered");
             return;
         } catch (RemoteException e) {
             Log.e(TAG, "failed registering receiver");
@@ -376,6 +415,9 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         byte mIfaceID;
         IBleClientCallback mCallback;
         DeathRecipient deadRecipient;
+        volatile long mTimeout = DEFAULT_TIMEOUT;
+        volatile int mNotifyBatchCount = 0; // 0 means one onNotify per value
+        volatile int mNotifyBatchLatency = DEFAULT_NOTIFY_LATENCY;
 
         public AppWrapper(BluetoothGattID mGattID, byte mIfaceID, IBleClientCallback mCallback) {
             super();
@@ -386,12 +428,15 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         }
         
         private synchronized void cleanupApp(){
-            Log.v(TAG, "cleaning up application " + mIfaceID);
+            if (ServerLog.verbose())
+                Log.v(TAG, "cleaning up application " + mIfaceID);
+            mConnScheduler.cancel(this);
             for (Map.Entry<String, ConnectionWrapper> cm: mPendingConnections.entrySet()){
                 ConnectionWrapper cw = cm.getValue();
                 if (cw.wrapper.mIfaceID != mIfaceID)
                     continue;
-                Log.v(TAG, "dropping pending connection from this client " + cm.getKey());
+                if (ServerLog.verbose())
+                    Log.v(TAG, "dropping pending connection from this client " + cm.getKey());
                 cw.mGattTool.setListener(null);
                 cw.mGattTool.disconnect();
                 cw.mGattTool.releaseWorker();
@@ -401,21 +446,12 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                 ConnectionWrapper cw = cm.getValue();
                 if (cw.wrapper.mIfaceID != mIfaceID)
                     continue;
-                Log.v(TAG, "dropping open client from this client " + cw.remote);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "dropping open client from this client " + cw.remote);
                 cw.mGattTool.setListener(null);
                 cw.mGattTool.disconnect();
                 cw.mGattTool.releaseWorker();
-                for (Service s: cw.mServiceByHandle.values()){
-                    for (Characteristic c: s.chars){
-                        c.descriptors.clear();
-                        c.service = null;
-                    }
-                    s.chars.clear();
-                    s.callback = null;
-                }
-                cw.mServiceByHandle.clear();
-                cw.mAttributesByHandle.clear();
-                cw.mCharacteristicByHandle.clear();
+                cw.clearAttributes();
                 mConnectionMap.remove(cm.getKey());
             }
             if (deadRecipient!=null) {
@@ -427,7 +463,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             deadRecipient = null;
             knownApps.remove(this);
             registeredAppsByID[this.mIfaceID] = null;
-            Log.v(TAG, "AppWrapper for " + this.mIfaceID + " cleaned");
+            if (ServerLog.verbose())
+                Log.v(TAG, "AppWrapper for " + this.mIfaceID + " cleaned");
         }
     }
     
@@ -446,9 +483,33 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         BleGattID lastPrimaryUuid;
         Service lastService;
         boolean sec_result;
-        Map<Integer, Service> mServiceByHandle = new HashMap<Integer, Service>();
-        Map<Integer, Characteristic> mCharacteristicByHandle = new HashMap<Integer, Characteristic>();
-        Map<Integer, Attribute> mAttributesByHandle = new HashMap<Integer, Attribute>();
+        HandleRangeTable<Service> mServiceByHandle = new HandleRangeTable<Service>();
+        HandleTable<Characteristic> mCharacteristicByHandle = new HandleTable<Characteristic>();
+        HandleTable<Attribute> mAttributesByHandle = new HandleTable<Attribute>();
+        RequestTable<PendingOp> mRequests;
+        ConnectionMetrics mMetrics;
+        long mConnectStarted;
+        Map<IBinder, NotifyBatch> mNotifyBatches = new HashMap<IBinder, NotifyBatch>();
+        volatile int mMtu = AttMtu.DEFAULT;
+        /* prepared writes by calling uid, each app executes its own */
+        Map<Integer, List<PreparedWrite>> mPrepareQueues = 
+                new HashMap<Integer, List<PreparedWrite>>();
+        /* client configuration descriptors apps enabled, by handle */
+        Map<Integer, byte[]> mClientConfig = new LinkedHashMap<Integer, byte[]>();
+        /*
+         * discoveries sent and waiting for their end, and those that timed
+         * out but gatttool may still answer, by DISCOVERY_* kind. Guarded
+         * by the mGattTool lock.
+         */
+        boolean[] mDiscovering = new boolean[DISCOVERIES];
+        int[] mLateDiscoveries = new int[DISCOVERIES];
+        /* while gatttool is being brought back, see startRestore */
+        int mRestoreAttempts;
+        long mRestoreStarted;
+        int mRestoreMtu;
+        LinkedList<Integer> mRestoreSteps;
+        /* bumped for every restore step sent, see restoreStepTimedOut */
+        int mRestoreStep;
         
         public ConnectionWrapper(AppWrapper w, String r) {
             this.connID = -1; // mark as pending
@@ -457,6 +518,40 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             this.services = new HashMap<BleGattID, List<Service>>();
             this.lastPrimaryUuid = null;
             this.deviceBR = false;
+            this.mMetrics = getMetrics(r);
+            this.mRequests = new RequestTable<PendingOp>(mMetrics);
+        }
+        
+        /**
+         * Accounts the connection attempt once, whichever way it ended.
+         */
+        synchronized void connectDone(boolean ok) {
+            if (mConnectStarted == 0)
+                return;
+            if (ok)
+                mMetrics.end(BleConstants.GATT_OP_CONNECT, mConnectStarted, true);
+            else
+                mMetrics.abort(BleConstants.GATT_OP_CONNECT);
+            mConnectStarted = 0;
+        }
+        
+        /**
+         * Keeps what an app wrote to a client configuration descriptor so
+         * it can be written again if gatttool has to be restarted.
+         */
+        void rememberClientConfig(int handle, byte[] value){
+            boolean enabled = false;
+            for (byte b: value)
+                enabled |= b != 0;
+            synchronized (mClientConfig) {
+                if (enabled)
+                    mClientConfig.put(handle, value.clone());
+                else
+                    mClientConfig.remove(handle);
+                GattToolWrapper gtw = mGattTool;
+                if (gtw != null)
+                    gtw.setNotifying(!mClientConfig.isEmpty());
+            }
         }
         
         public Service addService(int start, int end, BleGattID uuid){
@@ -473,9 +568,27 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             Service s = new Service(svcId, start, end);
             services.get(uuid).add(s);
             s.conn = this;
-            this.mServiceByHandle.put(start, s);
+            this.mServiceByHandle.put(start, end, s);
             return s;
         }
+        
+        /**
+         * Drops every known service, characteristic and descriptor
+         */
+        public void clearAttributes(){
+            for (int i = 0; i < mServiceByHandle.size(); i++){
+                Service s = mServiceByHandle.valueAt(i);
+                for (Characteristic c: s.chars){
+                    c.descriptors.clear();
+                    c.service = null;
+                }
+                s.chars.clear();
+                s.callback = null;
+            }
+            mServiceByHandle.clear();
+            mAttributesByHandle.clear();
+            mCharacteristicByHandle.clear();
+        }
     }
 
     /**
@@ -486,7 +599,7 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         BluetoothGattID uuid;
         int start;
         int end = 0xffff;
-        List<Characteristic> chars = new Vector<Characteristic>();
+        List<Characteristic> chars = new ArrayList<Characteristic>();
         Characteristic lastChar = null;
         Integer lastCharResult = null;
         ConnectionWrapper conn;
@@ -494,7 +607,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         IBleCharacteristicDataCallback callback;
         
         public Service(BluetoothGattID u, int s, int e){
-            Log.v(TAG, "new Service " + u + " start: " + s + " end: " + e);
+            if (ServerLog.verbose())
+                Log.v(TAG, "new Service " + u + " start: " + s + " end: " + e);
             this.uuid = u;
             this.start = s;
             this.end = e;
@@ -527,9 +641,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         int value_handle;
         int end = 0xffff;
         boolean descFlag;
-        Descriptor lastDescriptor;
         Integer lastDescriptorStatus = null;
-        List<Descriptor> descriptors = new Vector<Descriptor>();
+        List<Descriptor> descriptors = new ArrayList<Descriptor>();
         
         public Characteristic(int handle, short properties, int value_handle, BleGattID id){
             super (handle, id);
@@ -559,6 +672,391 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             super(handle, uuid);
         }
     }
+    
+    /**
+     * Target of an outstanding read or write, d is null when the target is the
+     * characteristic value. The callback is captured when the request is sent
+     * so the answer goes to whoever asked for it.
+     */
+    private class PendingOp {
+        Service service;
+        Characteristic c;
+        Descriptor d;
+        IBleCharacteristicDataCallback callback;
+        ReadBatch batch;
+        int batchIndex;
+        LongRead longRead;
+        int offset;
+        int mtu;
+        byte[] clientConfig;
+        /* set on the read ahead of a prepared write starting past 0 */
+        PreparedWrite write;
+        
+        public PendingOp(int mtu){
+            this.mtu = mtu;
+        }
+        
+        public PendingOp(LongRead longRead, int offset){
+            this.service = longRead.op.service;
+            this.c = longRead.op.c;
+            this.d = longRead.op.d;
+            this.callback = longRead.op.callback;
+            this.longRead = longRead;
+            this.offset = offset;
+        }
+        
+        public int getHandle(){
+            return d != null ? d.handle : c.value_handle;
+        }
+        
+        public PendingOp(Service s, Characteristic c, Descriptor d){
+            this.service = s;
+            this.c = c;
+            this.d = d;
+            this.callback = s.callback;
+        }
+        
+        public PendingOp(ReadBatch batch, int index, Characteristic c, Descriptor d){
+            this(batch.service, c, d);
+            this.batch = batch;
+            this.batchIndex = index;
+        }
+    }
+    
+    /**
+     * Results of a readMultiple or readUsingCharUuid call, sent back to the
+     * client in a single onReadMultipleValues once every part answered.
+     */
+    private class ReadBatch {
+        int connID;
+        Service service;
+        IBleCharacteristicDataCallback callback;
+        BluetoothGattValues values = new BluetoothGattValues();
+        int remaining = 0;
+        int status = BleConstants.GATT_SUCCESS;
+        
+        public ReadBatch(int connID, Service s){
+            this.connID = connID;
+            this.service = s;
+            this.callback = s.callback;
+        }
+        
+        /**
+         * Records one part's answer, parts answer from the gatttool reader
+         * and from the request timeouts so the bookkeeping is locked, the
+         * callback runs outside the lock once the last part is in.
+         */
+        public void complete(int index, int st, byte[] value){
+            boolean last;
+            synchronized (this) {
+                values.set(index, st, value);
+                if (st != BleConstants.GATT_SUCCESS)
+                    status = st;
+                last = --remaining == 0;
+            }
+            if (last)
+                deliver();
+        }
+        
+        public void deliver(){
+            if (callback == null)
+                return;
+            try {
+                callback.onReadMultipleValues(connID, status, service.uuid, values);
+            } catch (RemoteException e) {
+                Log.e(TAG, "error when calling onReadMultipleValues", e);
+            }
+        }
+    }
+    
+    /**
+     * A read whose first answer filled a whole PDU, the rest of the value is
+     * fetched with read blob requests at increasing offsets. Up to
+     * LONG_READ_WINDOW of them are sent without waiting for the previous
+     * answer, gatttool answers in order so chunks get appended as they come.
+     * A short chunk or an error past the first one marks the end of the
+     * value.
+     */
+    private class LongRead {
+        PendingOp op;
+        ByteArrayOutputStream data;
+        int chunk;
+        int nextOffset;
+        int outstanding = 0;
+        int status = BleConstants.GATT_SUCCESS;
+        boolean done = false;
+        
+        public LongRead(PendingOp op, byte[] first){
+            this.op = op;
+            this.chunk = first.length;
+            this.nextOffset = first.length;
+            this.data = new ByteArrayOutputStream(first.length * 2);
+            this.data.write(first, 0, first.length);
+        }
+        
+        /**
+         * Accounts for one answer, returns true once every blob request got
+         * its answer and the value can be delivered.
+         */
+        public synchronized boolean complete(int st, byte[] value){
+            outstanding--;
+            if (!done) {
+                if (st != BleConstants.GATT_SUCCESS) {
+                    // invalid offset or attribute not long, the value ended
+                    // exactly on a chunk boundary
+                    done = true;
+                } else {
+                    if (value != null)
+                        data.write(value, 0, value.length);
+                    if (value == null || value.length < chunk || 
+                            data.size() >= AttMtu.MAX_VALUE_LENGTH)
+                        done = true;
+                }
+            }
+            return outstanding == 0 && done;
+        }
+        
+        public synchronized boolean fail(int st){
+            outstanding--;
+            done = true;
+            status = st;
+            return outstanding == 0;
+        }
+    }
+    
+    /*
+     * how many read blob requests a long read keeps in flight
+     */
+    private static final int LONG_READ_WINDOW = 4;
+    
+    /**
+     * One queued prepareWrite, nothing goes to the remote until executeWrite.
+     * Also used for the merged value of a characteristic on execute.
+     */
+    private class PreparedWrite {
+        Service service;
+        Characteristic c;
+        IBleCharacteristicDataCallback callback;
+        int offset;
+        byte[] value;
+        
+        public PreparedWrite(Service s, Characteristic c, int offset, byte[] value){
+            this.service = s;
+            this.c = c;
+            this.callback = s.callback;
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+    
+    /**
+     * Notifications waiting to be sent to one service callback, flushed as a
+     * single onNotifyBatch when maxCount values or MAX_NOTIFY_BATCH_BYTES got
+     * queued, or maxLatency milliseconds after the first one arrived.
+     */
+    private class NotifyBatch {
+        int connID;
+        String remote;
+        IBleCharacteristicDataCallback callback;
+        BluetoothGattNotifications pending;
+        DeadlineScheduler.Timeout timer;
+        
+        public NotifyBatch(int connID, String remote, IBleCharacteristicDataCallback callback){
+            this.connID = connID;
+            this.remote = remote;
+            this.callback = callback;
+        }
+        
+        public synchronized void add(Attribute a, long timestamp, byte[] value,
+                int maxCount, int maxLatency){
+            if (pending == null)
+                pending = new BluetoothGattNotifications();
+            int count = pending.add(a.handle, a.service.uuid, a.uuid, timestamp, value);
+            if (count >= maxCount || pending.getValueBytes() >= MAX_NOTIFY_BATCH_BYTES) {
+                flush();
+                return;
+            }
+            if (timer == null)
+                timer = mDeadlines.schedule(maxLatency, new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                });
+        }
+        
+        public synchronized void flush(){
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            if (pending == null)
+                return;
+            BluetoothGattNotifications batch = pending;
+            pending = null;
+            try {
+                TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_NOTIFY_BATCH);
+                callback.onNotifyBatch(connID, remote, batch);
+                TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_NOTIFY_BATCH);
+            } catch (RemoteException e) {
+                Log.e(TAG, "error while doing onNotifyBatch", e);
+            }
+        }
+    }
+    
+    /*
+     * default time a notification can wait for more to come before being
+     * delivered in batching mode, the DeadlineScheduler tick is the real
+     * resolution
+     */
+    private static final int DEFAULT_NOTIFY_LATENCY = 50;
+    
+    /*
+     * keep batches well below the binder transaction buffer
+     */
+    private static final int MAX_NOTIFY_BATCH_BYTES = 16 * 1024;
+    
+    /**
+     * Sends whatever notifications are still queued for this connection.
+     */
+    private void flushNotifications(ConnectionWrapper cw){
+        List<NotifyBatch> batches;
+        synchronized (cw.mNotifyBatches) {
+            batches = new ArrayList<NotifyBatch>(cw.mNotifyBatches.values());
+            cw.mNotifyBatches.clear();
+        }
+        for (NotifyBatch b: batches)
+            b.flush();
+    }
+    
+    /*
+     * how long a command can stay outstanding before we consider it lost,
+     * applications can change it with setTimeout
+     */
+    private static final long DEFAULT_TIMEOUT = 30000;
+    
+    /* discovery kinds, see waitForDiscovery */
+    private static final int DISCOVERY_SERVICES = 0;
+    private static final int DISCOVERY_CHARACTERISTICS = 1;
+    private static final int DISCOVERY_DESCRIPTORS = 2;
+    private static final int DISCOVERIES = 3;
+    
+    private DeadlineScheduler mDeadlines = DeadlineScheduler.getInstance();
+    
+    /*
+     * BlueZ's gatttool only speaks the client role, so the server starts
+     * without a transport
+     */
+    private GattServer mGattServer = new GattServer(null);
+    
+    private long getTimeout(ConnectionWrapper cw){
+        if (cw.wrapper == null)
+            return DEFAULT_TIMEOUT;
+        return cw.wrapper.mTimeout;
+    }
+    
+    /**
+     * Registers an outstanding read or write and arms its deadline.
+     */
+    private int addRequest(final ConnectionWrapper cw, int kind, PendingOp op){
+        long timeout = getTimeout(cw);
+        int id = cw.mRequests.add(kind, op, timeout);
+        cw.mRequests.setTimer(id, mDeadlines.schedule(timeout, new Runnable() {
+            public void run() {
+                expireRequests(cw);
+            }
+        }));
+        return id;
+    }
+    
+    /**
+     * Fails every request that went past its deadline and frees the
+     * connection so the next command can go. The requests stay in the
+     * table until gatttool prints their late answer, see RequestTable.
+     */
+    private void expireRequests(ConnectionWrapper cw){
+        List<RequestTable.Request<PendingOp>> expired = 
+                cw.mRequests.expire(DeadlineScheduler.now());
+        if (expired == null)
+            return;
+        
+        Log.e(TAG, expired.size() + " request(s) timed out on " + cw.remote);
+        failPendingRequests(cw, cw.connID, expired, BleConstants.GATT_ERROR);
+        GattToolWrapper gtw = cw.mGattTool;
+        if (gtw != null)
+            gtw.abortCommand();
+    }
+    
+    /**
+     * Waits at most timeout milliseconds for gatttool to answer, needs to be
+     * called holding the GattToolWrapper lock. Returns false on timeout.
+     */
+    private boolean waitForGattTool(GattToolWrapper gtw, long timeout, String f){
+        long start = DeadlineScheduler.now();
+        try {
+            gtw.wait(timeout);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted on " + f);
+            return true;
+        }
+        if (DeadlineScheduler.now() - start < timeout)
+            return true;
+        Log.e(TAG, f + " timed out after " + timeout + "ms");
+        return false;
+    }
+
+    /**
+     * Waits for the discovery of the given kind that was just sent to end,
+     * needs to be called holding the GattToolWrapper lock. On timeout the
+     * discovery is counted as late, so whatever gatttool prints for it
+     * afterwards gets dropped instead of being taken as the answer to the
+     * next one.
+     *
+     * @return false on timeout.
+     */
+    private boolean waitForDiscovery(ConnectionWrapper cw, int kind, String f){
+        GattToolWrapper gtw = cw.mGattTool;
+        long deadline = DeadlineScheduler.now() + getTimeout(cw);
+        while (cw.mDiscovering[kind]) {
+            long left = deadline - DeadlineScheduler.now();
+            if (left <= 0) {
+                Log.e(TAG, f + " timed out after " + getTimeout(cw) + "ms");
+                cw.mDiscovering[kind] = false;
+                cw.mLateDiscoveries[kind]++;
+                return false;
+            }
+            try {
+                gtw.wait(left);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted on " + f);
+                return true;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return true if a discovery result line belongs to one that timed
+     *         out and has to be dropped.
+     */
+    private boolean isLateDiscovery(ConnectionWrapper cw, int kind){
+        return cw.mLateDiscoveries[kind] > 0;
+    }
+    
+    /**
+     * Accounts gatttool's end line for a discovery of the given kind.
+     *
+     * @return false if it ends one that timed out, it was already reported
+     *         to the app then.
+     */
+    private boolean discoveryEnded(ConnectionWrapper cw, int kind){
+        if (cw.mLateDiscoveries[kind] > 0) {
+            cw.mLateDiscoveries[kind]--;
+            Log.e(TAG, "dropping the end of a discovery that timed out on " + cw.remote);
+            return false;
+        }
+        cw.mDiscovering[kind] = false;
+        return true;
+    }
 
     /*
      * Map of connections that still didn't complete or failed, we use Address
@@ -566,13 +1064,75 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * stablished.
      */
     private Map<String, ConnectionWrapper> mPendingConnections =
-            new HashMap<String, ConnectionWrapper>();
+            new ConcurrentHashMap<String, ConnectionWrapper>();
 
     /*
      * Map of connections running, we map with connection id as we now it.
      */
     private Map<Integer, ConnectionWrapper> mConnectionMap =
-            new HashMap<Integer, ConnectionWrapper>();
+            new ConcurrentHashMap<Integer, ConnectionWrapper>();
+
+    /*
+     * Connections whose gatttool died and are being brought back, by
+     * connection id. They stay out of mConnectionMap meanwhile so binder
+     * calls fail right away instead of getting mixed with the restore.
+     */
+    private Map<Integer, ConnectionWrapper> mRestoringConnections =
+            new ConcurrentHashMap<Integer, ConnectionWrapper>();
+
+    private static final int RESTORE_ATTEMPTS = 5;
+    private static final long RESTORE_BACKOFF_BASE = 100;
+    /* restore step that renegotiates the MTU, the others are handles */
+    private static final int RESTORE_MTU = -1;
+
+    /*
+     * Operation metrics by remote address, they outlive the connections so
+     * flaky devices can be told apart.
+     */
+    private ConcurrentHashMap<String, ConnectionMetrics> mMetricsByAddress =
+            new ConcurrentHashMap<String, ConnectionMetrics>();
+
+    private ConnectionMetrics getMetrics(String remote) {
+        String key = remote.toUpperCase();
+        ConnectionMetrics m = mMetricsByAddress.get(key);
+        if (m == null) {
+            m = new ConnectionMetrics(key);
+            ConnectionMetrics old = mMetricsByAddress.putIfAbsent(key, m);
+            if (old != null)
+                m = old;
+        }
+        return m;
+    }
+
+    /*
+     * runs connection work that may block for a whole timeout (process
+     * spawn, D-Bus, the BR/EDR psm answer) away from the DeadlineScheduler
+     * and gatttool dispatch threads
+     */
+    private final ExecutorService mConnectExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "GATT-Connect-" + mCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /*
+     * runs openMultiple requests, several connects at once
+     */
+    private ConnectionScheduler mConnScheduler = new ConnectionScheduler(
+            new ConnectionScheduler.Connector() {
+                public boolean startConnect(AppWrapper app, String remote) {
+                    return BluetoothGatt.this.startConnect(app, remote) != null;
+                }
+
+                public boolean cancelConnect(String remote) {
+                    return dropPendingConnection(remote);
+                }
+            }, mConnectExecutor);
 
     /* ************************************************************************************
      * Connection handling methods
@@ -584,39 +1144,52 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * Callback from GattToolWrapper when connection completes or fails.
      */
     public void connected(GattToolWrapper w, int connID, String addr, int status) {
-        Log.v(TAG, "connected " + addr + " -> " + connID + " " + status);
-        if (!mPendingConnections.containsKey(addr)) {
-            Log.e(TAG, "remote no longer pending!");
+        if (ServerLog.verbose())
+            Log.v(TAG, "connected " + addr + " -> " + connID + " " + status);
+        ConnectionWrapper restoring = getRestoringConnection(w, connID);
+        if (restoring != null) {
             w.notifyAll();
+            restoreConnected(restoring, status);
             return;
         }
-
-        ConnectionWrapper cw = mPendingConnections.get(addr);
+        // remove is atomic so a connect timing out can't race with us
+        ConnectionWrapper cw = mPendingConnections.remove(addr);
         
         if (cw == null){
+            Log.e(TAG, "remote no longer pending!");
             w.notifyAll();
             return;
         }
-        
-        mPendingConnections.remove(addr);
 
         cw.connID = connID;
+        cw.connectDone(status == BleConstants.GATT_SUCCESS);
 
         try {
             if (status == BleConstants.GATT_SUCCESS) {
                 mConnectionMap.put(connID, cw);
                 w.notifyAll();
+                mConnScheduler.onConnectResult(addr, true);
+                TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_CONNECTED);
                 cw.wrapper.mCallback.onConnected(addr, connID);
+                TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_CONNECTED);
             }
             else {
                 w.notifyAll();
-                cw.wrapper.mCallback.onDisconnected(connID, addr);
+                // failures of bulk connects get reported all together
+                if (!mConnScheduler.onConnectResult(addr, false)) {
+                    TraceRing.record(TraceRing.CALLBACK_START, connID,
+                            TraceRing.CALLBACK_DISCONNECTED);
+                    cw.wrapper.mCallback.onDisconnected(connID, addr);
+                    TraceRing.record(TraceRing.CALLBACK_END, connID,
+                            TraceRing.CALLBACK_DISCONNECTED);
+                }
             }
         } catch (RemoteException e) {
             Log.e(TAG, "failed calling callback from connection wrapper", e);
         }
 
-        Log.v(TAG, "connected end");
+        if (ServerLog.verbose())
+            Log.v(TAG, "connected end");
     }
 
     @Override
@@ -624,10 +1197,38 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * Method called by binder clients to start connecting to remote devices.
      */
     public synchronized void open(byte interfaceID, final String remote, boolean foreground) {
-        Log.v(TAG, "open " + interfaceID + " " + remote);
+        if (ServerLog.verbose())
+            Log.v(TAG, "open " + interfaceID + " " + remote);
 
         final AppWrapper w = this.registeredAppsByID[interfaceID];
+        getMetrics(remote).addUser(Binder.getCallingUid());
+
+        ConnectionWrapper cw = startConnect(w, remote);
+        if (cw == null) {
+            try {
+                w.mCallback.onConnected(remote, -1);
+            } catch (RemoteException e2) {
+                Log.e(TAG, "we failed to notify other end", e2);
+            }
+            return;
+        }
+
+        GattToolWrapper gtw = cw.mGattTool;
+        synchronized (gtw) {
+            // on timeout the connection stays pending, we just stop blocking
+            if (foreground)
+                waitForGattTool(gtw, w.mTimeout, "open");
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "open end");
+    }
 
+    /**
+     * Gets a new gatttool worker and sends the connect command without
+     * waiting for the result, which comes later on connected or
+     * disconnected. Returns null if the worker couldn't be created.
+     */
+    private ConnectionWrapper startConnect(AppWrapper w, String remote) {
         GattToolWrapper gtw = null;
         ConnectionWrapper cw = null;
 
@@ -639,36 +1240,67 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             mPendingConnections.put(remote, cw);
         } catch (Exception e) {
             Log.e(TAG, "something failed while getting gatttool wrapper and connection wrapper", e);
-            try {
-                w.mCallback.onConnected(remote, -1);
-            } catch (RemoteException e2) {
-                Log.e(TAG, "we failed to notify other end", e2);
-            }
-            return;
+            return null;
         }
 
         if (getDeviceType(remote) == BleAdapter.DEVICE_TYPE_BREDR) {
-            Log.v(TAG, "Connecting to BR device, setting psm=31");
+            if (ServerLog.verbose())
+                Log.v(TAG, "Connecting to BR device, setting psm=31");
             synchronized (gtw){
                 gtw.psm(31);
                 cw.deviceBR = true;
-                try {
-                    gtw.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "interrupt while setting psm", e);
-                }	
+                if (!waitForGattTool(gtw, w.mTimeout, "psm"))
+                    gtw.abortCommand();
             }
         }
         synchronized (gtw) {
+            cw.mConnectStarted = cw.mMetrics.start(BleConstants.GATT_OP_CONNECT);
             gtw.connect(remote);
+        }
+        return cw;
+    }
 
-            if (foreground)
-                try {
-                    cw.mGattTool.wait();
-                } catch (InterruptedException e) {
-                }
+    /**
+     * Gives up on a connection that didn't complete yet.
+     * 
+     * @return false if remote wasn't pending.
+     */
+    private boolean dropPendingConnection(String remote) {
+        ConnectionWrapper cw = mPendingConnections.remove(remote);
+        if (cw == null)
+            return false;
+
+        if (ServerLog.verbose())
+            Log.v(TAG, "dropping pending connection " + remote);
+        cw.connectDone(false);
+        cw.mGattTool.setListener(null);
+        cw.mGattTool.releaseWorker();
+        return true;
+    }
+
+    @Override
+    /**
+     * Connects to a group of devices, up to maxConcurrent at the same time.
+     * Each attempt gets timeout milliseconds and failed devices are retried
+     * up to retries times with backoff. Every successful connection is
+     * reported on onConnected as usual, and once all devices are done
+     * onOpenMultipleCompleted tells which connected and which didn't.
+     */
+    public void openMultiple(byte interfaceID, String[] remotes, int maxConcurrent,
+            int timeout, int retries) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "openMultiple " + interfaceID + " " + remotes.length + " devices");
+
+        AppWrapper w = this.registeredAppsByID[interfaceID];
+        if (w == null) {
+            Log.e(TAG, "openMultiple for unknown interface " + interfaceID);
+            return;
         }
-        Log.v(TAG, "open end");
+        for (String remote: remotes)
+            getMetrics(remote).addUser(Binder.getCallingUid());
+
+        mConnScheduler.submit(w, remotes, maxConcurrent,
+                timeout > 0 ? timeout : w.mTimeout, retries);
     }
 
     @Override
@@ -677,16 +1309,26 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * been closed, for what ever reason it did.
      */
     public void disconnected(GattToolWrapper w, int connID, String addr) {
-        Log.v(TAG, "disconnected " + addr + " -> " + connID);
+        if (ServerLog.verbose())
+            Log.v(TAG, "disconnected " + addr + " -> " + connID);
+        ConnectionWrapper restoring = getRestoringConnection(w, connID);
+        if (restoring != null) {
+            w.notifyAll();
+            Log.e(TAG, "lost " + addr + " again while restoring");
+            retryRestore(restoring);
+            return;
+        }
         ConnectionWrapper cw;
+        boolean pending = false;
         if (mPendingConnections.containsKey(addr)) {
             Log.i(TAG, "disconnect on pending connection");
             cw = mPendingConnections.get(addr);
             mPendingConnections.remove(addr);
+            pending = true;
         } else if (mConnectionMap.containsKey(connID)) {
             Log.i(TAG, "disconnected from real connection");
-            cw = mConnectionMap.get(addr);
-            mConnectionMap.remove(addr);
+            cw = mConnectionMap.get(connID);
+            mConnectionMap.remove(connID);
         } else {
             Log.e(TAG, "Address is not registered as pending or connected, aborting");
             w.releaseWorker();
@@ -695,9 +1337,17 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         }
         w.releaseWorker();
         w.notifyAll();
+        if (pending)
+            cw.connectDone(false);
+        flushNotifications(cw);
+        failPendingRequests(cw, connID, cw.mRequests.drain(), BleConstants.GATT_ERROR);
+        if (pending && mConnScheduler.onConnectResult(addr, false))
+            return;
         
         try {
+            TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_DISCONNECTED);
             cw.wrapper.mCallback.onDisconnected(connID, addr);
+            TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_DISCONNECTED);
         } catch (RemoteException e) {
             Log.e(TAG, "failed calling callback from connection wrapper", e);
         }
@@ -711,64 +1361,352 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     public void close(final byte interfaceID, final String remote,
             int connHandle, boolean foreground) {
-        Log.v(TAG, "close called for " + remote + " ifaceID " + interfaceID
-                + " connHandle " + connHandle);
+        if (ServerLog.verbose())
+            Log.v(TAG, "close called for " + remote + " ifaceID " + interfaceID
+                    + " connHandle " + connHandle);
 
         ConnectionWrapper cw = null;
         if (mPendingConnections.containsKey(remote)) {
             cw = mPendingConnections.get(remote);
             mPendingConnections.remove(remote);
+            cw.connectDone(false);
         } else if (mConnectionMap.containsKey(connHandle)) {
             cw = mConnectionMap.get(connHandle);
             mConnectionMap.remove(connHandle);
+        } else if (mRestoringConnections.containsKey(connHandle)) {
+            cw = mRestoringConnections.remove(connHandle);
+            cw.connectDone(false);
+            cw.mMetrics.abort(BleConstants.GATT_OP_RESTORE);
         } else  {
             Log.e(TAG, "disconnect for non pending or known connection");
             return;
         }
 
+        flushNotifications(cw);
+        failPendingRequests(cw, connHandle, cw.mRequests.drain(), BleConstants.GATT_ERROR);
         synchronized (cw.mGattTool) {
             cw.mGattTool.releaseWorker();
             try {
-                Log.v(TAG, "about to notify closing completed");
+                if (ServerLog.verbose())
+                    Log.v(TAG, "about to notify closing completed");
+                TraceRing.record(TraceRing.CALLBACK_START, connHandle, TraceRing.CALLBACK_DISCONNECTED);
                 cw.wrapper.mCallback.onDisconnected(connHandle, remote);
+                TraceRing.record(TraceRing.CALLBACK_END, connHandle, TraceRing.CALLBACK_DISCONNECTED);
             } catch (RemoteException e) {
                 Log.e(TAG, "failed notifiying we closed the connection");
             }
         }
         cw.mGattTool = null;   
-        Log.v(TAG, "close done");
+        if (ServerLog.verbose())
+            Log.v(TAG, "close done");
     }
 
     /* *******************************************************************************
-     * Application handling methods
+     * Restoring connections after gatttool died
      * ********************************
      */
-    private boolean isApplicationAlive(AppWrapper wrapper){
-        return wrapper.mCallback.asBinder().pingBinder();
+
+    /**
+     * Returns the connection w is restoring, or null if w isn't restoring
+     * anything.
+     */
+    private ConnectionWrapper getRestoringConnection(GattToolWrapper w, int connID) {
+        ConnectionWrapper cw = mRestoringConnections.get(connID);
+        return cw != null && cw.mGattTool == w ? cw : null;
     }
-    
-    @Override
+
     /**
-     * This method will get called when ever a new BLE application starts running.
-     * Apps needs to be registered for us to talk to it.
+     * gatttool died under a live connection. What was in flight fails, the
+     * attribute cache is kept and a new gatttool connects to the same remote
+     * with the same connection id, then {@link #restoreConnected} puts the
+     * MTU and the enabled notifications back. Apps get a single
+     * onLinkRestored, or onDisconnected if it can't be done.
      */
-    public synchronized void registerApp(BluetoothGattID appUuid, IBleClientCallback callback) {
-        AppWrapper wrapper = null;
-        Log.v(TAG, "register app " + appUuid + " callback " + callback);
-        if (registeredApps.containsKey(appUuid)) {
-            Log.v(TAG, "uuid all ready registered");
+    private void startRestore(final ConnectionWrapper cw, int retcode) {
+        Log.e(TAG, "gatttool for " + cw.remote + " exited with " + retcode
+                + ", restoring the connection");
+        mConnectionMap.remove(cw.connID);
+        cw.mRestoreAttempts = 0;
+        cw.mRestoreMtu = cw.mMtu;
+        cw.mMtu = AttMtu.DEFAULT;
+        cw.mRestoreStarted = cw.mMetrics.start(BleConstants.GATT_OP_RESTORE);
+        mRestoringConnections.put(cw.connID, cw);
+        
+        flushNotifications(cw);
+        failPendingRequests(cw, cw.connID, cw.mRequests.drain(), BleConstants.GATT_ERROR);
+        cw.mGattTool.setListener(null);
+        cw.mGattTool.releaseWorker();
+        respawnLater(cw, 0);
+    }
 
-            wrapper = registeredApps.get(appUuid);
-            if (isApplicationAlive(wrapper)) {
-                Log.e(TAG, "uuid is registered and alive");
-                try {
-                    callback.onAppRegistered((byte) BleConstants.GATT_ERROR, (byte) -1);
-                } catch (RemoteException e) {
-                    Log.e(TAG, "failed to tell other end", e);
-                }
-                return;
-            }
-            Log.v(TAG, "no ping back " + appUuid + " registering again");
+    /**
+     * Runs respawn on the connect executor after delay milliseconds, it
+     * starts a process and may wait for gatttool.
+     */
+    private void respawnLater(final ConnectionWrapper cw, long delay) {
+        final Runnable respawn = new Runnable() {
+            public void run() {
+                respawn(cw);
+            }
+        };
+        if (delay == 0) {
+            mConnectExecutor.execute(respawn);
+            return;
+        }
+        mDeadlines.schedule(delay, new Runnable() {
+            public void run() {
+                mConnectExecutor.execute(respawn);
+            }
+        });
+    }
+
+    /**
+     * Starts a new gatttool for a connection being restored and sends the
+     * connect, the answer goes to restoreConnected. An attempt that gets no
+     * answer within the app's timeout is retried by restoreTimedOut.
+     */
+    private void respawn(final ConnectionWrapper cw) {
+        if (mRestoringConnections.get(cw.connID) != cw)
+            return; // closed meanwhile
+        
+        GattToolWrapper gtw = GattToolWrapper.getWorker();
+        if (gtw == null) {
+            retryRestore(cw);
+            return;
+        }
+        gtw.setConnHandle(cw.connID);
+        // nothing the old gatttool left unanswered will show up here
+        Arrays.fill(cw.mDiscovering, false);
+        Arrays.fill(cw.mLateDiscoveries, 0);
+        gtw.setListener(this);
+        cw.mGattTool = gtw;
+        synchronized (cw.mClientConfig) {
+            // restoreNext enables them again on this process
+            gtw.setNotifying(!cw.mClientConfig.isEmpty());
+        }
+        if (mRestoringConnections.get(cw.connID) != cw) {
+            gtw.setListener(null);
+            gtw.releaseWorker();
+            return;
+        }
+        
+        if (ServerLog.verbose())
+            Log.v(TAG, "restoring " + cw.remote + ", attempt " + (cw.mRestoreAttempts + 1));
+        if (cw.deviceBR) {
+            synchronized (gtw){
+                gtw.psm(31);
+                if (!waitForGattTool(gtw, cw.wrapper.mTimeout, "psm"))
+                    gtw.abortCommand();
+            }
+        }
+        synchronized (gtw) {
+            cw.mConnectStarted = cw.mMetrics.start(BleConstants.GATT_OP_CONNECT);
+            gtw.connect(cw.remote);
+        }
+        final GattToolWrapper attempt = gtw;
+        mDeadlines.schedule(cw.wrapper.mTimeout, new Runnable() {
+            public void run() {
+                mConnectExecutor.execute(new Runnable() {
+                    public void run() {
+                        restoreTimedOut(cw, attempt);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The connect sent by gtw for a restore got no answer in time. Only
+     * acts if that attempt is still the current one and still connecting.
+     */
+    private void restoreTimedOut(ConnectionWrapper cw, GattToolWrapper gtw) {
+        synchronized (gtw) {
+            if (getRestoringConnection(gtw, cw.connID) != cw || cw.mConnectStarted == 0)
+                return;
+            // a late answer must not find us anymore
+            gtw.setListener(null);
+        }
+        Log.e(TAG, "restoring " + cw.remote + " timed out connecting");
+        retryRestore(cw);
+    }
+
+    /**
+     * The restore attempt failed, tries again with backoff until
+     * RESTORE_ATTEMPTS and then reports the connection as lost.
+     */
+    private void retryRestore(final ConnectionWrapper cw) {
+        cw.connectDone(false);
+        GattToolWrapper gtw = cw.mGattTool;
+        if (gtw != null) {
+            gtw.setListener(null);
+            gtw.releaseWorker();
+        }
+        if (mRestoringConnections.get(cw.connID) != cw)
+            return;
+        
+        if (++cw.mRestoreAttempts >= RESTORE_ATTEMPTS) {
+            Log.e(TAG, "couldn't restore " + cw.remote + ", giving up");
+            mRestoringConnections.remove(cw.connID);
+            cw.mMetrics.end(BleConstants.GATT_OP_RESTORE, cw.mRestoreStarted, false);
+            try {
+                TraceRing.record(TraceRing.CALLBACK_START, cw.connID, TraceRing.CALLBACK_DISCONNECTED);
+                cw.wrapper.mCallback.onDisconnected(cw.connID, cw.remote);
+                TraceRing.record(TraceRing.CALLBACK_END, cw.connID, TraceRing.CALLBACK_DISCONNECTED);
+            } catch (RemoteException e) {
+                Log.e(TAG, "failed calling callback from connection wrapper", e);
+            }
+            return;
+        }
+        
+        long backoff = RESTORE_BACKOFF_BASE << (cw.mRestoreAttempts - 1);
+        if (ServerLog.verbose())
+            Log.v(TAG, "restoring " + cw.remote + " again in " + backoff + "ms");
+        respawnLater(cw, backoff);
+    }
+
+    /**
+     * The new gatttool answered the connect, on success the MTU and every
+     * enabled client configuration descriptor get written again, one after
+     * the other from the result of the previous one.
+     */
+    private void restoreConnected(ConnectionWrapper cw, int status) {
+        if (status != BleConstants.GATT_SUCCESS) {
+            Log.e(TAG, "restoring " + cw.remote + " failed to connect " + status);
+            retryRestore(cw);
+            return;
+        }
+        cw.connectDone(true);
+        
+        cw.mRestoreSteps = new LinkedList<Integer>();
+        if (cw.mRestoreMtu != AttMtu.DEFAULT)
+            cw.mRestoreSteps.add(RESTORE_MTU);
+        synchronized (cw.mClientConfig) {
+            cw.mRestoreSteps.addAll(cw.mClientConfig.keySet());
+        }
+        restoreNext(cw);
+    }
+
+    /**
+     * Sends the next restore step, or finishes when there are none left.
+     * Steps that fail are logged and skipped, the link is up anyway. Each
+     * step sent has the app's timeout to get its answer, see
+     * restoreStepTimedOut.
+     */
+    private void restoreNext(ConnectionWrapper cw) {
+        GattToolWrapper gtw = cw.mGattTool;
+        Integer step;
+        while ((step = cw.mRestoreSteps.poll()) != null) {
+            boolean sent;
+            if (step == RESTORE_MTU) {
+                sent = gtw.mtu(cw.mRestoreMtu);
+            } else {
+                byte[] value;
+                synchronized (cw.mClientConfig) {
+                    value = cw.mClientConfig.get(step);
+                }
+                sent = value != null && gtw.writeCharReq(step, value);
+            }
+            if (sent) {
+                watchRestoreStep(cw, gtw);
+                return;
+            }
+            Log.e(TAG, "restoring " + cw.remote + " couldn't send step " + step);
+        }
+        restored(cw);
+    }
+
+    private void watchRestoreStep(final ConnectionWrapper cw, final GattToolWrapper gtw) {
+        final int step = ++cw.mRestoreStep;
+        mDeadlines.schedule(cw.wrapper.mTimeout, new Runnable() {
+            public void run() {
+                mConnectExecutor.execute(new Runnable() {
+                    public void run() {
+                        restoreStepTimedOut(cw, gtw, step);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * A restore step sent by gtw got no answer in time. Skipping it would
+     * take a late answer for the next step's, so the attempt is dropped and
+     * retried like a connect that timed out. Only acts if that step is
+     * still the one outstanding.
+     */
+    private void restoreStepTimedOut(ConnectionWrapper cw, GattToolWrapper gtw, int step) {
+        synchronized (gtw) {
+            if (getRestoringConnection(gtw, cw.connID) != cw || cw.mRestoreStep != step)
+                return;
+            gtw.setListener(null);
+        }
+        Log.e(TAG, "restoring " + cw.remote + " timed out on step " + step);
+        retryRestore(cw);
+    }
+
+    /**
+     * Result of a restore step, status is the ATT result.
+     */
+    private void restoreStepDone(ConnectionWrapper cw, int status) {
+        if (status != BleConstants.GATT_SUCCESS)
+            Log.e(TAG, "restore step for " + cw.remote + " failed with " + status);
+        restoreNext(cw);
+    }
+
+    private void restored(ConnectionWrapper cw) {
+        if (mRestoringConnections.remove(cw.connID) != cw)
+            return;
+        mConnectionMap.put(cw.connID, cw);
+        cw.mMetrics.end(BleConstants.GATT_OP_RESTORE, cw.mRestoreStarted, true);
+        Log.i(TAG, "connection to " + cw.remote + " restored in "
+                + (System.nanoTime() - cw.mRestoreStarted) / 1000000 + "ms, "
+                + (cw.mRestoreAttempts + 1) + " attempt(s)");
+        
+        try {
+            TraceRing.record(TraceRing.CALLBACK_START, cw.connID, TraceRing.CALLBACK_LINK_RESTORED);
+            cw.wrapper.mCallback.onLinkRestored(cw.connID, cw.remote);
+            TraceRing.record(TraceRing.CALLBACK_END, cw.connID, TraceRing.CALLBACK_LINK_RESTORED);
+        } catch (RemoteException e) {
+            Log.e(TAG, "failed calling onLinkRestored", e);
+        }
+        // the remote may not give the same MTU again
+        if (cw.mMtu != cw.mRestoreMtu)
+            notifyMtu(cw, cw.connID, BleConstants.GATT_SUCCESS);
+    }
+
+    /* *******************************************************************************
+     * Application handling methods
+     * ********************************
+     */
+    private boolean isApplicationAlive(AppWrapper wrapper){
+        return wrapper.mCallback.asBinder().pingBinder();
+    }
+    
+    @Override
+    /**
+     * This method will get called when ever a new BLE application starts running.
+     * Apps needs to be registered for us to talk to it.
+     */
+    public synchronized void registerApp(BluetoothGattID appUuid, IBleClientCallback callback) {
+        AppWrapper wrapper = null;
+        if (ServerLog.verbose())
+            Log.v(TAG, "register app " + appUuid + " callback " + callback);
+        if (registeredApps.containsKey(appUuid)) {
+            if (ServerLog.verbose())
+                Log.v(TAG, "uuid all ready registered");
+
+            wrapper = registeredApps.get(appUuid);
+            if (isApplicationAlive(wrapper)) {
+                Log.e(TAG, "uuid is registered and alive");
+                try {
+                    callback.onAppRegistered((byte) BleConstants.GATT_ERROR, (byte) -1);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "failed to tell other end", e);
+                }
+                return;
+            }
+            if (ServerLog.verbose())
+                Log.v(TAG, "no ping back " + appUuid + " registering again");
             wrapper.cleanupApp();
         }
         int status = BleConstants.GATT_SUCCESS;
@@ -811,6 +1749,45 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         }
     }
 
+    @Override
+    /**
+     * Sets how long, in milliseconds, commands from this application can wait
+     * for an answer before failing with GATT_ERROR. Not synchronized so it
+     * doesn't queue behind a blocked command.
+     */
+    public void setTimeout(byte interfaceID, int timeout) {
+        AppWrapper w = this.registeredAppsByID[interfaceID];
+        if (w == null) {
+            Log.e(TAG, "setTimeout for unknown interface " + interfaceID);
+            return;
+        }
+        if (timeout <= 0) {
+            Log.e(TAG, "invalid timeout " + timeout + ", ignoring");
+            return;
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "setTimeout " + interfaceID + " " + timeout);
+        w.mTimeout = timeout;
+    }
+
+    @Override
+    /**
+     * Makes notifications for this application go out in onNotifyBatch calls
+     * of up to maxCount values, each value waits at most maxLatency ms. A
+     * maxCount of 1 or less goes back to one onNotify per value.
+     */
+    public void setNotificationBatching(byte interfaceID, int maxCount, int maxLatency) {
+        AppWrapper w = this.registeredAppsByID[interfaceID];
+        if (w == null) {
+            Log.e(TAG, "setNotificationBatching for unknown interface " + interfaceID);
+            return;
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "setNotificationBatching " + interfaceID + " " + maxCount + " " + maxLatency);
+        w.mNotifyBatchLatency = maxLatency > 0 ? maxLatency : DEFAULT_NOTIFY_LATENCY;
+        w.mNotifyBatchCount = maxCount > 1 ? maxCount : 0;
+    }
+
     @Override
     /**
      * When an application is finishing or don't want to do LE any more should
@@ -828,8 +1805,9 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             } catch (RemoteException e) {
                 Log.e(TAG, "failed notifying client of deregistration", e);
             }
-            Log.v(TAG, "app successfully unregistered for interface: " + interfaceID +
-                    ", uuid: " + v.getValue().mGattID);
+            if (ServerLog.verbose())
+                Log.v(TAG, "app successfully unregistered for interface: " + interfaceID +
+                        ", uuid: " + v.getValue().mGattID);
             return;
         }
         Log.e(TAG, "interfaceID not known " + interfaceID);
@@ -857,7 +1835,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * callback from GattToolWrapper to let us know sec-level transaction completed
      */
     public void gotSecurityLevelResult(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "got security level result " + connID + " " + status);
+        if (ServerLog.verbose())
+            Log.v(TAG, "got security level result " + connID + " " + status);
         
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID,"gotSecurityLevelResult");
         if (cw==null){
@@ -875,7 +1854,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * Starts the bonding process with a remote device
      */
     public boolean createBond(String address) {
-        Log.v(TAG, "createBond for " + address);
+        if (ServerLog.verbose())
+            Log.v(TAG, "createBond for " + address);
         
         if (!BluetoothAdapter.checkBluetoothAddress(address)) {
             Log.e(TAG, "invalid address");
@@ -896,7 +1876,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * Cancels the bonding process with a remote device
      */
     public boolean cancelBond(String address) {
-        Log.v(TAG, "createBond for " + address);
+        if (ServerLog.verbose())
+            Log.v(TAG, "createBond for " + address);
         
         if (!BluetoothAdapter.checkBluetoothAddress(address)) {
             Log.e(TAG, "invalid address");
@@ -912,10 +1893,12 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * Change the security level of the connection.
      */
     public synchronized boolean setEncryption(String address, byte action) {
-        Log.v(TAG, "setEncryption " + address + " " + action);
+        if (ServerLog.verbose())
+            Log.v(TAG, "setEncryption " + address + " " + action);
 
         if (action == BleConstants.GATT_ENCRYPT_NONE) {
-            Log.v(TAG, "no encryption ignoring");
+            if (ServerLog.verbose())
+                Log.v(TAG, "no encryption ignoring");
             return false;
         }
         
@@ -949,10 +1932,9 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return false;
         }
         synchronized (cw.mGattTool) {
-            try {
-                cw.mGattTool.wait();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "interrupted while waiting sec-level to settle");
+            if (!waitForGattTool(cw.mGattTool, getTimeout(cw), "setEncryption")) {
+                cw.mGattTool.abortCommand();
+                return false;
             }
         }
         
@@ -982,7 +1964,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * Method called by binder clients to start a service discovery process
      */
     public synchronized void searchService(int connID, BluetoothGattID serviceID) {
-        Log.v(TAG, "searchService " + connID + " " + serviceID);
+        if (ServerLog.verbose())
+            Log.v(TAG, "searchService " + connID + " " + serviceID);
         
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "searchService");
         if (cw == null)
@@ -1000,31 +1983,39 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return;
         }
 
-        if (serviceID != null) {
-            BleGattID i = null;
-            int u16 = serviceID.getUuid16();
-            if (u16 > 0)
-                i = new BleGattID(new Integer(u16));
-            else
-                i = new BleGattID(serviceID.getUuid());
-            cw.lastPrimaryUuid = i;
-            if (cw.services.containsKey(i))
-                cw.services.remove(i);
-            Log.v(TAG, "searcing for uuid " + i);
-            gatt.primaryDiscoveryByUUID(i);
-        } else {
-            Log.v(TAG, "doing a general primary service discovery");
-            cw.lastPrimaryUuid = null;
-            cw.services.clear();
-            gatt.primaryDiscovery();
-        }
+        // hold the wrapper until we wait, an answer faster than us would be lost
         synchronized (cw.mGattTool) {
-            try {
-                cw.mGattTool.wait();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "interrupted on SearchService");
+            long started = cw.mMetrics.start(BleConstants.GATT_OP_DISCOVER_SERVICES);
+            if (serviceID != null) {
+                BleGattID i = null;
+                int u16 = serviceID.getUuid16();
+                if (u16 > 0)
+                    i = new BleGattID(new Integer(u16));
+                else
+                    i = new BleGattID(serviceID.getUuid());
+                cw.lastPrimaryUuid = i;
+                if (cw.services.containsKey(i))
+                    cw.services.remove(i);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "searcing for uuid " + i);
+                gatt.primaryDiscoveryByUUID(i);
+            } else {
+                if (ServerLog.verbose())
+                    Log.v(TAG, "doing a general primary service discovery");
+                cw.lastPrimaryUuid = null;
+                cw.services.clear();
+                cw.clearAttributes();
+                gatt.primaryDiscovery();
             }
-            Log.v(TAG, "searchService end");
+            cw.mDiscovering[DISCOVERY_SERVICES] = true;
+            if (!waitForDiscovery(cw, DISCOVERY_SERVICES, "searchService")) {
+                cw.mMetrics.abort(BleConstants.GATT_OP_DISCOVER_SERVICES);
+                cw.mGattTool.abortCommand();
+                searchCompleted(cw.mGattTool, cw, connID, BleConstants.GATT_ERROR);
+            } else
+                cw.mMetrics.end(BleConstants.GATT_OP_DISCOVER_SERVICES, started, true);
+            if (ServerLog.verbose())
+                Log.v(TAG, "searchService end");
         }
     }
     
@@ -1034,7 +2025,7 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     public void primaryAll(GattToolWrapper w, int connID, int start, int end, BleGattID uuid) {
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "primaryAll");
-        if (cw == null){
+        if (cw == null || isLateDiscovery(cw, DISCOVERY_SERVICES)){
             w.notifyAll();
             return;
         }
@@ -1055,14 +2046,20 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void primaryAllEnd(GattToolWrapper w, int connID, int status) {
         
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "primaryAllEnd");
-        if (cw == null){
+        if (cw == null || !discoveryEnded(cw, DISCOVERY_SERVICES)){
             w.notifyAll();
             return;
         }
-        
+        searchCompleted(w, cw, connID, status);
+    }
+    
+    private void searchCompleted(GattToolWrapper w, ConnectionWrapper cw, int connID,
+            int status) {
         w.notifyAll();
         try {
+            TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_SEARCH_COMPLETED);
             cw.wrapper.mCallback.onSearchCompleted(connID, status);
+            TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_SEARCH_COMPLETED);
         } catch (Exception e) {
             Log.e(TAG, "exception will calling onSearchCompleted");
         }
@@ -1079,7 +2076,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return;
         
         BleGattID uuid = cw.lastPrimaryUuid;
-        Log.v(TAG, "primaryUuid " + connID + ", " + start + ", " + end);
+        if (ServerLog.verbose())
+            Log.v(TAG, "primaryUuid " + connID + ", " + start + ", " + end);
         this.primaryAll(w, connID, start, end, uuid);
     }
 
@@ -1088,7 +2086,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     @Override
     public void primaryUuidEnd(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "primaryUuidEnd " + connID + ", " + status);
+        if (ServerLog.verbose())
+            Log.v(TAG, "primaryUuidEnd " + connID + ", " + status);
         this.primaryAllEnd(w, connID, status);
     }
     
@@ -1108,7 +2107,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             
             return e.getValue().get(serviceID.getInstanceID());
         }
-        Log.v(TAG, "couldn't find ServiceWrapper in " + f);
+        if (ServerLog.verbose())
+            Log.v(TAG, "couldn't find ServiceWrapper in " + f);
         return null;
     }
     
@@ -1119,7 +2119,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     public synchronized void registerServiceDataCallback(int connID, BluetoothGattID serviceID,
             String address, IBleCharacteristicDataCallback callback) {
-        Log.v(TAG, "registerServiceDataCallback");
+        if (ServerLog.verbose())
+            Log.v(TAG, "registerServiceDataCallback");
        
         ConnectionWrapper c = getConnectionWrapperForConnID(connID, "registerServiceDataCallback");
         if (c == null){
@@ -1132,7 +2133,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return;
         }
         s.callback = callback;
-        Log.v(TAG, "registered succesffully");
+        if (ServerLog.verbose())
+            Log.v(TAG, "registered succesffully");
     }
     
     /* ****************************************************************************
@@ -1145,7 +2147,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     public synchronized void getFirstChar(int connID, BluetoothGattID serviceID, BluetoothGattID id)
     {
-        Log.v(TAG, "getFirstChar " + connID + " " + serviceID + " " + id);
+        if (ServerLog.verbose())
+            Log.v(TAG, "getFirstChar " + connID + " " + serviceID + " " + id);
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "getFirstChar");
         Service s = getServiceForConnIDServiceID(connID, serviceID, "getFirstChar");
         if (cw==null || s==null || s.callback == null){
@@ -1167,17 +2170,20 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         s.lastCharResult = null;
         s.chars.clear();
         
-        cw.mGattTool.characteristicsDiscovery(s.start, s.end);
-        
         synchronized (cw.mGattTool) {
-            try {
-                cw.mGattTool.wait();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "getFirstChar interrupted");
-            }
+            long started = cw.mMetrics.start(BleConstants.GATT_OP_DISCOVER_CHARACTERISTICS);
+            cw.mGattTool.characteristicsDiscovery(s.start, s.end);
+            cw.mDiscovering[DISCOVERY_CHARACTERISTICS] = true;
+            if (!waitForDiscovery(cw, DISCOVERY_CHARACTERISTICS, "getFirstChar")) {
+                cw.mMetrics.abort(BleConstants.GATT_OP_DISCOVER_CHARACTERISTICS);
+                cw.mGattTool.abortCommand();
+                characteristicsDiscovered(cw.mGattTool, cw, connID, BleConstants.GATT_ERROR);
+            } else
+                cw.mMetrics.end(BleConstants.GATT_OP_DISCOVER_CHARACTERISTICS, started, true);
         }
         
-        Log.v(TAG, "getFirstChar end");
+        if (ServerLog.verbose())
+            Log.v(TAG, "getFirstChar end");
     }
     
     @Override
@@ -1186,10 +2192,12 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      */
     public void characteristic(GattToolWrapper w, int connID, int handle, short properties, 
             int value_handle, BleGattID uuid) {
-        Log.v(TAG, "got characteristic " + connID + " " + handle);
+        if (ServerLog.verbose())
+            Log.v(TAG, "got characteristic " + connID + " " + handle);
         
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "characteristic callback");
-        if ( cw == null || cw.lastService == null){
+        if ( cw == null || cw.lastService == null
+                || isLateDiscovery(cw, DISCOVERY_CHARACTERISTICS)){
             return;
         }
         
@@ -1202,10 +2210,20 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * GattToolWrapper callback telling characteristic discovery completed
      */
     public void characteristicEnd(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "characteristicEnd " + connID + " " + status);
+        if (ServerLog.verbose())
+            Log.v(TAG, "characteristicEnd " + connID + " " + status);
         
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "characteristicEnd callback");
-        if ( cw == null || cw.lastService == null) {
+        if ( cw == null || !discoveryEnded(cw, DISCOVERY_CHARACTERISTICS)) {
+            w.notifyAll();
+            return;
+        }
+        characteristicsDiscovered(w, cw, connID, status);
+    }
+    
+    private void characteristicsDiscovered(GattToolWrapper w, ConnectionWrapper cw, int connID,
+            int status) {
+        if (cw.lastService == null) {
             w.notifyAll();
             return;
         }
@@ -1216,8 +2234,9 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         try {
             if (s.chars.size() > 0) {
                 Characteristic c = s.chars.get(0);
-                Log.v(TAG, "doing onGetFirstCharacteristic " + connID + " " + s.uuid + " " +
-                        c.uuid + " " + c.properties);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "doing onGetFirstCharacteristic " + connID + " " + s.uuid + " " +
+                            c.uuid + " " + c.properties);
                 w.notifyAll();
                 s.callback.onGetFirstCharacteristic(connID, s.lastCharResult.intValue(), 
                         s.uuid, c.uuid, c.properties);
@@ -1226,20 +2245,23 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                 w.notifyAll();
                 s.callback.onGetFirstCharacteristic(connID, BleConstants.GATT_NOT_FOUND, 
                         s.uuid, null, 0);
-                Log.v(TAG, "doing onGetFirstCharacteristic " + connID + " " + s.uuid + " " +
-                        null + " " + 0);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "doing onGetFirstCharacteristic " + connID + " " + s.uuid + " " +
+                            null + " " + 0);
             }
             s.lastCharResult = null;
         } catch (RemoteException e) {
             Log.e(TAG, "error while calling onGetFirstCharacteristic", e);
         }
         
-        Log.v(TAG, "characteristicEnd finish");
+        if (ServerLog.verbose())
+            Log.v(TAG, "characteristicEnd finish");
     }
     
     @Override
     public synchronized void getNextChar(int connID, BluetoothGattCharID svcChrID, BluetoothGattID id) {
-        Log.v(TAG, "getNextChar " + connID + " " + svcChrID + " " + id);
+        if (ServerLog.verbose())
+            Log.v(TAG, "getNextChar " + connID + " " + svcChrID + " " + id);
         BluetoothGattID serviceID = svcChrID.getSrvcId();
         BluetoothGattID prevChar = svcChrID.getCharId();
         
@@ -1285,7 +2307,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     
     @Override
     public synchronized void getFirstCharDescr(int connID, BluetoothGattCharID svcChrID, BluetoothGattID id) {
-        Log.v(TAG, "getFirstCharDescr " + connID + " " + svcChrID + " " + id);
+        if (ServerLog.verbose())
+            Log.v(TAG, "getFirstCharDescr " + connID + " " + svcChrID + " " + id);
         BluetoothGattID serviceID = svcChrID.getSrvcId();
         BluetoothGattID charID = svcChrID.getCharId();
         
@@ -1300,7 +2323,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         Characteristic c = getCharacteristicFromService(s, charID, "getFirstCharDescr");
         if (c == null) {
             try {
-                Log.v(TAG, "no characteristic, can't do anythng");
+                if (ServerLog.verbose())
+                    Log.v(TAG, "no characteristic, can't do anythng");
                 s.callback.onGetFirstCharacteristicDescriptor(connID, BleConstants.GATT_ERROR, serviceID, charID, null);
             } catch (RemoteException e) {
                 Log.e(TAG, "error when doing onGetFirstCharacteristicDescriptor");
@@ -1314,16 +2338,18 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         s.lastChar = c;
         if (c.end==0xffff)
             c.end=s.end;
-        c.lastDescriptor = null;
         
         synchronized (cw.mGattTool){
+            long started = cw.mMetrics.start(BleConstants.GATT_OP_DISCOVER_DESCRIPTORS);
             cw.mGattTool
                     .characteristicsDescriptorDiscovery(c.handle + 1, c.end);
-            try {
-                cw.mGattTool.wait();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "getFirstCharDescr interrupted");
-            }  
+            cw.mDiscovering[DISCOVERY_DESCRIPTORS] = true;
+            if (!waitForDiscovery(cw, DISCOVERY_DESCRIPTORS, "getFirstCharDescr")) {
+                cw.mMetrics.abort(BleConstants.GATT_OP_DISCOVER_DESCRIPTORS);
+                cw.mGattTool.abortCommand();
+                descriptorsDiscovered(cw.mGattTool, cw, connID, BleConstants.GATT_ERROR);
+            } else
+                cw.mMetrics.end(BleConstants.GATT_OP_DISCOVER_DESCRIPTORS, started, true);
         }
     }
     
@@ -1332,21 +2358,24 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * GattToolWrapper callback called for each descriptor discovered
      */
     public void characteristicDescriptor(GattToolWrapper w, int connID, int handle, BleGattID uuid) {
-        Log.v(TAG, "characteristicDescriptor " + connID + " " + handle + " " + uuid);        
+        if (ServerLog.verbose())
+            Log.v(TAG, "characteristicDescriptor " + connID + " " + handle + " " + uuid);        
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "getFirstCharDescr");
-        if (cw == null) return;
+        if (cw == null || isLateDiscovery(cw, DISCOVERY_DESCRIPTORS)) return;
         Service s = cw.lastService;
         if (s == null) return;
         Characteristic c = s.lastChar;
         if (c == null) return;
         if (c.lastDescriptorStatus!=null){
-            Log.v(TAG, "ignoring spurious descriptor");
+            if (ServerLog.verbose())
+                Log.v(TAG, "ignoring spurious descriptor");
             return;
         }
         
         if (handle!=c.value_handle) {
             c.addDescriptor(new Descriptor(handle, uuid));
-            Log.v(TAG, "added char-desc");
+            if (ServerLog.verbose())
+                Log.v(TAG, "added char-desc");
         } else
             c.addValueAttribute(new Attribute(handle, uuid));
             Log.e(TAG, "ignoring value handle as descriptor");
@@ -1358,7 +2387,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * GattToolWrapper callback called when descriptor discovery ended.
      */
     public void characteristicDescriptorEnd(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "characteristicEnd " + connID + " " + status);
+        if (ServerLog.verbose())
+            Log.v(TAG, "characteristicEnd " + connID + " " + status);
         
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "characteristicDescriptorEnd callback");
         if ( cw == null) {
@@ -1366,7 +2396,15 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             w.notifyAll();
             return;
         }
-        
+        if (!discoveryEnded(cw, DISCOVERY_DESCRIPTORS)) {
+            w.notifyAll();
+            return;
+        }
+        descriptorsDiscovered(w, cw, connID, status);
+    }
+    
+    private void descriptorsDiscovered(GattToolWrapper w, ConnectionWrapper cw, int connID,
+            int status) {
         if (cw.lastService == null || cw.lastService.lastChar == null){
             Log.e(TAG, "either ConnectionWrapper, lastService or lastChar are null ignoring");
             w.notifyAll();
@@ -1376,7 +2414,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         Characteristic c = s.lastChar;
         
         if (c.lastDescriptorStatus!=null){
-            Log.v(TAG, "ignoring spurious descriptor end");
+            if (ServerLog.verbose())
+                Log.v(TAG, "ignoring spurious descriptor end");
             w.notifyAll();
             return;
         }
@@ -1387,6 +2426,9 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         
         if (c.descriptors.size() > 0)
             uuid = c.descriptors.get(0).uuid;
+        else if (status == BleConstants.GATT_SUCCESS)
+            // only the value handle came back, same as for characteristics
+            status = BleConstants.GATT_NOT_FOUND;
 
         w.notifyAll();
         try {
@@ -1400,7 +2442,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     @Override
     public void getNextCharDescr(int connID,
             BluetoothGattCharDescrID charDescrID, BluetoothGattID id) {
-        Log.v(TAG, "getNextCharDescr " + connID + " " + charDescrID + " " + id);
+        if (ServerLog.verbose())
+            Log.v(TAG, "getNextCharDescr " + connID + " " + charDescrID + " " + id);
         BluetoothGattID serviceID = charDescrID.getSrvcId();
         BluetoothGattID charID = charDescrID.getCharId();
         BluetoothGattID descID = charDescrID.getDescrId();
@@ -1425,8 +2468,9 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
 
         }
         try {
-            Log.v(TAG, "doing onGetNextCharacteristicDescriptor with uuid: "
-                    + uuid);
+            if (ServerLog.verbose())
+                Log.v(TAG, "doing onGetNextCharacteristicDescriptor with uuid: "
+                        + uuid);
             s.callback.onGetNextCharacteristicDescriptor(connID,
                     uuid != null ? BleConstants.GATT_SUCCESS
                             : BleConstants.GATT_ERROR, serviceID, charID, uuid);
@@ -1446,7 +2490,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return null;
         }
         if (service.chars.size() < charID.getInstanceID()+1) {
-            Log.v(TAG, "count: " + service.chars.size() + " charID instance: " + charID.getInstanceID());
+            if (ServerLog.verbose())
+                Log.v(TAG, "count: " + service.chars.size() + " charID instance: " + charID.getInstanceID());
             Log.e(TAG, "failed to find on getCharacteristicFromService from " + f);
             return null;
         }
@@ -1454,7 +2499,7 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     }
     
     private Descriptor getDescriptorFromCharacteristic(Characteristic c, BluetoothGattID descID, String f){
-        if (c.descriptors.size() < descID.getInstanceID()){
+        if (c.descriptors.size() <= descID.getInstanceID()){
             Log.e(TAG, "descriptor out of range at " + f);
             return null;
         }
@@ -1466,7 +2511,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      **/
     @Override
     public synchronized void readCharDescr(int connID, BluetoothGattCharDescrID charDescID, byte authReq) {
-        Log.v(TAG, "readCharDescr " + connID + " " + charDescID + " " + authReq);
+        if (ServerLog.verbose())
+            Log.v(TAG, "readCharDescr " + connID + " " + charDescID + " " + authReq);
         BluetoothGattID serviceID = charDescID.getSrvcId();
         BluetoothGattID charID = charDescID.getCharId();
         BluetoothGattID descID = charDescID.getDescrId();
@@ -1487,18 +2533,11 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             if (d == null){
                 Log.e(TAG, "no descriptor can't go on");
             } else {
-                cw.lastService = s;
-                s.lastChar = c;
-                c.lastDescriptor = d;
-                synchronized (cw.mGattTool) {
-                    cw.mGattTool.readCharacteristicByHandle(d.handle);
-                    try {
-                        cw.mGattTool.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "interrupted on readCharDescr", e);
-                    }
-                }
-                return;
+                int id = addRequest(cw, RequestTable.KIND_READ, new PendingOp(s, c, d));
+                if (cw.mGattTool.readCharacteristicByHandle(d.handle))
+                    return;
+                Log.e(TAG, "failed to send readCharDescr request");
+                cw.mRequests.remove(id);
             }
         }
         try {
@@ -1513,7 +2552,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * called by binder client when it wants to get the value of a char
      **/
     public synchronized void readChar(int connID, BluetoothGattCharID charSvcID, byte authReq) {
-        Log.v(TAG, "readChar " + connID + " " + charSvcID + " " + authReq);
+        if (ServerLog.verbose())
+            Log.v(TAG, "readChar " + connID + " " + charSvcID + " " + authReq);
         BluetoothGattID serviceID = charSvcID.getSrvcId();
         BluetoothGattID charID = charSvcID.getCharId();
         
@@ -1536,15 +2576,14 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return;
         }
         
-        cw.lastService = s;
-        s.lastChar = c;
-        c.lastDescriptor = null;
-        synchronized (cw.mGattTool) {
-            cw.mGattTool.readCharacteristicByHandle(c.value_handle);
+        int id = addRequest(cw, RequestTable.KIND_READ, new PendingOp(s, c, null));
+        if (!cw.mGattTool.readCharacteristicByHandle(c.value_handle)) {
+            Log.e(TAG, "failed to send readChar request");
+            cw.mRequests.remove(id);
             try {
-                cw.mGattTool.wait();
-            } catch (InterruptedException e) {
-                Log.e(TAG, "interrupted on readCharDescr", e);
+                s.callback.onReadCharacteristicValue(connID, BleConstants.GATT_ERROR, serviceID, charID, null);
+            } catch (RemoteException e) {
+                Log.e(TAG, "failed calling onReadCharacteristicValue callback", e);
             }
         }
     }
@@ -1554,68 +2593,228 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
      * This callback gets called when GattToolWrapper was able to resolve a value.
      */
     public void gotValueByHandle(GattToolWrapper w, int connID, byte[] value, int status) {
-        Log.v(TAG, "gotValueByHandle " + connID +" " + status +" got" + value);
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotValueByHandle " + connID +" " + status +" got" + value);
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "gotValueByHandle");
         if (cw==null) {
             w.notifyAll();
             return;
         }
-        Service s = cw.lastService;
-        Characteristic c = s.lastChar;
-        Descriptor d = c.lastDescriptor;
-        
         w.notifyAll();
-        if (d != null) {
+        
+        RequestTable.Request<PendingOp> r = cw.mRequests.complete(RequestTable.KIND_READ, status);
+        if (r == null) {
+            Log.e(TAG, "got a value but there's no outstanding read, dropping");
+            return;
+        }
+        
+        PendingOp op = r.target;
+        if (op.batch != null) {
+            op.batch.complete(op.batchIndex, status, value);
+            return;
+        }
+        
+        if (op.longRead != null) {
+            if (op.longRead.complete(status, value))
+                deliverLongRead(connID, op.longRead);
+            else
+                continueLongRead(cw, connID, op.longRead);
+            return;
+        }
+        
+        if (op.callback == null) {
+            Log.e(TAG, "read " + r.id + " completed but no one is listening");
+            return;
+        }
+        
+        if (status == BleConstants.GATT_SUCCESS && value != null && 
+                value.length >= AttMtu.readPayload(cw.mMtu)) {
+            if (ServerLog.verbose())
+                Log.v(TAG, "read " + r.id + " filled the pdu, reading the rest");
+            continueLongRead(cw, connID, new LongRead(op, value));
+            return;
+        }
+        
+        deliverRead(connID, op, status, value);
+    }
+    
+    private void deliverRead(int connID, PendingOp op, int status, byte[] value){
+        if (op.write != null) {
+            continuePreparedWrite(connID, op.write, status, value);
+            return;
+        }
+        if (op.d != null) {
             try {
-                Log.v(TAG, "calling onReadCharDescriptorValue " + status + " " + d.uuid);
-                s.callback.onReadCharDescriptorValue(connID, status, s.uuid, c.uuid, d.uuid, value);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "calling onReadCharDescriptorValue " + status + " " + op.d.uuid);
+                TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_READ);
+                op.callback.onReadCharDescriptorValue(connID, status, op.service.uuid, 
+                        op.c.uuid, op.d.uuid, value);
+                TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_READ);
             } catch (RemoteException e) {
                 Log.e(TAG, "error when calling onReadCharDescriptorValue", e);
             }
         } else {
             try {
-                Log.v(TAG, "calling onReadCharacteristicValue");
-                s.callback.onReadCharacteristicValue(connID, status, s.uuid, c.uuid, value);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "calling onReadCharacteristicValue");
+                TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_READ);
+                op.callback.onReadCharacteristicValue(connID, status, op.service.uuid, 
+                        op.c.uuid, value);
+                TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_READ);
             } catch (RemoteException e) {
                 Log.e(TAG, "error when calling onReadCharacteristicValue", e);
             }
         }
-
-        // cleanup stack.
-        c.lastDescriptor = null;
-        s.lastChar = null;
-        cw.lastService = null;
+    }
+    
+    /**
+     * Tops up the read blob window of a long read, delivers it if nothing
+     * is left in flight.
+     */
+    private void continueLongRead(ConnectionWrapper cw, int connID, LongRead lr){
+        GattToolWrapper gtw = cw.mGattTool;
+        synchronized (lr) {
+            while (!lr.done && gtw != null && lr.outstanding < LONG_READ_WINDOW && 
+                    lr.nextOffset < AttMtu.MAX_VALUE_LENGTH) {
+                int id = addRequest(cw, RequestTable.KIND_READ, new PendingOp(lr, lr.nextOffset));
+                if (!gtw.readCharacteristicByHandle(lr.op.getHandle(), lr.nextOffset)) {
+                    Log.e(TAG, "failed to send read blob request");
+                    cw.mRequests.remove(id);
+                    lr.done = true;
+                    lr.status = BleConstants.GATT_ERROR;
+                    break;
+                }
+                lr.outstanding++;
+                lr.nextOffset += lr.chunk;
+            }
+            if (lr.outstanding > 0)
+                return;
+            lr.done = true;
+        }
+        deliverLongRead(connID, lr);
+    }
+    
+    private void deliverLongRead(int connID, LongRead lr){
+        if (lr.op.callback == null)
+            return;
+        byte[] value = lr.status == BleConstants.GATT_SUCCESS ? lr.data.toByteArray() : null;
+        if (ServerLog.verbose())
+            Log.v(TAG, "long read done " + lr.status + " " + lr.data.size() + " bytes");
+        deliverRead(connID, lr.op, lr.status, value);
+    }
+    
+    /**
+     * Answers every request in the list with the given status, used when
+     * requests will never get an answer from gatttool.
+     */
+    private void failPendingRequests(ConnectionWrapper cw, int connID, 
+            List<RequestTable.Request<PendingOp>> requests, int status) {
+        if (requests == null)
+            return;
+        
+        for (RequestTable.Request<PendingOp> r: requests) {
+            PendingOp op = r.target;
+            if (r.kind == RequestTable.KIND_MTU) {
+                notifyMtu(cw, connID, status);
+                continue;
+            }
+            if (r.kind == RequestTable.KIND_READ_UUID) {
+                op.batch.status = status;
+                op.batch.deliver();
+                continue;
+            }
+            if (op.batch != null) {
+                op.batch.complete(op.batchIndex, status, null);
+                continue;
+            }
+            if (op.longRead != null) {
+                if (op.longRead.fail(status))
+                    deliverLongRead(connID, op.longRead);
+                continue;
+            }
+            if (op.write != null) {
+                preparedWriteFailed(connID, op.write, status);
+                continue;
+            }
+            if (op.callback == null)
+                continue;
+            if (ServerLog.verbose())
+                Log.v(TAG, "failing request " + r.id + " on " + cw.remote + " with " + status);
+            try {
+                if (r.kind == RequestTable.KIND_READ) {
+                    if (op.d != null)
+                        op.callback.onReadCharDescriptorValue(connID, status, op.service.uuid, 
+                                op.c.uuid, op.d.uuid, null);
+                    else
+                        op.callback.onReadCharacteristicValue(connID, status, op.service.uuid, 
+                                op.c.uuid, null);
+                } else {
+                    if (op.d != null)
+                        op.callback.onWriteCharDescrValue(connID, status, op.service.uuid, 
+                                op.c.uuid, op.d.uuid);
+                    else
+                        op.callback.onWriteCharValue(connID, status, op.service.uuid, op.c.uuid);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "error while failing request " + r.id, e);
+            }
+        }
     }
     
     @Override
     public void gotWriteResult(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "gotWriteResult");
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotWriteResult");
         w.notifyAll();
     }
     
     @Override
     public void gotWriteResultReq(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "gotWriteResultReq");
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotWriteResultReq");
         
-        Log.v(TAG, "gotWriteResultReq " + connID +" " + status);
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotWriteResultReq " + connID +" " + status);
+        ConnectionWrapper restoring = getRestoringConnection(w, connID);
+        if (restoring != null) {
+            w.notifyAll();
+            restoreStepDone(restoring, status);
+            return;
+        }
         ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "gotWriteResultReq");
         if (cw==null) {
             w.notifyAll();
             return;
         }
-        Service s = cw.lastService;
-        Characteristic c = s.lastChar;
-        Descriptor d = c.lastDescriptor;
-        
         w.notifyAll();
+        
+        RequestTable.Request<PendingOp> r = cw.mRequests.complete(RequestTable.KIND_WRITE, status);
+        if (r == null) {
+            Log.e(TAG, "got a write result but there's no outstanding write, dropping");
+            return;
+        }
+        
+        PendingOp op = r.target;
+        if (op.clientConfig != null && status == BleConstants.GATT_SUCCESS)
+            cw.rememberClientConfig(op.d.handle, op.clientConfig);
+        if (op.callback == null) {
+            Log.e(TAG, "write " + r.id + " completed but no one is listening");
+            return;
+        }
+        
         try {
-            if (d!=null){
-                s.callback.onWriteCharDescrValue(connID, status, s.uuid, c.uuid, d.uuid);
+            TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_WRITE);
+            if (op.d!=null){
+                op.callback.onWriteCharDescrValue(connID, status, op.service.uuid, 
+                        op.c.uuid, op.d.uuid);
             } else {
-                s.callback.onWriteCharValue(connID, status, s.uuid, c.uuid);
+                op.callback.onWriteCharValue(connID, status, op.service.uuid, op.c.uuid);
             }
+            TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_WRITE);
         } catch (RemoteException e) {
-            Log.v(TAG, "failed to send onWriteCharDescrValue or onWriteCharValue");
+            if (ServerLog.verbose())
+                Log.v(TAG, "failed to send onWriteCharDescrValue or onWriteCharValue");
         }
         
     }
@@ -1623,7 +2822,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     @Override
     public synchronized void writeCharValue(int connID, BluetoothGattCharID charSvcID, int writeType, byte authReq,
             byte[] value) {    
-        Log.v(TAG, "writeCharValue " + connID + " " + charSvcID + " wryte=" + writeType + " auth=" + authReq);
+        if (ServerLog.verbose())
+            Log.v(TAG, "writeCharValue " + connID + " " + charSvcID + " wryte=" + writeType + " auth=" + authReq);
         BluetoothGattID serviceID = charSvcID.getSrvcId();
         BluetoothGattID charID = charSvcID.getCharId();
         
@@ -1647,22 +2847,14 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         }
         
         boolean ret = false;
-        if (writeType == BleConstants.GATTC_TYPE_WRITE)
+        if (writeType == BleConstants.GATTC_TYPE_WRITE) {
+            int id = addRequest(cw, RequestTable.KIND_WRITE, new PendingOp(s, c, null));
             ret = cw.mGattTool.writeCharReq(c.value_handle, value);
-        else if (writeType == BleConstants.GATTC_TYPE_WRITE_NO_RSP)
-            ret = cw.mGattTool.writeCharCmd(c.value_handle, value);
-        if (ret){
-            cw.lastService = s;
-            s.lastChar = c;
-            c.lastDescriptor = null;
-            synchronized (cw.mGattTool) {
-                try {
-                    cw.mGattTool.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "interrupted while writeCharValue");
-                }
-            }
-        } else {
+            if (!ret)
+                cw.mRequests.remove(id);
+        } else if (writeType == BleConstants.GATTC_TYPE_WRITE_NO_RSP)
+            ret = writeCharCmdChunked(cw, c.value_handle, value);
+        if (!ret){
             try {
                 Log.e(TAG, "informing write couldn't start");
                 s.callback.onWriteCharValue(connID, BleConstants.GATT_BUSY, serviceID, charID);
@@ -1670,13 +2862,15 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                 Log.e(TAG, "error while doing onWriteCharValue callback", e);
             }
         }
-        Log.v(TAG, "writeCharValue end");
+        if (ServerLog.verbose())
+            Log.v(TAG, "writeCharValue end");
     }
     
     @Override
     public synchronized void writeCharDescrValue(int connID, BluetoothGattCharDescrID charDescID, int writeType,
             byte authReq, byte[] value) {
-        Log.v(TAG, "writeCharDescrValue " + connID + " " + charDescID + " wryte=" + writeType + " auth=" + authReq);
+        if (ServerLog.verbose())
+            Log.v(TAG, "writeCharDescrValue " + connID + " " + charDescID + " wryte=" + writeType + " auth=" + authReq);
         BluetoothGattID serviceID = charDescID.getSrvcId();
         BluetoothGattID charID = charDescID.getCharId();
         BluetoothGattID descID = charDescID.getDescrId();
@@ -1697,23 +2891,23 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         
         Descriptor d = getDescriptorFromCharacteristic(c, descID, "writeCharDescrValue");
         
+        if (d == null) {
+            Log.e(TAG, "no descriptor can't go on");
+            return;
+        }
+        
         boolean ret = false;
-        if (writeType == BleConstants.GATTC_TYPE_WRITE)
+        if (writeType == BleConstants.GATTC_TYPE_WRITE) {
+            PendingOp op = new PendingOp(s, c, d);
+            if (d.uuid.getUuid16() == BleConstants.GATT_UUID_CHAR_CLIENT_CONFIG16 && value != null)
+                op.clientConfig = value;
+            int id = addRequest(cw, RequestTable.KIND_WRITE, op);
             ret = cw.mGattTool.writeCharReq(d.handle, value);
-        else if (writeType == BleConstants.GATTC_TYPE_WRITE_NO_RSP)
+            if (!ret)
+                cw.mRequests.remove(id);
+        } else if (writeType == BleConstants.GATTC_TYPE_WRITE_NO_RSP)
             ret = cw.mGattTool.writeCharCmd(d.handle, value);
-        if (ret){
-            cw.lastService = s;
-            s.lastChar = c;
-            c.lastDescriptor = d;
-            synchronized (cw.mGattTool) {
-                try {
-                    cw.mGattTool.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "interrupted while writeCharValue");
-                }
-            }
-        } else { 
+        if (!ret){ 
             try {
                 Log.e(TAG, "informing write couldn't start");
                 s.callback.onWriteCharDescrValue(connID, BleConstants.GATT_BUSY, serviceID, charID, descID);
@@ -1721,19 +2915,113 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
                 Log.e(TAG, "error while doing onWriteCharDescrValue callback", e);
             }
         }
-        Log.v(TAG, "writeCharDescrValue end");
+        if (ServerLog.verbose())
+            Log.v(TAG, "writeCharDescrValue end");
 
     }
     
-    private List<NotificationListener> mListener = new Vector<NotificationListener>();
-    
-    class NotificationListener {
-        AppWrapper appWrapper;
-        String address;
-        BluetoothGattCharID uuid;
-        boolean enabled;
-        
-        public NotificationListener(AppWrapper w, String a, BluetoothGattCharID u){
+    @Override
+    /**
+     * Called by binder clients to read a list of characteristic values and
+     * descriptors from one service. gatttool has no read multiple command, so
+     * every entry is sent back to back without waiting for the previous one,
+     * and all the answers are returned together on onReadMultipleValues.
+     */
+    public synchronized void readMultiple(int connID, BluetoothGattID serviceID, 
+            BluetoothGattValues targets, byte authReq) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "readMultiple " + connID + " " + serviceID + " " + targets.size());
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "readMultiple");
+        Service s = getServiceForConnIDServiceID(connID, serviceID, "readMultiple");
+        
+        if (cw==null || cw.mGattTool == null || s==null || s.callback == null){
+            Log.e(TAG, "something is missing can't go on");
+            return;
+        }
+        
+        ReadBatch batch = new ReadBatch(connID, s);
+        List<PendingOp> ops = new ArrayList<PendingOp>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            BluetoothGattID charID = targets.getCharId(i);
+            BluetoothGattID descID = targets.getDescrId(i);
+            int index = batch.values.add(charID, descID, BleConstants.GATT_ERROR, null);
+            
+            Characteristic c = getCharacteristicFromService(s, charID, "readMultiple");
+            if (c == null)
+                continue;
+            
+            Descriptor d = null;
+            if (descID != null) {
+                d = getDescriptorFromCharacteristic(c, descID, "readMultiple");
+                if (d == null)
+                    continue;
+            }
+            ops.add(new PendingOp(batch, index, c, d));
+        }
+        
+        if (ops.size() == 0) {
+            batch.status = BleConstants.GATT_ERROR;
+            batch.deliver();
+            return;
+        }
+        
+        // count everything first so a fast answer can't deliver early
+        batch.remaining = ops.size();
+        for (PendingOp op: ops) {
+            int id = addRequest(cw, RequestTable.KIND_READ, op);
+            int handle = op.d != null ? op.d.handle : op.c.value_handle;
+            if (!cw.mGattTool.readCharacteristicByHandle(handle)) {
+                Log.e(TAG, "failed to send readMultiple request");
+                if (cw.mRequests.remove(id) != null)
+                    batch.complete(op.batchIndex, BleConstants.GATT_ERROR, null);
+            }
+        }
+    }
+    
+    @Override
+    /**
+     * Called by binder clients to read every characteristic with a given UUID
+     * inside a service, mapped to a single read by type (char-read-uuid)
+     * limited to the service handle range.
+     */
+    public synchronized void readUsingCharUuid(int connID, BluetoothGattID serviceID, 
+            BluetoothGattID charUuid, byte authReq) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "readUsingCharUuid " + connID + " " + serviceID + " " + charUuid);
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "readUsingCharUuid");
+        Service s = getServiceForConnIDServiceID(connID, serviceID, "readUsingCharUuid");
+        
+        if (cw==null || cw.mGattTool == null || s==null || s.callback == null){
+            Log.e(TAG, "something is missing can't go on");
+            return;
+        }
+        
+        ReadBatch batch = new ReadBatch(connID, s);
+        BleGattID uuid;
+        if (charUuid.getUuid16() > -1)
+            uuid = new BleGattID(charUuid.getUuid16());
+        else
+            uuid = new BleGattID(charUuid.getUuid());
+        
+        int id = addRequest(cw, RequestTable.KIND_READ_UUID, new PendingOp(batch, -1, null, null));
+        if (!cw.mGattTool.readCharacteristicByUUID(uuid, s.start, s.end)) {
+            Log.e(TAG, "failed to send readUsingCharUuid request");
+            if (cw.mRequests.remove(id) != null) {
+                batch.status = BleConstants.GATT_ERROR;
+                batch.deliver();
+            }
+        }
+    }
+    
+    private List<NotificationListener> mListener = new Vector<NotificationListener>();
+    
+    class NotificationListener {
+        AppWrapper appWrapper;
+        String address;
+        BluetoothGattCharID uuid;
+        boolean enabled;
+        
+        public NotificationListener(AppWrapper w, String a, BluetoothGattCharID u){
             this.appWrapper = w;
             this.address = a;
             this.uuid = u;
@@ -1745,7 +3033,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     @Override
     public synchronized boolean registerForNotifications(byte ifaceID, String address,
             BluetoothGattCharID charID) {
-        Log.v(TAG, "registerForNotification " + ifaceID + ", " + address + ", " + charID);
+        if (ServerLog.verbose())
+            Log.v(TAG, "registerForNotification " + ifaceID + ", " + address + ", " + charID);
         AppWrapper a = null;
         
         for (AppWrapper b: knownApps){
@@ -1754,7 +3043,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
         }
         
         if (a == null) {
-            Log.v(TAG, "app not known can't register");
+            if (ServerLog.verbose())
+                Log.v(TAG, "app not known can't register");
             return false;
         }
         
@@ -1767,14 +3057,16 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     @Override
     public synchronized boolean deregisterForNotifications(byte ifaceID, String address,
             BluetoothGattCharID charID) {
-        Log.v(TAG, "deregisterForNotifications " + ifaceID);
+        if (ServerLog.verbose())
+            Log.v(TAG, "deregisterForNotifications " + ifaceID);
         NotificationListener a = null;
         for (NotificationListener n: mListener){
             if (n.appWrapper.mIfaceID == ifaceID)
                 a = n;
         }
         if (a == null){
-            Log.v(TAG, "not known app id");
+            if (ServerLog.verbose())
+                Log.v(TAG, "not known app id");
             return false;
         }
         
@@ -1784,7 +3076,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     
     @Override
     public void onNotification(GattToolWrapper w, int conn_handle, int handle, byte[] value) {
-        Log.v(TAG, "onNotification " + conn_handle + toIntHexString(handle));
+        if (ServerLog.verbose())
+            Log.v(TAG, "onNotification " + conn_handle + toIntHexString(handle));
         
         ConnectionWrapper conn = getConnectionWrapperForConnID(conn_handle, "onNotification");
         
@@ -1794,40 +3087,158 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             return;
         }
         
+        long started = conn.mMetrics.start(BleConstants.GATT_OP_NOTIFICATION);
+        deliverNotification(w, conn, conn_handle, handle, value);
+        conn.mMetrics.end(BleConstants.GATT_OP_NOTIFICATION, started, true,
+                value == null ? 0 : value.length);
+    }
+    
+    /**
+     * Hands a notification to every listener registered for its
+     * characteristic, either right away or through their batch.
+     */
+    private void deliverNotification(GattToolWrapper w, ConnectionWrapper conn, 
+            int conn_handle, int handle, byte[] value) {
         String remote = conn.remote;
         
-        Log.v(TAG, "looking for notification handlers for " + remote );
+        if (ServerLog.verbose())
+            Log.v(TAG, "looking for notification handlers for " + remote );
         
         for (NotificationListener nl: mListener){
             if (!nl.address.toLowerCase().equals(remote.toLowerCase()))
                 continue;
-            Log.v(TAG, "found a connection wrapper for this address");
+            if (ServerLog.verbose())
+                Log.v(TAG, "found a connection wrapper for this address");
             if (!nl.enabled){
-                Log.v(TAG, "disabled ignoring");
+                if (ServerLog.verbose())
+                    Log.v(TAG, "disabled ignoring");
                 continue;
             }
-            if (!conn.mAttributesByHandle.containsKey(handle)) {
-                Log.v(TAG, "connection doesn't know about this attribute handle");
+            Attribute a = conn.mAttributesByHandle.get(handle);
+            if (a == null) {
+                if (ServerLog.verbose())
+                    Log.v(TAG, "connection doesn't know about this attribute handle");
                 continue;
             }
             
-            Attribute a = conn.mAttributesByHandle.get(handle);
-            if (!a.uuid.equals(nl.uuid)){
-                Log.v(TAG, "uuid mismatch handler doesn't match the uuid we're tracking ");
-                Log.v(TAG, "attribute: " + a.uuid);
-                Log.v(TAG, "listener:  " + nl.uuid);
+            if (!a.uuid.sameUuid(nl.uuid.getCharId())){
+                if (ServerLog.verbose())
+                    Log.v(TAG, "uuid mismatch handler doesn't match the uuid we're tracking ");
+                if (ServerLog.verbose())
+                    Log.v(TAG, "attribute: " + a.uuid);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "listener:  " + nl.uuid);
                 continue;
             }
+            w.notifyAll();
+            IBleCharacteristicDataCallback callback = a.service.callback;
+            if (callback == null)
+                continue;
+            
+            int maxCount = nl.appWrapper.mNotifyBatchCount;
+            if (maxCount > 0) {
+                NotifyBatch b;
+                synchronized (conn.mNotifyBatches) {
+                    b = conn.mNotifyBatches.get(callback.asBinder());
+                    if (b == null) {
+                        b = new NotifyBatch(conn_handle, remote, callback);
+                        conn.mNotifyBatches.put(callback.asBinder(), b);
+                    }
+                }
+                b.add(a, System.nanoTime(), value, maxCount, 
+                        nl.appWrapper.mNotifyBatchLatency);
+                continue;
+            }
+            
             try {
-                w.notifyAll();
-                a.service.callback.onNotify(conn_handle, remote, a.service.uuid, 
+                TraceRing.record(TraceRing.CALLBACK_START, conn_handle, TraceRing.CALLBACK_NOTIFY);
+                callback.onNotify(conn_handle, remote, a.service.uuid, 
                         a.uuid, true, value);
+                TraceRing.record(TraceRing.CALLBACK_END, conn_handle, TraceRing.CALLBACK_NOTIFY);
             } catch (RemoteException e1) {
-                Log.v(TAG, "error while doing onNotify", e1);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "error while doing onNotify", e1);
             }
     
         }
-        Log.v(TAG, "notification completed");
+        if (ServerLog.verbose())
+            Log.v(TAG, "notification completed");
+    }
+
+    /**
+     * True if the binder caller is root, system, shell or ourselves, the
+     * ones allowed to see every device and dump our state.
+     */
+    private static boolean isPrivilegedCaller() {
+        int uid = Binder.getCallingUid();
+        return uid == Process.ROOT_UID || uid == Process.SYSTEM_UID
+                || uid == Process.SHELL_UID || uid == Process.myUid();
+    }
+
+    /**
+     * Returns the BleConstants.GATT_STAT_* values for one operation type
+     * against a remote device, all zeros if we never talked to it. Apps only
+     * get the stats of devices they asked to connect to.
+     */
+    @Override
+    public long[] getOperationStats(String address, int operation) {
+        ConnectionMetrics m = address == null ? null : mMetricsByAddress.get(address.toUpperCase());
+        if (m == null || !(isPrivilegedCaller() || m.isUser(Binder.getCallingUid())))
+            return new long[BleConstants.GATT_STAT_SIZE];
+        return m.getStats(operation);
+    }
+
+    /**
+     * Called by dumpsys, prints the gatttool process counters and the
+     * operation metrics of every device we talked to, or only of the
+     * addresses given as arguments. With just "trace" as argument the trace
+     * ring is written instead, in binary.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!isPrivilegedCaller()) {
+            pw.println("Permission Denial: can't dump BluetoothGatt from pid="
+                    + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+        if (args != null && args.length == 1 && args[0].equals("trace")) {
+            dumpTrace(fd);
+            return;
+        }
+        pw.println("BluetoothGatt " + FRAMEWORK_VERSION + " api " + API_LEVEL);
+        pw.println("connections: " + mConnectionMap.size() + " up, "
+                + mPendingConnections.size() + " pending, "
+                + mRestoringConnections.size() + " restoring");
+        GattToolWrapper.dumpStats(pw);
+        pw.println("operations:");
+        for (ConnectionMetrics m: mMetricsByAddress.values()) {
+            if (args != null && args.length > 0) {
+                boolean wanted = false;
+                for (String a: args)
+                    wanted |= m.getAddress().equalsIgnoreCase(a);
+                if (!wanted)
+                    continue;
+            }
+            m.dump(pw);
+        }
+        pw.flush();
+    }
+
+    /**
+     * Writes the trace ring for TraceDecoder straight to the dumpsys output,
+     * nothing else goes with it. The descriptor belongs to dumpsys, it's
+     * flushed but not closed.
+     */
+    private void dumpTrace(FileDescriptor fd) {
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(fd));
+        try {
+            int events = TraceRing.dump(out);
+            out.flush();
+            if (ServerLog.verbose())
+                Log.v(TAG, events + " trace events dumped");
+        } catch (IOException e) {
+            Log.e(TAG, "failed to dump trace", e);
+        }
     }
 
     @Override
@@ -1844,7 +3255,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void setScanParameters(int scanInterval, int scanWindow) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI setscanparam\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI setscanparam\n");
         System.exit(0);
     }
 
@@ -1852,7 +3264,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void filterEnable(boolean p) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI filterenable\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI filterenable\n");
         System.exit(0);
 
     }
@@ -1861,7 +3274,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void filterEnableBDA(boolean enable, int addr_type, String address) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI filterenablebda\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI filterenablebda\n");
         System.exit(0);
 
     }
@@ -1870,7 +3284,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void clearManufacturerData() {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI clearmanufcdata\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI clearmanufcdata\n");
         System.exit(0);
 
     }
@@ -1880,7 +3295,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             byte[] data4) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI filtermanufacdata\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI filtermanufacdata\n");
         System.exit(0);
 
     }
@@ -1890,7 +3306,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             byte[] data4, boolean has_bda, int addr_type, String address) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI filtermanufdataBDA\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI filtermanufdataBDA\n");
         System.exit(0);
 
     }
@@ -1899,7 +3316,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void observe(boolean start, int duration) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI observe\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI observe\n");
         System.exit(0);
 
     }
@@ -1908,7 +3326,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void getFirstIncludedService(int connID, BluetoothGattID serviceID, BluetoothGattID id2) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI getFirstIncServ\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI getFirstIncServ\n");
         System.exit(0);
 
     }
@@ -1918,7 +3337,8 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
             BluetoothGattID id) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI getNextIncServ\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI getNextIncServ\n");
         System.exit(0);
 
     }
@@ -1927,213 +3347,507 @@ public class BluetoothGatt extends IBluetoothGatt.Stub implements
     public void sendIndConfirm(int connID, BluetoothGattCharID charID) {
         // TODO Auto-generated method stub
 
-        Log.v(TAG, "NI sendindconfig\n");
+        if (ServerLog.verbose())
+            Log.v(TAG, "NI sendindconfig\n");
         System.exit(0);
 
     }
 
+    /**
+     * Queues part of a reliable write, nothing is sent until executeWrite.
+     * Every calling app gets a queue of its own.
+     */
     @Override
-    public void prepareWrite(int paramInt1, BluetoothGattCharID charID, int paramInt2,
-            int paramInt3, byte[] paramArrayOfByte) {
-        // TODO Auto-generated method stub
-
-        Log.v(TAG, "NI prepwriter\n");
-        System.exit(0);
-
+    public synchronized void prepareWrite(int connID, BluetoothGattCharID charID, int offset,
+            int authReq, byte[] value) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "prepareWrite " + connID + " " + charID + " offset=" + offset + " auth=" + authReq);
+        BluetoothGattID serviceID = charID.getSrvcId();
+        
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "prepareWrite");
+        Service s = getServiceForConnIDServiceID(connID, serviceID, "prepareWrite");
+        
+        if (cw==null || cw.mGattTool == null || s==null || s.callback == null){
+            Log.e(TAG, "something is missing can't go on");
+            return;
+        }
+        
+        Characteristic c = getCharacteristicFromService(s, charID.getCharId(), "prepareWrite");
+        Integer app = Integer.valueOf(Binder.getCallingUid());
+        List<PreparedWrite> queue = cw.mPrepareQueues.get(app);
+        int status = BleConstants.GATT_SUCCESS;
+        if (c == null) {
+            Log.e(TAG, "no characteristic can't go on");
+            status = BleConstants.GATT_ERROR;
+        } else if (value == null || offset < 0 || 
+                offset + value.length > AttMtu.MAX_VALUE_LENGTH) {
+            Log.e(TAG, "prepared write doesn't fit in the attribute");
+            status = BleConstants.GATT_INVALID_ATTR_LEN;
+        } else if (queue != null && queue.size() >= BleConstants.PREPARE_QUEUE_SIZE) {
+            Log.e(TAG, "prepare queue full");
+            status = BleConstants.GATT_PREPARE_Q_FULL;
+        }
+        
+        if (status == BleConstants.GATT_SUCCESS) {
+            if (queue == null) {
+                queue = new ArrayList<PreparedWrite>();
+                cw.mPrepareQueues.put(app, queue);
+            }
+            queue.add(new PreparedWrite(s, c, offset, value));
+            return;
+        }
+        
+        try {
+            s.callback.onWriteCharValue(connID, status, serviceID, charID.getCharId());
+        } catch (RemoteException e) {
+            Log.e(TAG, "error while doing onWriteCharValue callback", e);
+        }
     }
-
+    
+    /**
+     * Writes or drops everything the calling app queued with prepareWrite
+     * on this connection.
+     * <p>
+     * gatttool has no raw prepare and execute commands, but char-write-req
+     * turns a value longer than the MTU allows into prepare write requests
+     * plus a single execute on its own. So the queue is merged into one
+     * value per characteristic and every write request goes out back to
+     * back, the answers come in order and each characteristic gets its
+     * onWriteCharValue. char-write-req always starts at offset 0, a value
+     * merged from a higher offset first reads the bytes in front of it.
+     */
     @Override
-    public void executeWrite(int paramInt, boolean paramBoolean) {
-        // TODO Auto-generated method stub
-
-        Log.v(TAG, "NI execwriter\n");
-        System.exit(0);
-
+    public synchronized void executeWrite(int connID, boolean execute) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "executeWrite " + connID + " " + execute);
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "executeWrite");
+        if (cw == null) {
+            Log.e(TAG, "no connection can't execute write");
+            return;
+        }
+        
+        List<PreparedWrite> queue = cw.mPrepareQueues.remove(
+                Integer.valueOf(Binder.getCallingUid()));
+        if (!execute || queue == null) {
+            if (ServerLog.verbose())
+                Log.v(TAG, "dropping " + (queue == null ? 0 : queue.size())
+                        + " prepared writes");
+            return;
+        }
+        
+        Map<Characteristic, List<PreparedWrite>> byChar = 
+                new LinkedHashMap<Characteristic, List<PreparedWrite>>();
+        for (PreparedWrite p: queue) {
+            List<PreparedWrite> parts = byChar.get(p.c);
+            if (parts == null) {
+                parts = new ArrayList<PreparedWrite>();
+                byChar.put(p.c, parts);
+            }
+            parts.add(p);
+        }
+        
+        for (List<PreparedWrite> parts: byChar.values()) {
+            PreparedWrite write = mergePreparedWrites(parts);
+            if (write == null) {
+                PreparedWrite first = parts.get(0);
+                Log.e(TAG, "prepared writes on " + first.c.uuid + " leave a hole");
+                preparedWriteFailed(connID, first, BleConstants.GATT_INVALID_OFFSET);
+            } else if (write.offset == 0) {
+                sendPreparedWrite(cw, connID, write, write.value);
+            } else {
+                PendingOp op = new PendingOp(write.service, write.c, null);
+                op.callback = write.callback;
+                op.write = write;
+                int id = addRequest(cw, RequestTable.KIND_READ, op);
+                if (cw.mGattTool == null || 
+                        !cw.mGattTool.readCharacteristicByHandle(write.c.value_handle)) {
+                    cw.mRequests.remove(id);
+                    preparedWriteFailed(connID, write, BleConstants.GATT_ERROR);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies the parts in the order they were prepared, like the remote
+     * would do on execute. The result starts at the lowest offset. Returns
+     * null if they leave a hole, a single write request can't skip over
+     * bytes.
+     */
+    private PreparedWrite mergePreparedWrites(List<PreparedWrite> parts){
+        PreparedWrite first = parts.get(0);
+        int base = Integer.MAX_VALUE;
+        int end = 0;
+        for (PreparedWrite p: parts) {
+            base = Math.min(base, p.offset);
+            end = Math.max(end, p.offset + p.value.length);
+        }
+        
+        boolean[] covered = new boolean[end - base];
+        byte[] value = new byte[end - base];
+        for (PreparedWrite p: parts) {
+            System.arraycopy(p.value, 0, value, p.offset - base, p.value.length);
+            for (int i = p.offset; i < p.offset + p.value.length; i++)
+                covered[i - base] = true;
+        }
+        for (boolean c: covered)
+            if (!c)
+                return null;
+        PreparedWrite ret = new PreparedWrite(first.service, first.c, base, value);
+        ret.callback = first.callback;
+        return ret;
+    }
+    
+    /**
+     * Second half of a prepared write starting past offset 0, head is the
+     * current value it gets written over.
+     */
+    private void continuePreparedWrite(int connID, PreparedWrite write, int status, 
+            byte[] head) {
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "continuePreparedWrite");
+        if (status != BleConstants.GATT_SUCCESS || cw == null) {
+            preparedWriteFailed(connID, write, status != BleConstants.GATT_SUCCESS ? 
+                    status : BleConstants.GATT_ERROR);
+            return;
+        }
+        // the remote would refuse an offset past the end of the value
+        if (head == null || head.length < write.offset) {
+            preparedWriteFailed(connID, write, BleConstants.GATT_INVALID_OFFSET);
+            return;
+        }
+        byte[] value = new byte[write.offset + write.value.length];
+        System.arraycopy(head, 0, value, 0, write.offset);
+        System.arraycopy(write.value, 0, value, write.offset, write.value.length);
+        sendPreparedWrite(cw, connID, write, value);
+    }
+    
+    private void sendPreparedWrite(ConnectionWrapper cw, int connID, PreparedWrite write, 
+            byte[] value) {
+        PendingOp op = new PendingOp(write.service, write.c, null);
+        op.callback = write.callback;
+        int id = addRequest(cw, RequestTable.KIND_WRITE, op);
+        if (cw.mGattTool != null && cw.mGattTool.writeCharReq(write.c.value_handle, value))
+            return;
+        cw.mRequests.remove(id);
+        preparedWriteFailed(connID, write, BleConstants.GATT_ERROR);
+    }
+    
+    private void preparedWriteFailed(int connID, PreparedWrite write, int status) {
+        Log.e(TAG, "failed to execute prepared write on " + write.c.uuid + ": " + status);
+        if (write.callback == null)
+            return;
+        try {
+            write.callback.onWriteCharValue(connID, status, write.service.uuid, write.c.uuid);
+        } catch (RemoteException e) {
+            Log.e(TAG, "error while doing onWriteCharValue callback", e);
+        }
     }
 
     @Override
-    public void registerServerServiceCallback(BluetoothGattID id1, BluetoothGattID id2,
+    public void registerServerServiceCallback(BluetoothGattID svcId, BluetoothGattID appId,
             IBleServiceCallback callback) {
-        // TODO Auto-generated method stub
-
-        Log.v(TAG, "NI regServiceCallback\n");
-        System.exit(0);
-
+        if (ServerLog.verbose())
+            Log.v(TAG, "registerServerServiceCallback " + svcId + " " + appId);
+        mGattServer.registerService(svcId, appId, callback);
     }
 
     @Override
     public void registerServerProfileCallback(BluetoothGattID id, IBleProfileEventCallback callback) {
-        // TODO Auto-generated method stub
-
-        Log.v(TAG, "NI regServerProfCallback\n");
-        System.exit(0);
-
+        if (ServerLog.verbose())
+            Log.v(TAG, "registerServerProfileCallback " + id);
+        mGattServer.registerProfile(id, callback);
     }
 
     @Override
-    public void unregisterServerServiceCallback(int paramInt) {
-        // TODO Auto-generated method stub
-
-        Log.v(TAG, "NI unregServServcall\n");
-        System.exit(0);
-
+    public void unregisterServerServiceCallback(int svcHandle) {
+        mGattServer.unregisterService(svcHandle);
     }
 
     @Override
-    public void unregisterServerProfileCallback(int paramInt) {
-        // TODO Auto-generated method stub
-
-        Log.v(TAG, "NI unrefServerProfCallback\n");
-        System.exit(0);
-
+    public void unregisterServerProfileCallback(int serverIf) {
+        mGattServer.unregisterProfile(serverIf);
     }
 
     @Override
-    public void GATTServer_CreateService(byte paramByte, BluetoothGattID id, int paramInt) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_CreateService(byte serverIf, BluetoothGattID id, int numHandles) {
+        mGattServer.createService(serverIf, id, numHandles);
     }
 
     @Override
-    public void GATTServer_AddIncludedService(int paramInt1, int paramInt2) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_AddIncludedService(int svcHandle, int includedHandle) {
+        mGattServer.addIncludedService(svcHandle, includedHandle);
     }
 
     @Override
-    public void GATTServer_AddCharacteristic(int paramInt1, BluetoothGattID id, int paramInt2,
-            int paramInt3, boolean paramBoolean, int paramInt4) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_AddCharacteristic(int svcHandle, BluetoothGattID id, int permissions,
+            int properties, boolean isDirty, int numDescriptors) {
+        mGattServer.addCharacteristic(svcHandle, id, permissions, properties);
     }
 
     @Override
-    public void GATTServer_AddCharDescriptor(int paramInt1, int paramInt2, BluetoothGattID id) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_AddCharDescriptor(int svcHandle, int permissions, BluetoothGattID id) {
+        mGattServer.addDescriptor(svcHandle, permissions, id);
     }
 
     @Override
-    public void GATTServer_DeleteService(int paramInt) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_DeleteService(int svcHandle) {
+        mGattServer.deleteService(svcHandle);
     }
 
     @Override
-    public void GATTServer_StartService(int paramInt, byte paramByte) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_StartService(int svcHandle, byte transport) {
+        mGattServer.startService(svcHandle);
     }
 
     @Override
-    public void GATTServer_StopService(int paramInt) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_StopService(int svcHandle) {
+        mGattServer.stopService(svcHandle);
     }
 
     @Override
-    public void GATTServer_HandleValueIndication(int paramInt1, int paramInt2,
-            byte[] paramArrayOfByte) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_HandleValueIndication(int connId, int attrHandle, byte[] value) {
+        mGattServer.sendIndication(connId, attrHandle, value);
     }
 
     @Override
-    public void GATTServer_HandleValueNotification(int paramInt1, int paramInt2,
-            byte[] paramArrayOfByte) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_HandleValueNotification(int connId, int attrHandle, byte[] value) {
+        mGattServer.sendNotification(connId, attrHandle, value);
     }
 
     @Override
-    public void GATTServer_SendRsp(int paramInt1, int paramInt2, byte paramByte1, int paramInt3,
-            int paramInt4, byte[] paramArrayOfByte, byte paramByte2, boolean paramBoolean) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_BroadcastNotification(int attrHandle, byte[] value) {
+        mGattServer.broadcastNotification(attrHandle, value);
     }
 
     @Override
-    public void GATTServer_Open(byte paramByte, String paramString, boolean paramBoolean) {
-        // TODO Auto-generated method stub
-        System.exit(0);
-
+    public void GATTServer_SendRsp(int connId, int transId, byte status, int attrHandle,
+            int offset, byte[] value, byte authReq, boolean isWrite) {
+        mGattServer.sendResponse(connId, transId, status & 0xff, attrHandle, offset, value);
     }
 
     @Override
-    public void GATTServer_CancelOpen(byte paramByte, String paramString, boolean paramBoolean) {
-        // TODO Auto-generated method stub
-        System.exit(0);
+    public void GATTServer_Open(byte serverIf, String address, boolean isDirect) {
+        mGattServer.open(serverIf, address, isDirect);
+    }
 
+    @Override
+    public void GATTServer_CancelOpen(byte serverIf, String address, boolean isDirect) {
+        mGattServer.cancelOpen(serverIf, address);
     }
 
     @Override
-    public void GATTServer_Close(int paramInt) {
-        // TODO Auto-generated method stub
-        System.exit(0);
+    public void GATTServer_Close(int connId) {
+        mGattServer.close(connId);
+    }
 
+    /**
+     * Local attribute database behind the GATTServer_* calls, a transport
+     * has to be attached before remote clients can reach it.
+     */
+    public GattServer getGattServer() {
+        return mGattServer;
     }
 
     @Override
     public void onIndication(GattToolWrapper w, int conn_handle, int handle, byte[] value) {
         // TODO Auto-generated method stub
-        Log.v(TAG, "onIndictation");
+        if (ServerLog.verbose())
+            Log.v(TAG, "onIndictation");
         w.notifyAll();
     }
 
     @Override
-    public void gotValueByUuid(GattToolWrapper w, int conn_handle, int handle, byte[] value) {
-        // TODO Auto-generated method stub
-        Log.v(TAG, "gotValueByUuid");
+    public void gotValueByUuid(GattToolWrapper w, int connID, int handle, byte[] value) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotValueByUuid " + connID + " " + handle);
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "gotValueByUuid");
         w.notifyAll();
+        if (cw == null)
+            return;
+        
+        RequestTable.Request<PendingOp> r = cw.mRequests.peek(RequestTable.KIND_READ_UUID);
+        if (r == null) {
+            Log.e(TAG, "got a value by uuid but there's no outstanding read, dropping");
+            return;
+        }
+        
+        ReadBatch batch = r.target.batch;
+        for (Characteristic c: batch.service.chars) {
+            if (c.value_handle == handle) {
+                batch.values.add(c.uuid, null, BleConstants.GATT_SUCCESS, value);
+                return;
+            }
+        }
+        Log.e(TAG, "value handle " + handle + " doesn't belong to a known characteristic");
     }
 
     @Override
-    public void gotValueByUuidEnd(GattToolWrapper w, int conn_handle, int status) {
-        // TODO Auto-generated method stub
-        Log.v(TAG, "gotValueByUuidEnd");
+    public void gotValueByUuidEnd(GattToolWrapper w, int connID, int status) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotValueByUuidEnd " + connID + " " + status);
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "gotValueByUuidEnd");
         w.notifyAll();
+        if (cw == null)
+            return;
+        
+        RequestTable.Request<PendingOp> r = cw.mRequests.complete(RequestTable.KIND_READ_UUID, status);
+        if (r == null) {
+            Log.e(TAG, "read by uuid ended but there's no outstanding read, dropping");
+            return;
+        }
+        
+        r.target.batch.status = status;
+        r.target.batch.deliver();
     }
 
+    /**
+     * Writes without response never get an answer, so a value longer than
+     * the MTU allows is sent as consecutive commands of the biggest size that
+     * fits, which is what streaming profiles expect.
+     */
+    private boolean writeCharCmdChunked(ConnectionWrapper cw, int handle, byte[] value){
+        long started = cw.mMetrics.start(BleConstants.GATT_OP_WRITE_CMD);
+        if (value == null || value.length == 0) {
+            boolean ret = cw.mGattTool.writeCharCmd(handle, value);
+            cw.mMetrics.end(BleConstants.GATT_OP_WRITE_CMD, started, ret);
+            return ret;
+        }
+        
+        int payload = AttMtu.writePayload(cw.mMtu);
+        for (int offset = 0; offset < value.length; offset += payload) {
+            int length = Math.min(payload, value.length - offset);
+            if (!cw.mGattTool.writeCharCmd(handle, value, offset, length)) {
+                cw.mMetrics.end(BleConstants.GATT_OP_WRITE_CMD, started, false, offset);
+                return false;
+            }
+        }
+        cw.mMetrics.end(BleConstants.GATT_OP_WRITE_CMD, started, true, value.length);
+        return true;
+    }
+    
     @Override
-    public void gotMtuResult(GattToolWrapper w, int connID, int status) {
-        Log.v(TAG, "gotMtuResult");
+    /**
+     * Asks the remote for a bigger ATT MTU, the result goes to onMtuChanged
+     * and from then on writes and reads are split using the new value.
+     */
+    public synchronized void requestMtu(int connID, int mtu) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "requestMtu " + connID + " " + mtu);
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "requestMtu");
+        if (cw == null || cw.mGattTool == null) {
+            Log.e(TAG, "no connection can't request mtu");
+            return;
+        }
+        
+        if (!AttMtu.isValid(mtu)) {
+            Log.e(TAG, "invalid mtu " + mtu);
+            notifyMtu(cw, connID, BleConstants.GATT_ILLEGAL_PARAMETER);
+            return;
+        }
+        
+        int id = addRequest(cw, RequestTable.KIND_MTU, new PendingOp(mtu));
+        if (!cw.mGattTool.mtu(mtu)) {
+            Log.e(TAG, "failed to send mtu request");
+            cw.mRequests.remove(id);
+            notifyMtu(cw, connID, BleConstants.GATT_BUSY);
+        }
+    }
+    
+    private void notifyMtu(ConnectionWrapper cw, int connID, int status){
+        if (cw.wrapper == null)
+            return;
+        try {
+            TraceRing.record(TraceRing.CALLBACK_START, connID, TraceRing.CALLBACK_MTU);
+            cw.wrapper.mCallback.onMtuChanged(connID, status, cw.mMtu);
+            TraceRing.record(TraceRing.CALLBACK_END, connID, TraceRing.CALLBACK_MTU);
+        } catch (RemoteException e) {
+            Log.e(TAG, "failed calling onMtuChanged", e);
+        }
+    }
+
+    @Override
+    public void gotMtuResult(GattToolWrapper w, int connID, int status, int mtu) {
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotMtuResult " + connID + " " + status + " " + mtu);
         w.notifyAll();
+        
+        ConnectionWrapper restoring = getRestoringConnection(w, connID);
+        if (restoring != null) {
+            if (status == BleConstants.GATT_SUCCESS)
+                restoring.mMtu = AttMtu.isValid(mtu) ? Math.min(mtu, restoring.mRestoreMtu)
+                        : restoring.mRestoreMtu;
+            restoreStepDone(restoring, status);
+            return;
+        }
+        
+        ConnectionWrapper cw = getConnectionWrapperForConnID(connID, "gotMtuResult");
+        if (cw == null)
+            return;
+        
+        RequestTable.Request<PendingOp> r = cw.mRequests.complete(RequestTable.KIND_MTU, status);
+        if (r == null) {
+            Log.e(TAG, "mtu result but there's no outstanding request, dropping");
+            return;
+        }
+        
+        // the remote may pick less than we asked for, trust gatttool's value
+        // when it gives one
+        if (status == BleConstants.GATT_SUCCESS)
+            cw.mMtu = AttMtu.isValid(mtu) ? Math.min(mtu, r.target.mtu) : r.target.mtu;
+        notifyMtu(cw, connID, status);
     }
 
     @Override
     public void gotPsmResult(GattToolWrapper w, int psm) {
-        Log.v(TAG, "gotPsmResult " + psm +  " " + w);
+        if (ServerLog.verbose())
+            Log.v(TAG, "gotPsmResult " + psm +  " " + w);
         w.notifyAll();
     }
 
     @Override
+    /**
+     * gatttool died. A live connection gets restored, see startRestore, a
+     * pending one is reported as a failed connect.
+     */
     public void processExit(GattToolWrapper w, int retcode) {
-        // TODO Auto-generated method stub
         Log.e(TAG, "processExit with retcode " + retcode + " !!!!!!!!");
-        w.notifyAll();
+        synchronized (w) {
+            w.notifyAll();
+            
+            int connID = w.getConnHandle();
+            ConnectionWrapper cw = getRestoringConnection(w, connID);
+            if (cw != null) {
+                retryRestore(cw);
+                return;
+            }
+            
+            cw = mConnectionMap.get(connID);
+            if (cw != null && cw.mGattTool == w) {
+                startRestore(cw, retcode);
+                return;
+            }
+            
+            for (ConnectionWrapper p: mPendingConnections.values())
+                if (p.mGattTool == w) {
+                    disconnected(w, connID, p.remote);
+                    return;
+                }
+        }
     }
 
     @Override
     public void processStdinClosed(GattToolWrapper w) {
         // TODO Auto-generated method stub
-        Log.v(TAG, "processStdinClosed");
+        if (ServerLog.verbose())
+            Log.v(TAG, "processStdinClosed");
         w.notifyAll();
     }
 
     @Override
     public void shellError(GattToolWrapper w, SHELL_ERRORS e) {
         // TODO Auto-generated method stub
-        Log.v(TAG, "shellError");
+        if (ServerLog.verbose())
+            Log.v(TAG, "shellError");
         w.notifyAll();
     }
     
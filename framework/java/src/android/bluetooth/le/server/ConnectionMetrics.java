@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.broadcom.bt.le.api.BleConstants;
+
+/**
+ * Counters and latency histograms for the operations done against one
+ * remote device, indexed by the BleConstants.GATT_OP_* values. They're kept
+ * per address instead of per connection so a device that keeps dropping and
+ * reconnecting still shows its whole history.
+ * <p>
+ * Callers take a timestamp with {@link #start(int)} when the operation goes
+ * to gatttool and hand it back to {@link #end(int, long, boolean)} once it's
+ * answered, or call {@link #abort(int)} when it never will be.
+ */
+class ConnectionMetrics {
+    static final int OPS = BleConstants.GATT_OP_RESTORE + 1;
+
+    private static final String[] NAMES = {
+            "connect", "discover-services", "discover-chars", "discover-descs", "read",
+            "write-req", "write-cmd", "notification", "mtu", "restore"
+    };
+
+    private final String mAddress;
+    private final long mCreated = System.currentTimeMillis();
+    // histograms are created on first use, most devices only see a few ops
+    private final AtomicReferenceArray<LatencyHistogram> mLatency =
+            new AtomicReferenceArray<LatencyHistogram>(OPS);
+    private final AtomicLongArray mErrors = new AtomicLongArray(OPS);
+    private final AtomicLongArray mBytes = new AtomicLongArray(OPS);
+    private final AtomicIntegerArray mInFlight = new AtomicIntegerArray(OPS);
+    private final AtomicIntegerArray mMaxInFlight = new AtomicIntegerArray(OPS);
+    // uids that asked to connect to this device, only they get the stats
+    private final Set<Integer> mUsers =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    ConnectionMetrics(String address) {
+        this.mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public void addUser(int uid) {
+        mUsers.add(Integer.valueOf(uid));
+    }
+
+    public boolean isUser(int uid) {
+        return mUsers.contains(Integer.valueOf(uid));
+    }
+
+    private LatencyHistogram histogram(int op) {
+        LatencyHistogram h = mLatency.get(op);
+        if (h == null) {
+            mLatency.compareAndSet(op, null, new LatencyHistogram());
+            h = mLatency.get(op);
+        }
+        return h;
+    }
+
+    /**
+     * Marks an operation as in flight.
+     *
+     * @return the timestamp to give back to end.
+     */
+    public long start(int op) {
+        int depth = mInFlight.incrementAndGet(op);
+        int max;
+        while (depth > (max = mMaxInFlight.get(op)) && !mMaxInFlight.compareAndSet(op, max, depth))
+            ;
+        return System.nanoTime();
+    }
+
+    /**
+     * An operation got its answer.
+     *
+     * @param ok false when the answer was an error status.
+     */
+    public void end(int op, long started, boolean ok) {
+        end(op, started, ok, 0);
+    }
+
+    /**
+     * @param bytes payload the operation carried.
+     */
+    public void end(int op, long started, boolean ok, int bytes) {
+        mInFlight.decrementAndGet(op);
+        histogram(op).record(System.nanoTime() - started);
+        if (!ok)
+            mErrors.incrementAndGet(op);
+        if (bytes > 0)
+            mBytes.addAndGet(op, bytes);
+    }
+
+    /**
+     * An operation timed out or got dropped with its connection, it counts
+     * as an error and stays out of the latency histogram.
+     */
+    public void abort(int op) {
+        mInFlight.decrementAndGet(op);
+        mErrors.incrementAndGet(op);
+    }
+
+    /**
+     * @return the BleConstants.GATT_STAT_* values for op, latencies in
+     *         microseconds.
+     */
+    public long[] getStats(int op) {
+        long[] ret = new long[BleConstants.GATT_STAT_SIZE];
+        if (op < 0 || op >= OPS)
+            return ret;
+        LatencyHistogram h = mLatency.get(op);
+        ret[BleConstants.GATT_STAT_ERRORS] = mErrors.get(op);
+        ret[BleConstants.GATT_STAT_IN_FLIGHT] = mInFlight.get(op);
+        ret[BleConstants.GATT_STAT_MAX_IN_FLIGHT] = mMaxInFlight.get(op);
+        ret[BleConstants.GATT_STAT_BYTES] = mBytes.get(op);
+        if (h == null)
+            return ret;
+        ret[BleConstants.GATT_STAT_COUNT] = h.getCount();
+        ret[BleConstants.GATT_STAT_MEAN_US] = h.getMean() / 1000;
+        ret[BleConstants.GATT_STAT_P50_US] = h.getPercentile(50) / 1000;
+        ret[BleConstants.GATT_STAT_P90_US] = h.getPercentile(90) / 1000;
+        ret[BleConstants.GATT_STAT_P99_US] = h.getPercentile(99) / 1000;
+        ret[BleConstants.GATT_STAT_MAX_US] = h.getMax() / 1000;
+        return ret;
+    }
+
+    public void dump(PrintWriter pw) {
+        long seconds = Math.max(1, (System.currentTimeMillis() - mCreated) / 1000);
+        pw.println("  " + mAddress + " (" + seconds + "s)");
+        pw.println(String.format("    %-18s %8s %6s %6s %10s %8s %8s %8s %8s %8s",
+                "op", "count", "errors", "depth", "ops/s", "mean us", "p50 us", "p99 us",
+                "max us", "bytes/s"));
+        for (int op = 0; op < OPS; op++) {
+            long[] s = getStats(op);
+            if (s[BleConstants.GATT_STAT_COUNT] == 0 && s[BleConstants.GATT_STAT_ERRORS] == 0
+                    && s[BleConstants.GATT_STAT_IN_FLIGHT] == 0)
+                continue;
+            pw.println(String.format("    %-18s %8d %6d %2d/%-3d %10.1f %8d %8d %8d %8d %8d",
+                    NAMES[op], s[BleConstants.GATT_STAT_COUNT], s[BleConstants.GATT_STAT_ERRORS],
+                    s[BleConstants.GATT_STAT_IN_FLIGHT], s[BleConstants.GATT_STAT_MAX_IN_FLIGHT],
+                    s[BleConstants.GATT_STAT_COUNT] / (double) seconds,
+                    s[BleConstants.GATT_STAT_MEAN_US], s[BleConstants.GATT_STAT_P50_US],
+                    s[BleConstants.GATT_STAT_P99_US], s[BleConstants.GATT_STAT_MAX_US],
+                    s[BleConstants.GATT_STAT_BYTES] / seconds));
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.broadcom.bt.le.api.IBleClientCallback;
+
+/**
+ * Runs bulk connection requests.
+ * <p>
+ * Every gatttool instance handles a single link, so several connects can be
+ * in flight at once. A job keeps at most maxConcurrent of its devices
+ * connecting, gives each attempt timeout milliseconds and retries failed
+ * devices with an exponential backoff. Once every device either connected or
+ * ran out of retries the owner gets a single onOpenMultipleCompleted.
+ * <p>
+ * Calls into the Connector are always done without holding the scheduler
+ * lock, as they end up taking GattToolWrapper locks whose reader threads call
+ * back into onConnectResult. They also run on the executor given to the
+ * constructor and never on the caller thread: startConnect can block for a
+ * whole timeout, and callers include the DeadlineScheduler thread and the
+ * gatttool dispatch threads, which must not stall.
+ */
+class ConnectionScheduler {
+    private static final String TAG = "GATT-ConnScheduler";
+
+    private static final long BACKOFF_BASE = 500;
+    private static final long BACKOFF_MAX = 8000;
+
+    /**
+     * What the scheduler needs from BluetoothGatt.
+     */
+    interface Connector {
+        /**
+         * Starts connecting without blocking, the result has to be reported
+         * with onConnectResult. Returns false if the attempt couldn't start.
+         */
+        boolean startConnect(BluetoothGatt.AppWrapper app, String remote);
+
+        /**
+         * Drops a connection that is still pending, returns false if it
+         * wasn't pending any more.
+         */
+        boolean cancelConnect(String remote);
+    }
+
+    class Job {
+        final BluetoothGatt.AppWrapper app;
+        final IBleClientCallback callback;
+        final int maxConcurrent;
+        final long timeout;
+        final int retries;
+        final LinkedList<String> queue = new LinkedList<String>();
+        final List<String> connected = new ArrayList<String>();
+        final List<String> failed = new ArrayList<String>();
+        int active = 0;
+        int backingOff = 0;
+        boolean done = false;
+
+        Job(BluetoothGatt.AppWrapper app, int maxConcurrent, long timeout, int retries) {
+            this.app = app;
+            this.callback = app.mCallback;
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.timeout = timeout;
+            this.retries = Math.max(0, retries);
+        }
+    }
+
+    private class Attempt {
+        final Job job;
+        final String remote;
+        int tries = 0;
+        DeadlineScheduler.Timeout timer; // not null while connecting
+        boolean starting; // inside startConnect
+        boolean expired; // timed out while starting
+
+        Attempt(Job job, String remote) {
+            this.job = job;
+            this.remote = remote;
+        }
+    }
+
+    private final Connector mConnector;
+    private final Executor mExecutor;
+    private final DeadlineScheduler mDeadlines = DeadlineScheduler.getInstance();
+    private final Map<String, Attempt> mAttempts = new HashMap<String, Attempt>();
+
+    ConnectionScheduler(Connector connector, Executor executor) {
+        mConnector = connector;
+        mExecutor = executor;
+    }
+
+    /**
+     * Wraps task for mDeadlines, the timer thread only hands it over.
+     */
+    private Runnable onExecutor(final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                mExecutor.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Queues a bulk connect, remotes already handled by another job are
+     * reported as failed.
+     */
+    void submit(BluetoothGatt.AppWrapper app, String[] remotes, int maxConcurrent,
+            long timeout, int retries) {
+        Job job = new Job(app, maxConcurrent, timeout, retries);
+        synchronized (this) {
+            for (String remote : remotes) {
+                if (mAttempts.containsKey(remote)) {
+                    Log.e(TAG, remote + " already being connected");
+                    job.failed.add(remote);
+                    continue;
+                }
+                mAttempts.put(remote, new Attempt(job, remote));
+                job.queue.add(remote);
+            }
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "new job for " + remotes.length + " devices, " + job.maxConcurrent
+                    + " at once");
+        pump(job);
+        finishIfDone(job);
+    }
+
+    /**
+     * Tells if remote is being connected by a job.
+     */
+    synchronized boolean isScheduled(String remote) {
+        return mAttempts.containsKey(remote);
+    }
+
+    /**
+     * Result of a connect started by this scheduler.
+     * 
+     * @return false if remote wasn't an attempt in flight, in that case the
+     *         caller should handle the result as usual.
+     */
+    boolean onConnectResult(String remote, boolean success) {
+        final Attempt a;
+        synchronized (this) {
+            a = mAttempts.get(remote);
+            if (a == null || a.timer == null)
+                return false;
+
+            a.timer.cancel();
+            a.timer = null;
+            a.job.active--;
+
+            if (success) {
+                a.job.connected.add(remote);
+                mAttempts.remove(remote);
+            } else if (a.tries < a.job.retries) {
+                long backoff = Math.min(BACKOFF_BASE << a.tries, BACKOFF_MAX);
+                a.tries++;
+                a.job.backingOff++;
+                if (ServerLog.verbose())
+                    Log.v(TAG, remote + " failed, retry " + a.tries + " in " + backoff + "ms");
+                mDeadlines.schedule(backoff, onExecutor(new Runnable() {
+                    public void run() {
+                        retry(a);
+                    }
+                }));
+            } else {
+                if (ServerLog.verbose())
+                    Log.v(TAG, remote + " failed, giving up");
+                a.job.failed.add(remote);
+                mAttempts.remove(remote);
+            }
+        }
+        pump(a.job);
+        finishIfDone(a.job);
+        return true;
+    }
+
+    /**
+     * Forgets every job owned by app, used when it goes away. Connections in
+     * flight are left to the caller.
+     */
+    synchronized void cancel(BluetoothGatt.AppWrapper app) {
+        Iterator<Attempt> it = mAttempts.values().iterator();
+        while (it.hasNext()) {
+            Attempt a = it.next();
+            if (a.job.app != app)
+                continue;
+            if (a.timer != null)
+                a.timer.cancel();
+            a.job.done = true;
+            it.remove();
+        }
+    }
+
+    private void retry(Attempt a) {
+        synchronized (this) {
+            a.job.backingOff--;
+            if (a.job.done || mAttempts.get(a.remote) != a)
+                return;
+            a.job.queue.add(a.remote);
+        }
+        pump(a.job);
+    }
+
+    private void timedOut(Attempt a) {
+        synchronized (this) {
+            if (a.timer == null || mAttempts.get(a.remote) != a)
+                return;
+            // connect() cancels it once startConnect returns
+            if (a.starting) {
+                a.expired = true;
+                return;
+            }
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, a.remote + " timed out");
+        // if it isn't pending any more connected() is already reporting it
+        if (mConnector.cancelConnect(a.remote))
+            onConnectResult(a.remote, false);
+    }
+
+    /**
+     * Starts as many queued devices as the job allows.
+     */
+    private void pump(Job job) {
+        List<Attempt> start = new ArrayList<Attempt>();
+        synchronized (this) {
+            while (!job.done && job.active < job.maxConcurrent && !job.queue.isEmpty()) {
+                final Attempt a = mAttempts.get(job.queue.removeFirst());
+                if (a == null)
+                    continue;
+                job.active++;
+                a.timer = mDeadlines.schedule(job.timeout, onExecutor(new Runnable() {
+                    public void run() {
+                        timedOut(a);
+                    }
+                }));
+                start.add(a);
+            }
+        }
+
+        for (final Attempt a : start) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    connect(a);
+                }
+            });
+        }
+    }
+
+    private void connect(Attempt a) {
+        synchronized (this) {
+            // cancelled while waiting for the executor
+            if (a.timer == null || mAttempts.get(a.remote) != a)
+                return;
+            a.starting = true;
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "connecting " + a.remote + " try " + a.tries);
+        boolean started = mConnector.startConnect(a.job.app, a.remote);
+        boolean expired;
+        synchronized (this) {
+            a.starting = false;
+            expired = a.expired;
+            a.expired = false;
+        }
+        if (!started)
+            onConnectResult(a.remote, false);
+        else if (expired && mConnector.cancelConnect(a.remote))
+            onConnectResult(a.remote, false);
+    }
+
+    private void finishIfDone(Job job) {
+        String[] connected;
+        String[] failed;
+        synchronized (this) {
+            if (job.done || job.active > 0 || job.backingOff > 0 || !job.queue.isEmpty())
+                return;
+            job.done = true;
+            connected = job.connected.toArray(new String[job.connected.size()]);
+            failed = job.failed.toArray(new String[job.failed.size()]);
+        }
+
+        if (ServerLog.verbose())
+            Log.v(TAG, "job completed, " + connected.length + " connected " + failed.length
+                    + " failed");
+        try {
+            job.callback.onOpenMultipleCompleted(connected, failed);
+        } catch (RemoteException e) {
+            Log.e(TAG, "failed to deliver onOpenMultipleCompleted", e);
+        }
+    }
+}
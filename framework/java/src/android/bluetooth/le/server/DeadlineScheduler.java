@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Hashed timer wheel shared by every connection.
+ * <p>
+ * Deadlines get bucketed into WHEEL_SIZE slots of TICK milliseconds, longer
+ * delays just go around the wheel a few times. Tasks may run up to one TICK
+ * late, never early. A single thread walks the
+ * wheel, so having thousands of outstanding deadlines costs nothing more than
+ * a list entry each. Tasks run on the scheduler thread and should be quick.
+ */
+class DeadlineScheduler implements Runnable {
+    private static final String TAG = "GATT-Deadline";
+
+    private static final long TICK = 50;
+    private static final int WHEEL_SIZE = 512;
+
+    public static class Timeout {
+        private final Runnable mTask;
+        private int mRounds;
+        private volatile boolean mCancelled = false;
+
+        private Timeout(Runnable task, int rounds) {
+            mTask = task;
+            mRounds = rounds;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private static DeadlineScheduler sInstance;
+
+    /**
+     * Milliseconds on a monotonic clock, every deadline is measured with it
+     * so wall clock changes don't make timeouts fire early or never.
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static synchronized DeadlineScheduler getInstance() {
+        if (sInstance == null)
+            sInstance = new DeadlineScheduler();
+        return sInstance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private final List<Timeout>[] mWheel = new List[WHEEL_SIZE];
+    private long mTicks = 0;
+    private Thread mThread;
+
+    private DeadlineScheduler() {
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            mWheel[i] = new LinkedList<Timeout>();
+    }
+
+    /**
+     * Runs task on the scheduler thread once delay milliseconds have passed,
+     * unless the returned Timeout gets cancelled first.
+     */
+    public synchronized Timeout schedule(long delay, Runnable task) {
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        // one extra tick as the current one is already partially gone, this
+        // way tasks never run before their deadline
+        long ticks = Math.max(0, (delay + TICK - 1) / TICK) + 1;
+        Timeout t = new Timeout(task, (int) ((ticks - 1) / WHEEL_SIZE));
+        mWheel[(int) ((mTicks + ticks) % WHEEL_SIZE)].add(t);
+        return t;
+    }
+
+    private synchronized List<Timeout> tick() {
+        mTicks++;
+        List<Timeout> expired = null;
+        Iterator<Timeout> it = mWheel[(int) (mTicks % WHEEL_SIZE)].iterator();
+        while (it.hasNext()) {
+            Timeout t = it.next();
+            if (t.mCancelled) {
+                it.remove();
+            } else if (t.mRounds > 0) {
+                t.mRounds--;
+            } else {
+                it.remove();
+                if (expired == null)
+                    expired = new ArrayList<Timeout>();
+                expired.add(t);
+            }
+        }
+        return expired;
+    }
+
+    public void run() {
+        long next = now() + TICK;
+        while (true) {
+            long now = now();
+            if (now < next) {
+                try {
+                    Thread.sleep(next - now);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "interrupted, ignoring");
+                }
+                continue;
+            }
+            next += TICK;
+
+            List<Timeout> expired = tick();
+            if (expired == null)
+                continue;
+
+            for (Timeout t : expired) {
+                if (t.mCancelled)
+                    continue;
+                try {
+                    t.mTask.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "deadline task failed", e);
+                }
+            }
+        }
+    }
+}
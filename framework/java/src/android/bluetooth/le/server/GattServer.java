@@ -0,0 +1,1176 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleProfileEventCallback;
+import com.broadcom.bt.le.api.IBleServiceCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+/**
+ * Local GATT server.
+ * <p>
+ * Keeps the attribute database of every service applications publish through
+ * the GATTServer_* binder calls: hands out handles, answers reads of
+ * declarations on its own and routes value and descriptor reads and writes
+ * to the IBleServiceCallback of the service owning the handle. Talking to
+ * remote clients is left to a {@link Transport}, so the same engine works on
+ * top of a real ATT bearer or an in memory loopback.
+ */
+public class GattServer {
+    private static final String TAG = "BT-GATT-SRV";
+
+    /**
+     * Link to remote clients. Whoever implements it reports what clients do
+     * by calling the on* methods of the GattServer and gets the answers
+     * through here. ATT allows a single outstanding request per connection,
+     * so responses carry no transaction id. Values can be shared between
+     * connections and must not be modified.
+     */
+    public interface Transport {
+        boolean connect(String address, boolean direct);
+
+        void cancelConnect(String address);
+
+        void disconnect(int connId);
+
+        void sendResponse(int connId, int status, int handle, int offset, byte[] value);
+
+        void sendNotification(int connId, int handle, byte[] value);
+
+        void sendIndication(int connId, int handle, byte[] value);
+    }
+
+    /* attribute types, see Vol 3 Part G 3.1 to 3.3 */
+    private static final int UUID_PRIMARY_SERVICE = 0x2800;
+    private static final int UUID_SECONDARY_SERVICE = 0x2801;
+    private static final int UUID_INCLUDE = 0x2802;
+    private static final int UUID_CHARACTERISTIC = 0x2803;
+
+    static final int KIND_SERVICE = 0;
+    static final int KIND_INCLUDE = 1;
+    static final int KIND_CHARACTERISTIC = 2;
+    static final int KIND_VALUE = 3;
+    static final int KIND_DESCRIPTOR = 4;
+
+    private static final int PERM_READ_MASK = BleConstants.GATT_PERM_READ
+            | BleConstants.GATT_PERM_READ_ENCRYPTED | BleConstants.GATT_PERM_READ_ENC_MITM;
+    private static final int PERM_WRITE_MASK = BleConstants.GATT_PERM_WRITE
+            | BleConstants.GATT_PERM_WRITE_ENCRYPTED | BleConstants.GATT_PERM_WRITE_ENC_MITM
+            | BleConstants.GATT_PERM_WRITE_SIGNED | BleConstants.GATT_PERM_WRITE_SIGNED_MITM;
+
+    private static final int MAX_HANDLE = 0xffff;
+    private static final int MAX_SERVER_IF = 127;
+
+    private class Profile {
+        byte serverIf;
+        BluetoothGattID appId;
+        IBleProfileEventCallback callback;
+        List<LocalService> services = new ArrayList<LocalService>();
+    }
+
+    private class LocalService {
+        BluetoothGattID id;
+        Profile profile;
+        IBleServiceCallback callback;
+        int start = -1;
+        int end = -1;
+        int next = -1;
+        boolean started = false;
+        Attribute lastChar;
+    }
+
+    private class Attribute {
+        int handle;
+        int kind;
+        BluetoothGattID uuid;
+        int permissions;
+        int properties;
+        LocalService service;
+        /* characteristic declarations point to their value, includes to the service */
+        int valueHandle;
+        LocalService included;
+        /* values only, slots of the connections with notifications enabled */
+        BitSet subscribers;
+
+        public Attribute(LocalService s, int kind, int handle, BluetoothGattID uuid) {
+            this.service = s;
+            this.kind = kind;
+            this.handle = handle;
+            this.uuid = uuid;
+        }
+    }
+
+    private class Connection {
+        int connId;
+        int slot;
+        String address;
+        int mtu = AttMtu.DEFAULT;
+        List<Attribute> subscriptions = new ArrayList<Attribute>();
+        List<LocalService> prepared = new ArrayList<LocalService>();
+        LinkedList<Attribute> indications = new LinkedList<Attribute>();
+        LinkedList<byte[]> indicationValues = new LinkedList<byte[]>();
+        boolean indicating = false;
+
+        public Connection(int connId, String address) {
+            this.connId = connId;
+            this.address = address;
+        }
+    }
+
+    /**
+     * A request handed to an application, waiting for GATTServer_SendRsp.
+     * Execute writes go to every service holding prepared writes and get
+     * answered once all of them did.
+     */
+    private class Transaction {
+        int transId;
+        Connection conn;
+        int handle;
+        int offset;
+        boolean read;
+        int remaining = 1;
+        int status = BleConstants.GATT_SUCCESS;
+    }
+
+    /**
+     * A call into an application. They are queued while holding the lock
+     * and made by deliver() once it's released, binder calls must never run
+     * under it.
+     */
+    private abstract class Callback {
+        final String name;
+
+        Callback(String name) {
+            this.name = name;
+        }
+
+        abstract void call() throws RemoteException;
+
+        /** the application is gone, runs without the lock */
+        void failed() {
+        }
+    }
+
+    private Transport mTransport;
+    private Profile[] mProfiles = new Profile[MAX_SERVER_IF + 1];
+    private List<LocalService> mRegistered = new ArrayList<LocalService>();
+    private HandleRangeTable<LocalService> mServices = new HandleRangeTable<LocalService>();
+    private HandleTable<Attribute> mAttributes = new HandleTable<Attribute>();
+    private Map<Integer, Connection> mConnections = new HashMap<Integer, Connection>();
+    /* connections by slot, the index used in the subscriber bitsets */
+    private Connection[] mSlots = new Connection[8];
+    private Map<Integer, Transaction> mTransactions = new HashMap<Integer, Transaction>();
+    private int mNextTransId = 1;
+    private LinkedList<Callback> mCallbacks = new LinkedList<Callback>();
+    private boolean mDelivering = false;
+
+    public GattServer(Transport transport) {
+        mTransport = transport;
+    }
+
+    public synchronized void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    public synchronized Transport getTransport() {
+        return mTransport;
+    }
+
+    /*
+     * Application side, called from the GATTServer_* binder methods.
+     */
+
+    public void registerProfile(BluetoothGattID appId, final IBleProfileEventCallback callback) {
+        synchronized (this) {
+            int status = BleConstants.GATT_NO_RESOURCES;
+            int serverIf = -1;
+            for (int i = 1; i <= MAX_SERVER_IF; i++) {
+                if (mProfiles[i] == null) {
+                    Profile p = new Profile();
+                    p.serverIf = (byte) i;
+                    p.appId = appId;
+                    p.callback = callback;
+                    mProfiles[i] = p;
+                    serverIf = i;
+                    status = BleConstants.GATT_SUCCESS;
+                    break;
+                }
+            }
+            if (ServerLog.verbose())
+                Log.v(TAG, "registerProfile " + appId + " -> " + serverIf);
+            final int fStatus = status;
+            final int fServerIf = serverIf;
+            post(new Callback("onAppRegisterCompleted") {
+                void call() throws RemoteException {
+                    callback.onAppRegisterCompleted(fStatus, fServerIf);
+                }
+            });
+        }
+        deliver();
+    }
+
+    public synchronized void unregisterProfile(int serverIf) {
+        Profile p = getProfile(serverIf);
+        if (p == null)
+            return;
+        if (ServerLog.verbose())
+            Log.v(TAG, "unregisterProfile " + serverIf);
+        for (LocalService s : new ArrayList<LocalService>(p.services))
+            removeService(s);
+        mProfiles[serverIf] = null;
+    }
+
+    /*
+     * true if id and svcId are the same copy of a service, the uuid and the
+     * instance id have to match. not equals(), that one skips the instance
+     * when a 16 bit id meets the 128 bit one we registered
+     */
+    private static boolean sameInstance(BluetoothGattID id, BluetoothGattID svcId) {
+        return id.sameUuid(svcId) && id.getInstanceID() == svcId.getInstanceID();
+    }
+
+    /*
+     * a registered or created service with svcId's uuid and this instance
+     */
+    private boolean instanceInUse(BluetoothGattID svcId, int instance) {
+        for (LocalService s : mRegistered)
+            if (s.id.sameUuid(svcId) && s.id.getInstanceID() == instance)
+                return true;
+        for (int i = 0; i < mServices.size(); i++) {
+            BluetoothGattID id = mServices.valueAt(i).id;
+            if (id.sameUuid(svcId) && id.getInstanceID() == instance)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Services register their callback before they exist, the instance id
+     * tells apart several copies of the same service. Each copy gets the
+     * lowest instance id none of the live ones has.
+     */
+    public void registerService(BluetoothGattID svcId, BluetoothGattID appId,
+            final IBleServiceCallback callback) {
+        synchronized (this) {
+            int instance = 0;
+            while (instanceInUse(svcId, instance))
+                instance++;
+
+            final LocalService s = new LocalService();
+            s.id = new BluetoothGattID(instance, svcId.getUuid(), svcId.getServiceType());
+            s.callback = callback;
+            mRegistered.add(s);
+            if (ServerLog.verbose())
+                Log.v(TAG, "registerService " + svcId + " instance " + instance);
+            post(new Callback("onServiceRegistered") {
+                void call() throws RemoteException {
+                    callback.onServiceRegistered((byte) BleConstants.GATT_SUCCESS, s.id);
+                }
+            });
+        }
+        deliver();
+    }
+
+    public synchronized void unregisterService(int svcHandle) {
+        LocalService s = mServices.getByStart(svcHandle);
+        if (s != null)
+            s.callback = null;
+    }
+
+    /**
+     * Reserves numHandles consecutive handles for a service registered with
+     * registerService, the first one holds the service declaration.
+     */
+    public void createService(int serverIf, BluetoothGattID svcId, int numHandles) {
+        synchronized (this) {
+            LocalService s = null;
+            for (LocalService r : mRegistered) {
+                if (sameInstance(r.id, svcId)) {
+                    s = r;
+                    break;
+                }
+            }
+            Profile p = getProfile(serverIf);
+            int start = s == null || p == null ? -1 : allocate(Math.max(numHandles, 1));
+            if (s == null) {
+                Log.e(TAG, "createService for a service that never registered " + svcId);
+            } else if (start < 0) {
+                Log.e(TAG, "can't create service " + svcId);
+                postServiceCreated(s, BleConstants.GATT_NO_RESOURCES, -1);
+            } else {
+                mRegistered.remove(s);
+                s.profile = p;
+                s.start = start;
+                s.end = start + Math.max(numHandles, 1) - 1;
+                s.next = start + 1;
+                p.services.add(s);
+                mServices.put(s.start, s.end, s);
+                int type = svcId.getServiceType() == BleConstants.GATT_SERVICE_SECONDARY ?
+                        UUID_SECONDARY_SERVICE : UUID_PRIMARY_SERVICE;
+                mAttributes.put(start, new Attribute(s, KIND_SERVICE, start,
+                        new BluetoothGattID(type)));
+                if (ServerLog.verbose())
+                    Log.v(TAG, "created service " + s.id + " [" + s.start + ", " + s.end + "]");
+                postServiceCreated(s, BleConstants.GATT_SUCCESS, start);
+            }
+        }
+        deliver();
+    }
+
+    public void addIncludedService(int svcHandle, final int includedHandle) {
+        synchronized (this) {
+            LocalService s = mServices.getByStart(svcHandle);
+            LocalService included = mServices.getByStart(includedHandle);
+            if (s != null && s.callback != null) {
+                int status = BleConstants.GATT_SUCCESS;
+                if (included == null || included == s) {
+                    status = BleConstants.GATT_ILLEGAL_PARAMETER;
+                } else {
+                    Attribute a = newAttribute(s, KIND_INCLUDE, new BluetoothGattID(UUID_INCLUDE));
+                    if (a == null)
+                        status = BleConstants.GATT_DB_FULL;
+                    else
+                        a.included = included;
+                }
+                final IBleServiceCallback callback = s.callback;
+                final int fStatus = status;
+                post(new Callback("onIncludedServiceAdded") {
+                    void call() throws RemoteException {
+                        callback.onIncludedServiceAdded((byte) fStatus, includedHandle);
+                    }
+                });
+            }
+        }
+        deliver();
+    }
+
+    /**
+     * Adds a characteristic declaration plus its value, the value handle is
+     * the one applications get back and use from then on.
+     */
+    public void addCharacteristic(int svcHandle, final BluetoothGattID charId,
+            int permissions, int properties) {
+        synchronized (this) {
+            LocalService s = mServices.getByStart(svcHandle);
+            if (s != null) {
+                int status = BleConstants.GATT_DB_FULL;
+                int handle = -1;
+                if (s.next + 1 <= s.end) {
+                    Attribute decl = newAttribute(s, KIND_CHARACTERISTIC,
+                            new BluetoothGattID(UUID_CHARACTERISTIC));
+                    Attribute value = newAttribute(s, KIND_VALUE, charId);
+                    decl.properties = properties;
+                    decl.valueHandle = value.handle;
+                    value.permissions = permissions;
+                    value.properties = properties;
+                    value.subscribers = new BitSet();
+                    s.lastChar = value;
+                    handle = value.handle;
+                    status = BleConstants.GATT_SUCCESS;
+                }
+                if (ServerLog.verbose())
+                    Log.v(TAG, "addCharacteristic " + charId + " -> " + handle);
+                final IBleServiceCallback callback = s.callback;
+                final int fStatus = status;
+                final int fHandle = handle;
+                if (callback != null)
+                    post(new Callback("onCharacteristicAdded") {
+                        void call() throws RemoteException {
+                            callback.onCharacteristicAdded((byte) fStatus, charId, fHandle);
+                        }
+                    });
+            }
+        }
+        deliver();
+    }
+
+    /**
+     * Descriptors belong to the characteristic added last.
+     */
+    public void addDescriptor(int svcHandle, int permissions, final BluetoothGattID descId) {
+        synchronized (this) {
+            LocalService s = mServices.getByStart(svcHandle);
+            if (s != null) {
+                int status = BleConstants.GATT_SUCCESS;
+                int handle = -1;
+                Attribute a = null;
+                if (s.lastChar == null)
+                    status = BleConstants.GATT_WRONG_STATE;
+                else if ((a = newAttribute(s, KIND_DESCRIPTOR, descId)) == null)
+                    status = BleConstants.GATT_DB_FULL;
+                else {
+                    a.permissions = permissions;
+                    a.valueHandle = s.lastChar.handle;
+                    handle = a.handle;
+                }
+                if (ServerLog.verbose())
+                    Log.v(TAG, "addDescriptor " + descId + " -> " + handle);
+                final IBleServiceCallback callback = s.callback;
+                final int fStatus = status;
+                final int fHandle = handle;
+                if (callback != null)
+                    post(new Callback("onCharacteristicDescrAdded") {
+                        void call() throws RemoteException {
+                            callback.onCharacteristicDescrAdded((byte) fStatus, descId, fHandle);
+                        }
+                    });
+            }
+        }
+        deliver();
+    }
+
+    public void startService(int svcHandle) {
+        synchronized (this) {
+            LocalService s = mServices.getByStart(svcHandle);
+            if (s != null) {
+                s.started = true;
+                final IBleServiceCallback callback = s.callback;
+                if (callback != null)
+                    post(new Callback("onServiceStarted") {
+                        void call() throws RemoteException {
+                            callback.onServiceStarted((byte) BleConstants.GATT_SUCCESS);
+                        }
+                    });
+            }
+        }
+        deliver();
+    }
+
+    public void stopService(int svcHandle) {
+        synchronized (this) {
+            LocalService s = mServices.getByStart(svcHandle);
+            if (s != null) {
+                s.started = false;
+                final IBleServiceCallback callback = s.callback;
+                if (callback != null)
+                    post(new Callback("onServiceStopped") {
+                        void call() throws RemoteException {
+                            callback.onServiceStopped((byte) BleConstants.GATT_SUCCESS);
+                        }
+                    });
+            }
+        }
+        deliver();
+    }
+
+    public void deleteService(int svcHandle) {
+        synchronized (this) {
+            LocalService s = mServices.getByStart(svcHandle);
+            if (s != null) {
+                final IBleServiceCallback callback = s.callback;
+                removeService(s);
+                if (callback != null)
+                    post(new Callback("onServiceDeleted") {
+                        void call() throws RemoteException {
+                            callback.onServiceDeleted((byte) BleConstants.GATT_SUCCESS);
+                        }
+                    });
+            }
+        }
+        deliver();
+    }
+
+    /**
+     * Answers a request previously handed to an application.
+     */
+    public void sendResponse(int connId, int transId, int status, int handle,
+            int offset, byte[] value) {
+        try {
+            synchronized (this) {
+                Transaction t = mTransactions.get(transId);
+                if (t == null || t.conn.connId != connId) {
+                    Log.e(TAG, "response for unknown transaction " + transId);
+                    return;
+                }
+
+                if (status != BleConstants.GATT_SUCCESS)
+                    t.status = status;
+                if (--t.remaining > 0)
+                    return;
+                mTransactions.remove(transId);
+
+                if (t.read && value != null && t.status == BleConstants.GATT_SUCCESS) {
+                    int max = AttMtu.readPayload(t.conn.mtu);
+                    if (value.length > max) {
+                        byte[] v = new byte[max];
+                        System.arraycopy(value, 0, v, 0, max);
+                        value = v;
+                    }
+                }
+
+                Transport transport = mTransport;
+                if (transport != null && mConnections.containsKey(connId))
+                    transport.sendResponse(connId, t.status, t.handle, t.offset, value);
+
+                LocalService s = mServices.find(t.handle);
+                if (s != null && s.callback != null) {
+                    final IBleServiceCallback callback = s.callback;
+                    final Transaction done = t;
+                    post(new Callback("onResponseSendCompleted") {
+                        void call() throws RemoteException {
+                            callback.onResponseSendCompleted((byte) done.status, done.handle);
+                        }
+                    });
+                }
+            }
+        } finally {
+            deliver();
+        }
+    }
+
+    public void sendNotification(int connId, int handle, byte[] value) {
+        synchronized (this) {
+            Attribute a = mAttributes.get(handle);
+            Connection c = mConnections.get(connId);
+            int status = BleConstants.GATT_SUCCESS;
+            Transport transport = mTransport;
+            if (a == null || a.kind != KIND_VALUE)
+                status = BleConstants.GATT_INVALID_HANDLE;
+            else if (c == null || transport == null)
+                status = BleConstants.GATT_ERROR;
+            else
+                transport.sendNotification(connId, handle, clip(value, AttMtu.writePayload(c.mtu)));
+            if (a != null)
+                postNotificationCompleted(a, status);
+        }
+        deliver();
+    }
+
+    /**
+     * Sends value to every client that enabled notifications on handle
+     * through its client configuration descriptor. The same array goes to
+     * all of them, it's only copied once per MTU for clients that can't
+     * take it whole.
+     */
+    public void broadcastNotification(int handle, byte[] value) {
+        synchronized (this) {
+            Attribute a = mAttributes.get(handle);
+            Transport transport = mTransport;
+            int status = BleConstants.GATT_SUCCESS;
+            if (a == null || a.kind != KIND_VALUE)
+                status = BleConstants.GATT_INVALID_HANDLE;
+            else if (transport == null)
+                status = BleConstants.GATT_ERROR;
+            else {
+                int len = value == null ? 0 : value.length;
+                byte[] clipped = null;
+                for (int i = a.subscribers.nextSetBit(0); i >= 0;
+                        i = a.subscribers.nextSetBit(i + 1)) {
+                    Connection c = mSlots[i];
+                    int max = AttMtu.writePayload(c.mtu);
+                    if (len <= max) {
+                        transport.sendNotification(c.connId, handle, value);
+                        continue;
+                    }
+                    if (clipped == null || clipped.length != max)
+                        clipped = clip(value, max);
+                    transport.sendNotification(c.connId, handle, clipped);
+                }
+            }
+            if (a != null)
+                postNotificationCompleted(a, status);
+        }
+        deliver();
+    }
+
+    /**
+     * Indications need a confirmation before the next one can go, extra ones
+     * wait in a per connection queue.
+     */
+    public void sendIndication(int connId, int handle, byte[] value) {
+        synchronized (this) {
+            Attribute a = mAttributes.get(handle);
+            Connection c = mConnections.get(connId);
+            if (a == null || a.kind != KIND_VALUE || c == null || mTransport == null) {
+                if (a != null)
+                    postIndicationCompleted(a, BleConstants.GATT_ERROR);
+            } else {
+                c.indications.add(a);
+                c.indicationValues.add(clip(value, AttMtu.writePayload(c.mtu)));
+                if (!c.indicating)
+                    nextIndication(c);
+            }
+        }
+        deliver();
+    }
+
+    /*
+     * A transport may report back right from these, whatever that queued
+     * gets delivered on the way out.
+     */
+
+    public void open(int serverIf, String address, boolean direct) {
+        synchronized (this) {
+            Transport transport = mTransport;
+            if (getProfile(serverIf) == null || transport == null
+                    || !transport.connect(address, direct))
+                Log.e(TAG, "can't open connection to " + address);
+        }
+        deliver();
+    }
+
+    public void cancelOpen(int serverIf, String address) {
+        synchronized (this) {
+            if (mTransport != null)
+                mTransport.cancelConnect(address);
+        }
+        deliver();
+    }
+
+    public void close(int connId) {
+        synchronized (this) {
+            if (mTransport != null && mConnections.containsKey(connId))
+                mTransport.disconnect(connId);
+        }
+        deliver();
+    }
+
+    /*
+     * Remote side, called by the Transport.
+     */
+
+    public void onClientConnected(int connId, String address) {
+        synchronized (this) {
+            if (ServerLog.verbose())
+                Log.v(TAG, "client connected " + address + " " + connId);
+            Connection c = new Connection(connId, address);
+            c.slot = allocateSlot(c);
+            Connection old = mConnections.put(connId, c);
+            if (old != null)
+                releaseSlot(old);
+            postClientConnected(connId, address, true);
+        }
+        deliver();
+    }
+
+    public void onClientDisconnected(int connId) {
+        synchronized (this) {
+            Connection c = mConnections.remove(connId);
+            if (c != null) {
+                if (ServerLog.verbose())
+                    Log.v(TAG, "client disconnected " + c.address + " " + connId);
+                releaseSlot(c);
+                for (Transaction t : new ArrayList<Transaction>(mTransactions.values()))
+                    if (t.conn == c)
+                        mTransactions.remove(t.transId);
+                postClientConnected(connId, c.address, false);
+            }
+        }
+        deliver();
+    }
+
+    public void onMtuExchange(final int connId, final int mtu) {
+        synchronized (this) {
+            final Connection c = mConnections.get(connId);
+            if (c != null && AttMtu.isValid(mtu)) {
+                c.mtu = mtu;
+                for (Profile p : mProfiles) {
+                    if (p == null)
+                        continue;
+                    final IBleProfileEventCallback callback = p.callback;
+                    post(new Callback("onAttributeMtuExchange") {
+                        void call() throws RemoteException {
+                            callback.onAttributeMtuExchange(c.address, connId, 0, mtu);
+                        }
+                    });
+                }
+            }
+        }
+        deliver();
+    }
+
+    public void onReadRequest(final int connId, final int handle, final int offset) {
+        try {
+            synchronized (this) {
+                final Connection c = mConnections.get(connId);
+                if (c == null)
+                    return;
+
+                Attribute a = getVisibleAttribute(handle);
+                if (a == null) {
+                    respond(c, BleConstants.GATT_INVALID_HANDLE, handle, offset, null);
+                    return;
+                }
+
+                if (a.kind == KIND_SERVICE || a.kind == KIND_INCLUDE
+                        || a.kind == KIND_CHARACTERISTIC) {
+                    byte[] value = getDeclaration(a);
+                    if (offset > value.length) {
+                        respond(c, BleConstants.GATT_INVALID_OFFSET, handle, offset, null);
+                        return;
+                    }
+                    byte[] ret = new byte[Math.min(value.length - offset,
+                            AttMtu.readPayload(c.mtu))];
+                    System.arraycopy(value, offset, ret, 0, ret.length);
+                    respond(c, BleConstants.GATT_SUCCESS, handle, offset, ret);
+                    return;
+                }
+
+                if ((a.permissions & PERM_READ_MASK) == 0) {
+                    respond(c, BleConstants.GATT_READ_NOT_PERMIT, handle, offset, null);
+                    return;
+                }
+
+                final Transaction t = newTransaction(c, handle, offset, true);
+                final IBleServiceCallback callback = a.service.callback;
+                post(new Callback("onAttributeRequestRead") {
+                    void call() throws RemoteException {
+                        callback.onAttributeRequestRead(c.address, connId, t.transId, handle,
+                                offset, offset > 0);
+                    }
+
+                    void failed() {
+                        abort(t, BleConstants.GATT_INTERNAL_ERROR);
+                    }
+                });
+            }
+        } finally {
+            deliver();
+        }
+    }
+
+    /**
+     * @param needRsp false for write commands, nothing goes back to the
+     *            client for those.
+     * @param isPrep true for prepare write requests, the application queues
+     *            them until onExecuteWrite.
+     */
+    public void onWriteRequest(final int connId, final int handle, final int offset,
+            final byte[] value, final boolean needRsp, final boolean isPrep) {
+        try {
+            synchronized (this) {
+                final Connection c = mConnections.get(connId);
+                if (c == null)
+                    return;
+
+                Attribute a = getVisibleAttribute(handle);
+                int status = BleConstants.GATT_SUCCESS;
+                if (a == null)
+                    status = BleConstants.GATT_INVALID_HANDLE;
+                else if ((a.kind != KIND_VALUE && a.kind != KIND_DESCRIPTOR) ||
+                        (a.permissions & PERM_WRITE_MASK) == 0)
+                    status = BleConstants.GATT_WRITE_NOT_PERMIT;
+                if (status != BleConstants.GATT_SUCCESS) {
+                    if (needRsp)
+                        respond(c, status, handle, offset, null);
+                    return;
+                }
+
+                if (isPrep && !c.prepared.contains(a.service))
+                    c.prepared.add(a.service);
+                else if (!isPrep && a.kind == KIND_DESCRIPTOR && offset == 0)
+                    updateSubscription(c, a, value);
+
+                final Transaction t = needRsp ? newTransaction(c, handle, offset, false) : null;
+                final IBleServiceCallback callback = a.service.callback;
+                post(new Callback("onAttributeRequestWrite") {
+                    void call() throws RemoteException {
+                        callback.onAttributeRequestWrite(c.address, connId,
+                                t == null ? 0 : t.transId, handle, isPrep,
+                                value == null ? 0 : value.length, needRsp, offset, value);
+                    }
+
+                    void failed() {
+                        if (t != null)
+                            abort(t, BleConstants.GATT_INTERNAL_ERROR);
+                    }
+                });
+            }
+        } finally {
+            deliver();
+        }
+    }
+
+    public void onExecuteWrite(final int connId, final boolean execute) {
+        try {
+            synchronized (this) {
+                final Connection c = mConnections.get(connId);
+                if (c == null)
+                    return;
+
+                List<LocalService> services = new ArrayList<LocalService>();
+                for (LocalService s : c.prepared)
+                    if (s.callback != null)
+                        services.add(s);
+                c.prepared.clear();
+                if (services.isEmpty()) {
+                    respond(c, BleConstants.GATT_SUCCESS, 0, 0, null);
+                    return;
+                }
+
+                final Transaction t = newTransaction(c, 0, 0, false);
+                t.remaining = services.size();
+                for (LocalService s : services) {
+                    final IBleServiceCallback callback = s.callback;
+                    post(new Callback("onAttributeExecWrite") {
+                        void call() throws RemoteException {
+                            callback.onAttributeExecWrite(c.address, connId, t.transId,
+                                    execute ? 1 : 0);
+                        }
+
+                        void failed() {
+                            sendResponse(connId, t.transId, BleConstants.GATT_INTERNAL_ERROR,
+                                    0, 0, null);
+                        }
+                    });
+                }
+            }
+        } finally {
+            deliver();
+        }
+    }
+
+    public void onIndicationConfirmed(int connId) {
+        try {
+            synchronized (this) {
+                Connection c = mConnections.get(connId);
+                if (c == null || !c.indicating)
+                    return;
+                Attribute a = c.indications.removeFirst();
+                c.indicationValues.removeFirst();
+                c.indicating = false;
+                postIndicationCompleted(a, BleConstants.GATT_SUCCESS);
+                if (!c.indications.isEmpty())
+                    nextIndication(c);
+            }
+        } finally {
+            deliver();
+        }
+    }
+
+    /**
+     * Type of the attribute at handle, null if there's nothing visible
+     * there. Lets a transport walk the database for discovery requests.
+     */
+    public synchronized BluetoothGattID getAttributeType(int handle) {
+        Attribute a = getVisibleAttribute(handle);
+        return a == null ? null : a.uuid;
+    }
+
+    /**
+     * Last handle of the service containing handle, -1 if none.
+     */
+    public synchronized int getServiceEnd(int handle) {
+        LocalService s = mServices.find(handle);
+        return s == null || !s.started ? -1 : s.end;
+    }
+
+    /*
+     * Internals
+     */
+
+    private Profile getProfile(int serverIf) {
+        if (serverIf < 1 || serverIf > MAX_SERVER_IF)
+            return null;
+        return mProfiles[serverIf];
+    }
+
+    /**
+     * First fit search for count free handles, -1 if they don't fit.
+     */
+    private int allocate(int count) {
+        int start = 1;
+        for (int i = 0; i < mServices.size(); i++) {
+            if (mServices.startAt(i) - start >= count)
+                return start;
+            start = mServices.endAt(i) + 1;
+        }
+        return MAX_HANDLE - start + 1 >= count ? start : -1;
+    }
+
+    private Attribute newAttribute(LocalService s, int kind, BluetoothGattID uuid) {
+        if (s.next > s.end)
+            return null;
+        Attribute a = new Attribute(s, kind, s.next++, uuid);
+        mAttributes.put(a.handle, a);
+        return a;
+    }
+
+    private void removeService(LocalService s) {
+        for (int h = s.start; h <= s.end; h++)
+            mAttributes.remove(h);
+        mServices.remove(s.start);
+        if (s.profile != null)
+            s.profile.services.remove(s);
+        for (Connection c : mConnections.values()) {
+            c.prepared.remove(s);
+            for (int i = c.subscriptions.size() - 1; i >= 0; i--)
+                if (c.subscriptions.get(i).service == s)
+                    c.subscriptions.remove(i);
+            // the one on the air still gets confirmed, the queued ones never go
+            for (int i = c.indications.size() - 1; i >= (c.indicating ? 1 : 0); i--) {
+                if (c.indications.get(i).service == s) {
+                    c.indications.remove(i);
+                    c.indicationValues.remove(i);
+                }
+            }
+        }
+        s.started = false;
+        s.callback = null;
+    }
+
+    private Attribute getVisibleAttribute(int handle) {
+        Attribute a = mAttributes.get(handle);
+        if (a == null || !a.service.started || a.service.callback == null)
+            return null;
+        return a;
+    }
+
+    private int allocateSlot(Connection c) {
+        int slot = 0;
+        while (slot < mSlots.length && mSlots[slot] != null)
+            slot++;
+        if (slot == mSlots.length) {
+            Connection[] slots = new Connection[mSlots.length * 2];
+            System.arraycopy(mSlots, 0, slots, 0, mSlots.length);
+            mSlots = slots;
+        }
+        mSlots[slot] = c;
+        return slot;
+    }
+
+    private void releaseSlot(Connection c) {
+        for (Attribute a : c.subscriptions)
+            a.subscribers.clear(c.slot);
+        c.subscriptions.clear();
+        if (mSlots[c.slot] == c)
+            mSlots[c.slot] = null;
+    }
+
+    /**
+     * Keeps the subscriber set of a characteristic in sync with what the
+     * client writes to its client configuration descriptor. The application
+     * still gets the write.
+     */
+    private void updateSubscription(Connection c, Attribute cccd, byte[] value) {
+        if (cccd.uuid.getUuid16() != BleConstants.GATT_UUID_CHAR_CLIENT_CONFIG16
+                || value == null || value.length == 0)
+            return;
+        Attribute a = mAttributes.get(cccd.valueHandle);
+        if (a == null || a.subscribers == null)
+            return;
+        boolean enable = (value[0] & BleConstants.GATT_CLIENT_CONFIG_NOTIFICATION_BIT) != 0;
+        if (enable == a.subscribers.get(c.slot))
+            return;
+        if (enable) {
+            a.subscribers.set(c.slot);
+            c.subscriptions.add(a);
+        } else {
+            a.subscribers.clear(c.slot);
+            c.subscriptions.remove(a);
+        }
+    }
+
+    private Transaction newTransaction(Connection c, int handle, int offset, boolean read) {
+        Transaction t = new Transaction();
+        t.transId = mNextTransId++;
+        if (mNextTransId <= 0)
+            mNextTransId = 1;
+        t.conn = c;
+        t.handle = handle;
+        t.offset = offset;
+        t.read = read;
+        mTransactions.put(t.transId, t);
+        return t;
+    }
+
+    private void respond(Connection c, int status, int handle, int offset, byte[] value) {
+        Transport transport = mTransport;
+        if (transport != null)
+            transport.sendResponse(c.connId, status, handle, offset, value);
+    }
+
+    /**
+     * Fails a request the application will never answer.
+     */
+    private synchronized void abort(Transaction t, int status) {
+        if (mTransactions.remove(t.transId) != null && mConnections.get(t.conn.connId) == t.conn)
+            respond(t.conn, status, t.handle, t.offset, null);
+    }
+
+    private void nextIndication(Connection c) {
+        Transport transport = mTransport;
+        if (transport == null) {
+            // nothing to send them through anymore
+            for (Attribute a : c.indications)
+                postIndicationCompleted(a, BleConstants.GATT_ERROR);
+            c.indications.clear();
+            c.indicationValues.clear();
+            c.indicating = false;
+            return;
+        }
+        c.indicating = true;
+        transport.sendIndication(c.connId, c.indications.getFirst().handle,
+                c.indicationValues.getFirst());
+    }
+
+    private void post(Callback c) {
+        mCallbacks.add(c);
+    }
+
+    /**
+     * Makes the queued calls. Only one thread at a time does it so they
+     * keep their order, the others leave theirs to it. Does nothing while
+     * the lock is held, the outermost call delivers once it's released.
+     */
+    private void deliver() {
+        if (Thread.holdsLock(this))
+            return;
+        synchronized (this) {
+            if (mDelivering || mCallbacks.isEmpty())
+                return;
+            mDelivering = true;
+        }
+        Callback c = null;
+        try {
+            while ((c = nextCallback()) != null) {
+                try {
+                    c.call();
+                } catch (RemoteException e) {
+                    Log.e(TAG, "error while doing " + c.name, e);
+                    c.failed();
+                }
+            }
+        } finally {
+            // the call threw, don't keep everyone else from delivering
+            if (c != null)
+                synchronized (this) {
+                    mDelivering = false;
+                }
+        }
+    }
+
+    private synchronized Callback nextCallback() {
+        Callback c = mCallbacks.poll();
+        if (c == null)
+            mDelivering = false;
+        return c;
+    }
+
+    private void postClientConnected(final int connId, final String address,
+            final boolean connected) {
+        for (Profile p : mProfiles) {
+            if (p == null)
+                continue;
+            final IBleProfileEventCallback callback = p.callback;
+            post(new Callback("onClientConnected") {
+                void call() throws RemoteException {
+                    callback.onClientConnected(connId, address, connected);
+                }
+            });
+        }
+    }
+
+    private void postServiceCreated(LocalService s, final int status, final int handle) {
+        final IBleServiceCallback callback = s.callback;
+        if (callback == null)
+            return;
+        post(new Callback("onServiceCreated") {
+            void call() throws RemoteException {
+                callback.onServiceCreated((byte) status, handle);
+            }
+        });
+    }
+
+    private void postNotificationCompleted(final Attribute a, final int status) {
+        final IBleServiceCallback callback = a.service.callback;
+        if (callback == null)
+            return;
+        post(new Callback("onHandleValueNotificationCompleted") {
+            void call() throws RemoteException {
+                callback.onHandleValueNotificationCompleted((byte) status, a.handle);
+            }
+        });
+    }
+
+    private void postIndicationCompleted(final Attribute a, final int status) {
+        final IBleServiceCallback callback = a.service.callback;
+        if (callback == null)
+            return;
+        post(new Callback("onHandleValueIndicationCompleted") {
+            void call() throws RemoteException {
+                callback.onHandleValueIndicationCompleted((byte) status, a.handle);
+            }
+        });
+    }
+
+    private static byte[] clip(byte[] value, int max) {
+        if (value == null || value.length <= max)
+            return value;
+        byte[] ret = new byte[max];
+        System.arraycopy(value, 0, ret, 0, max);
+        return ret;
+    }
+
+    /**
+     * Little endian form of a UUID as it goes on the air, 2 bytes for SIG
+     * UUIDs and 16 for everything else.
+     */
+    private static byte[] uuidBytes(BluetoothGattID uuid) {
+        int u16 = uuid.getUuid16();
+        if (u16 > -1)
+            return new byte[] { (byte) u16, (byte) (u16 >> 8) };
+        byte[] ret = new byte[16];
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            ret[i] = (byte) (lsb >>> (8 * i));
+            ret[i + 8] = (byte) (msb >>> (8 * i));
+        }
+        return ret;
+    }
+
+    private byte[] getDeclaration(Attribute a) {
+        switch (a.kind) {
+            case KIND_SERVICE:
+                return uuidBytes(a.service.id);
+            case KIND_INCLUDE: {
+                LocalService inc = a.included;
+                byte[] uuid = uuidBytes(inc.id);
+                byte[] ret = new byte[4 + (uuid.length == 2 ? 2 : 0)];
+                ret[0] = (byte) inc.start;
+                ret[1] = (byte) (inc.start >> 8);
+                ret[2] = (byte) inc.end;
+                ret[3] = (byte) (inc.end >> 8);
+                if (uuid.length == 2)
+                    System.arraycopy(uuid, 0, ret, 4, 2);
+                return ret;
+            }
+            case KIND_CHARACTERISTIC: {
+                byte[] uuid = uuidBytes(mAttributes.get(a.valueHandle).uuid);
+                byte[] ret = new byte[3 + uuid.length];
+                ret[0] = (byte) a.properties;
+                ret[1] = (byte) a.valueHandle;
+                ret[2] = (byte) (a.valueHandle >> 8);
+                System.arraycopy(uuid, 0, ret, 3, uuid.length);
+                return ret;
+            }
+        }
+        return new byte[0];
+    }
+}
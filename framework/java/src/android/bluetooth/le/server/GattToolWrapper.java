@@ -17,7 +17,10 @@
 package android.bluetooth.le.server;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,6 +40,8 @@ interface internalGattToolListener {
 public class GattToolWrapper implements Worker.Handler, internalGattToolListener {
     private Worker mWorker;
     private GattToolListener mListener;
+    private final long mStartedAt = System.nanoTime();
+    private int mConnHandle = hashCode();
 
     private enum STATUS {
         IDLE, CONNECTING, CONNECTED, DISCONNECTING, PRIMARY_DISCOVERY, PRIMARY_DISCOVERY_UUID, CHARACTERISTICS_DISCOVERY, CHARACTERISTICS_DESCRIPTOR_DISCOVERY, CHARACTERISTICS_READ_UUID, CHARACTERISTICS_READ_HANDLE, CHARACTERISTIC_WRITE_REQ, CHARACTERISTIC_WRITE_CMD, SET_SEC_LEVEL, SET_MTU, SET_PSM
@@ -44,10 +49,31 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
 
     private STATUS mStatus = STATUS.IDLE;
 
-    public synchronized static GattToolWrapper getWorker() {
+    public static GattToolWrapper getWorker() {
+        GattToolWrapper w;
+        synchronized (GattToolWrapper.class) {
+            while ((w = sStandby.poll()) != null) {
+                // nobody reads standby workers while they wait, see WorkerReader
+                Worker worker = w.mWorker;
+                if (worker == null || !worker.isAlive()) {
+                    Log.e(TAG, "standby worker exited while waiting");
+                    w.releaseWorker();
+                    continue;
+                }
+                worker.setStandby(false);
+                if (ServerLog.verbose())
+                    Log.v(TAG, "handing out standby worker, " + sStandby.size() + " left");
+                sStandbyHits.incrementAndGet();
+                refillStandby();
+                return w;
+            }
+        }
+
+        // started without the class lock, EOF takes it on the dispatch pool
         Log.e(TAG, "creating new worker");
         try {
-            GattToolWrapper w = new GattToolWrapper();
+            w = new GattToolWrapper();
+            refillStandby();
             return w;
         } catch (IOException e) {
             Log.e(TAG, "failed to create new wrapper", e);
@@ -55,10 +81,37 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         return null;
     }
 
+    /**
+     * Connection handle this wrapper reports on every callback.
+     */
+    public synchronized int getConnHandle() {
+        return mConnHandle;
+    }
+
+    /**
+     * Makes a new wrapper report the handle of the one it replaces, so a
+     * connection brought back after gatttool died keeps its id.
+     */
+    public synchronized void setConnHandle(int handle) {
+        mConnHandle = handle;
+    }
+
+    /**
+     * Tells the reader notifications are enabled on this connection, see
+     * {@link Worker#setNotifying(boolean)}.
+     */
+    public void setNotifying(boolean notifying) {
+        Worker w = mWorker;
+        if (w != null)
+            w.setNotifying(notifying);
+    }
+
     public void releaseWorker() {
-        Log.v(TAG, "releaseWorker");
+        if (ServerLog.verbose())
+            Log.v(TAG, "releaseWorker");
         if (mWorker == null) {
-            Log.v(TAG, "release worker called twice");
+            if (ServerLog.verbose())
+                Log.v(TAG, "release worker called twice");
             // everything cleared cool
             return;
         }
@@ -67,9 +120,11 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
             mListener = null;
             mWorker.quit();
             mWorker = null;
+            sReleased.incrementAndGet();
             this.notifyAll();
         }
-        Log.v(TAG, "worker released");
+        if (ServerLog.verbose())
+            Log.v(TAG, "worker released");
     }
     
     public synchronized void commandCompleted() {
@@ -79,17 +134,32 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         if (mStatus == STATUS.CONNECTING || mStatus == STATUS.DISCONNECTING) {
-            Log.v(TAG, "command completed with [dis]connecting status");
+            if (ServerLog.verbose())
+                Log.v(TAG, "command completed with [dis]connecting status");
             this.notifyAll();
             return;
         }
 
-        Log.v(TAG, "command completed");
+        if (ServerLog.verbose())
+            Log.v(TAG, "command completed");
 
         mStatus = STATUS.CONNECTED;
         this.notifyAll(); // allow only one command to go into the queue
     }
 
+    /**
+     * Gives up on the running command, used when it didn't answer in time so
+     * the connection can take the next command, and wakes up anyone waiting.
+     */
+    public synchronized void abortCommand() {
+        Log.e(TAG, "aborting command, status " + mStatus);
+        if (mStatus == STATUS.CONNECTING || mStatus == STATUS.SET_PSM)
+            mStatus = STATUS.IDLE;
+        else if (mStatus != STATUS.IDLE && mStatus != STATUS.DISCONNECTING)
+            mStatus = STATUS.CONNECTED;
+        this.notifyAll();
+    }
+
     public synchronized void connected() {
         this.mStatus = STATUS.CONNECTED;
     }
@@ -99,12 +169,17 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
     }
 
     private synchronized boolean sendCommand(String i) {
-        Log.v(TAG, "sendCommand " + i);
+        if (ServerLog.verbose())
+            Log.v(TAG, "sendCommand " + i);
         try {
             mWorker.getOutputStream().writeChars(i + "\n");
+            mWorker.commandSent();
+            sCommandsSent.incrementAndGet();
+            TraceRing.record(TraceRing.COMMAND_SENT, mConnHandle, TraceRing.pack(i));
             return true;
         } catch (IOException e) {
             Log.e(TAG, "something went wrong", e);
+            sCommandsFailed.incrementAndGet();
             return false;
         }
     }
@@ -120,7 +195,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.CONNECTING;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
         return sendCommand("connect " + address + " " + address_type);
     }
 
@@ -129,13 +205,15 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
             if (mStatus != STATUS.IDLE)
                 Log.e(TAG, "not connected");
             else {
-                Log.v(TAG, "some command is running can't disconnect");
+                if (ServerLog.verbose())
+                    Log.v(TAG, "some command is running can't disconnect");
             }
             return false;
         }
 
         mStatus = STATUS.DISCONNECTING;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
         return sendCommand("disconnect");*/
         
         Log.e(TAG, "disconnect asked, releasing worker and letting BlueZ handle the pain");
@@ -151,7 +229,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.SET_PSM;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
         return sendCommand("psm " + psm);
     }
 
@@ -162,7 +241,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.SET_MTU;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
         return sendCommand("mtu " + mtu);
     }
 
@@ -177,7 +257,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         //mStatus = STATUS.SET_MTU;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
         return sendCommand("sec-level " + level.toString().toLowerCase());
     }
 
@@ -192,7 +273,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.PRIMARY_DISCOVERY;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
         return sendCommand("primary");
     }
 
@@ -203,7 +285,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.PRIMARY_DISCOVERY_UUID;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         String u = uuid.toString();
 
@@ -245,7 +328,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.CHARACTERISTICS_DISCOVERY;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         return sendCommand("characteristics " + args);
     }
@@ -275,7 +359,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         mStatus = STATUS.CHARACTERISTICS_DESCRIPTOR_DISCOVERY;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         return sendCommand("char-desc " + args);
     }
@@ -293,11 +378,14 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
 
         String args = "";
 
+        // gatttool parses the offset with strtol base 0, so it needs the
+        // prefix or it would be taken as octal
         if (offset != null)
-            args += IntegralToString.intToHexString(offset, true, 4);
+            args += "0x" + IntegralToString.intToHexString(offset, true, 4);
 
         mStatus = STATUS.CHARACTERISTICS_READ_HANDLE;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         return sendCommand("char-read-hnd" + " "
                 + IntegralToString.intToHexString(handle, true, 4) + " " + args);
@@ -323,7 +411,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
                 args += " " + IntegralToString.intToHexString(end, true, 4);
         }
         mStatus = STATUS.CHARACTERISTICS_READ_UUID;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         return sendCommand("char-read-uuid " + uuid + " " + args);
     }
@@ -347,7 +436,8 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         }
 
         while (mStatus != STATUS.CONNECTED) {
-            Log.v(TAG, "a command is running can't start write char req");
+            if (ServerLog.verbose())
+                Log.v(TAG, "a command is running can't start write char req");
             try {
                 this.wait();
             } catch (InterruptedException e) {
@@ -366,31 +456,45 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
             args += toSignedByteString(val[i]);
 
         mStatus = STATUS.CHARACTERISTIC_WRITE_REQ;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         return sendCommand("char-write-req "
                 + IntegralToString.intToHexString(handle, true, 4) + " " + args);
     }
 
     public synchronized boolean writeCharCmd(int handle, byte[] val) {
+        if (val == null || val.length == 0) {
+            Log.e(TAG, "you need to pass a value to write");
+            return false;
+        }
+
+        return writeCharCmd(handle, val, 0, val.length);
+    }
+
+    /**
+     * Writes val[offset, offset+length) without response, lets callers split
+     * a long value in MTU sized commands without copying it.
+     */
+    public synchronized boolean writeCharCmd(int handle, byte[] val, int offset, int length) {
         if (mStatus == STATUS.IDLE || mStatus == STATUS.CONNECTING) {
             Log.e(TAG, "not connected");
             return false;
         }
 
-
-        if (val == null || val.length == 0) {
+        if (val == null || length <= 0) {
             Log.e(TAG, "you need to pass a value to write");
             return false;
         }
 
-        String args = "";
+        StringBuilder args = new StringBuilder(length * 2);
 
-        for (int i = 0; i < val.length; i++)
-            args += toSignedByteString(val[i]);
+        for (int i = offset; i < offset + length; i++)
+            args.append(toSignedByteString(val[i]));
 
         mStatus = STATUS.CHARACTERISTIC_WRITE_CMD;
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
 
         return sendCommand("char-write-cmd "
                 + IntegralToString.intToHexString(handle, true, 4) + " " + args);
@@ -399,8 +503,192 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
     private static final String TOOL = "/system/bin/gatttool-btle";
     public static String TAG = "GATTTOOL";
 
+    /**
+     * Starts the process new wrappers talk to, lets tests put a simulated
+     * gatttool in place of the real one.
+     */
+    public interface ProcessFactory {
+        Process start() throws IOException;
+    }
+
+    private static ProcessFactory sProcessFactory = null;
+
+    /**
+     * @param factory null goes back to running the real gatttool.
+     */
+    public static synchronized void setProcessFactory(ProcessFactory factory) {
+        sProcessFactory = factory;
+        // the standby workers run whatever the old factory started
+        sStandbyGeneration++;
+        dropStandby();
+    }
+
+    /*
+     * Workers started ahead of time so getWorker doesn't have to wait for
+     * gatttool to start, all guarded by the class lock. A helper thread
+     * tops the list up after every hand out. Standby workers that exit
+     * within QUICK_EXIT_NS of starting are likely to do it again, after
+     * MAX_QUICK_EXITS in a row the list isn't topped up until the next hand
+     * out. Past their start the reader leaves them alone, one that exited
+     * meanwhile is dropped when getWorker comes across it.
+     */
+    private static final long QUICK_EXIT_NS = Worker.STARTUP_NS;
+    private static final int MAX_QUICK_EXITS = 3;
+    private static final LinkedList<GattToolWrapper> sStandby = new LinkedList<GattToolWrapper>();
+    private static int sStandbyTarget = 0;
+    private static int sStandbyGeneration = 0;
+    private static boolean sStandbyFilling = false;
+    private static boolean sStandbyPaused = false;
+    private static int sStandbyQuickExits = 0;
+    private static final AtomicLong sStandbyHits = new AtomicLong();
+
+    /**
+     * Keeps count idle gatttool processes ready for the next connections,
+     * 0 starts every process on demand.
+     */
+    public static synchronized void setStandbyWorkers(int count) {
+        sStandbyTarget = Math.max(0, count);
+        while (sStandby.size() > sStandbyTarget)
+            sStandby.removeLast().releaseWorker();
+        refillStandby();
+    }
+
+    /**
+     * Drops the standby workers and keeps the list empty while paused, for
+     * when Bluetooth is off and gatttool has no adapter to attach to.
+     */
+    public static synchronized void setStandbyPaused(boolean paused) {
+        if (sStandbyPaused == paused)
+            return;
+        sStandbyPaused = paused;
+        if (paused) {
+            // one being started right now is dropped once it's up
+            sStandbyGeneration++;
+            dropStandby();
+        } else
+            refillStandby();
+    }
+
+    public static synchronized int getStandbyWorkers() {
+        return sStandby.size();
+    }
+
+    private static synchronized void dropStandby() {
+        while (!sStandby.isEmpty())
+            sStandby.removeFirst().releaseWorker();
+    }
+
+    /**
+     * Tops the standby list up again, even after workers kept exiting.
+     */
+    private static synchronized void refillStandby() {
+        sStandbyQuickExits = 0;
+        fillStandby();
+    }
+
+    /**
+     * Starts the helper that spawns standby workers if some are missing.
+     * If one fails to start it stops until the next hand out, so a missing
+     * gatttool isn't retried in a loop.
+     */
+    private static synchronized void fillStandby() {
+        if (sStandbyFilling || sStandbyPaused || sStandbyQuickExits >= MAX_QUICK_EXITS
+                || sStandby.size() >= sStandbyTarget)
+            return;
+        sStandbyFilling = true;
+        Thread t = new Thread("GATT-Standby") {
+            public void run() {
+                while (true) {
+                    int generation;
+                    synchronized (GattToolWrapper.class) {
+                        if (sStandbyPaused || sStandby.size() >= sStandbyTarget) {
+                            sStandbyFilling = false;
+                            return;
+                        }
+                        generation = sStandbyGeneration;
+                    }
+
+                    GattToolWrapper w;
+                    try {
+                        w = new GattToolWrapper();
+                    } catch (IOException e) {
+                        Log.e(TAG, "failed to start standby worker", e);
+                        synchronized (GattToolWrapper.class) {
+                            sStandbyFilling = false;
+                        }
+                        return;
+                    }
+
+                    synchronized (GattToolWrapper.class) {
+                        if (generation == sStandbyGeneration
+                                && sStandby.size() < sStandbyTarget) {
+                            sStandby.add(w);
+                            w.mWorker.setStandby(true);
+                            continue;
+                        }
+                    }
+                    w.releaseWorker();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return true if w was waiting on standby, it's gone now.
+     */
+    private static synchronized boolean removeStandby(GattToolWrapper w) {
+        if (!sStandby.remove(w))
+            return false;
+        if (System.nanoTime() - w.mStartedAt >= QUICK_EXIT_NS)
+            sStandbyQuickExits = 0;
+        else if (++sStandbyQuickExits == MAX_QUICK_EXITS)
+            Log.e(TAG, "standby workers keep exiting, not starting more until the next "
+                    + "hand out");
+        fillStandby();
+        return true;
+    }
+
+    private static synchronized ProcessFactory getProcessFactory() {
+        return sProcessFactory;
+    }
+
+    /*
+     * gatttool process counters for dumpsys, shared by every wrapper.
+     */
+    private static final AtomicLong sStarted = new AtomicLong();
+    private static final AtomicLong sStartFailed = new AtomicLong();
+    private static final AtomicLong sReleased = new AtomicLong();
+    private static final AtomicLong sExited = new AtomicLong();
+    private static final AtomicLong sCommandsSent = new AtomicLong();
+    private static final AtomicLong sCommandsFailed = new AtomicLong();
+    private static final AtomicLong sLinesReceived = new AtomicLong();
+
+    public static void dumpStats(PrintWriter pw) {
+        long started = sStarted.get();
+        int standby = getStandbyWorkers();
+        pw.println("gatttool: " + started + " started, " + sStartFailed.get()
+                + " failed to start, " + sExited.get() + " exited, "
+                + (started - sReleased.get() - standby) + " in use, " + standby
+                + " on standby, " + sStandbyHits.get() + " handed out from standby");
+        pw.println("gatttool: " + sCommandsSent.get() + " commands sent, "
+                + sCommandsFailed.get() + " failed, " + sLinesReceived.get()
+                + " lines received");
+    }
+
     public GattToolWrapper() throws IOException {
-        mWorker = new Worker(this, TOOL, "-I");
+        ProcessFactory factory = getProcessFactory();
+        try {
+            if (factory != null)
+                mWorker = new Worker(this, factory.start());
+            else
+                mWorker = new Worker(this, TOOL, "-I");
+        } catch (IOException e) {
+            sStartFailed.incrementAndGet();
+            throw e;
+        }
+        sStarted.incrementAndGet();
     }
 
     public void setListener(GattToolListener l) {
@@ -409,12 +697,20 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
 
     @Override
     public void EOF(int exitCode) {
+        sExited.incrementAndGet();
+        if (removeStandby(this)) {
+            Log.e(TAG, "standby worker exited with " + exitCode);
+            releaseWorker();
+            return;
+        }
         try {
-            Log.v(TAG, "Process stdin closed with retValue: " + exitCode);
+            if (ServerLog.verbose())
+                Log.v(TAG, "Process stdin closed with retValue: " + exitCode);
             if (mListener!=null)
                 mListener.processExit(this, exitCode);
         } catch (IllegalThreadStateException e) {
-            Log.v(TAG, "Process stind closed but process is still running");
+            if (ServerLog.verbose())
+                Log.v(TAG, "Process stind closed but process is still running");
             if (mListener!=null)
                 mListener.processStdinClosed(this);
             mWorker.quit();
@@ -443,25 +739,30 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
     }
 
     public synchronized void endCommand() {
-        Log.v(TAG, "updating status, previous: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "updating status, previous: " + mStatus);
 
         if (mStatus != STATUS.SET_PSM)
             mStatus = STATUS.CONNECTED;
         else
             mStatus = STATUS.IDLE;
 
-        Log.v(TAG, "new status: " + mStatus);
+        if (ServerLog.verbose())
+            Log.v(TAG, "new status: " + mStatus);
     }
 
     @Override
     public synchronized void lineReceived(String line) {
-        Log.v(TAG, "lineReceived " + line);
+        if (ServerLog.verbose())
+            Log.v(TAG, "lineReceived " + line);
+        sLinesReceived.incrementAndGet();
 
         Matcher m;
         m = PROMPT.matcher(line);
 
         if (m != null && m.find()) {
-            Log.v(TAG, "prompt match");
+            if (ServerLog.verbose())
+                Log.v(TAG, "prompt match");
             String state, address, type;
             state = m.group(1);
             address = m.group(2);
@@ -472,23 +773,27 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
         m = RESULT.matcher(line);
 
         if (m != null && m.find()) {
-            Log.v(TAG, "RESULT match");
+            if (ServerLog.verbose())
+                Log.v(TAG, "RESULT match");
             String command, argument;
             int handle;
             command = m.group(1);
             handle = Integer.parseInt(m.group(2), 16);
             argument = m.group(3);
+            TraceRing.record(TraceRing.LINE_PARSED, mConnHandle, TraceRing.pack(command));
 
-            Log.v(TAG, "RESULT: " + command + ", " + handle + ", hash: " + this.hashCode() + ", " + argument);
+            if (ServerLog.verbose())
+                Log.v(TAG, "RESULT: " + command + ", " + handle + ", hash: " + this.hashCode() + ", " + argument);
 
             if (mListener == null) {
                 this.notifyAll(); // release any lock just in case.
-                Log.v(TAG,
-                        "parsed a command, but no one is listening, dropping");
+                if (ServerLog.verbose())
+                    Log.v(TAG,
+                            "parsed a command, but no one is listening, dropping");
                 return;
             }
 
-            if (Response.processLine(this, this.mListener, command, this.hashCode(),
+            if (Response.processLine(this, this.mListener, command, mConnHandle,
                     argument))
                 return;
         }
@@ -542,7 +847,11 @@ public class GattToolWrapper implements Worker.Handler, internalGattToolListener
 
         public void gotSecurityLevelResult(GattToolWrapper instance, int conn_handle, int status);
 
-        public void gotMtuResult(GattToolWrapper instance, int conn_handle, int status);
+        /**
+         * @param mtu negotiated value, -1 when gatttool didn't report it.
+         */
+        public void gotMtuResult(GattToolWrapper instance, int conn_handle, int status,
+                int mtu);
 
         public void gotPsmResult(GattToolWrapper instance, int psm);
 
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.Arrays;
+
+/**
+ * Sorted table of non overlapping [start, end] handle ranges, used for
+ * resolving which service owns a given handle with a binary search.
+ * <p>
+ * Services get discovered in ascending handle order, so inserting is
+ * normally an append.
+ */
+class HandleRangeTable<T> {
+    private static final int INITIAL_SIZE = 8;
+
+    private int[] mStart = new int[INITIAL_SIZE];
+    private int[] mEnd = new int[INITIAL_SIZE];
+    private Object[] mValues = new Object[INITIAL_SIZE];
+    private int mCount = 0;
+
+    /**
+     * Adds or replaces the range starting at start.
+     */
+    public void put(int start, int end, T value) {
+        int i = Arrays.binarySearch(mStart, 0, mCount, start);
+        if (i >= 0) {
+            mEnd[i] = end;
+            mValues[i] = value;
+            return;
+        }
+
+        i = -(i + 1);
+        if (mCount == mStart.length) {
+            int size = mCount << 1;
+            mStart = Arrays.copyOf(mStart, size);
+            mEnd = Arrays.copyOf(mEnd, size);
+            mValues = Arrays.copyOf(mValues, size);
+        }
+
+        if (i < mCount) {
+            System.arraycopy(mStart, i, mStart, i + 1, mCount - i);
+            System.arraycopy(mEnd, i, mEnd, i + 1, mCount - i);
+            System.arraycopy(mValues, i, mValues, i + 1, mCount - i);
+        }
+        mStart[i] = start;
+        mEnd[i] = end;
+        mValues[i] = value;
+        mCount++;
+    }
+
+    /**
+     * Returns the value whose range contains handle, null if none does.
+     */
+    @SuppressWarnings("unchecked")
+    public T find(int handle) {
+        int i = Arrays.binarySearch(mStart, 0, mCount, handle);
+        if (i < 0) {
+            i = -(i + 1) - 1; // closest range starting before handle
+            if (i < 0)
+                return null;
+        }
+        if (handle > mEnd[i])
+            return null;
+        return (T) mValues[i];
+    }
+
+    /**
+     * Returns the value registered exactly at start, null if none.
+     */
+    @SuppressWarnings("unchecked")
+    public T getByStart(int start) {
+        int i = Arrays.binarySearch(mStart, 0, mCount, start);
+        return i < 0 ? null : (T) mValues[i];
+    }
+
+    /**
+     * Drops the range starting at start, returns its value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(int start) {
+        int i = Arrays.binarySearch(mStart, 0, mCount, start);
+        if (i < 0)
+            return null;
+        T ret = (T) mValues[i];
+        System.arraycopy(mStart, i + 1, mStart, i, mCount - i - 1);
+        System.arraycopy(mEnd, i + 1, mEnd, i, mCount - i - 1);
+        System.arraycopy(mValues, i + 1, mValues, i, mCount - i - 1);
+        mCount--;
+        mValues[mCount] = null;
+        return ret;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T valueAt(int index) {
+        return (T) mValues[index];
+    }
+
+    public int startAt(int index) {
+        return mStart[index];
+    }
+
+    public int endAt(int index) {
+        return mEnd[index];
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, 0, mCount, null);
+        mCount = 0;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.Arrays;
+
+/**
+ * Attribute storage indexed directly by ATT handle.
+ * <p>
+ * Handles are dense 16 bit values assigned by the remote, so a plain array
+ * grown on demand gives unboxed O(1) lookups without the per entry cost of a
+ * HashMap<Integer, ...>.
+ */
+class HandleTable<T> {
+    private static final int MAX_HANDLE = 0xffff;
+    private static final int INITIAL_SIZE = 32;
+
+    private Object[] mByHandle = new Object[INITIAL_SIZE];
+    private int mCount = 0;
+
+    /**
+     * @param value null removes whatever handle had.
+     */
+    public void put(int handle, T value) {
+        if (handle < 0 || handle > MAX_HANDLE)
+            throw new IllegalArgumentException("invalid handle " + handle);
+        if (value == null) {
+            remove(handle);
+            return;
+        }
+
+        if (handle >= mByHandle.length) {
+            int size = mByHandle.length;
+            while (size <= handle)
+                size <<= 1;
+            mByHandle = Arrays.copyOf(mByHandle, Math.min(size, MAX_HANDLE + 1));
+        }
+
+        if (mByHandle[handle] == null)
+            mCount++;
+        mByHandle[handle] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int handle) {
+        if (handle < 0 || handle >= mByHandle.length)
+            return null;
+        return (T) mByHandle[handle];
+    }
+
+    public boolean contains(int handle) {
+        return get(handle) != null;
+    }
+
+    public void remove(int handle) {
+        if (handle < 0 || handle >= mByHandle.length || mByHandle[handle] == null)
+            return;
+        mByHandle[handle] = null;
+        mCount--;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void clear() {
+        if (mByHandle.length > INITIAL_SIZE)
+            mByHandle = new Object[INITIAL_SIZE];
+        else
+            Arrays.fill(mByHandle, null);
+        mCount = 0;
+    }
+}
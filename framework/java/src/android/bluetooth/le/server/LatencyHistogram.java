@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log linear histogram of durations in nanoseconds, the same bucketing HDR
+ * histograms use: values below 32 get a bucket each, above that every power
+ * of two is split in 16 buckets so any value is reported within about 6% of
+ * what was recorded. Anything over ~137 seconds lands in the last bucket.
+ * <p>
+ * Recording only does atomic increments, so callback threads of different
+ * connections never block each other and readers may see a value that is
+ * a few records behind, which is fine for statistics.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_BIT = 36;
+    private static final long MAX_VALUE = (1L << (MAX_BIT + 1)) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BIT - 4) * HALF;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        if (value > MAX_VALUE)
+            value = MAX_VALUE;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * Highest value that falls in the given bucket.
+     */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        mBuckets.incrementAndGet(index(nanos));
+        mSum.addAndGet(nanos);
+        mCount.incrementAndGet();
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos))
+            ;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the value percentile of the records are at or below, 0 if
+     *         nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+        long wanted = (long) Math.ceil(count * percentile / 100);
+        if (wanted < 1)
+            wanted = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= wanted)
+                return Math.min(highest(i), getMax());
+        }
+        return getMax();
+    }
+}
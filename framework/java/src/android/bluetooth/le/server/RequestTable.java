@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.broadcom.bt.le.api.BleConstants;
+
+/**
+ * Outstanding request table for a connection.
+ * <p>
+ * Every read or write sent to gatttool gets an entry here with its target and
+ * deadline. gatttool doesn't echo any request identifier, but it answers in
+ * the same order commands were sent, so completions get resolved against the
+ * oldest outstanding request of the same kind. This lets several requests be
+ * in flight on the same connection instead of relying on a single
+ * "last target" slot.
+ * <p>
+ * A request that times out stays in place as a tombstone. gatttool still
+ * prints its answer when the remote finally sends one, and that answer has
+ * to be matched to the expired request and dropped, otherwise it would
+ * complete the next request of the same kind with someone else's value.
+ * <p>
+ * When given a {@link ConnectionMetrics} every request is accounted there
+ * from the moment it's added until it completes, expires or gets dropped.
+ */
+class RequestTable<T> {
+    public static final int KIND_READ = 0;
+    public static final int KIND_WRITE = 1;
+    public static final int KIND_READ_UUID = 2;
+    public static final int KIND_MTU = 3;
+
+    private static final int[] OPS = {
+            BleConstants.GATT_OP_READ, BleConstants.GATT_OP_WRITE_REQ,
+            BleConstants.GATT_OP_READ, BleConstants.GATT_OP_MTU
+    };
+
+    static class Request<T> {
+        final int id;
+        final int kind;
+        final long deadline;
+        final T target;
+        long started;
+        /* timed out, only waiting for gatttool's late answer to drop it */
+        boolean expired;
+        DeadlineScheduler.Timeout timer;
+
+        Request(int id, int kind, long deadline, T target) {
+            this.id = id;
+            this.kind = kind;
+            this.deadline = deadline;
+            this.target = target;
+        }
+    }
+
+    private int mNextId = 1;
+    private final List<Request<T>> mPending = new ArrayList<Request<T>>();
+    private final ConnectionMetrics mMetrics;
+
+    public RequestTable() {
+        this(null);
+    }
+
+    public RequestTable(ConnectionMetrics metrics) {
+        this.mMetrics = metrics;
+    }
+
+    private Request<T> aborted(Request<T> r) {
+        if (r.timer != null)
+            r.timer.cancel();
+        if (!r.expired && mMetrics != null)
+            mMetrics.abort(OPS[r.kind]);
+        return r;
+    }
+
+    /**
+     * Registers a new outstanding request and returns its id.
+     *
+     * @param timeout milliseconds until this request is considered lost, 0 or
+     *            less for no deadline.
+     */
+    public synchronized int add(int kind, T target, long timeout) {
+        int id = mNextId++;
+        if (mNextId <= 0)
+            mNextId = 1;
+        long deadline = timeout > 0 ? DeadlineScheduler.now() + timeout : 0;
+        Request<T> r = new Request<T>(id, kind, deadline, target);
+        if (mMetrics != null)
+            r.started = mMetrics.start(OPS[kind]);
+        mPending.add(r);
+        return id;
+    }
+
+    /**
+     * Attaches the deadline armed for request id, so it gets cancelled when
+     * the request completes. Cancels it right away if the request is
+     * already gone.
+     */
+    public synchronized void setTimer(int id, DeadlineScheduler.Timeout timer) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).id == id) {
+                mPending.get(i).timer = timer;
+                return;
+            }
+        }
+        timer.cancel();
+    }
+
+    /**
+     * Removes and returns the oldest outstanding request of the given kind,
+     * null if there's none or if it had timed out, then the answer is late
+     * and has to be dropped.
+     *
+     * @param status what gatttool answered, anything but GATT_SUCCESS counts
+     *            as an error.
+     */
+    public synchronized Request<T> complete(int kind, int status) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).kind != kind)
+                continue;
+            Request<T> r = mPending.remove(i);
+            if (r.expired)
+                return null;
+            if (r.timer != null)
+                r.timer.cancel();
+            if (mMetrics != null)
+                mMetrics.end(OPS[kind], r.started, status == BleConstants.GATT_SUCCESS);
+            return r;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the oldest outstanding request of the given kind without
+     * removing it, for commands that answer with more than one line. null
+     * if there's none or it timed out.
+     */
+    public synchronized Request<T> peek(int kind) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).kind == kind)
+                return mPending.get(i).expired ? null : mPending.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Drops the request with the given id, for commands that never made it
+     * to gatttool. Returns it or null if it already completed or timed out.
+     */
+    public synchronized Request<T> remove(int id) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).id != id)
+                continue;
+            Request<T> r = aborted(mPending.remove(i));
+            return r.expired ? null : r;
+        }
+        return null;
+    }
+
+    /**
+     * Returns every request whose deadline is before now, they are kept as
+     * tombstones until their late answer shows up.
+     *
+     * @param now time from {@link DeadlineScheduler#now()}.
+     */
+    public synchronized List<Request<T>> expire(long now) {
+        List<Request<T>> ret = null;
+        for (int i = 0; i < mPending.size(); i++) {
+            Request<T> r = mPending.get(i);
+            if (r.expired || r.deadline <= 0 || r.deadline > now)
+                continue;
+            if (ret == null)
+                ret = new ArrayList<Request<T>>();
+            ret.add(aborted(r));
+            r.expired = true;
+        }
+        return ret;
+    }
+
+    /**
+     * Removes and returns everything still outstanding, used when the
+     * connection goes away. Timed out requests were already reported and
+     * are left out.
+     */
+    public synchronized List<Request<T>> drain() {
+        List<Request<T>> ret = new ArrayList<Request<T>>(mPending.size());
+        for (Request<T> r: mPending) {
+            aborted(r);
+            if (!r.expired)
+                ret.add(r);
+        }
+        mPending.clear();
+        return ret;
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import android.util.Log;
+
+/**
+ * Decides whether verbose and debug logging is wanted before anybody builds
+ * the message, call sites look like
+ *
+ * <pre>
+ * if (ServerLog.verbose())
+ *     Log.v(TAG, &quot;got line: &quot; + line);
+ * </pre>
+ *
+ * Turning {@link #ENABLED} off lets the compiler drop every guarded call.
+ * At runtime the level starts from the log.tag.BT-GATT property, so
+ * {@code setprop log.tag.BT-GATT VERBOSE} before starting the server brings
+ * the traces back, and {@link #setLevel(int)} changes it on a running one.
+ * Info, warnings and errors are always logged.
+ */
+public final class ServerLog {
+    /** false compiles every guarded call out. */
+    public static final boolean ENABLED = true;
+
+    private static final String TAG = "BT-GATT";
+
+    private static volatile int sLevel = initialLevel();
+
+    private ServerLog() {
+    }
+
+    private static int initialLevel() {
+        if (Log.isLoggable(TAG, Log.VERBOSE))
+            return Log.VERBOSE;
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            return Log.DEBUG;
+        return Log.INFO;
+    }
+
+    /**
+     * @param level lowest android.util.Log level that gets built and logged.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean verbose() {
+        return ENABLED && sLevel <= Log.VERBOSE;
+    }
+
+    public static boolean debug() {
+        return ENABLED && sLevel <= Log.DEBUG;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Turns a {@link TraceRing} dump into text, one event per line with the
+ * time since the first event, the thread that recorded it, and what it
+ * was. Events missing from the sequence are reported as gaps. Has no
+ * Android dependencies so it runs on a host:
+ *
+ * <pre>
+ * adb exec-out dumpsys com.manuelnaranjo.btle trace &gt; gatt.trace
+ * java -cp btle-framework.jar android.bluetooth.le.server.TraceDecoder gatt.trace
+ * </pre>
+ */
+public class TraceDecoder {
+    private static final String[] TYPES = {
+            "?", "cmd-sent", "line-parsed", "dispatched", "callback-start", "callback-end",
+            "dbus-in", "dbus-out"
+    };
+
+    private static final String[] CALLBACKS = {
+            "?", "onConnected", "onDisconnected", "onSearchCompleted", "onRead", "onWrite",
+            "onNotify", "onNotifyBatch", "onMtuChanged", "onLinkRestored"
+    };
+
+    private static final String[] DBUS = {
+            "?", "call", "return", "error", "signal"
+    };
+
+    private static String name(String[] names, long i) {
+        return i >= 0 && i < names.length ? names[(int) i] : String.valueOf(i);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            ret |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return ret;
+        }
+        throw new IOException("malformed variable length integer");
+    }
+
+    /**
+     * @return how many events were decoded.
+     */
+    public static int decode(InputStream input, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != TraceRing.MAGIC)
+            throw new IOException("not a trace dump");
+        int version = in.readInt();
+        if (version != TraceRing.VERSION)
+            throw new IOException("unknown trace version " + version);
+        long wall = in.readLong();
+        long dumped = in.readLong();
+        int count = in.readInt();
+        long seq = in.readLong();
+        long first = in.readLong();
+        long time = first;
+
+        out.println("# " + count + " events, dumped "
+                + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(wall)));
+        long last = seq - 1;
+        for (int i = 0; i < count; i++) {
+            seq += readVarLong(in);
+            time += TraceRing.unzigzag(readVarLong(in));
+            int type = in.readUnsignedByte();
+            long thread = readVarLong(in);
+            int a = (int) readVarLong(in);
+            long b = TraceRing.unzigzag(readVarLong(in));
+
+            if (seq != last + 1)
+                out.println("# " + (seq - last - 1) + " events lost");
+            last = seq;
+
+            String what;
+            switch (type) {
+                case TraceRing.COMMAND_SENT:
+                case TraceRing.LINE_PARSED:
+                case TraceRing.RESPONSE_DISPATCHED:
+                    what = "conn " + a + " " + TraceRing.unpack(b);
+                    break;
+                case TraceRing.CALLBACK_START:
+                case TraceRing.CALLBACK_END:
+                    what = "conn " + a + " " + name(CALLBACKS, b);
+                    break;
+                case TraceRing.DBUS_IN:
+                case TraceRing.DBUS_OUT:
+                    what = name(DBUS, a) + " serial " + b;
+                    break;
+                default:
+                    what = a + " " + b;
+            }
+            out.println(String.format("%12.3f us  %5d  %-14s %s", (time - first) / 1e3, thread,
+                    name(TYPES, type), what));
+        }
+        if (count > 0)
+            out.println(String.format("# dumped %.3f ms after the last event",
+                    (dumped - time) / 1e6));
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: TraceDecoder <trace file>");
+            System.exit(1);
+        }
+        FileInputStream in = new FileInputStream(args[0]);
+        try {
+            decode(in, System.out);
+        } finally {
+            in.close();
+        }
+    }
+}
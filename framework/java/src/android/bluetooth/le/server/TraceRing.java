@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.freedesktop.dbus.AbstractConnection;
+
+/**
+ * Last events of the GATT pipeline kept in memory so a stall can be looked
+ * at after the fact, see {@link TraceDecoder} for reading a dump.
+ * <p>
+ * The ring is allocated once and {@link #record(int, int, long)} only takes
+ * a slot with an atomic increment and fills it with ordered stores, so any
+ * thread can record without locks or garbage and it can stay on in
+ * production. Each slot has a sequence word written last, a dump taken
+ * while threads keep recording skips the slots being rewritten instead of
+ * reporting them half done.
+ */
+public final class TraceRing {
+    /** false compiles every record out. */
+    public static final boolean ENABLED = true;
+
+    /** a: connection, b: command verb, see {@link #pack(String)}. */
+    public static final int COMMAND_SENT = 1;
+    /** a: connection, b: result name. */
+    public static final int LINE_PARSED = 2;
+    /** a: connection, b: result name. */
+    public static final int RESPONSE_DISPATCHED = 3;
+    /** a: connection id, b: one of the CALLBACK_* values. */
+    public static final int CALLBACK_START = 4;
+    /** a: connection id, b: one of the CALLBACK_* values. */
+    public static final int CALLBACK_END = 5;
+    /** a: D-Bus message type, b: serial. */
+    public static final int DBUS_IN = 6;
+    /** a: D-Bus message type, b: serial. */
+    public static final int DBUS_OUT = 7;
+
+    public static final int CALLBACK_CONNECTED = 1;
+    public static final int CALLBACK_DISCONNECTED = 2;
+    public static final int CALLBACK_SEARCH_COMPLETED = 3;
+    public static final int CALLBACK_READ = 4;
+    public static final int CALLBACK_WRITE = 5;
+    public static final int CALLBACK_NOTIFY = 6;
+    public static final int CALLBACK_NOTIFY_BATCH = 7;
+    public static final int CALLBACK_MTU = 8;
+    public static final int CALLBACK_LINK_RESTORED = 9;
+
+    static final int MAGIC = 0x47545231; // GTR1
+    static final int VERSION = 1;
+
+    /* words per slot: sequence + 1, timestamp, type/thread/a, b */
+    private static final int WORDS = 4;
+    private static final int SLOTS = 1 << 13;
+    private static final int MASK = SLOTS - 1;
+
+    private static final AtomicLongArray sRing = new AtomicLongArray(SLOTS * WORDS);
+    private static final AtomicLong sNext = new AtomicLong();
+
+    private TraceRing() {
+    }
+
+    /**
+     * Records an event, the meaning of a and b depends on type.
+     */
+    public static void record(int type, int a, long b) {
+        if (!ENABLED)
+            return;
+        long seq = sNext.getAndIncrement();
+        int base = (int) (seq & MASK) * WORDS;
+        long info = ((long) type << 56) | ((Thread.currentThread().getId() & 0xffffffL) << 32)
+                | (a & 0xffffffffL);
+        sRing.lazySet(base, 0);
+        sRing.lazySet(base + 1, System.nanoTime());
+        sRing.lazySet(base + 2, info);
+        sRing.lazySet(base + 3, b);
+        sRing.lazySet(base, seq + 1);
+    }
+
+    /**
+     * Packs the first word of s, up to 8 ASCII characters, in a long so
+     * commands and results can be recorded without keeping the string.
+     */
+    public static long pack(String s) {
+        long ret = 0;
+        int length = Math.min(8, s.length());
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == ' ')
+                break;
+            ret |= (long) (c & 0xff) << (8 * i);
+        }
+        return ret;
+    }
+
+    static String unpack(long v) {
+        StringBuilder ret = new StringBuilder(8);
+        for (int i = 0; i < 8 && (v >>> (8 * i)) != 0; i++)
+            ret.append((char) ((v >>> (8 * i)) & 0xff));
+        return ret.toString();
+    }
+
+    /**
+     * Feeds D-Bus traffic into the ring.
+     */
+    public static final AbstractConnection.MessageTracer DBUS_TRACER =
+            new AbstractConnection.MessageTracer() {
+                public void messageIn(byte type, long serial) {
+                    record(DBUS_IN, type, serial);
+                }
+
+                public void messageOut(byte type, long serial) {
+                    record(DBUS_OUT, type, serial);
+                }
+            };
+
+    /**
+     * Writes every event still in the ring, oldest first. Timestamps and
+     * sequence numbers go as deltas in variable length integers, so an event
+     * takes around 10 bytes.
+     *
+     * @return how many events were written.
+     */
+    public static int dump(OutputStream out) throws IOException {
+        long end = sNext.get();
+        long start = Math.max(0, end - SLOTS);
+        long[] events = new long[(int) (end - start) * WORDS];
+        int count = 0;
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & MASK) * WORDS;
+            long s = sRing.get(base);
+            long time = sRing.get(base + 1);
+            long info = sRing.get(base + 2);
+            long b = sRing.get(base + 3);
+            // overwritten or still being written
+            if (s != seq + 1 || sRing.get(base) != s)
+                continue;
+            events[count * WORDS] = seq;
+            events[count * WORDS + 1] = time;
+            events[count * WORDS + 2] = info;
+            events[count * WORDS + 3] = b;
+            count++;
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(System.currentTimeMillis());
+        data.writeLong(System.nanoTime());
+        data.writeInt(count);
+        long lastSeq = start;
+        long lastTime = count > 0 ? events[1] : 0;
+        data.writeLong(lastSeq);
+        data.writeLong(lastTime);
+        for (int i = 0; i < count; i++) {
+            long info = events[i * WORDS + 2];
+            writeVarLong(data, events[i * WORDS] - lastSeq);
+            writeVarLong(data, zigzag(events[i * WORDS + 1] - lastTime));
+            data.writeByte((int) (info >>> 56));
+            writeVarLong(data, (info >>> 32) & 0xffffff);
+            writeVarLong(data, info & 0xffffffffL);
+            writeVarLong(data, zigzag(events[i * WORDS + 3]));
+            lastSeq = events[i * WORDS];
+            lastTime = events[i * WORDS + 1];
+        }
+        data.flush();
+        return count;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+}
@@ -1,107 +1,294 @@
 package android.bluetooth.le.server;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
 
 import android.util.Log;
 
-class Worker extends Thread {
+/**
+ * One gatttool process. Nothing blocks on its output, {@link WorkerReader}
+ * polls every process from a fixed set of threads and the lines end up
+ * here, they are handed to the Handler one at a time and in order from a
+ * shared pool, so the number of threads doesn't grow with connections.
+ */
+class Worker implements Runnable {
     public interface Handler {
         void EOF(int exitValue);
         void lineReceived(String t);
     }
 
     private static final String TAG="GATT-Worker";
-    
+
+    /* lines waiting for the handler before we stop reading the process */
+    private static final int MAX_PENDING = 256;
+    /* lines handed over before giving the pool thread to someone else */
+    private static final int BATCH = 32;
+    private static final String END = new String("EOF");
+    /* even on standby a new process is polled this long, so one that fails
+     * to come up is noticed */
+    static final long STARTUP_NS = 1000L * 1000 * 1000;
+
     private Process mProcess;
-    private DataInputStream mInput;
+    private InputStream mInput;
     private DataOutputStream mOutput;
-    private BufferedReader in;
     private Handler mHandler;
-    private boolean running;
-    private boolean ended = false;
+    private volatile boolean running;
+    private WorkerReader mReader;
+    /* hints for the reader, see WorkerReader */
+    private final long mStartedAt = System.nanoTime();
+    private volatile boolean mStandby = false;
+    private volatile boolean mNotifying = false;
+
+    /* only touched from the reader thread */
+    private final byte[] mBuffer = new byte[1024];
+    private byte[] mLine = new byte[128];
+    private int mLineLength = 0;
+    private boolean mSkipNewline = false;
+
+    /* guarded by itself */
+    private final LinkedList<String> mPending = new LinkedList<String>();
+    private boolean mScheduled = false;
+    private int mExitValue = 0xffff;
 
     public Worker(Handler h, String...command) throws IOException {
-        Log.v(TAG, "creating new worker for " + command);
-        mProcess = new ProcessBuilder(command).redirectErrorStream(true)
-                .start();
-        mInput = new DataInputStream(mProcess.getInputStream());
+        this(h, new ProcessBuilder(command).redirectErrorStream(true).start());
+        if (ServerLog.verbose())
+            Log.v(TAG, "created new worker for " + command);
+    }
+
+    /**
+     * Takes an already running process, anything speaking gatttool's
+     * interactive protocol on its standard streams will do.
+     */
+    public Worker(Handler h, Process process) {
+        mProcess = process;
+        mInput = mProcess.getInputStream();
         mOutput = new DataOutputStream(mProcess.getOutputStream());
-        in = new BufferedReader(new InputStreamReader(mInput));
         mHandler = h;
         running = true;
-        this.start();
+        mReader = WorkerReader.register(this);
     }
 
-    public void run() {
+    /**
+     * Tells the reader an answer is on its way.
+     */
+    public void commandSent() {
+        mReader.wake();
+    }
+
+    /**
+     * A standby process has nothing to say until it gets its first command,
+     * the reader may stop polling while only those are left.
+     */
+    public void setStandby(boolean standby) {
+        mStandby = standby;
+        if (!standby)
+            mReader.wake();
+    }
+
+    /**
+     * Notifications are enabled on this process' connection, they can come
+     * every connection interval so the reader has to look often.
+     */
+    public void setNotifying(boolean notifying) {
+        mNotifying = notifying;
+        if (notifying)
+            mReader.wake();
+    }
+
+    /**
+     * @return true if the reader doesn't have to stay awake for this one.
+     */
+    boolean isIdle() {
+        return !running || (mStandby && System.nanoTime() - mStartedAt >= STARTUP_NS);
+    }
+
+    boolean isNotifying() {
+        return running && mNotifying;
+    }
+
+    /**
+     * @return false once the process exited, even if nobody polled it since.
+     */
+    public boolean isAlive() {
+        Process process = mProcess;
+        if (!running || process == null)
+            return false;
         try {
-            Log.v(TAG, "starting worker");
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
 
-            while (running) {
-                String line = in.readLine();
-                if (line == null) {
-                    Log.v(TAG, "EOF");
-                    int ret = 0xffff;
-                    try{
-                        ret = mProcess.exitValue();
-                    } catch (Exception e){
-                        Log.e(TAG, "no ret value", e);
-                    }
-                    mHandler.EOF(ret);
-                    break;
+    /**
+     * Reads whatever the process printed so far without blocking, called
+     * from the reader thread.
+     *
+     * @return bytes read, -1 once the process is gone or quit and the
+     *         reader can forget about it.
+     */
+    int poll() {
+        InputStream in = mInput;
+        Process process = mProcess;
+        if (!running || in == null || process == null)
+            return -1;
+        synchronized (mPending) {
+            // let the handler catch up, gatttool blocks once the pipe fills
+            if (mPending.size() >= MAX_PENDING)
+                return 0;
+        }
+
+        try {
+            int available = in.available();
+            if (available == 0) {
+                try {
+                    mExitValue = process.exitValue();
+                } catch (IllegalThreadStateException e) {
+                    return 0;
                 }
-                if ("".equals(line.trim())) {
-                    Log.v(TAG, "empty line");
-                    continue;
+                // it may have printed more since we asked, take it all
+                while ((available = in.available()) > 0) {
+                    int read = in.read(mBuffer, 0, Math.min(available, mBuffer.length));
+                    if (read < 0)
+                        break;
+                    split(read);
                 }
-                if (running == false) // mnaranjo: I'm not sure if closing the process will trigger EOF.
-                    break;
-                Log.v(TAG, "got line: " + line);
-                mHandler.lineReceived(line);
+                endOfStream();
+                return -1;
+            }
+            int read = in.read(mBuffer, 0, Math.min(available, mBuffer.length));
+            if (read < 0) {
+                endOfStream();
+                return -1;
+            }
+            split(read);
+            return read;
+        } catch (IOException e) {
+            if (running)
+                Log.e(TAG, "something failed", e);
+            return -1;
+        }
+    }
+
+    /*
+     * Cuts lines the way BufferedReader.readLine does, on \n, \r or \r\n.
+     */
+    private void split(int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = mBuffer[i];
+            if (b == '\n' && mSkipNewline) {
+                mSkipNewline = false;
+                continue;
+            }
+            if (b == '\n' || b == '\r') {
+                mSkipNewline = b == '\r';
+                lineRead(new String(mLine, 0, mLineLength));
+                mLineLength = 0;
+                continue;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "something failed", e);
+            mSkipNewline = false;
+            if (mLineLength == mLine.length)
+                mLine = Arrays.copyOf(mLine, mLine.length * 2);
+            mLine[mLineLength++] = b;
+        }
+    }
+
+    private void lineRead(String line) {
+        if ("".equals(line.trim())) {
+            if (ServerLog.verbose())
+                Log.v(TAG, "empty line");
+            return;
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "got line: " + line);
+        queue(line);
+    }
+
+    private void endOfStream() {
+        if (mLineLength > 0) {
+            lineRead(new String(mLine, 0, mLineLength));
+            mLineLength = 0;
+        }
+        if (ServerLog.verbose())
+            Log.v(TAG, "EOF");
+        queue(END);
+    }
+
+    private void queue(String line) {
+        synchronized (mPending) {
+            mPending.add(line);
+            if (mScheduled)
+                return;
+            mScheduled = true;
         }
-        
-        Log.v(TAG, "worker ending");
-        synchronized (this){
-            this.notifyAll();
+        WorkerReader.dispatch(this);
+    }
+
+    /**
+     * Hands queued lines to the Handler, runs on the dispatch pool and never
+     * on two threads at once for the same worker.
+     */
+    public void run() {
+        for (int i = 0; i < BATCH; i++) {
+            String line;
+            int exitValue;
+            synchronized (mPending) {
+                line = running ? mPending.poll() : null;
+                if (line == null) {
+                    mPending.clear();
+                    mScheduled = false;
+                    return;
+                }
+                exitValue = mExitValue;
+            }
+            try {
+                if (line == END)
+                    mHandler.EOF(exitValue);
+                else
+                    mHandler.lineReceived(line);
+            } catch (Exception e) {
+                Log.e(TAG, "something failed", e);
+            }
         }
-        ended = true;
-        Log.v(TAG, "worker ended");
+        // more left, let other connections have the thread first
+        WorkerReader.dispatch(this);
     }
 
     public void quit() {
         this.running = false;
-        if (ended && mProcess==null)
+        if (mProcess == null)
             return;
-        
-        Log.v(TAG, "destroying process");
+
+        if (ServerLog.verbose())
+            Log.v(TAG, "destroying process");
         this.mProcess.destroy();
         try {
             mInput.close();
         } catch (IOException e) {
             Log.e(TAG, "failed to close mInput", e);
         }
-        
-        Log.v(TAG, "closing input");
+
+        if (ServerLog.verbose())
+            Log.v(TAG, "closing input");
         try {
             mOutput.close();
         } catch (IOException e) {
             Log.e(TAG, "failed to close mOutput", e);
         }
-        
+
         mProcess = null;
         mInput = null;
         mOutput = null;
-        Log.v(TAG, "quit completed");
+        if (ServerLog.verbose())
+            Log.v(TAG, "quit completed");
     }
-    
+
     public DataOutputStream getOutputStream(){
         return this.mOutput;
     }
 }
-
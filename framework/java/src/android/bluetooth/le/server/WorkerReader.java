@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012 Naranjo Manuel Francisco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth.le.server;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the output of every gatttool process from READERS threads and
+ * parses lines for them, the lines are handed to each Worker's handler from
+ * a pool of DISPATCHERS threads. Process pipes can't be selected on from
+ * Java, so each reader goes over its processes asking for what is
+ * available and only reads that, when none had anything it sleeps a bit,
+ * longer the longer they stay quiet, from MIN_IDLE_NS up to MAX_IDLE_NS.
+ * After QUIET_NS without output it keeps backing off up to
+ * MAX_QUIET_IDLE_NS, so idle connections don't keep a CPU awake. That is the
+ * most a line waits before it gets read, unless a connection has
+ * notifications enabled: those can come every connection interval, 7.5ms
+ * at the shortest, so then it never sleeps more than MAX_NOTIFY_IDLE_NS.
+ * With only standby processes left, which print nothing until they get a
+ * command, the reader parks until woken once they are past
+ * {@link Worker#STARTUP_NS}. Sending a command wakes the reader
+ * up and starts again from the shortest sleep, so answers are picked up
+ * quickly.
+ */
+final class WorkerReader extends Thread {
+    private static final String TAG = "GATT-WorkerReader";
+
+    static final int READERS = 1;
+    static final int DISPATCHERS = 4;
+    private static final long MIN_IDLE_NS = 50 * 1000;
+    private static final long MAX_IDLE_NS = 4 * 1000 * 1000;
+    private static final long QUIET_NS = 1000 * 1000 * 1000;
+    private static final long MAX_QUIET_IDLE_NS = 64 * 1000 * 1000;
+    private static final long MAX_NOTIFY_IDLE_NS = 1000 * 1000;
+
+    private static WorkerReader[] sReaders;
+    private static ExecutorService sDispatch;
+
+    private final CopyOnWriteArrayList<Worker> mWorkers = new CopyOnWriteArrayList<Worker>();
+    private volatile boolean mWoken = false;
+
+    private WorkerReader(int i) {
+        super("GATT-Worker-reader-" + i);
+        setDaemon(true);
+    }
+
+    private static synchronized void init() {
+        if (sReaders != null)
+            return;
+        final AtomicInteger count = new AtomicInteger();
+        sDispatch = Executors.newFixedThreadPool(DISPATCHERS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GATT-Worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sReaders = new WorkerReader[READERS];
+        for (int i = 0; i < READERS; i++) {
+            sReaders[i] = new WorkerReader(i);
+            sReaders[i].start();
+        }
+    }
+
+    /**
+     * Starts reading w's process on the reader with the fewest of them.
+     *
+     * @return the reader, for {@link #wake()}.
+     */
+    static synchronized WorkerReader register(Worker w) {
+        init();
+        WorkerReader reader = sReaders[0];
+        for (WorkerReader r : sReaders)
+            if (r.mWorkers.size() < reader.mWorkers.size())
+                reader = r;
+        reader.mWorkers.add(w);
+        reader.wake();
+        return reader;
+    }
+
+    /**
+     * Polls again right away, output is expected soon.
+     */
+    void wake() {
+        mWoken = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * @return true if no worker needs polling, they are all on standby or
+     *         quit.
+     */
+    private boolean allIdle() {
+        for (Worker w : mWorkers)
+            if (!w.isIdle())
+                return false;
+        return true;
+    }
+
+    /**
+     * Runs w on the dispatch pool, see {@link Worker#run()}.
+     */
+    static void dispatch(Worker w) {
+        sDispatch.execute(w);
+    }
+
+    @Override
+    public void run() {
+        long idle = 0;
+        long quiet = 0;
+        while (true) {
+            try {
+                while (allIdle())
+                    LockSupport.park(this);
+                if (mWoken) {
+                    mWoken = false;
+                    idle = 0;
+                    quiet = 0;
+                }
+
+                boolean read = false;
+                boolean notifying = false;
+                for (Worker w : mWorkers) {
+                    int n = w.poll();
+                    if (n < 0)
+                        mWorkers.remove(w);
+                    else if (n > 0)
+                        read = true;
+                    notifying |= w.isNotifying();
+                }
+
+                if (read) {
+                    idle = 0;
+                    quiet = 0;
+                    continue;
+                }
+                long max = notifying ? MAX_NOTIFY_IDLE_NS
+                        : quiet < QUIET_NS ? MAX_IDLE_NS : MAX_QUIET_IDLE_NS;
+                idle = Math.min(max, idle == 0 ? MIN_IDLE_NS : idle * 2);
+                quiet += idle;
+                LockSupport.parkNanos(this, idle);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "something failed", e);
+            }
+        }
+    }
+}
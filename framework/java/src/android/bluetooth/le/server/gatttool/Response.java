@@ -2,6 +2,8 @@ package android.bluetooth.le.server.gatttool;
 
 import android.bluetooth.le.server.GattToolWrapper;
 import android.bluetooth.le.server.GattToolWrapper.GattToolListener;
+import android.bluetooth.le.server.ServerLog;
+import android.bluetooth.le.server.TraceRing;
 import android.util.Log;
 
 import com.broadcom.bt.le.api.BleGattID;
@@ -21,11 +23,13 @@ public class Response implements Cloneable{
     protected GattToolWrapper mWrapper;
     
     private Response(){
-        Log.v(TAG, "initializing reponse listeners");
+        if (ServerLog.verbose())
+            Log.v(TAG, "initializing reponse listeners");
     }
     
     public Response(String c, boolean status){
-        Log.v(TAG, "registering " + c);
+        if (ServerLog.verbose())
+            Log.v(TAG, "registering " + c);
         if (sCommands.containsKey(c))
             Log.e(TAG, "replacing listener " + c);
         
@@ -49,7 +53,8 @@ public class Response implements Cloneable{
     
     public static boolean processLine(GattToolWrapper w, GattToolListener listener, 
             String command, int handle, String argument){
-        Log.v(TAG, "Processing command: " + command);
+        if (ServerLog.verbose())
+            Log.v(TAG, "Processing command: " + command);
         
         if (!sCommands.containsKey(command)){
             w.notifyAll();
@@ -58,7 +63,8 @@ public class Response implements Cloneable{
         
         argument = argument.trim();
         
-        Log.v(TAG, "handle: " + handle + ", wrapper: " + w + ", " + argument);
+        if (ServerLog.verbose())
+            Log.v(TAG, "handle: " + handle + ", wrapper: " + w + ", " + argument);
         Response cmd;
         try {
             cmd = (Response)sCommands.get(command).clone();
@@ -68,6 +74,7 @@ public class Response implements Cloneable{
         }
         cmd.mWrapper = w;
         boolean ret = cmd.processArguments(listener, handle, argument);
+        TraceRing.record(TraceRing.RESPONSE_DISPATCHED, handle, TraceRing.pack(command));
         
         if (ret && cmd.doesStatusChange())
         {
@@ -103,7 +110,7 @@ public class Response implements Cloneable{
         @Override
         protected boolean internalProcessArguments(GattToolListener listener, 
                 int conn_handle, int handle, byte[] val) {
-            listener.onIndication(super.mWrapper, conn_handle, handle, val);
+            listener.onNotification(super.mWrapper, conn_handle, handle, val);
             return true;
         }
     }
@@ -121,7 +128,8 @@ public class Response implements Cloneable{
             String addr = pieces[0];
             int status = Integer.parseInt(pieces[1]);
             
-            Log.v(TAG, super.mCommand + " parsed " + handle +" -> " + addr+ ", " + status);
+            if (ServerLog.verbose())
+                Log.v(TAG, super.mCommand + " parsed " + handle +" -> " + addr+ ", " + status);
             
             mListener = listener;
             mConnHandle = handle;
@@ -145,7 +153,8 @@ public class Response implements Cloneable{
 
         @Override
         protected boolean processArguments(GattToolListener listener, int conn_handle, String args) {
-            Log.v(TAG, "DisconnectedResponse.processArguments " + listener + " " + conn_handle + " " + args);
+            if (ServerLog.verbose())
+                Log.v(TAG, "DisconnectedResponse.processArguments " + listener + " " + conn_handle + " " + args);
             if (args==null)
                 args = "";
             if (listener == null){
@@ -172,16 +181,18 @@ public class Response implements Cloneable{
             
             if (parts.length > 3){
                 Log.w(TAG, "PRIMARY-ALL with extra arguments " + args + " " + parts.length);
-                for (String p: parts)
-                    Log.v(TAG, p);
+                if (ServerLog.verbose())
+                    for (String p: parts)
+                        Log.v(TAG, p);
             }
             
             int start, end;
             BleGattID uuid;
             start = Integer.parseInt(parts[0], 16);
             end = Integer.parseInt(parts[1], 16);
-            uuid = new BleGattID(parts[2]);
-            Log.v(TAG, "PRIMARY-ALL start " + start + ", end " + end + ", uuid " + uuid);
+            uuid = BleGattID.fromString(parts[2]);
+            if (ServerLog.verbose())
+                Log.v(TAG, "PRIMARY-ALL start " + start + ", end " + end + ", uuid " + uuid);
             listener.primaryAll(super.mWrapper, conn_handle, start, end, uuid);
             return true;
         }
@@ -220,7 +231,8 @@ public class Response implements Cloneable{
             int start, end;
             start = Integer.parseInt(parts[0], 16);
             end = Integer.parseInt(parts[1], 16);
-            Log.v(TAG, "PRIMARY-UUID start " + start + ", end " + end);
+            if (ServerLog.verbose())
+                Log.v(TAG, "PRIMARY-UUID start " + start + ", end " + end);
             listener.primaryUuid(super.mWrapper, conn_handle, start, end);
             return true;
         }
@@ -262,9 +274,10 @@ public class Response implements Cloneable{
             handle = Integer.parseInt(parts[0], 16);
             properties = GattToolWrapper.parseSignedByte(parts[1]);
             value_handle = Integer.parseInt(parts[2], 16);
-            uuid = new BleGattID(parts[3]);
-            Log.v(TAG, "CHAR handle " + handle + ", properties " + properties + 
-                    ", value_handle " + value_handle + ", uuid " + uuid);
+            uuid = BleGattID.fromString(parts[3]);
+            if (ServerLog.verbose())
+                Log.v(TAG, "CHAR handle " + handle + ", properties " + properties + 
+                        ", value_handle " + value_handle + ", uuid " + uuid);
             listener.characteristic(super.mWrapper, conn_handle, handle, properties, value_handle, uuid);
             return true;
         }
@@ -303,11 +316,9 @@ public class Response implements Cloneable{
             int handle;
             BleGattID uuid;
             handle = Integer.parseInt(parts[0], 16);
-            if (parts[1].length() > 4)
-                uuid = new BleGattID(parts[1]);
-            else
-                uuid = new BleGattID(Integer.parseInt(parts[1], 16));
-            Log.v(TAG, "CHAR-DESC handle " + handle + ", uuid " + uuid);
+            uuid = BleGattID.fromString(parts[1]);
+            if (ServerLog.verbose())
+                Log.v(TAG, "CHAR-DESC handle " + handle + ", uuid " + uuid);
             listener.characteristicDescriptor(super.mWrapper, conn_handle, handle, uuid);
             return true;
         }
@@ -338,7 +349,8 @@ public class Response implements Cloneable{
         
         @Override
         protected void callListener() {
-            Log.v(TAG, "char-val-desc callListener");
+            if (ServerLog.verbose())
+                Log.v(TAG, "char-val-desc callListener");
             mListener.gotValueByHandle(super.mWrapper, mConnHandle, mValue, mResult);
         }
 
@@ -358,7 +370,8 @@ public class Response implements Cloneable{
             for (int i = 1; i < parts.length ; i++)
                 val[i-1] = GattToolWrapper.parseSignedByte(parts[i]);
             
-            Log.v(TAG, "CHAR-VAL-DESC " + val);
+            if (ServerLog.verbose())
+                Log.v(TAG, "CHAR-VAL-DESC " + val);
             this.mConnHandle = conn_handle;
             this.mValue = val;
             this.mResult = Integer.parseInt(parts[0]);
@@ -389,7 +402,8 @@ public class Response implements Cloneable{
             for (int i = 0; i < val.length ; i++)
                 val[i] = GattToolWrapper.parseSignedByte(parts[1+i]);
             
-            Log.v(TAG, "CHAR-READ-UUID handle " + handle + ", value "+ val);
+            if (ServerLog.verbose())
+                Log.v(TAG, "CHAR-READ-UUID handle " + handle + ", value "+ val);
             listener.gotValueByUuid(super.mWrapper, conn_handle, handle, val);
             return true;
         }
@@ -455,7 +469,11 @@ public class Response implements Cloneable{
         @Override
         protected boolean internalProcessArguments(GattToolListener listener, int conn_handle,
                 int status) {
-            listener.gotMtuResult(super.mWrapper, conn_handle, status);
+            // on success gatttool may append the negotiated value
+            int mtu = -1;
+            if (status == 0 && mDetail != null && mDetail.trim().matches("\\d+"))
+                mtu = Integer.parseInt(mDetail.trim());
+            listener.gotMtuResult(super.mWrapper, conn_handle, status, mtu);
             return true;
         }
     }
@@ -470,7 +488,8 @@ public class Response implements Cloneable{
            
         @Override
         protected void callListener() {
-            Log.v(TAG, "psm calllistener");
+            if (ServerLog.verbose())
+                Log.v(TAG, "psm calllistener");
             mListener.gotPsmResult(super.mWrapper, mValue);
         }
 
@@ -543,6 +562,7 @@ abstract class GenericEndResponse extends Response {
     
     protected int mConnHandle;
     protected int mValue;
+    protected String mDetail;
     protected GattToolListener mListener;
     
     public GenericEndResponse(String s, boolean status){
@@ -551,7 +571,8 @@ abstract class GenericEndResponse extends Response {
     
     @Override
     protected void callListener(){
-        Log.v(TAG, mCommand + " callListener ");
+        if (ServerLog.verbose())
+            Log.v(TAG, mCommand + " callListener ");
         this.internalProcessArguments(mListener, mConnHandle, mValue);
     }
     
@@ -567,7 +588,8 @@ abstract class GenericEndResponse extends Response {
         
         int status = Integer.parseInt(m.group(1));
         
-        Log.v(TAG, super.mCommand + " parsed " + handle + ", " + status);
+        if (ServerLog.verbose())
+            Log.v(TAG, super.mCommand + " parsed " + handle + ", " + status);
         
         if (status!=0 && m.groupCount() > 1){
             Log.e(TAG, mCommand + " error " + m.group(2));
@@ -576,6 +598,7 @@ abstract class GenericEndResponse extends Response {
         mListener = listener;
         mConnHandle = handle;
         mValue = status;
+        mDetail = m.group(2);
         return true;
     }
     
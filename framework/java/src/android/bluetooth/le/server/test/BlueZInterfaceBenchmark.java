@@ -0,0 +1,162 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BlueZInterface;
+
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+import org.freedesktop.dbus.Path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives BlueZInterface end to end against {@link FakeBlueZ} over a peer to
+ * peer D-Bus connection on an abstract socket. Measures device property
+ * fetches, service and characteristic discovery, characteristic reads,
+ * how many DeviceFound signals per second make it to the listener during a
+ * scan storm and how many ValueChanged calls per second reach it once
+ * watchers are registered.
+ * <p>
+ * Arguments: devices, read rounds, method latency in milliseconds,
+ * DeviceFound and ValueChanged per second, seconds each storm lasts.
+ */
+public class BlueZInterfaceBenchmark {
+    private static final AtomicLong sDiscovered = new AtomicLong();
+    private static final AtomicLong sValueChanged = new AtomicLong();
+
+    static class Listener implements BlueZInterface.Listener {
+        public void deviceDiscovered(String address, String name, short rssi) {
+            sDiscovered.incrementAndGet();
+        }
+
+        public void serviceDiscovered(int connID, String address, String uuid, String path) {
+        }
+
+        public void serviceDiscoveredFinished(int connID, int status) {
+        }
+
+        public void characteristicsSolved(int connID, String serPath, List<Path> charPath,
+                List<BluetoothGattID> uuids) {
+        }
+
+        public void valueChanged(String charPath, byte[] value) {
+            sValueChanged.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int rate = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        FakeBlueZ fake = new FakeBlueZ();
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < devices; i++) {
+            String address = String.format("00:11:22:33:%02X:%02X", i >> 8, i & 0xff);
+            fake.addDevice(SimulatedPeripheral.heartRateMonitor(address));
+            addresses.add(address);
+        }
+        fake.setLatency(latency);
+        fake.setDeviceFoundRate(rate);
+        fake.setValueChangedRate(rate);
+        fake.start("bluez-benchmark-" + System.nanoTime());
+        BlueZInterface.setBusAddress(fake.getAddress());
+
+        BlueZInterface bluez = new BlueZInterface(new Listener());
+        // the fake exports its objects only once the connection is up
+        for (int i = 0; i < 100 && !bluez.Status(); i++) {
+            try {
+                bluez.Start();
+            } catch (RuntimeException e) {
+            }
+            if (!bluez.Status())
+                Thread.sleep(10);
+        }
+        if (!bluez.Status()) {
+            System.out.println("could not reach the fake bluez at " + fake.getAddress());
+            System.exit(1);
+        }
+
+        List<Long> l = new ArrayList<Long>();
+        long t;
+
+        for (String a : addresses) {
+            t = System.nanoTime();
+            bluez.getDeviceProperties(a);
+            l.add(System.nanoTime() - t);
+        }
+        print("getDeviceProperties", l);
+
+        List<String> services = new ArrayList<String>();
+        for (String a : addresses) {
+            t = System.nanoTime();
+            services.addAll(bluez.getServicesPathForID(a, null).keySet());
+            l.add(System.nanoTime() - t);
+        }
+        print("getServicesPathForID", l);
+
+        List<String> characteristics = new ArrayList<String>();
+        for (String s : services) {
+            t = System.nanoTime();
+            characteristics.addAll(bluez.getCharacteristicsForService(s).values());
+            l.add(System.nanoTime() - t);
+        }
+        print("getCharacteristicsForService", l);
+
+        for (int i = 0; i < rounds; i++)
+            for (String c : characteristics) {
+                t = System.nanoTime();
+                bluez.GetCharacteristicValueValue(c);
+                l.add(System.nanoTime() - t);
+            }
+        print("GetCharacteristicValueValue", l);
+
+        t = System.nanoTime();
+        fake.startDiscovery();
+        Thread.sleep(seconds * 1000);
+        fake.stopDiscovery();
+        // let what's queued drain before counting
+        Thread.sleep(500);
+        rate("DeviceFound", fake.getDeviceFoundSent(), sDiscovered.get(), t);
+
+        for (String c : characteristics)
+            bluez.registerCharacteristicWatcher(c);
+        t = System.nanoTime();
+        fake.startValueChanges();
+        Thread.sleep(seconds * 1000);
+        fake.stopValueChanges();
+        Thread.sleep(500);
+        rate("ValueChanged", fake.getValueChangedSent(), sValueChanged.get(), t);
+
+        bluez.Stop();
+        fake.stop();
+        BlueZInterface.setBusAddress(null);
+        System.exit(0);
+    }
+
+    private static void print(String operation, List<Long> l) {
+        Collections.sort(l);
+        System.out.println(String.format("%-30s %8d %10.2f %10.2f %10.2f ms", operation,
+                l.size(), percentile(l, 50), percentile(l, 95), percentile(l, 99)));
+        l.clear();
+    }
+
+    private static void rate(String signal, long sent, long received, long started) {
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        System.out.println(String.format("%-30s %8d sent %8d received %10.1f/s", signal, sent,
+                received, received / elapsed));
+    }
+
+    private static double percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty())
+            return 0;
+        int i = Math.min(sorted.size() - 1, (sorted.size() * p) / 100);
+        return sorted.get(i) / 1e6;
+    }
+}
@@ -0,0 +1,138 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk connects a set of simulated devices, one refusing and one never
+ * answering, and checks the overall result. Every gatttool process has to be
+ * started from the connect executor: the timer and dispatch threads that
+ * drive the scheduler must never run startConnect themselves.
+ */
+public class ConnectionSchedulerTester {
+    private static final String[] GOOD = new String[] {
+            "00:11:22:33:44:01", "00:11:22:33:44:02", "00:11:22:33:44:03",
+            "00:11:22:33:44:04"
+    };
+    private static final String REFUSING = "00:11:22:33:44:05"; // not registered
+    private static final String SILENT = "00:11:22:33:44:06";
+    private static final int TIMEOUT = 500;
+
+    private final CountDownLatch mRegistered = new CountDownLatch(1);
+    private final CountDownLatch mCompleted = new CountDownLatch(1);
+    private final Set<String> mConnected = new ConcurrentSkipListSet<String>();
+    private final Set<String> mSpawners = new ConcurrentSkipListSet<String>();
+    private volatile String[] mResultConnected;
+    private volatile String[] mResultFailed;
+    private byte mIface = -1;
+    private boolean mOk = true;
+
+    private final IBleClientCallback.Stub mClient = new IBleClientCallback.Stub() {
+        public void onAppRegistered(byte s, byte serIf) {
+            mIface = serIf;
+            mRegistered.countDown();
+        }
+
+        public void onAppDeregistered(byte clientIf) {
+        }
+
+        public void onConnected(String address, int id) {
+            mConnected.add(address);
+        }
+
+        public void onDisconnected(int id, String address) {
+        }
+
+        public void onSearchResult(int id, BluetoothGattID srvcId) {
+        }
+
+        public void onSearchCompleted(int id, int s) {
+        }
+
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+            mResultConnected = connected;
+            mResultFailed = failed;
+            mCompleted.countDown();
+        }
+
+        public void onMtuChanged(int id, int s, int mtu) {
+        }
+
+        public void onLinkRestored(int id, String address) {
+        }
+    };
+
+    private void check(String what, boolean ok, String detail) {
+        System.out.println(String.format("%-40s %s (%s)", what, ok ? "ok" : "FAILED", detail));
+        mOk &= ok;
+    }
+
+    private static String sorted(String[] a) {
+        return new TreeSet<String>(Arrays.asList(a)).toString();
+    }
+
+    private boolean run() throws Exception {
+        for (String a : GOOD)
+            SimulatedGattTool.register(SimulatedPeripheral.heartRateMonitor(a));
+        SimulatedPeripheral silent = SimulatedPeripheral.heartRateMonitor(SILENT);
+        silent.setDropRate("connect", 1.0);
+        SimulatedGattTool.register(silent);
+
+        final GattToolWrapper.ProcessFactory factory = SimulatedGattTool.factory();
+        GattToolWrapper.setProcessFactory(new GattToolWrapper.ProcessFactory() {
+            public Process start() throws IOException {
+                mSpawners.add(Thread.currentThread().getName().replaceAll("[0-9]+$", "*"));
+                return factory.start();
+            }
+        });
+
+        BluetoothGatt gatt = new BluetoothGatt();
+        // a standby worker ready for every connect would leave nothing to check
+        GattToolWrapper.setStandbyWorkers(0);
+        gatt.registerApp(new BluetoothGattID(UUID.randomUUID()), mClient);
+        mRegistered.await(10, TimeUnit.SECONDS);
+
+        String[] all = new String[GOOD.length + 2];
+        System.arraycopy(GOOD, 0, all, 0, GOOD.length);
+        all[GOOD.length] = REFUSING;
+        all[GOOD.length + 1] = SILENT;
+        long start = System.currentTimeMillis();
+        gatt.openMultiple(mIface, all, 2, TIMEOUT, 1);
+        boolean done = mCompleted.await(20, TimeUnit.SECONDS);
+        long took = System.currentTimeMillis() - start;
+
+        check("job completes", done, took + "ms");
+        if (done) {
+            check("connected", sorted(mResultConnected).equals(sorted(GOOD)),
+                    sorted(mResultConnected));
+            check("failed", sorted(mResultFailed).equals(sorted(new String[] {
+                    REFUSING, SILENT })), sorted(mResultFailed));
+        }
+        check("onConnected for each", mConnected.equals(new TreeSet<String>(
+                Arrays.asList(GOOD))), mConnected.toString());
+        check("spawned off the timer", mSpawners.size() == 1
+                && mSpawners.contains("GATT-Connect-*"), mSpawners.toString());
+
+        gatt.unregisterApp(mIface);
+        GattToolWrapper.setProcessFactory(null);
+        return mOk;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = new ConnectionSchedulerTester().run();
+        System.exit(ok ? 0 : 1);
+    }
+}
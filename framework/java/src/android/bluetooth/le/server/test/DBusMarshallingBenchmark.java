@@ -0,0 +1,287 @@
+
+package android.bluetooth.le.server.test;
+
+import org.bluez.Adapter;
+import org.bluez.Characteristic;
+import org.bluez.Watcher;
+import org.freedesktop.dbus.DBusSigHandler;
+import org.freedesktop.dbus.DirectConnection;
+import org.freedesktop.dbus.Marshalling;
+import org.freedesktop.dbus.Message;
+import org.freedesktop.dbus.MessageReader;
+import org.freedesktop.dbus.MessageWriter;
+import org.freedesktop.dbus.MethodCall;
+import org.freedesktop.dbus.Path;
+import org.freedesktop.dbus.UInt16;
+import org.freedesktop.dbus.Variant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the hot path of the embedded dbus-java: appending and extracting
+ * the signatures BlueZ uses, MessageWriter to MessageReader over a pipe,
+ * Marshalling.convertParameters and signal dispatch, which covers
+ * DBusSignal.createReal, between two DirectConnections on an abstract
+ * socket. Prints operations per second and, on JVMs that can count them,
+ * bytes allocated per operation.
+ * <p>
+ * Arguments: iterations per case.
+ */
+public class DBusMarshallingBenchmark {
+    private static final String DEVICE = "/org/bluez/1/hci0/dev_00_11_22_33_44_55";
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    private static Method sAllocated;
+    private static Object sThreads;
+
+    static {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            sThreads = factory.getMethod("getThreadMXBean").invoke(null);
+            sAllocated = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            sAllocated.invoke(sThreads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            // not a HotSpot like VM, allocations won't be reported
+            sAllocated = null;
+        }
+    }
+
+    /**
+     * @return bytes thread allocated so far, -1 if the VM can't tell.
+     */
+    private static long allocated(Thread thread) {
+        if (sAllocated == null)
+            return -1;
+        try {
+            return (Long) sAllocated.invoke(sThreads, thread.getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void report(String name, long ops, long nanos, long bytes) {
+        System.out.println(String.format("%-28s %12.0f ops/s %10s B/op", name,
+                ops * 1e9 / nanos, bytes < 0 ? "n/a" : String.valueOf(bytes / ops)));
+    }
+
+    private static void measure(String name, int iterations, Op op) throws Exception {
+        for (int i = 0; i < iterations / 10; i++)
+            op.run();
+        Thread me = Thread.currentThread();
+        long bytes = allocated(me);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            op.run();
+        long elapsed = System.nanoTime() - start;
+        report(name, iterations, elapsed, bytes < 0 ? -1 : allocated(me) - bytes);
+    }
+
+    /**
+     * What a Device.GetProperties reply carries.
+     */
+    @SuppressWarnings("rawtypes")
+    static Map<String, Variant> deviceProperties() {
+        Map<String, Variant> ret = new HashMap<String, Variant>();
+        List<String> uuids = new ArrayList<String>();
+        List<Path> services = new ArrayList<Path>();
+        for (int i = 0; i < 4; i++) {
+            uuids.add(String.format("%08x-0000-1000-8000-00805f9b34fb", 0x1800 + i));
+            services.add(new Path(String.format("%s/service%04x", DEVICE, i * 16 + 1)));
+        }
+        ret.put("Address", new Variant<String>("00:11:22:33:44:55"));
+        ret.put("Name", new Variant<String>("Simulated HRM"));
+        ret.put("UUIDs", new Variant<List<String>>(uuids, "as"));
+        ret.put("Services", new Variant<List<Path>>(services, "ao"));
+        ret.put("Paired", new Variant<Boolean>(false));
+        ret.put("Connected", new Variant<Boolean>(true));
+        ret.put("Value", new Variant<byte[]>(new byte[] { 0x06, 0x48 }));
+        return ret;
+    }
+
+    static List<Path> paths(int count) {
+        List<Path> ret = new ArrayList<Path>();
+        for (int i = 0; i < count; i++)
+            ret.add(new Path(String.format("%s/service0001/characteristic%04x", DEVICE, i)));
+        return ret;
+    }
+
+    static MethodCall call(String sig, Object arg) throws Exception {
+        return new MethodCall("org.bluez", DEVICE, "org.bluez.Device", "Bench", (byte) 0, sig,
+                arg);
+    }
+
+    static byte[] serialize(Message m) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MessageWriter(out).writeMessage(m);
+        return out.toByteArray();
+    }
+
+    private static void appendAndExtract(int iterations, final String sig, final Object arg)
+            throws Exception {
+        measure("append " + sig, iterations, new Op() {
+            public void run() throws Exception {
+                call(sig, arg);
+            }
+        });
+
+        final byte[] wire = serialize(call(sig, arg));
+        measure("extract " + sig, iterations, new Op() {
+            public void run() throws Exception {
+                new MessageReader(new ByteArrayInputStream(wire)).readMessage().getParameters();
+            }
+        });
+    }
+
+    private static void pipe(final int iterations) throws Exception {
+        PipedOutputStream pout = new PipedOutputStream();
+        final PipedInputStream pin = new PipedInputStream(pout, 64 * 1024);
+        final MessageWriter writer = new MessageWriter(pout);
+        final int total = iterations + iterations / 10;
+        final CountDownLatch warm = new CountDownLatch(iterations / 10);
+        final CountDownLatch done = new CountDownLatch(total);
+        final AtomicLong readerBytes = new AtomicLong();
+
+        Thread reader = new Thread("bench-reader") {
+            public void run() {
+                MessageReader r = new MessageReader(pin);
+                try {
+                    for (int i = 0; i < total; i++) {
+                        if (i == iterations / 10)
+                            readerBytes.set(allocated(this));
+                        Message m;
+                        // null until a whole message made it through
+                        while ((m = r.readMessage()) == null)
+                            ;
+                        m.getParameters();
+                        warm.countDown();
+                        done.countDown();
+                    }
+                    if (readerBytes.get() >= 0)
+                        readerBytes.set(allocated(this) - readerBytes.get());
+                } catch (Exception e) {
+                    System.err.println("pipe reader failed: " + e);
+                }
+            }
+        };
+        reader.start();
+
+        Map<?, ?> properties = deviceProperties();
+        for (int i = 0; i < iterations / 10; i++)
+            writer.writeMessage(call("a{sv}", properties));
+        warm.await();
+
+        Thread me = Thread.currentThread();
+        long bytes = allocated(me);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            writer.writeMessage(call("a{sv}", properties));
+        done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        reader.join();
+        if (bytes >= 0)
+            bytes = allocated(me) - bytes + readerBytes.get();
+        report("pipe round trip a{sv}", iterations, elapsed, bytes);
+        pout.close();
+    }
+
+    private static void convert(int iterations) throws Exception {
+        final Type[] types = Watcher.class.getMethod("ValueChanged", Path.class, Map.class)
+                .getGenericParameterTypes();
+        final Object[] args = new Object[] {
+                new Path(DEVICE + "/service0001/characteristic0002"), deviceProperties()
+        };
+        measure("convertParameters oa{sv}", iterations, new Op() {
+            public void run() throws Exception {
+                Marshalling.convertParameters(args.clone(), types, null);
+            }
+        });
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void signals(int iterations) throws Exception {
+        final String address = "unix:abstract=dbus-bench-" + System.nanoTime();
+        final DirectConnection[] server = new DirectConnection[1];
+        Thread listen = new Thread("bench-listen") {
+            public void run() {
+                try {
+                    server[0] = new DirectConnection(address + ",listen=true");
+                } catch (Exception e) {
+                    System.err.println("listen failed: " + e);
+                }
+            }
+        };
+        listen.start();
+
+        DirectConnection client = null;
+        for (int i = 0; i < 100 && client == null; i++) {
+            try {
+                client = new DirectConnection(address);
+            } catch (Exception e) {
+                Thread.sleep(10);
+            }
+        }
+        listen.join();
+        if (client == null || server[0] == null) {
+            System.out.println("signal dispatch: could not connect");
+            return;
+        }
+
+        final int total = iterations + iterations / 10;
+        final CountDownLatch done = new CountDownLatch(total);
+        client.addSigHandler(Adapter.DeviceFound.class, new DBusSigHandler<Adapter.DeviceFound>() {
+            public void handle(Adapter.DeviceFound s) {
+                done.countDown();
+            }
+        });
+
+        Map<String, Variant> values = deviceProperties();
+        for (int i = 0; i < iterations / 10; i++)
+            server[0].sendSignal(new Adapter.DeviceFound(FakeBlueZ.ADAPTER_PATH,
+                    "00:11:22:33:44:55", values));
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            server[0].sendSignal(new Adapter.DeviceFound(FakeBlueZ.ADAPTER_PATH,
+                    "00:11:22:33:44:55", values));
+        boolean all = done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        // allocations are spread over the connection threads, not counted
+        report("signal dispatch DeviceFound" + (all ? "" : " (lost)"), iterations, elapsed, -1);
+
+        client.disconnect();
+        server[0].disconnect();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        byte[] value = new byte[20];
+        for (int i = 0; i < value.length; i++)
+            value[i] = (byte) i;
+
+        appendAndExtract(iterations, "a{sv}", deviceProperties());
+        appendAndExtract(iterations, "ay", value);
+        appendAndExtract(iterations, "ao", paths(10));
+        appendAndExtract(iterations, "(yyqyq)", new Characteristic.Format((byte) 4, (byte) 0,
+                new UInt16(0x2700), (byte) 1, new UInt16(0)));
+        pipe(iterations);
+        convert(iterations);
+        signals(iterations / 4);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,564 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.test.SimulatedPeripheral.Attribute;
+
+import org.bluez.Adapter;
+import org.bluez.Characteristic;
+import org.bluez.Device;
+import org.bluez.Error;
+import org.bluez.Manager;
+import org.bluez.Service;
+import org.bluez.Watcher;
+import org.freedesktop.dbus.DirectConnection;
+import org.freedesktop.dbus.Path;
+import org.freedesktop.dbus.UInt32;
+import org.freedesktop.dbus.Variant;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In process stand in for bluetoothd. Exports the org.bluez Manager, Adapter,
+ * Device, Service and Characteristic objects BlueZInterface uses over a peer
+ * to peer DirectConnection, built from the attribute databases of
+ * {@link SimulatedPeripheral}s, so discovery, scan storms and property
+ * fetching can be measured without a radio.
+ * <p>
+ * Point BlueZInterface at it with
+ * {@code BlueZInterface.setBusAddress(fake.getAddress())} after
+ * {@link #start(String)}. While discovering it emits DeviceFound for the
+ * known devices round robin at the configured rate, and between
+ * {@link #startValueChanges()} and {@link #stopValueChanges()} pushes
+ * ValueChanged to every registered watcher the same way. Every method call
+ * can be given a latency to model the daemon's own processing.
+ */
+public class FakeBlueZ {
+    public static final String ADAPTER_PATH = "/org/bluez/1/hci0";
+
+    private final Map<String, SimulatedPeripheral> mPeripherals =
+            new LinkedHashMap<String, SimulatedPeripheral>();
+    private final Map<String, DeviceObject> mDevices = new HashMap<String, DeviceObject>();
+    private final List<CharacteristicObject> mWatched = new ArrayList<CharacteristicObject>();
+
+    private DirectConnection mConnection;
+    private String mAddress;
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private final ScheduledExecutorService mTimer = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FakeBlueZ");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private int mLatency = 0;
+    private int mDeviceFoundRate = 100;
+    private int mValueChangedRate = 0;
+    private ScheduledFuture<?> mDiscovery;
+    private ScheduledFuture<?> mValueChanges;
+    private int mNextFound = 0;
+    private int mNextChanged = 0;
+    private final AtomicLong mDeviceFoundSent = new AtomicLong();
+    private final AtomicLong mValueChangedSent = new AtomicLong();
+
+    public synchronized void addDevice(SimulatedPeripheral peripheral) {
+        mPeripherals.put(peripheral.mAddress, peripheral);
+    }
+
+    /**
+     * Time every method call takes before answering.
+     */
+    public synchronized void setLatency(int millis) {
+        mLatency = millis;
+    }
+
+    /**
+     * DeviceFound signals per second while discovering.
+     */
+    public synchronized void setDeviceFoundRate(int perSecond) {
+        mDeviceFoundRate = perSecond;
+    }
+
+    /**
+     * ValueChanged calls per second spread over every watched
+     * characteristic, 0 sends none. Takes effect on the next
+     * {@link #startValueChanges()}.
+     */
+    public synchronized void setValueChangedRate(int perSecond) {
+        mValueChangedRate = perSecond;
+    }
+
+    public long getDeviceFoundSent() {
+        return mDeviceFoundSent.get();
+    }
+
+    public long getValueChangedSent() {
+        return mValueChangedSent.get();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Starts listening on the abstract socket name, returns right away, the
+     * connection is set up once BlueZInterface connects.
+     */
+    public void start(String name) {
+        mAddress = "unix:abstract=" + name;
+        new Thread("FakeBlueZ-listen") {
+            public void run() {
+                try {
+                    DirectConnection c = new DirectConnection(mAddress + ",listen=true");
+                    c.exportObject("/", new ManagerObject());
+                    c.exportObject(ADAPTER_PATH, new AdapterObject());
+                    synchronized (FakeBlueZ.this) {
+                        mConnection = c;
+                    }
+                    mConnected.countDown();
+                } catch (DBusException e) {
+                    System.err.println("fake bluez failed to listen: " + e);
+                }
+            }
+        }.start();
+    }
+
+    public boolean awaitConnected(long millis) throws InterruptedException {
+        return mConnected.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        stopDiscovery();
+        stopValueChanges();
+        if (mConnection != null)
+            mConnection.disconnect();
+        mConnection = null;
+    }
+
+    public synchronized void startDiscovery() {
+        if (mDiscovery != null || mDeviceFoundRate <= 0)
+            return;
+        mDiscovery = mTimer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sendDeviceFound();
+            }
+        }, 0, 1000000 / mDeviceFoundRate, TimeUnit.MICROSECONDS);
+    }
+
+    public synchronized void stopDiscovery() {
+        if (mDiscovery != null)
+            mDiscovery.cancel(false);
+        mDiscovery = null;
+    }
+
+    public synchronized void startValueChanges() {
+        stopValueChanges();
+        if (mValueChangedRate <= 0)
+            return;
+        mValueChanges = mTimer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sendValueChanged();
+            }
+        }, 0, 1000000 / mValueChangedRate, TimeUnit.MICROSECONDS);
+    }
+
+    public synchronized void stopValueChanges() {
+        if (mValueChanges != null)
+            mValueChanges.cancel(false);
+        mValueChanges = null;
+    }
+
+    private void delay() {
+        int latency;
+        synchronized (this) {
+            latency = mLatency;
+        }
+        if (latency <= 0)
+            return;
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void sendDeviceFound() {
+        SimulatedPeripheral p;
+        DirectConnection c;
+        synchronized (this) {
+            if (mPeripherals.isEmpty() || mConnection == null)
+                return;
+            List<SimulatedPeripheral> all = new ArrayList<SimulatedPeripheral>(
+                    mPeripherals.values());
+            p = all.get(mNextFound++ % all.size());
+            c = mConnection;
+        }
+        Map<String, Variant> values = new HashMap<String, Variant>();
+        values.put("Address", new Variant<String>(p.mAddress));
+        values.put("Name", new Variant<String>(nameOf(p)));
+        values.put("RSSI", new Variant<Short>((short) -60));
+        values.put("Paired", new Variant<Boolean>(false));
+        try {
+            c.sendSignal(new Adapter.DeviceFound(ADAPTER_PATH, p.mAddress, values));
+            mDeviceFoundSent.incrementAndGet();
+        } catch (DBusException e) {
+            System.err.println("failed sending DeviceFound: " + e);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void sendValueChanged() {
+        CharacteristicObject ch;
+        synchronized (this) {
+            if (mWatched.isEmpty() || mConnection == null)
+                return;
+            ch = mWatched.get(mNextChanged++ % mWatched.size());
+        }
+        for (String w : ch.service.getWatchers()) {
+            try {
+                Watcher watcher = (Watcher) mConnection.getRemoteObject(w, Watcher.class);
+                watcher.ValueChanged(new Path(ch.path), ch.GetProperties());
+                mValueChangedSent.incrementAndGet();
+            } catch (Exception e) {
+                System.err.println("failed sending ValueChanged: " + e);
+            }
+        }
+    }
+
+    private static String nameOf(SimulatedPeripheral p) {
+        Attribute name = p.get(p.getValueHandle(0x2a00));
+        return name == null ? "Simulated" : new String(name.value);
+    }
+
+    private static String devicePath(String address) {
+        return ADAPTER_PATH + "/dev_" + address.replace(':', '_');
+    }
+
+    /**
+     * Exports the device and its whole attribute tree, like bluetoothd
+     * does once it has been created and its services resolved.
+     */
+    private synchronized DeviceObject createDevice(String address) throws DBusException {
+        DeviceObject d = mDevices.get(address);
+        if (d != null)
+            return d;
+        SimulatedPeripheral p = mPeripherals.get(address);
+        if (p == null)
+            return null;
+
+        d = new DeviceObject(p, devicePath(address));
+        ServiceObject service = null;
+        for (Attribute a : p.mAttributes) {
+            if (a.uuid != null && a.valueHandle == 0) {
+                service = new ServiceObject(a.uuid, String.format("%s/service%04x", d.path,
+                        a.handle));
+                d.services.add(service);
+                mConnection.exportObject(service.path, service);
+            } else if (a.uuid != null && service != null) {
+                CharacteristicObject ch = new CharacteristicObject(service, a.uuid,
+                        p.get(a.valueHandle), String.format("%s/characteristic%04x",
+                                service.path, a.valueHandle));
+                service.characteristics.add(ch);
+                mConnection.exportObject(ch.path, ch);
+            }
+        }
+        mConnection.exportObject(d.path, d);
+        mDevices.put(address, d);
+        return d;
+    }
+
+    private synchronized void watcherRegistered(ServiceObject service) {
+        for (CharacteristicObject ch : service.characteristics)
+            if ((ch.value != null) && !mWatched.contains(ch))
+                mWatched.add(ch);
+    }
+
+    class ManagerObject implements Manager {
+        @SuppressWarnings("rawtypes")
+        public Map<String, Variant> GetProperties() {
+            delay();
+            Map<String, Variant> ret = new HashMap<String, Variant>();
+            List<Path> adapters = new ArrayList<Path>();
+            adapters.add(new Path(ADAPTER_PATH));
+            ret.put("Adapters", new Variant<List<Path>>(adapters, "ao"));
+            return ret;
+        }
+
+        public Path DefaultAdapter() {
+            delay();
+            return new Path(ADAPTER_PATH);
+        }
+
+        public Path FindAdapter(String pattern) {
+            delay();
+            return new Path(ADAPTER_PATH);
+        }
+
+        public boolean isRemote() {
+            return false;
+        }
+    }
+
+    class AdapterObject implements Adapter {
+        @SuppressWarnings("rawtypes")
+        public Map<String, Variant> GetProperties() {
+            delay();
+            Map<String, Variant> ret = new HashMap<String, Variant>();
+            ret.put("Address", new Variant<String>("00:00:00:00:00:00"));
+            ret.put("Name", new Variant<String>("fake-bluez"));
+            ret.put("Powered", new Variant<Boolean>(true));
+            synchronized (FakeBlueZ.this) {
+                ret.put("Discovering", new Variant<Boolean>(mDiscovery != null));
+                List<Path> devices = new ArrayList<Path>();
+                for (DeviceObject d : mDevices.values())
+                    devices.add(new Path(d.path));
+                ret.put("Devices", new Variant<List<Path>>(devices, "ao"));
+            }
+            return ret;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void SetProperty(String name, Variant value) {
+            delay();
+            throw new Error.InvalidArguments("read only in the simulation: " + name);
+        }
+
+        public void RequestSession() {
+            delay();
+        }
+
+        public void ReleaseSession() {
+            delay();
+        }
+
+        public void StartDiscovery() {
+            delay();
+            startDiscovery();
+        }
+
+        public void StopDiscovery() {
+            delay();
+            stopDiscovery();
+        }
+
+        public Path FindDevice(String address) {
+            delay();
+            synchronized (FakeBlueZ.this) {
+                DeviceObject d = mDevices.get(address.toUpperCase());
+                if (d == null)
+                    throw new Error.DoesNotExist("device not created " + address);
+                return new Path(d.path);
+            }
+        }
+
+        public Path CreateDevice(String address) {
+            delay();
+            try {
+                DeviceObject d = createDevice(address.toUpperCase());
+                if (d == null)
+                    throw new Error.Failed("no such device " + address);
+                return new Path(d.path);
+            } catch (DBusException e) {
+                throw new Error.Failed(e.getMessage());
+            }
+        }
+
+        public Path CreatePairedDevice(String address, Path agent, String capability) {
+            return CreateDevice(address);
+        }
+
+        public void CancelDeviceCreation(String address) {
+            throw new Error.NotInProgress(address);
+        }
+
+        public void RemoveDevice(Path device) {
+            throw new Error.Failed("not simulated");
+        }
+
+        public void RegisterAgent(Path agent, String capability) {
+            throw new Error.Failed("not simulated");
+        }
+
+        public void UnregisterAgent(Path agent) {
+            throw new Error.DoesNotExist("not simulated");
+        }
+
+        public boolean isRemote() {
+            return false;
+        }
+    }
+
+    class DeviceObject implements Device {
+        final SimulatedPeripheral peripheral;
+        final String path;
+        final List<ServiceObject> services = new ArrayList<ServiceObject>();
+
+        DeviceObject(SimulatedPeripheral peripheral, String path) {
+            this.peripheral = peripheral;
+            this.path = path;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Map<String, Variant> GetProperties() {
+            delay();
+            Map<String, Variant> ret = new HashMap<String, Variant>();
+            List<String> uuids = new ArrayList<String>();
+            List<Path> paths = new ArrayList<Path>();
+            for (ServiceObject s : services) {
+                uuids.add(s.uuid);
+                paths.add(new Path(s.path));
+            }
+            ret.put("Address", new Variant<String>(peripheral.mAddress));
+            ret.put("Name", new Variant<String>(nameOf(peripheral)));
+            ret.put("UUIDs", new Variant<List<String>>(uuids, "as"));
+            ret.put("Services", new Variant<List<Path>>(paths, "ao"));
+            ret.put("Paired", new Variant<Boolean>(false));
+            ret.put("Connected", new Variant<Boolean>(true));
+            ret.put("Adapter", new Variant<Path>(new Path(ADAPTER_PATH)));
+            return ret;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void SetProperty(String name, Variant value) {
+            delay();
+        }
+
+        public Map<UInt32, String> DiscoverServices(String pattern) {
+            throw new Error.NotSupported("LE devices have no SDP records");
+        }
+
+        public void CancelDiscovery() {
+        }
+
+        public void Disconnect() {
+            delay();
+        }
+
+        public List<Path> ListNodes() {
+            return new ArrayList<Path>();
+        }
+
+        public Path CreateNode(String uuid) {
+            throw new Error.NotSupported(uuid);
+        }
+
+        public void RemoveNode(Path node) {
+            throw new Error.DoesNotExist(node.toString());
+        }
+
+        public boolean isRemote() {
+            return false;
+        }
+    }
+
+    class ServiceObject implements Service {
+        final String uuid;
+        final String path;
+        final List<CharacteristicObject> characteristics = new ArrayList<CharacteristicObject>();
+        private final List<String> mWatchers = new ArrayList<String>();
+
+        ServiceObject(String uuid, String path) {
+            this.uuid = uuid;
+            this.path = path;
+        }
+
+        synchronized List<String> getWatchers() {
+            return new ArrayList<String>(mWatchers);
+        }
+
+        public void SetValue(List<Byte> value) {
+            throw new Error.NotSupported("services have no value");
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Map<String, Variant> GetProperties() {
+            delay();
+            Map<String, Variant> ret = new HashMap<String, Variant>();
+            ret.put("UUID", new Variant<String>(uuid));
+            ret.put("Name", new Variant<String>(uuid));
+            ret.put("Characteristics", new Variant<List<Path>>(DiscoverCharacteristicsNow(),
+                    "ao"));
+            return ret;
+        }
+
+        private List<Path> DiscoverCharacteristicsNow() {
+            List<Path> ret = new ArrayList<Path>();
+            for (CharacteristicObject ch : characteristics)
+                ret.add(new Path(ch.path));
+            return ret;
+        }
+
+        public List<Path> DiscoverCharacteristics() {
+            delay();
+            return DiscoverCharacteristicsNow();
+        }
+
+        public void RegisterCharacteristicsWatcher(Path agent) {
+            delay();
+            synchronized (this) {
+                if (!mWatchers.contains(agent.getPath()))
+                    mWatchers.add(agent.getPath());
+            }
+            watcherRegistered(this);
+        }
+
+        public synchronized void UnregisterCharacteristicsWatcher(Path agent) {
+            mWatchers.remove(agent.getPath());
+        }
+
+        public boolean isRemote() {
+            return false;
+        }
+    }
+
+    class CharacteristicObject implements Characteristic {
+        final ServiceObject service;
+        final String uuid;
+        final Attribute value;
+        final String path;
+
+        CharacteristicObject(ServiceObject service, String uuid, Attribute value, String path) {
+            this.service = service;
+            this.uuid = uuid;
+            this.value = value;
+            this.path = path;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Map<String, Variant> GetProperties() {
+            delay();
+            Map<String, Variant> ret = new HashMap<String, Variant>();
+            ret.put("UUID", new Variant<String>(uuid));
+            ret.put("Name", new Variant<String>(uuid));
+            if (value != null && value.value != null)
+                ret.put("Value", new Variant<byte[]>(value.value));
+            return ret;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void SetProperty(String name, Variant v) {
+            delay();
+            if (!"Value".equals(name) || value == null || !value.writable)
+                throw new Error.InvalidArguments("can't set " + name);
+            value.value = (byte[]) v.getValue();
+        }
+
+        public boolean isRemote() {
+            return false;
+        }
+    }
+}
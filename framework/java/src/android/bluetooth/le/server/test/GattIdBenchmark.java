@@ -0,0 +1,89 @@
+
+package android.bluetooth.le.server.test;
+
+import com.broadcom.bt.le.api.BleGattID;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Simulates the discovery of a 200 attribute database: parses the UUIDs the
+ * way gatttool prints them, stores the ids on a HashMap and looks them up
+ * again, first with the old String.format/UUID.fromString path and then with
+ * BleGattID.
+ */
+public class GattIdBenchmark {
+    private static final int ATTRIBUTES = 200;
+    private static final String LEGACY_TPL = "%08x-0000-1000-8000-00805f9b34fb";
+
+    private static String[] buildDatabase() {
+        String[] ret = new String[ATTRIBUTES];
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            switch (i % 4) {
+                case 0:
+                    // primary services, full 128 bits
+                    ret[i] = String.format(LEGACY_TPL, 0x1800 + (i % 16));
+                    break;
+                case 1:
+                    // characteristic declarations
+                    ret[i] = String.format(LEGACY_TPL, 0x2a00 + (i % 64));
+                    break;
+                case 2:
+                    // descriptors, short form
+                    ret[i] = Integer.toHexString(0x2900 + (i % 4));
+                    break;
+                default:
+                    // vendor UUIDs
+                    ret[i] = new UUID(0xf000aa00L + i, 0x0451400080000000L + i).toString();
+            }
+        }
+        return ret;
+    }
+
+    private static UUID legacyParse(String s) {
+        if (s.length() > 4)
+            return UUID.fromString(s);
+        return UUID.fromString(String.format(LEGACY_TPL, Integer.parseInt(s, 16)));
+    }
+
+    private static long runLegacy(String[] db) {
+        HashMap<UUID, Integer> map = new HashMap<UUID, Integer>();
+        long start = System.nanoTime();
+        for (int i = 0; i < db.length; i++)
+            map.put(legacyParse(db[i]), i);
+        for (int i = 0; i < db.length; i++)
+            map.get(legacyParse(db[i]));
+        return System.nanoTime() - start;
+    }
+
+    private static long runGattId(String[] db) {
+        HashMap<BleGattID, Integer> map = new HashMap<BleGattID, Integer>();
+        long start = System.nanoTime();
+        for (int i = 0; i < db.length; i++)
+            map.put(BleGattID.fromString(db[i]), i);
+        for (int i = 0; i < db.length; i++)
+            map.get(BleGattID.fromString(db[i]));
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String[] db = buildDatabase();
+
+        // warm up
+        for (int i = 0; i < rounds / 10; i++) {
+            runLegacy(db);
+            runGattId(db);
+        }
+
+        long legacy = 0, gattid = 0;
+        for (int i = 0; i < rounds; i++) {
+            legacy += runLegacy(db);
+            gattid += runGattId(db);
+        }
+
+        System.out.println("discovery of " + ATTRIBUTES + " attributes, " + rounds + " rounds");
+        System.out.println("legacy: " + (legacy / rounds / 1000) + " us/round");
+        System.out.println("gattid: " + (gattid / rounds / 1000) + " us/round");
+    }
+}
@@ -0,0 +1,294 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.GattServer;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleProfileEventCallback;
+import com.broadcom.bt.le.api.IBleServiceCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Exercises GattServer end to end without a radio. An application publishes
+ * a service with one characteristic through the same calls BluetoothGatt
+ * forwards from binder, then simulated clients connected over an in memory
+ * transport read declarations, read and write the value and receive
+ * notifications. Prints whether every step behaved and what each request
+ * costs on the server side.
+ */
+public class GattServerLoopbackTester {
+    private static final int SERVICE_UUID = 0x180d;
+    private static final int CHAR_UUID = 0x2a37;
+    private static final int ITERATIONS = 20000;
+
+    /**
+     * Remote side of a connection, keeps whatever the server last sent.
+     */
+    static class LoopbackClient {
+        int connId;
+        int status = -1;
+        byte[] value;
+        int notifications = 0;
+    }
+
+    static class LoopbackTransport implements GattServer.Transport {
+        GattServer server;
+        Map<Integer, LoopbackClient> clients = new HashMap<Integer, LoopbackClient>();
+        int nextConnId = 1;
+        /* false leaves indications unconfirmed until the test does it */
+        boolean confirm = true;
+
+        public boolean connect(String address, boolean direct) {
+            LoopbackClient c = new LoopbackClient();
+            c.connId = nextConnId++;
+            clients.put(c.connId, c);
+            server.onClientConnected(c.connId, address);
+            return true;
+        }
+
+        public void cancelConnect(String address) {
+        }
+
+        public void disconnect(int connId) {
+            clients.remove(connId);
+            server.onClientDisconnected(connId);
+        }
+
+        public void sendResponse(int connId, int status, int handle, int offset, byte[] value) {
+            LoopbackClient c = clients.get(connId);
+            c.status = status;
+            c.value = value;
+        }
+
+        public void sendNotification(int connId, int handle, byte[] value) {
+            clients.get(connId).notifications++;
+        }
+
+        public void sendIndication(int connId, int handle, byte[] value) {
+            clients.get(connId).notifications++;
+            if (confirm)
+                server.onIndicationConfirmed(connId);
+        }
+    }
+
+    static class ProfileApp extends IBleProfileEventCallback.Stub {
+        int serverIf = -1;
+        int connected = 0;
+
+        public void onClientConnected(int connId, String address, boolean isConnected) {
+            connected += isConnected ? 1 : -1;
+        }
+
+        public void onAppRegisterCompleted(int status, int serIf) {
+            serverIf = serIf;
+        }
+
+        public void onAttributeMtuExchange(String address, int connId, int transId, int mtuSize) {
+        }
+    }
+
+    /**
+     * Application owning the service, answers reads and writes right away
+     * like BleServerService does from its handler.
+     */
+    static class ServiceApp extends IBleServiceCallback.Stub {
+        GattServer server;
+        BluetoothGattID svcId;
+        int svcHandle = -1;
+        int valueHandle = -1;
+        int cccdHandle = -1;
+        boolean started = false;
+        byte[] value = new byte[] { 0x06, 0x48 };
+        int indicationStatus = -1;
+        /* set if a callback ever comes in with the server locked */
+        boolean locked = false;
+
+        public void onServiceRegistered(byte status, BluetoothGattID svcId) {
+            this.svcId = svcId;
+        }
+
+        public void onServiceCreated(byte status, int svcHandle) {
+            this.svcHandle = svcHandle;
+        }
+
+        public void onIncludedServiceAdded(byte status, int incSvc) {
+        }
+
+        public void onCharacteristicAdded(byte status, BluetoothGattID charId, int charHandle) {
+            valueHandle = charHandle;
+        }
+
+        public void onCharacteristicDescrAdded(byte status, BluetoothGattID descId, int handle) {
+            cccdHandle = handle;
+        }
+
+        public void onServiceDeleted(byte status) {
+        }
+
+        public void onServiceStarted(byte status) {
+            started = status == 0;
+        }
+
+        public void onServiceStopped(byte status) {
+            started = false;
+        }
+
+        public void onHandleValueIndicationCompleted(byte status, int attrHandle) {
+            indicationStatus = status & 0xff;
+        }
+
+        public void onHandleValueNotificationCompleted(byte status, int attrHandle) {
+            locked |= Thread.holdsLock(server);
+        }
+
+        public void onResponseSendCompleted(byte status, int attrHandle) {
+        }
+
+        public void onAttributeRequestRead(String address, int connId, int transId,
+                int attrHandle, int offset, boolean isLong) {
+            locked |= Thread.holdsLock(server);
+            byte[] ret = Arrays.copyOfRange(value, Math.min(offset, value.length), value.length);
+            server.sendResponse(connId, transId, 0, attrHandle, offset, ret);
+        }
+
+        public void onAttributeRequestWrite(String address, int connId, int transId,
+                int attrHandle, boolean isPrep, int len, boolean needRsp, int offset,
+                byte[] data) {
+            if (attrHandle == valueHandle && !isPrep)
+                value = data;
+            if (needRsp)
+                server.sendResponse(connId, transId, 0, attrHandle, offset, data);
+        }
+
+        public void onAttributeExecWrite(String address, int connId, int transId, int execWrite) {
+            server.sendResponse(connId, transId, 0, 0, 0, null);
+        }
+    }
+
+    private static boolean sFailed = false;
+
+    private static void check(String what, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ") + what);
+        sFailed |= !ok;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+        LoopbackTransport transport = new LoopbackTransport();
+        GattServer server = new GattServer(transport);
+        transport.server = server;
+
+        ProfileApp profile = new ProfileApp();
+        ServiceApp service = new ServiceApp();
+        service.server = server;
+        BluetoothGattID appId = new BluetoothGattID(0, 0xfff0);
+        BluetoothGattID svcId = new BluetoothGattID(0, SERVICE_UUID,
+                BleConstants.GATT_SERVICE_PRIMARY);
+
+        server.registerProfile(appId, profile);
+        check("profile registered", profile.serverIf > 0);
+        server.registerService(svcId, appId, service);
+        check("service registered", service.svcId != null);
+        server.createService(profile.serverIf, svcId, 4);
+        check("service created", service.svcHandle > 0);
+        server.addCharacteristic(service.svcHandle, new BluetoothGattID(0, CHAR_UUID),
+                BleConstants.GATT_PERM_READ | BleConstants.GATT_PERM_WRITE,
+                BleConstants.GATT_CHAR_PROP_BIT_READ | BleConstants.GATT_CHAR_PROP_BIT_WRITE
+                        | BleConstants.GATT_CHAR_PROP_BIT_NOTIFY);
+        check("characteristic added", service.valueHandle == service.svcHandle + 2);
+        server.addDescriptor(service.svcHandle,
+                BleConstants.GATT_PERM_READ | BleConstants.GATT_PERM_WRITE,
+                new BluetoothGattID(0, BleConstants.GATT_UUID_CHAR_CLIENT_CONFIG16));
+        check("descriptor added", service.cccdHandle == service.valueHandle + 1);
+        server.startService(service.svcHandle);
+        check("service started", service.started);
+
+        for (int i = 0; i < clients; i++)
+            server.open(profile.serverIf, String.format("00:11:22:33:%02X:%02X", i >> 8,
+                    i & 0xff), true);
+        check(clients + " clients connected", profile.connected == clients);
+
+        LoopbackClient c = transport.clients.get(1);
+        server.onReadRequest(c.connId, service.svcHandle, 0);
+        check("service declaration", c.status == 0
+                && Arrays.equals(c.value, new byte[] { 0x0d, 0x18 }));
+        server.onReadRequest(c.connId, service.svcHandle + 1, 0);
+        check("characteristic declaration", c.status == 0 && c.value.length == 5
+                && c.value[1] == (byte) service.valueHandle && c.value[3] == 0x37);
+        server.onReadRequest(c.connId, service.valueHandle, 0);
+        check("value read", c.status == 0 && Arrays.equals(c.value, service.value));
+        server.onWriteRequest(c.connId, service.valueHandle, 0, new byte[] { 1, 2, 3 }, true,
+                false);
+        server.onReadRequest(c.connId, service.valueHandle, 1);
+        check("write then read blob", c.status == 0
+                && Arrays.equals(c.value, new byte[] { 2, 3 }));
+        server.onReadRequest(c.connId, 0x200, 0);
+        check("invalid handle", c.status == BleConstants.GATT_INVALID_HANDLE);
+        server.onWriteRequest(c.connId, service.svcHandle, 0, new byte[] { 0 }, true, false);
+        check("declarations are read only", c.status == BleConstants.GATT_WRITE_NOT_PERMIT);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            server.onReadRequest(c.connId, service.valueHandle, 0);
+        long read = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            server.onWriteRequest(c.connId, service.valueHandle, 0, service.value, true, false);
+        long write = System.nanoTime() - start;
+
+        byte[] update = new byte[] { 0x06, 0x50 };
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS / clients; i++)
+            for (LoopbackClient l : transport.clients.values())
+                server.sendNotification(l.connId, service.valueHandle, update);
+        long notify = System.nanoTime() - start;
+        int expected = ITERATIONS / clients;
+        boolean all = true;
+        for (LoopbackClient l : transport.clients.values())
+            all &= l.notifications == expected;
+        check("notifications reached every client", all);
+
+        server.onWriteRequest(c.connId, service.cccdHandle, 0, new byte[] { 1, 0 }, true, false);
+        server.broadcastNotification(service.valueHandle, update);
+        all = c.notifications == expected + 1;
+        for (LoopbackClient l : transport.clients.values())
+            all &= l == c || l.notifications == expected;
+        check("broadcast only reaches subscribers", all);
+        server.onWriteRequest(c.connId, service.cccdHandle, 0, new byte[] { 0, 0 }, true, false);
+        server.broadcastNotification(service.valueHandle, update);
+        check("unsubscribed", c.notifications == expected + 1);
+        check("callbacks run without the lock", !service.locked);
+
+        // one indication on the air, one queued, then the transport goes
+        transport.confirm = false;
+        server.sendIndication(c.connId, service.valueHandle, update);
+        server.sendIndication(c.connId, service.valueHandle, update);
+        server.setTransport(null);
+        server.onIndicationConfirmed(c.connId);
+        check("queued indication fails without transport",
+                service.indicationStatus == BleConstants.GATT_ERROR);
+        server.setTransport(transport);
+
+        server.sendIndication(c.connId, service.valueHandle, update);
+        server.sendIndication(c.connId, service.valueHandle, update);
+        int sent = c.notifications;
+        server.deleteService(service.svcHandle);
+        server.onIndicationConfirmed(c.connId);
+        check("queued indications go with the service", c.notifications == sent);
+        server.onReadRequest(c.connId, service.valueHandle, 0);
+        check("deleted service is gone", c.status == BleConstants.GATT_INVALID_HANDLE);
+
+        System.out.println();
+        System.out.println(String.format("read request      %8.2f us", read / 1000.0 / ITERATIONS));
+        System.out.println(String.format("write request     %8.2f us", write / 1000.0 / ITERATIONS));
+        System.out.println(String.format("notification      %8.2f us",
+                notify / 1000.0 / (expected * clients)));
+        System.exit(sFailed ? 1 : 0);
+    }
+}
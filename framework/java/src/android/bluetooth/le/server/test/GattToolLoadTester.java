@@ -0,0 +1,463 @@
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+import android.os.RemoteException;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleCharacteristicDataCallback;
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattCharDescrID;
+import com.broadcom.bt.service.gatt.BluetoothGattCharID;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
+import com.broadcom.bt.service.gatt.IBluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a few hundred simulated heart rate monitors at once through
+ * BluetoothGatt, calling it the way applications do over binder. All of them
+ * are connected with openMultiple, then each one negotiates the MTU,
+ * discovers services, characteristics and client configuration descriptors,
+ * reads every readable value a few times, enables notifications and waits
+ * for some of them. Prints how many devices made it to the end, how many got
+ * an error or stalled, the latency of every call as seen from the
+ * application callbacks, and how many threads the framework needed at the
+ * peak, the threads delivering callbacks on the application side aside.
+ * <p>
+ * Arguments: devices, read rounds, latency and jitter in milliseconds,
+ * failure rate for char-read-hnd.
+ */
+public class GattToolLoadTester {
+    private static final int CLIENT_CONFIG = SimulatedPeripheral.UUID_CLIENT_CONFIG;
+    private static final int NOTIFICATIONS = 3;
+    private static final int MAX_CONCURRENT = 32;
+    private static final int TIMEOUT = 60;
+
+    private static final Map<String, List<Long>> sLatencies =
+            new LinkedHashMap<String, List<Long>>();
+
+    private static IBluetoothGatt sGatt;
+    private static byte sIface = -1;
+
+    private static void record(String operation, long nanos) {
+        synchronized (sLatencies) {
+            List<Long> l = sLatencies.get(operation);
+            if (l == null) {
+                l = new ArrayList<Long>();
+                sLatencies.put(operation, l);
+            }
+            l.add(nanos);
+        }
+    }
+
+    /**
+     * One simulated device, every step is started from the callback of the
+     * previous one. Services come back to back, characteristics and
+     * descriptors are walked one service after the other.
+     */
+    static class Device extends IBleCharacteristicDataCallback.Stub {
+        final String address;
+        final int rounds;
+        final CountDownLatch done;
+        int connID = -1;
+        String operation;
+        long started;
+        List<BluetoothGattID> services = new ArrayList<BluetoothGattID>();
+        int service = 0;
+        List<BluetoothGattCharID> readable = new ArrayList<BluetoothGattCharID>();
+        List<BluetoothGattCharID> notifiable = new ArrayList<BluetoothGattCharID>();
+        int descriptors = 0;
+        BluetoothGattCharDescrID clientConfig;
+        int reads = 0;
+        int notifications = 0;
+        String error;
+        boolean finished = false;
+
+        Device(String address, int rounds, CountDownLatch done) {
+            this.address = address;
+            this.rounds = rounds;
+            this.done = done;
+        }
+
+        private void begin(String op) {
+            operation = op;
+            started = System.nanoTime();
+        }
+
+        /**
+         * @return false if the step failed and the device gave up.
+         */
+        private boolean complete(int status) {
+            record(operation, System.nanoTime() - started);
+            if (status == BleConstants.GATT_SUCCESS)
+                return true;
+            finish(operation + " failed with " + status);
+            return false;
+        }
+
+        synchronized void finish(String e) {
+            if (finished)
+                return;
+            finished = true;
+            error = e;
+            done.countDown();
+        }
+
+        synchronized void connected(int id) {
+            connID = id;
+            if (!complete(BleConstants.GATT_SUCCESS))
+                return;
+            begin("requestMtu");
+            try {
+                sGatt.requestMtu(connID, 247);
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        synchronized void mtuChanged(int status) {
+            if (finished || !complete(status))
+                return;
+            begin("searchService");
+            try {
+                sGatt.searchService(connID, null);
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        synchronized void searchResult(BluetoothGattID svcId) {
+            services.add(svcId);
+        }
+
+        synchronized void searchCompleted(int status) {
+            if (finished || !complete(status))
+                return;
+            try {
+                for (BluetoothGattID s : services)
+                    sGatt.registerServiceDataCallback(connID, s, address, this);
+                nextService();
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        private void nextService() throws RemoteException {
+            if (service < services.size()) {
+                begin("getChar");
+                sGatt.getFirstChar(connID, services.get(service++), null);
+                return;
+            }
+            nextDescriptor();
+        }
+
+        private void nextDescriptor() throws RemoteException {
+            if (descriptors < notifiable.size()) {
+                begin("getCharDescr");
+                sGatt.getFirstCharDescr(connID, notifiable.get(descriptors++), null);
+                return;
+            }
+            nextRead();
+        }
+
+        private void nextRead() throws RemoteException {
+            if (reads < readable.size() * rounds) {
+                begin("readChar");
+                sGatt.readChar(connID, readable.get(reads % readable.size()), (byte) 0);
+                return;
+            }
+            if (clientConfig == null) {
+                finish(null);
+                return;
+            }
+            sGatt.registerForNotifications(sIface, address, new BluetoothGattCharID(
+                    clientConfig.getSrvcId(), clientConfig.getCharId()));
+            begin("writeCharDescr");
+            sGatt.writeCharDescrValue(connID, clientConfig, BleConstants.GATTC_TYPE_WRITE,
+                    (byte) 0, new byte[] { 1, 0 });
+        }
+
+        private void characteristic(int status, BluetoothGattID svcId,
+                BluetoothGattID charId, int prop) throws RemoteException {
+            if (status != BleConstants.GATT_SUCCESS) {
+                // past the last one of the service
+                record(operation, System.nanoTime() - started);
+                nextService();
+                return;
+            }
+            BluetoothGattCharID id = new BluetoothGattCharID(svcId, charId);
+            if ((prop & BleConstants.GATT_CHAR_PROP_BIT_READ) != 0)
+                readable.add(id);
+            if ((prop & (BleConstants.GATT_CHAR_PROP_BIT_NOTIFY
+                    | BleConstants.GATT_CHAR_PROP_BIT_INDICATE)) != 0)
+                notifiable.add(id);
+            sGatt.getNextChar(connID, id, null);
+        }
+
+        public synchronized void onGetFirstCharacteristic(int connID, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, int prop) {
+            if (finished)
+                return;
+            try {
+                characteristic(status, svcId, charId, prop);
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        public synchronized void onGetNextCharacteristic(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, int prop) {
+            if (finished)
+                return;
+            try {
+                characteristic(status, svcId, charId, prop);
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        public synchronized void onGetFirstCharacteristicDescriptor(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, BluetoothGattID descId) {
+            if (finished)
+                return;
+            record(operation, System.nanoTime() - started);
+            if (status == BleConstants.GATT_SUCCESS && clientConfig == null
+                    && descId.getUuid16() == CLIENT_CONFIG)
+                clientConfig = new BluetoothGattCharDescrID(svcId, charId, descId);
+            try {
+                nextDescriptor();
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        public synchronized void onReadCharacteristicValue(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, byte[] data) {
+            if (finished || !complete(status))
+                return;
+            reads++;
+            try {
+                nextRead();
+            } catch (RemoteException e) {
+                finish(e.toString());
+            }
+        }
+
+        public synchronized void onWriteCharDescrValue(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, BluetoothGattID descId) {
+            if (finished || !complete(status))
+                return;
+            begin("notification");
+        }
+
+        public synchronized void onNotify(int connId, String address, BluetoothGattID svcId,
+                BluetoothGattID charId, boolean isNotify, byte[] data) {
+            if (finished)
+                return;
+            record(operation, System.nanoTime() - started);
+            started = System.nanoTime();
+            if (++notifications == NOTIFICATIONS)
+                finish(null);
+        }
+
+        public void onGetNextCharacteristicDescriptor(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, BluetoothGattID descId) {
+        }
+
+        public void onReadCharDescriptorValue(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId, BluetoothGattID descId, byte[] data) {
+        }
+
+        public void onWriteCharValue(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onRegForNotifications(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onUnregisterNotifications(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onGetFirstIncludedService(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onGetNextIncludedService(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onReadMultipleValues(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattValues values) {
+        }
+
+        public void onNotifyBatch(int connId, String address,
+                BluetoothGattNotifications batch) {
+        }
+    }
+
+    /**
+     * The one application all devices belong to, hands connection level
+     * events to their device.
+     */
+    static class App extends IBleClientCallback.Stub {
+        final CountDownLatch registered = new CountDownLatch(1);
+        final Map<String, Device> byAddress = new ConcurrentHashMap<String, Device>();
+        final Map<Integer, Device> byConnID = new ConcurrentHashMap<Integer, Device>();
+
+        public void onAppRegistered(byte status, byte serIf) {
+            sIface = serIf;
+            registered.countDown();
+        }
+
+        public void onAppDeregistered(byte clientIf) {
+        }
+
+        public void onConnected(String address, int connId) {
+            Device d = byAddress.get(address.toUpperCase());
+            if (d == null)
+                return;
+            byConnID.put(connId, d);
+            d.connected(connId);
+        }
+
+        public void onDisconnected(int connId, String address) {
+            Device d = byConnID.get(connId);
+            if (d != null)
+                d.finish("disconnected during " + d.operation);
+        }
+
+        public void onSearchResult(int connId, BluetoothGattID srvcId) {
+            Device d = byConnID.get(connId);
+            if (d != null)
+                d.searchResult(srvcId);
+        }
+
+        public void onSearchCompleted(int connId, int status) {
+            Device d = byConnID.get(connId);
+            if (d != null)
+                d.searchCompleted(status);
+        }
+
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+            for (String a : failed)
+                byAddress.get(a.toUpperCase()).finish("connect failed");
+        }
+
+        public void onMtuChanged(int connId, int status, int mtu) {
+            Device d = byConnID.get(connId);
+            if (d != null)
+                d.mtuChanged(status);
+        }
+
+        public void onLinkRestored(int connId, String address) {
+        }
+    }
+
+    /* threads of the framework, the oneway callback ones belong to the apps */
+    private static int frameworkThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (!t.getName().startsWith("Oneway-"))
+                n++;
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int jitter = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        double failures = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+        App app = new App();
+        List<Device> all = new ArrayList<Device>();
+        String[] addresses = new String[devices];
+        CountDownLatch done = new CountDownLatch(devices);
+        for (int i = 0; i < devices; i++) {
+            String address = String.format("00:11:22:33:%02X:%02X", i >> 8, i & 0xff);
+            SimulatedPeripheral p = SimulatedPeripheral.heartRateMonitor(address);
+            p.setLatency(latency, jitter);
+            p.setLatency("connect", latency * 10);
+            p.setNotificationInterval(p.getValueHandle(0x2a37), 100);
+            p.setFailure("char-read-hnd", failures, 0x0e);
+            SimulatedGattTool.register(p);
+            Device d = new Device(address, rounds, done);
+            all.add(d);
+            app.byAddress.put(address, d);
+            addresses[i] = address;
+        }
+        GattToolWrapper.setProcessFactory(SimulatedGattTool.factory());
+        // callbacks come in apart like from another process
+        sGatt = (IBluetoothGatt) new OnewayBinder(IBleClientCallback.class,
+                IBleCharacteristicDataCallback.class).wrap(new BluetoothGatt(),
+                IBluetoothGatt.class);
+        sGatt.registerApp(new BluetoothGattID(UUID.randomUUID()), app);
+        app.registered.await(10, TimeUnit.SECONDS);
+
+        int threads = frameworkThreads();
+        int peak = threads;
+        long start = System.nanoTime();
+        for (Device d : all)
+            d.begin("openMultiple");
+        sGatt.openMultiple(sIface, addresses, MAX_CONCURRENT, 0, 1);
+        boolean completed = false;
+        while (!completed && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(TIMEOUT)) {
+            completed = done.await(100, TimeUnit.MILLISECONDS);
+            peak = Math.max(peak, frameworkThreads());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int ok = 0, errors = 0, stalled = 0;
+        for (Device d : all) {
+            synchronized (d) {
+                if (!d.finished) {
+                    System.out.println("stalled " + d.address + " in " + d.operation);
+                    stalled++;
+                } else if (d.error != null) {
+                    System.out.println("error   " + d.address + ": " + d.error);
+                    errors++;
+                } else {
+                    ok++;
+                }
+            }
+        }
+        sGatt.unregisterApp(sIface);
+        GattToolWrapper.setProcessFactory(null);
+
+        System.out.println();
+        System.out.println(String.format("%d devices in %.2f s: %d completed, %d errors,"
+                + " %d stalled%s", devices, elapsed / 1e9, ok, errors, stalled,
+                completed ? "" : " (timed out)"));
+        System.out.println(String.format("threads: %d before connecting, %d at peak", threads,
+                peak));
+        System.out.println(String.format("%-16s %8s %10s %10s %10s", "operation", "count",
+                "p50 ms", "p95 ms", "p99 ms"));
+        synchronized (sLatencies) {
+            for (Map.Entry<String, List<Long>> e : sLatencies.entrySet()) {
+                List<Long> l = e.getValue();
+                Collections.sort(l);
+                System.out.println(String.format("%-16s %8d %10.2f %10.2f %10.2f", e.getKey(),
+                        l.size(), percentile(l, 50), percentile(l, 95), percentile(l, 99)));
+            }
+        }
+        System.exit(stalled == 0 && completed ? 0 : 1);
+    }
+
+    private static double percentile(List<Long> sorted, int p) {
+        int i = Math.min(sorted.size() - 1, (sorted.size() * p) / 100);
+        return sorted.get(i) / 1e6;
+    }
+}
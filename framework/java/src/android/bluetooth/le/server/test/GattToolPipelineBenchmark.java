@@ -0,0 +1,457 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleCharacteristicDataCallback;
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattCharDescrID;
+import com.broadcom.bt.service.gatt.BluetoothGattCharID;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a recorded gatttool session through the whole client pipeline,
+ * Worker, GattToolWrapper.lineReceived, Response.processLine and
+ * BluetoothGatt, up to in process IBleClientCallback and
+ * IBleCharacteristicDataCallback stubs. The session discovers a large
+ * database, takes a 1 kHz notification stream and does back to back
+ * acknowledged writes. It is played once at the recorded pace and once as
+ * fast as the Worker reads, after a warm up pass, and every phase prints
+ * lines per second, p50 and p99 from the moment a line is handed to the
+ * Worker to the callback it ends in, and CPU time and bytes the Worker
+ * thread, which runs the callbacks too, spent per line.
+ * <p>
+ * Arguments: services, characteristics per service, milliseconds of
+ * notifications, writes, transcript file. A transcript file that exists is
+ * played instead of recording a new session against a
+ * {@link SimulatedGattTool}, otherwise the new recording is saved there.
+ * Recording this same session on a device gives one from the real tool.
+ */
+public class GattToolPipelineBenchmark {
+    static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int TIMEOUT = 60;
+    static final String[] TRACKED = {
+            "PRIMARY-ALL-END", "CHAR-END", "CHAR-DESC-END", "CHAR-WRITE-REQ", "NOTIFICATION"
+    };
+
+    private static Method sAllocated;
+    private static Method sCpu;
+    private static Object sThreads;
+
+    static {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            sThreads = factory.getMethod("getThreadMXBean").invoke(null);
+            sCpu = Class.forName("java.lang.management.ThreadMXBean").getMethod(
+                    "getThreadCpuTime", long.class);
+            sAllocated = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            sAllocated.invoke(sThreads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            // not a HotSpot like VM, allocations won't be reported
+            sAllocated = null;
+        }
+    }
+
+    /**
+     * @return what probe reports summed over every Worker reader and dispatch
+     *         thread, -1 if the VM can't tell.
+     */
+    private static long workerSum(Method probe) {
+        if (probe == null)
+            return -1;
+        long ret = 0;
+        try {
+            for (Thread t : Thread.getAllStackTraces().keySet())
+                if (t.getName().startsWith("GATT-Worker"))
+                    ret += (Long) probe.invoke(sThreads, t.getId());
+        } catch (Exception e) {
+            return -1;
+        }
+        return ret;
+    }
+
+    /**
+     * @return bytes every Worker thread allocated so far, -1 if the VM can't
+     *         tell.
+     */
+    private static long workerAllocated() {
+        return workerSum(sAllocated);
+    }
+
+    /**
+     * @return CPU nanoseconds every Worker thread used so far, -1 if the VM
+     *         can't tell.
+     */
+    static long workerCpu() {
+        return workerSum(sCpu);
+    }
+
+    /**
+     * One run of the session against whatever process factory is
+     * installed, every callback it waits for releases mSignal.
+     */
+    static class Session {
+        final GattToolTranscript transcript;
+        /* false while recording, there is nothing to measure then */
+        final boolean playing;
+        final boolean report;
+        final String address;
+        final Semaphore mSignal = new Semaphore(0);
+        final long[] mSamples = new long[1 << 20];
+        int mCount;
+        String mPhase;
+        long mStarted;
+        long mLines;
+        long mBytes;
+        long mCpu;
+        int mLost;
+        /* lines, Worker CPU ns and bytes of every phase, -1 when unknown */
+        final Map<String, long[]> results = new HashMap<String, long[]>();
+
+        BluetoothGatt gatt;
+        byte iface = -1;
+        int connId = -1;
+        int status;
+        BluetoothGattID charId;
+        BluetoothGattID descrId;
+        int properties;
+        final List<BluetoothGattID> services = new ArrayList<BluetoothGattID>();
+
+        Session(GattToolTranscript transcript, boolean playing, boolean report, String address) {
+            this.transcript = transcript;
+            this.playing = playing;
+            this.report = report;
+            this.address = address;
+        }
+
+        synchronized void sample(String result) {
+            if (!playing || mPhase == null)
+                return;
+            long t = transcript.emitted(result);
+            if (t < 0) {
+                mLost++;
+                return;
+            }
+            if (mCount < mSamples.length)
+                mSamples[mCount++] = System.nanoTime() - t;
+        }
+
+        synchronized void begin(String phase) {
+            mPhase = phase;
+            mCount = 0;
+            mLost = 0;
+            mLines = transcript.getLinesEmitted();
+            mBytes = workerAllocated();
+            mCpu = workerCpu();
+            mStarted = System.nanoTime();
+        }
+
+        synchronized void end() {
+            long elapsed = System.nanoTime() - mStarted;
+            long lines = transcript.getLinesEmitted() - mLines;
+            long bytes = workerAllocated();
+            long cpu = workerCpu();
+            String phase = mPhase;
+            mPhase = null;
+            bytes = bytes < 0 || mBytes < 0 ? -1 : bytes - mBytes;
+            cpu = cpu < 0 || mCpu < 0 ? -1 : cpu - mCpu;
+            results.put(phase, new long[] { lines, cpu, bytes });
+            if (!report)
+                return;
+            long[] l = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(l);
+            System.out.println(String.format("%-28s %7d lines %10.0f lines/s %9.1f %9.1f us %8s ns/line %8s B/line%s",
+                    phase, lines, lines * 1e9 / elapsed, percentile(l, 50), percentile(l, 99),
+                    cpu < 0 || lines == 0 ? "n/a" : String.valueOf(cpu / lines),
+                    bytes < 0 || lines == 0 ? "n/a" : String.valueOf(bytes / lines),
+                    mLost > 0 ? " (" + mLost + " unmatched)" : ""));
+        }
+
+        private static double percentile(long[] sorted, int p) {
+            if (sorted.length == 0)
+                return 0;
+            return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1e3;
+        }
+
+        void await(String what) throws InterruptedException {
+            await(what, 1);
+        }
+
+        void await(String what, int count) throws InterruptedException {
+            if (!mSignal.tryAcquire(count, TIMEOUT, TimeUnit.SECONDS))
+                throw new IllegalStateException("timed out waiting for " + what);
+        }
+
+        final IBleClientCallback.Stub client = new IBleClientCallback.Stub() {
+            public void onAppRegistered(byte s, byte serIf) {
+                status = s;
+                iface = serIf;
+                mSignal.release();
+            }
+
+            public void onAppDeregistered(byte clientIf) {
+            }
+
+            public void onConnected(String address, int id) {
+                connId = id;
+                mSignal.release();
+            }
+
+            public void onDisconnected(int id, String address) {
+                mSignal.release();
+            }
+
+            public void onSearchResult(int id, BluetoothGattID srvcId) {
+                services.add(srvcId);
+            }
+
+            public void onSearchCompleted(int id, int s) {
+                sample("PRIMARY-ALL-END");
+                status = s;
+                mSignal.release();
+            }
+
+            public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+            }
+
+            public void onMtuChanged(int id, int s, int mtu) {
+            }
+
+            public void onLinkRestored(int id, String address) {
+            }
+        };
+
+        final IBleCharacteristicDataCallback.Stub data = new IBleCharacteristicDataCallback.Stub() {
+            public void onGetFirstCharacteristic(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr, int prop) {
+                sample("CHAR-END");
+                status = s;
+                charId = chr;
+                properties = prop;
+                mSignal.release();
+            }
+
+            public void onGetFirstCharacteristicDescriptor(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr, BluetoothGattID descr) {
+                sample("CHAR-DESC-END");
+                status = s;
+                descrId = descr;
+                mSignal.release();
+            }
+
+            public void onGetNextCharacteristic(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr, int prop) {
+                status = s;
+                charId = chr;
+                properties = prop;
+                mSignal.release();
+            }
+
+            public void onGetNextCharacteristicDescriptor(int id, int s,
+                    BluetoothGattID svcId, BluetoothGattID chr, BluetoothGattID descr) {
+            }
+
+            public void onReadCharacteristicValue(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr, byte[] value) {
+            }
+
+            public void onReadCharDescriptorValue(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr, BluetoothGattID descr, byte[] value) {
+            }
+
+            public void onWriteCharValue(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr) {
+                sample("CHAR-WRITE-REQ");
+                status = s;
+                mSignal.release();
+            }
+
+            public void onWriteCharDescrValue(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr, BluetoothGattID descr) {
+                sample("CHAR-WRITE-REQ");
+                status = s;
+                mSignal.release();
+            }
+
+            public void onRegForNotifications(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr) {
+            }
+
+            public void onUnregisterNotifications(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr) {
+            }
+
+            public void onNotify(int id, String address, BluetoothGattID svcId,
+                    BluetoothGattID chr, boolean isNotify, byte[] value) {
+                sample("NOTIFICATION");
+            }
+
+            public void onGetFirstIncludedService(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr) {
+            }
+
+            public void onGetNextIncludedService(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattID chr) {
+            }
+
+            public void onReadMultipleValues(int id, int s, BluetoothGattID svcId,
+                    BluetoothGattValues values) {
+            }
+
+            public void onNotifyBatch(int id, String address, BluetoothGattNotifications batch) {
+            }
+        };
+
+        /**
+         * Waits until the transcript handed over everything asked for and
+         * every notification made it to onNotify. While recording there is
+         * nothing to wait for but the stream itself.
+         */
+        void drain(int millis) throws InterruptedException {
+            if (!playing) {
+                Thread.sleep(millis);
+                return;
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+            while (!transcript.isIdle() || transcript.pending("NOTIFICATION") > 0) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException("notifications never made it to onNotify");
+                Thread.sleep(1);
+            }
+        }
+
+        void run(String name, int stream, int writes) throws Exception {
+            gatt = new BluetoothGatt();
+            // transcripts take one process at a time, no standby next to it
+            GattToolWrapper.setStandbyWorkers(0);
+            gatt.registerApp(new BluetoothGattID(UUID.randomUUID()), client);
+            await("onAppRegistered");
+            if (status != BleConstants.GATT_SUCCESS)
+                throw new IllegalStateException("registerApp failed " + status);
+            // not in the foreground, open would block until its timeout if
+            // the answer beats it to the wait
+            gatt.open(iface, address, false);
+            await("onConnected");
+            if (connId < 0)
+                throw new IllegalStateException("could not connect to " + address);
+
+            begin(name + " discovery");
+            services.clear();
+            gatt.searchService(connId, null);
+            await("onSearchCompleted");
+            BluetoothGattCharDescrID config = null;
+            BluetoothGattCharID target = null;
+            for (BluetoothGattID svc : services) {
+                gatt.registerServiceDataCallback(connId, svc, address, data);
+                gatt.getFirstChar(connId, svc, null);
+                await("onGetFirstCharacteristic");
+                while (status == BleConstants.GATT_SUCCESS && charId != null) {
+                    BluetoothGattCharID c = new BluetoothGattCharID(svc, charId);
+                    int prop = properties;
+                    gatt.getFirstCharDescr(connId, c, null);
+                    await("onGetFirstCharacteristicDescriptor");
+                    if (config == null && (prop & 0x10) != 0 && descrId != null)
+                        config = new BluetoothGattCharDescrID(svc, c.getCharId(), descrId);
+                    if (target == null && (prop & 0x08) != 0)
+                        target = c;
+                    gatt.getNextChar(connId, c, null);
+                    await("onGetNextCharacteristic");
+                }
+            }
+            end();
+
+            if (config != null) {
+                begin(name + " notifications");
+                gatt.registerForNotifications(iface, address, new BluetoothGattCharID(
+                        config.getSrvcId(), config.getCharId()));
+                gatt.writeCharDescrValue(connId, config, BleConstants.GATTC_TYPE_WRITE,
+                        (byte) 0, new byte[] { 1, 0 });
+                await("enabling notifications");
+                drain(stream);
+                gatt.writeCharDescrValue(connId, config, BleConstants.GATTC_TYPE_WRITE,
+                        (byte) 0, new byte[] { 0, 0 });
+                await("disabling notifications");
+                drain(0);
+                end();
+            }
+
+            if (target != null) {
+                begin(name + " writes");
+                byte[] value = new byte[20];
+                for (int i = 0; i < writes; i++) {
+                    Arrays.fill(value, (byte) i);
+                    gatt.writeCharValue(connId, target, BleConstants.GATTC_TYPE_WRITE, (byte) 0,
+                            value);
+                }
+                await("onWriteCharValue", writes);
+                end();
+            }
+
+            gatt.close(iface, address, connId, false);
+            await("onDisconnected");
+            gatt.unregisterApp(iface);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int services = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int characteristics = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int stream = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int writes = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+        File file = args.length > 4 ? new File(args[4]) : null;
+
+        GattToolTranscript transcript;
+        if (file != null && file.exists()) {
+            FileReader in = new FileReader(file);
+            transcript = GattToolTranscript.load(in);
+            in.close();
+        } else {
+            SimulatedGattTool.register(SimulatedPeripheral.largeDatabase(ADDRESS, services,
+                    characteristics, 1));
+            transcript = new GattToolTranscript();
+            GattToolWrapper.setProcessFactory(transcript.recorder(SimulatedGattTool.factory()));
+            new Session(transcript, false, false, ADDRESS).run("record", stream, writes);
+            if (file != null) {
+                FileWriter out = new FileWriter(file);
+                transcript.save(out);
+                out.close();
+            }
+        }
+        System.out.println(String.format("transcript: %d lines, %d notifications, %d writes",
+                transcript.count(null), transcript.count("NOTIFICATION"),
+                transcript.count("CHAR-WRITE-REQ")));
+
+        for (String r : TRACKED)
+            transcript.track(r);
+        String address = transcript.getAddress();
+        String[] passes = { "warm up", "paced", "fast" };
+        for (String pass : passes) {
+            GattToolWrapper.setProcessFactory(transcript.player(pass.equals("paced")));
+            new Session(transcript, true, !pass.equals("warm up"), address).run(pass, stream,
+                    writes);
+            if (transcript.getMissed() > 0)
+                System.out.println(pass + ": " + transcript.getMissed()
+                        + " commands had no recorded answer");
+        }
+        GattToolWrapper.setProcessFactory(null);
+        System.exit(0);
+    }
+}
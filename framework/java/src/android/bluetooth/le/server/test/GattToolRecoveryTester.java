@@ -0,0 +1,366 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleCharacteristicDataCallback;
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattCharDescrID;
+import com.broadcom.bt.service.gatt.BluetoothGattCharID;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kills gatttool under a live connection over and over and checks
+ * BluetoothGatt brings it back on its own. A simulated heart rate monitor
+ * gets connected, discovered, a bigger MTU and both notifications enabled,
+ * then every round destroys the gatttool process and waits for
+ * onLinkRestored on the same connection id and for notifications to flow
+ * again without the client doing anything. Then one restore connect, and
+ * later one restore MTU exchange, go unanswered and have to be retried
+ * after the timeout. At the end the
+ * peripheral goes away before the last kill, so the restore has to give up
+ * with onDisconnected. Prints how long restores and the first notification
+ * after each kill took.
+ * <p>
+ * Arguments: rounds, notification interval in milliseconds.
+ */
+public class GattToolRecoveryTester {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int MTU = 185;
+    private static final int TIMEOUT = 10;
+
+    private final List<Process> mProcesses = new ArrayList<Process>();
+    private final Semaphore mSignal = new Semaphore(0);
+    private final Semaphore mRestored = new Semaphore(0);
+    private final Semaphore mDisconnected = new Semaphore(0);
+    private final AtomicInteger mNotifications = new AtomicInteger();
+    private final AtomicInteger mMtuChanges = new AtomicInteger();
+    private final List<BluetoothGattID> mServices = new ArrayList<BluetoothGattID>();
+    private volatile int mRestoredId = -1;
+    private byte mIface = -1;
+    private int mConnId = -1;
+    private int mStatus;
+    private int mMtu;
+    private BluetoothGattID mCharId;
+    private BluetoothGattID mDescrId;
+    private int mProperties;
+
+    private void await(String what) throws InterruptedException {
+        if (!mSignal.tryAcquire(TIMEOUT, TimeUnit.SECONDS))
+            throw new IllegalStateException("timed out waiting for " + what);
+    }
+
+    private synchronized Process lastProcess() {
+        return mProcesses.get(mProcesses.size() - 1);
+    }
+
+    private final GattToolWrapper.ProcessFactory mFactory = new GattToolWrapper.ProcessFactory() {
+        private final GattToolWrapper.ProcessFactory simulated = SimulatedGattTool.factory();
+
+        public Process start() throws IOException {
+            Process p = simulated.start();
+            synchronized (GattToolRecoveryTester.this) {
+                mProcesses.add(p);
+            }
+            return p;
+        }
+    };
+
+    private final IBleClientCallback.Stub mClient = new IBleClientCallback.Stub() {
+        public void onAppRegistered(byte s, byte serIf) {
+            mStatus = s;
+            mIface = serIf;
+            mSignal.release();
+        }
+
+        public void onAppDeregistered(byte clientIf) {
+        }
+
+        public void onConnected(String address, int id) {
+            mConnId = id;
+            mSignal.release();
+        }
+
+        public void onDisconnected(int id, String address) {
+            mDisconnected.release();
+        }
+
+        public void onSearchResult(int id, BluetoothGattID srvcId) {
+            mServices.add(srvcId);
+        }
+
+        public void onSearchCompleted(int id, int s) {
+            mStatus = s;
+            mSignal.release();
+        }
+
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+        }
+
+        public void onMtuChanged(int id, int s, int mtu) {
+            mStatus = s;
+            mMtu = mtu;
+            mMtuChanges.incrementAndGet();
+            mSignal.release();
+        }
+
+        public void onLinkRestored(int id, String address) {
+            mRestoredId = id;
+            mRestored.release();
+        }
+    };
+
+    private final IBleCharacteristicDataCallback.Stub mData =
+            new IBleCharacteristicDataCallback.Stub() {
+        public void onGetFirstCharacteristic(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, int prop) {
+            mStatus = s;
+            mCharId = chr;
+            mProperties = prop;
+            mSignal.release();
+        }
+
+        public void onGetFirstCharacteristicDescriptor(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr) {
+            mDescrId = descr;
+            mSignal.release();
+        }
+
+        public void onGetNextCharacteristic(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, int prop) {
+            mStatus = s;
+            mCharId = chr;
+            mProperties = prop;
+            mSignal.release();
+        }
+
+        public void onGetNextCharacteristicDescriptor(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr) {
+        }
+
+        public void onReadCharacteristicValue(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, byte[] value) {
+        }
+
+        public void onReadCharDescriptorValue(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr, byte[] value) {
+        }
+
+        public void onWriteCharValue(int id, int s, BluetoothGattID svcId, BluetoothGattID chr) {
+        }
+
+        public void onWriteCharDescrValue(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr) {
+            mStatus = s;
+            mSignal.release();
+        }
+
+        public void onRegForNotifications(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onUnregisterNotifications(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onNotify(int id, String address, BluetoothGattID svcId,
+                BluetoothGattID chr, boolean isNotify, byte[] value) {
+            mNotifications.incrementAndGet();
+        }
+
+        public void onGetFirstIncludedService(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onGetNextIncludedService(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onReadMultipleValues(int id, int s, BluetoothGattID svcId,
+                BluetoothGattValues values) {
+        }
+
+        public void onNotifyBatch(int id, String address, BluetoothGattNotifications batch) {
+        }
+    };
+
+    /**
+     * Connects, discovers everything and enables every notification.
+     *
+     * @return how many notifications were enabled.
+     */
+    private int setUp(BluetoothGatt gatt) throws Exception {
+        gatt.registerApp(new BluetoothGattID(UUID.randomUUID()), mClient);
+        await("onAppRegistered");
+        gatt.open(mIface, ADDRESS, false);
+        await("onConnected");
+        if (mConnId < 0)
+            throw new IllegalStateException("could not connect to " + ADDRESS);
+
+        gatt.searchService(mConnId, null);
+        await("onSearchCompleted");
+        List<BluetoothGattCharDescrID> configs = new ArrayList<BluetoothGattCharDescrID>();
+        for (BluetoothGattID svc : mServices) {
+            gatt.registerServiceDataCallback(mConnId, svc, ADDRESS, mData);
+            gatt.getFirstChar(mConnId, svc, null);
+            await("onGetFirstCharacteristic");
+            while (mStatus == BleConstants.GATT_SUCCESS && mCharId != null) {
+                BluetoothGattCharID c = new BluetoothGattCharID(svc, mCharId);
+                if ((mProperties & 0x10) != 0) {
+                    mDescrId = null;
+                    gatt.getFirstCharDescr(mConnId, c, null);
+                    await("onGetFirstCharacteristicDescriptor");
+                    if (mDescrId != null)
+                        configs.add(new BluetoothGattCharDescrID(svc, c.getCharId(), mDescrId));
+                }
+                gatt.getNextChar(mConnId, c, null);
+                await("onGetNextCharacteristic");
+            }
+        }
+
+        for (BluetoothGattCharDescrID config : configs) {
+            gatt.registerForNotifications(mIface, ADDRESS, new BluetoothGattCharID(
+                    config.getSrvcId(), config.getCharId()));
+            gatt.writeCharDescrValue(mConnId, config, BleConstants.GATTC_TYPE_WRITE, (byte) 0,
+                    new byte[] { 1, 0 });
+            await("onWriteCharDescrValue");
+        }
+
+        gatt.requestMtu(mConnId, MTU);
+        await("onMtuChanged");
+        if (mStatus != BleConstants.GATT_SUCCESS)
+            throw new IllegalStateException("mtu request failed " + mStatus);
+        return configs.size();
+    }
+
+    /**
+     * Waits until count more notifications arrived.
+     *
+     * @return false on timeout.
+     */
+    private boolean waitForNotifications(int count) throws InterruptedException {
+        int target = mNotifications.get() + count;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (mNotifications.get() < target) {
+            if (System.nanoTime() > deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1e6;
+    }
+
+    private boolean run(int rounds, int interval) throws Exception {
+        SimulatedPeripheral p = SimulatedPeripheral.heartRateMonitor(ADDRESS);
+        p.setNotificationInterval(p.getValueHandle(0x2a37), interval);
+        p.setNotificationInterval(p.getValueHandle(0x2a19), interval);
+        SimulatedGattTool.register(p);
+        GattToolWrapper.setProcessFactory(mFactory);
+
+        BluetoothGatt gatt = new BluetoothGatt();
+        // every round kills the newest process, it has to be the connection's
+        GattToolWrapper.setStandbyWorkers(0);
+        int enabled = setUp(gatt);
+        int mtuChanges = mMtuChanges.get();
+        System.out.println(String.format("connected as %d, %d notifications enabled, mtu %d",
+                mConnId, enabled, mMtu));
+        if (!waitForNotifications(5))
+            throw new IllegalStateException("notifications never started");
+
+        long[] restore = new long[rounds];
+        long[] resumed = new long[rounds];
+        boolean ok = true;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            lastProcess().destroy();
+            if (!mRestored.tryAcquire(TIMEOUT, TimeUnit.SECONDS)) {
+                System.out.println("round " + i + ": no onLinkRestored");
+                return false;
+            }
+            restore[i] = System.nanoTime() - start;
+            if (mRestoredId != mConnId) {
+                System.out.println("round " + i + ": restored as " + mRestoredId);
+                ok = false;
+            }
+            if (!waitForNotifications(1)) {
+                System.out.println("round " + i + ": notifications didn't come back");
+                return false;
+            }
+            resumed[i] = System.nanoTime() - start;
+            waitForNotifications(5);
+        }
+        Arrays.sort(restore);
+        Arrays.sort(resumed);
+        System.out.println(String.format("%d restores, %d gatttool processes, "
+                + "%d extra onMtuChanged, %d onDisconnected", rounds, mProcesses.size(),
+                mMtuChanges.get() - mtuChanges, mDisconnected.availablePermits()));
+        System.out.println(String.format("%-26s %8s %8s %8s", "", "p50 ms", "p99 ms",
+                "max ms"));
+        System.out.println(String.format("%-26s %8.2f %8.2f %8.2f", "kill to onLinkRestored",
+                percentile(restore, 50), percentile(restore, 99), percentile(restore, 100)));
+        System.out.println(String.format("%-26s %8.2f %8.2f %8.2f", "kill to next notification",
+                percentile(resumed, 50), percentile(resumed, 99), percentile(resumed, 100)));
+        ok &= mMtuChanges.get() == mtuChanges && mDisconnected.availablePermits() == 0;
+
+        // the first restore connect is swallowed, the next one goes through
+        gatt.setTimeout(mIface, 300);
+        p.setDropRate("connect", 1.0);
+        long silent = System.nanoTime();
+        lastProcess().destroy();
+        Thread.sleep(500);
+        p.setDropRate("connect", 0);
+        boolean retried = mRestored.tryAcquire(TIMEOUT, TimeUnit.SECONDS)
+                && mRestoredId == mConnId;
+        System.out.println(retried ? String.format("silent remote: onLinkRestored after "
+                + "%.0f ms", (System.nanoTime() - silent) / 1e6)
+                : "silent remote: no onLinkRestored");
+        ok &= retried;
+
+        // the MTU step of the first restore goes unanswered too
+        p.setDropRate("mtu", 1.0);
+        silent = System.nanoTime();
+        lastProcess().destroy();
+        Thread.sleep(500);
+        p.setDropRate("mtu", 0);
+        retried = mRestored.tryAcquire(TIMEOUT, TimeUnit.SECONDS) && mRestoredId == mConnId;
+        System.out.println(retried ? String.format("silent restore step: onLinkRestored after "
+                + "%.0f ms", (System.nanoTime() - silent) / 1e6)
+                : "silent restore step: no onLinkRestored");
+        ok &= retried && waitForNotifications(1);
+
+        // the remote is gone, the restore has to give up
+        SimulatedGattTool.unregister(ADDRESS);
+        long start = System.nanoTime();
+        lastProcess().destroy();
+        boolean gaveUp = mDisconnected.tryAcquire(TIMEOUT, TimeUnit.SECONDS);
+        System.out.println(gaveUp ? String.format("unreachable remote: onDisconnected after "
+                + "%.0f ms", (System.nanoTime() - start) / 1e6)
+                : "unreachable remote: no onDisconnected");
+        gatt.unregisterApp(mIface);
+        GattToolWrapper.setProcessFactory(null);
+        return ok && gaveUp;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int interval = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        boolean ok = new GattToolRecoveryTester().run(rounds, interval);
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,233 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times open() to onConnected with and without standby gatttool workers.
+ * Starting the simulated gatttool costs nothing, so every start forks a
+ * real process and then waits a while, about what the real gatttool takes
+ * to come up and attach to the adapter. Each round closes the connection
+ * and waits for the standby list to fill again before the next open, so
+ * what is measured is a connect after some idle time. Prints percentiles
+ * for both. Then checks the reader sleeps for good with only a standby
+ * worker left, that a gatttool that exits right away isn't started over
+ * and over, and that the standby list empties while Bluetooth is off.
+ * <p>
+ * Arguments: rounds, gatttool startup milliseconds.
+ */
+public class GattToolStandbyBenchmark {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int TIMEOUT = 10;
+
+    private final Semaphore mSignal = new Semaphore(0);
+    private final Semaphore mDisconnected = new Semaphore(0);
+    private byte mIface = -1;
+    private volatile int mConnId = -1;
+
+    private static GattToolWrapper.ProcessFactory slowFactory(final int startupMs) {
+        final GattToolWrapper.ProcessFactory simulated = SimulatedGattTool.factory();
+        return new GattToolWrapper.ProcessFactory() {
+            public Process start() throws IOException {
+                try {
+                    new ProcessBuilder("sh", "-c", "exit 0").start().waitFor();
+                    Thread.sleep(startupMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return simulated.start();
+            }
+        };
+    }
+
+    private final IBleClientCallback.Stub mClient = new IBleClientCallback.Stub() {
+        public void onAppRegistered(byte s, byte serIf) {
+            mIface = serIf;
+            mSignal.release();
+        }
+
+        public void onAppDeregistered(byte clientIf) {
+        }
+
+        public void onConnected(String address, int id) {
+            mConnId = id;
+            mSignal.release();
+        }
+
+        public void onDisconnected(int id, String address) {
+            mDisconnected.release();
+        }
+
+        public void onSearchResult(int id, BluetoothGattID srvcId) {
+        }
+
+        public void onSearchCompleted(int id, int s) {
+        }
+
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+        }
+
+        public void onMtuChanged(int id, int s, int mtu) {
+        }
+
+        public void onLinkRestored(int id, String address) {
+        }
+    };
+
+    private void await(String what) throws InterruptedException {
+        if (!mSignal.tryAcquire(TIMEOUT, TimeUnit.SECONDS))
+            throw new IllegalStateException("timed out waiting for " + what);
+    }
+
+    private static void waitForStandby(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (GattToolWrapper.getStandbyWorkers() < count) {
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("standby never reached " + count);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return open() to onConnected for every round, sorted.
+     */
+    private long[] run(BluetoothGatt gatt, int standby, int rounds) throws Exception {
+        GattToolWrapper.setStandbyWorkers(standby);
+        long[] connect = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            waitForStandby(standby);
+            mConnId = -1;
+            long start = System.nanoTime();
+            gatt.open(mIface, ADDRESS, false);
+            await("onConnected");
+            connect[i] = System.nanoTime() - start;
+            if (mConnId < 0)
+                throw new IllegalStateException("could not connect to " + ADDRESS);
+
+            gatt.close(mIface, ADDRESS, mConnId, false);
+            mDisconnected.tryAcquire(TIMEOUT, TimeUnit.SECONDS);
+        }
+        Arrays.sort(connect);
+        return connect;
+    }
+
+    /**
+     * @return true if the gatttool reader is parked without a deadline
+     *         every time it's looked at for a while.
+     */
+    private static boolean readerParked() throws InterruptedException {
+        Thread reader = null;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().startsWith("GATT-Worker-reader-"))
+                reader = t;
+        if (reader == null)
+            return false;
+        for (int i = 0; i < 20; i++) {
+            if (reader.getState() != Thread.State.WAITING)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return how many standby processes got started while they all exit
+     *         at once.
+     */
+    private static int quickExits() throws InterruptedException {
+        final AtomicInteger starts = new AtomicInteger();
+        GattToolWrapper.setProcessFactory(new GattToolWrapper.ProcessFactory() {
+            public Process start() throws IOException {
+                starts.incrementAndGet();
+                return new ProcessBuilder("sh", "-c", "exit 1").start();
+            }
+        });
+        GattToolWrapper.setStandbyWorkers(1);
+        Thread.sleep(2000);
+        GattToolWrapper.setStandbyWorkers(0);
+        return starts.get();
+    }
+
+    /**
+     * @return true if the standby list empties on Bluetooth off and fills
+     *         again on Bluetooth on.
+     */
+    private static boolean bluetoothOff() throws InterruptedException {
+        GattToolWrapper.setProcessFactory(SimulatedGattTool.factory());
+        GattToolWrapper.setStandbyWorkers(1);
+        waitForStandby(1);
+        GattToolWrapper.setStandbyPaused(true);
+        Thread.sleep(200);
+        boolean empty = GattToolWrapper.getStandbyWorkers() == 0;
+        GattToolWrapper.setStandbyPaused(false);
+        waitForStandby(1);
+        GattToolWrapper.setStandbyWorkers(0);
+        return empty;
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1e6;
+    }
+
+    private static void print(String name, long[] sorted) {
+        System.out.println(String.format("%-12s %8.2f %8.2f %8.2f", name,
+                percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 100)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int startup = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        SimulatedGattTool.register(SimulatedPeripheral.heartRateMonitor(ADDRESS));
+        GattToolWrapper.setProcessFactory(slowFactory(startup));
+
+        GattToolStandbyBenchmark b = new GattToolStandbyBenchmark();
+        BluetoothGatt gatt = new BluetoothGatt();
+        gatt.registerApp(new BluetoothGattID(UUID.randomUUID()), b.mClient);
+        b.await("onAppRegistered");
+
+        // warm up
+        b.run(gatt, 0, Math.max(1, rounds / 5));
+        long[] cold = b.run(gatt, 0, rounds);
+        long[] warm = b.run(gatt, 1, rounds);
+
+        System.out.println(String.format("%d connects each, gatttool startup %d ms", rounds,
+                startup));
+        System.out.println(String.format("%-12s %8s %8s %8s", "", "p50 ms", "p99 ms",
+                "max ms"));
+        print("no standby", cold);
+        print("1 standby", warm);
+
+        gatt.unregisterApp(b.mIface);
+        boolean ok = percentile(warm, 50) < percentile(cold, 50);
+
+        // no connections, the standby worker alone mustn't keep it polling
+        waitForStandby(1);
+        Thread.sleep(1500);
+        boolean parked = readerParked();
+        System.out.println("standby only: reader " + (parked ? "parked" : "polling"));
+        ok &= parked;
+        GattToolWrapper.setStandbyWorkers(0);
+
+        int starts = quickExits();
+        System.out.println("exiting gatttool: " + starts + " standby starts in 2s");
+        ok &= starts > 0 && starts <= 3;
+        boolean off = bluetoothOff();
+        System.out.println("bluetooth off: standby " + (off ? "dropped" : "kept"));
+        ok &= off;
+
+        GattToolWrapper.setProcessFactory(null);
+        System.exit(ok ? 0 : 1);
+    }
+}
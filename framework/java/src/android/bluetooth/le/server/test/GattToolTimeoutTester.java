@@ -0,0 +1,230 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleCharacteristicDataCallback;
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattCharID;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a simulated peripheral answer after the request timeout and checks
+ * the late answers don't end up anywhere. A read times out, the next read
+ * of another characteristic goes out before the late answer comes in, and
+ * has to get its own value. A characteristic discovery times out and its
+ * late end must not report a second completion. Every callback goes into a
+ * queue, the test fails if one is missing, wrong or extra.
+ */
+public class GattToolTimeoutTester {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int TIMEOUT = 400;
+    /* late enough to time out, early enough to beat the next request's answer */
+    private static final int LATE = TIMEOUT * 3 / 2;
+
+    private final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private final List<BluetoothGattID> mServices = new ArrayList<BluetoothGattID>();
+    private final List<BluetoothGattID> mChars = new ArrayList<BluetoothGattID>();
+    private byte mIface = -1;
+    private int mConnId = -1;
+    private boolean mOk = true;
+
+    private final IBleClientCallback.Stub mClient = new IBleClientCallback.Stub() {
+        public void onAppRegistered(byte s, byte serIf) {
+            mIface = serIf;
+            mEvents.add("registered");
+        }
+
+        public void onAppDeregistered(byte clientIf) {
+        }
+
+        public void onConnected(String address, int id) {
+            mConnId = id;
+            mEvents.add("connected");
+        }
+
+        public void onDisconnected(int id, String address) {
+            mEvents.add("disconnected");
+        }
+
+        public void onSearchResult(int id, BluetoothGattID srvcId) {
+            mServices.add(srvcId);
+        }
+
+        public void onSearchCompleted(int id, int s) {
+            mEvents.add("search " + s);
+        }
+
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+        }
+
+        public void onMtuChanged(int id, int s, int mtu) {
+        }
+
+        public void onLinkRestored(int id, String address) {
+        }
+    };
+
+    private final IBleCharacteristicDataCallback.Stub mData =
+            new IBleCharacteristicDataCallback.Stub() {
+        public void onGetFirstCharacteristic(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, int prop) {
+            if (chr != null)
+                mChars.add(chr);
+            mEvents.add("first char " + s);
+        }
+
+        public void onGetFirstCharacteristicDescriptor(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr) {
+        }
+
+        public void onGetNextCharacteristic(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, int prop) {
+            if (chr != null)
+                mChars.add(chr);
+            mEvents.add("next char " + s);
+        }
+
+        public void onGetNextCharacteristicDescriptor(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr) {
+        }
+
+        public void onReadCharacteristicValue(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, byte[] value) {
+            mEvents.add("read " + Integer.toHexString(chr.getUuid16()) + " " + s
+                    + (value != null ? " " + Arrays.toString(value) : ""));
+        }
+
+        public void onReadCharDescriptorValue(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr, byte[] value) {
+        }
+
+        public void onWriteCharValue(int id, int s, BluetoothGattID svcId, BluetoothGattID chr) {
+        }
+
+        public void onWriteCharDescrValue(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr, BluetoothGattID descr) {
+        }
+
+        public void onRegForNotifications(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onUnregisterNotifications(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onNotify(int id, String address, BluetoothGattID svcId,
+                BluetoothGattID chr, boolean isNotify, byte[] value) {
+        }
+
+        public void onGetFirstIncludedService(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onGetNextIncludedService(int id, int s, BluetoothGattID svcId,
+                BluetoothGattID chr) {
+        }
+
+        public void onReadMultipleValues(int id, int s, BluetoothGattID svcId,
+                BluetoothGattValues values) {
+        }
+
+        public void onNotifyBatch(int id, String address, BluetoothGattNotifications batch) {
+        }
+    };
+
+    private String next() throws InterruptedException {
+        String e = mEvents.poll(10, TimeUnit.SECONDS);
+        if (e == null)
+            throw new IllegalStateException("timed out waiting for a callback");
+        return e;
+    }
+
+    private void expect(String what, String expected) throws InterruptedException {
+        String e = next();
+        boolean ok = e.startsWith(expected);
+        System.out.println(String.format("%-40s %s (%s)", what, ok ? "ok" : "FAILED", e));
+        mOk &= ok;
+    }
+
+    /**
+     * Nothing else may show up once every late answer had time to come in.
+     */
+    private void expectNothing(String what) throws InterruptedException {
+        String e = mEvents.poll(LATE + TIMEOUT, TimeUnit.MILLISECONDS);
+        System.out.println(String.format("%-40s %s%s", what, e == null ? "ok" : "FAILED",
+                e == null ? "" : " (" + e + ")"));
+        mOk &= e == null;
+    }
+
+    private boolean run() throws Exception {
+        SimulatedPeripheral p = SimulatedPeripheral.heartRateMonitor(ADDRESS);
+        p.setNotificationInterval(p.getValueHandle(0x2a37), 0);
+        SimulatedGattTool.register(p);
+        GattToolWrapper.setProcessFactory(SimulatedGattTool.factory());
+
+        BluetoothGatt gatt = new BluetoothGatt();
+        gatt.registerApp(new BluetoothGattID(UUID.randomUUID()), mClient);
+        expect("register", "registered");
+        gatt.setTimeout(mIface, TIMEOUT);
+        gatt.open(mIface, ADDRESS, false);
+        expect("connect", "connected");
+        gatt.searchService(mConnId, null);
+        expect("discover services", "search " + BleConstants.GATT_SUCCESS);
+
+        BluetoothGattID gap = null;
+        for (BluetoothGattID svc : mServices)
+            if (svc.getUuid16() == 0x1800)
+                gap = svc;
+        gatt.registerServiceDataCallback(mConnId, gap, ADDRESS, mData);
+
+        // the end of a discovery that timed out must not complete it twice
+        p.setLatency("characteristics", LATE);
+        gatt.getFirstChar(mConnId, gap, null);
+        // no characteristic made it, that is reported as not found
+        expect("characteristics time out", "first char " + BleConstants.GATT_NOT_FOUND);
+        expectNothing("late end dropped");
+        p.setLatency("characteristics", 0);
+        mChars.clear();
+        gatt.getFirstChar(mConnId, gap, null);
+        expect("characteristics again", "first char " + BleConstants.GATT_SUCCESS);
+        gatt.getNextChar(mConnId, new BluetoothGattCharID(gap, mChars.get(0)), null);
+        expect("second characteristic", "next char " + BleConstants.GATT_SUCCESS);
+
+        // a late read answer must not complete the read sent after it
+        BluetoothGattCharID name = new BluetoothGattCharID(gap, mChars.get(0));
+        BluetoothGattCharID appearance = new BluetoothGattCharID(gap, mChars.get(1));
+        p.setLatency("char-read-hnd", LATE);
+        gatt.readChar(mConnId, name, (byte) 0);
+        expect("read times out", "read 2a00 " + BleConstants.GATT_ERROR);
+        p.setLatency("char-read-hnd", TIMEOUT * 3 / 4);
+        gatt.readChar(mConnId, appearance, (byte) 0);
+        expect("next read gets its own value", "read 2a01 " + BleConstants.GATT_SUCCESS
+                + " [65, 3]");
+        expectNothing("late answer dropped");
+        p.setLatency("char-read-hnd", 0);
+        gatt.readChar(mConnId, name, (byte) 0);
+        expect("reads still match", "read 2a00 " + BleConstants.GATT_SUCCESS);
+
+        gatt.unregisterApp(mIface);
+        GattToolWrapper.setProcessFactory(null);
+        return mOk;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = new GattToolTimeoutTester().run();
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,517 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.GattToolWrapper;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a gatttool -I session printed in answer to each command and how long
+ * every line took to show up. {@link #recorder} tees the processes another
+ * factory starts, the simulated tool or the real one on a device, into the
+ * transcript, and {@link #player} starts processes that play it back to a
+ * Worker, either at the recorded pace or as fast as it reads.
+ * <p>
+ * Transcripts are plain text so they can be recorded on a device and played
+ * on a desktop. A line starting with "> " is a command, any other line is
+ * something gatttool printed, prefixed by how many microseconds after the
+ * command it came, and lines starting with # are comments. One session at
+ * a time, commands of concurrent processes would get mixed up.
+ * <p>
+ * While playing, the time every line of the kinds asked for with
+ * {@link #track} is handed to the Worker is kept, so whoever gets the
+ * callback the line ends in can tell how long it took to get there.
+ */
+public class GattToolTranscript {
+    static class Exchange {
+        final String command;
+        final List<String> lines = new ArrayList<String>();
+        /* nanoseconds after the command */
+        final List<Long> delays = new ArrayList<Long>();
+
+        Exchange(String command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * Send times of one kind of line, oldest first.
+     */
+    private static class Stamps {
+        private long[] mRing = new long[1024];
+        private int mHead = 0;
+        private int mTail = 0;
+
+        void push(long t) {
+            if (mTail - mHead == mRing.length) {
+                long[] ring = new long[mRing.length * 2];
+                for (int i = 0; i < mRing.length; i++)
+                    ring[i] = mRing[(mHead + i) & (mRing.length - 1)];
+                mHead = 0;
+                mTail = mRing.length;
+                mRing = ring;
+            }
+            mRing[mTail++ & (mRing.length - 1)] = t;
+        }
+
+        long pop() {
+            if (mHead == mTail)
+                return -1;
+            return mRing[mHead++ & (mRing.length - 1)];
+        }
+
+        int size() {
+            return mTail - mHead;
+        }
+
+        void clear() {
+            mHead = mTail = 0;
+        }
+    }
+
+    private final List<Exchange> mExchanges = new ArrayList<Exchange>();
+    private final Map<String, List<Exchange>> mByCommand = new HashMap<String, List<Exchange>>();
+    private final Map<String, Integer> mNext = new HashMap<String, Integer>();
+    private final Map<String, Stamps> mStamps = new HashMap<String, Stamps>();
+    private long mEmitted = 0;
+    private int mQueued = 0;
+    private int mMissed = 0;
+
+    private synchronized Exchange add(String command) {
+        Exchange e = new Exchange(command);
+        mExchanges.add(e);
+        List<Exchange> l = mByCommand.get(command);
+        if (l == null) {
+            l = new ArrayList<Exchange>();
+            mByCommand.put(command, l);
+        }
+        l.add(e);
+        return e;
+    }
+
+    public static GattToolTranscript load(Reader in) throws IOException {
+        GattToolTranscript t = new GattToolTranscript();
+        BufferedReader r = new BufferedReader(in);
+        Exchange e = t.add("");
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+            if (line.startsWith("> ")) {
+                e = t.add(line.substring(2).trim());
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space < 0)
+                throw new IOException("malformed transcript line: " + line);
+            e.delays.add(Long.parseLong(line.substring(0, space)) * 1000);
+            e.lines.add(line.substring(space + 1));
+        }
+        return t;
+    }
+
+    public synchronized void save(Writer out) throws IOException {
+        out.write("# gatttool transcript, microseconds after the command and the line\n");
+        for (Exchange e : mExchanges) {
+            if (e.command.length() > 0)
+                out.write("> " + e.command + "\n");
+            for (int i = 0; i < e.lines.size(); i++)
+                out.write((e.delays.get(i) / 1000) + " " + e.lines.get(i) + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the address of the first connect, null if there is none.
+     */
+    public synchronized String getAddress() {
+        for (Exchange e : mExchanges) {
+            String[] args = e.command.split("\\s+");
+            if (args[0].equals("connect") && args.length > 1)
+                return args[1];
+        }
+        return null;
+    }
+
+    /**
+     * @return how many result lines the transcript holds, of any kind if
+     *         result is null.
+     */
+    public synchronized int count(String result) {
+        int ret = 0;
+        for (Exchange e : mExchanges)
+            for (String l : e.lines)
+                if (result == null || l.startsWith(result + "("))
+                    ret++;
+        return ret;
+    }
+
+    /**
+     * Starts keeping the send time of every result line of this kind.
+     */
+    public synchronized void track(String result) {
+        if (!mStamps.containsKey(result))
+            mStamps.put(result, new Stamps());
+    }
+
+    /**
+     * @return System.nanoTime() when the oldest line of this kind not asked
+     *         for yet was handed to the Worker, -1 if there is none.
+     */
+    public synchronized long emitted(String result) {
+        Stamps s = mStamps.get(result);
+        return s == null ? -1 : s.pop();
+    }
+
+    /**
+     * @return lines of this kind handed over that nobody asked for yet.
+     */
+    public synchronized int pending(String result) {
+        Stamps s = mStamps.get(result);
+        return s == null ? 0 : s.size();
+    }
+
+    public synchronized long getLinesEmitted() {
+        return mEmitted;
+    }
+
+    /**
+     * @return commands that came in while playing which the transcript has
+     *         no answer for.
+     */
+    public synchronized int getMissed() {
+        return mMissed;
+    }
+
+    /**
+     * @return true when every answer asked for so far was handed over.
+     */
+    public synchronized boolean isIdle() {
+        return mQueued == 0;
+    }
+
+    /**
+     * Answers commands get while playing, the same command gets its
+     * recorded answers in turn and starts over when they run out.
+     */
+    private synchronized Exchange next(String command) {
+        List<Exchange> l = mByCommand.get(command);
+        if (l == null) {
+            mMissed++;
+            return null;
+        }
+        Integer i = mNext.get(command);
+        int n = i == null ? 0 : i.intValue();
+        mNext.put(command, n + 1);
+        return l.get(n % l.size());
+    }
+
+    private synchronized void rewind() {
+        mNext.clear();
+        for (Stamps s : mStamps.values())
+            s.clear();
+        mMissed = 0;
+        mQueued = 0;
+    }
+
+    private synchronized void emitted(String line, long now) {
+        mEmitted++;
+        int p = line.indexOf('(');
+        if (p < 0 || mStamps.isEmpty())
+            return;
+        Stamps s = mStamps.get(line.substring(0, p));
+        if (s != null)
+            s.push(now);
+    }
+
+    /**
+     * Turns what GattToolWrapper writes with writeChars back into lines,
+     * every other byte is a 0 that gets dropped.
+     */
+    private static abstract class LineDecoder {
+        private final StringBuilder mLine = new StringBuilder();
+
+        void feed(int b) {
+            b &= 0xff;
+            if (b == 0 || b == '\r')
+                return;
+            if (b != '\n') {
+                mLine.append((char) b);
+                return;
+            }
+            String line = mLine.toString().trim();
+            mLine.setLength(0);
+            if (line.length() > 0)
+                lineDecoded(line);
+        }
+
+        abstract void lineDecoded(String line);
+    }
+
+    /**
+     * Factory for GattToolWrapper.setProcessFactory, every process source
+     * starts gets recorded here.
+     */
+    public GattToolWrapper.ProcessFactory recorder(final GattToolWrapper.ProcessFactory source) {
+        return new GattToolWrapper.ProcessFactory() {
+            public Process start() throws IOException {
+                return new Recorder(source.start());
+            }
+        };
+    }
+
+    /**
+     * Factory for GattToolWrapper.setProcessFactory playing this transcript,
+     * with the recorded delays if paced, otherwise as fast as the Worker
+     * takes it.
+     */
+    public GattToolWrapper.ProcessFactory player(final boolean paced) {
+        return new GattToolWrapper.ProcessFactory() {
+            public Process start() {
+                return new Player(paced);
+            }
+        };
+    }
+
+    private class Recorder extends Process {
+        private final Process mProcess;
+        private Exchange mCurrent;
+        private long mCommandTime = System.nanoTime();
+
+        private final LineDecoder mCommands = new LineDecoder() {
+            void lineDecoded(String line) {
+                synchronized (GattToolTranscript.this) {
+                    mCurrent = add(line);
+                    mCommandTime = System.nanoTime();
+                }
+            }
+        };
+
+        private final LineDecoder mOutput = new LineDecoder() {
+            void lineDecoded(String line) {
+                synchronized (GattToolTranscript.this) {
+                    mCurrent.lines.add(line);
+                    mCurrent.delays.add(System.nanoTime() - mCommandTime);
+                }
+            }
+        };
+
+        private final OutputStream mStdin = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                // the answer may come before write returns, start its exchange first
+                mCommands.feed(b);
+                mProcess.getOutputStream().write(b);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                mProcess.getOutputStream().flush();
+            }
+        };
+
+        private final InputStream mStdout;
+
+        Recorder(Process process) {
+            mProcess = process;
+            synchronized (GattToolTranscript.this) {
+                // whatever it prints before the first command
+                mCurrent = mExchanges.isEmpty() ? add("") : mExchanges.get(0);
+            }
+            mStdout = new FilterInputStream(process.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        mOutput.feed(b);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    for (int i = 0; i < n; i++)
+                        mOutput.feed(b[off + i]);
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mStdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mStdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return mProcess.getErrorStream();
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            return mProcess.waitFor();
+        }
+
+        @Override
+        public int exitValue() {
+            return mProcess.exitValue();
+        }
+
+        @Override
+        public void destroy() {
+            mProcess.destroy();
+        }
+    }
+
+    private class Player extends Process {
+        private final boolean mPaced;
+        private final SimulatedGattTool.Pipe mStdout = new SimulatedGattTool.Pipe();
+        private final InputStream mStderr = new SimulatedGattTool.Pipe();
+        private final LinkedList<Exchange> mQueue = new LinkedList<Exchange>();
+        private final LinkedList<Long> mQueueTimes = new LinkedList<Long>();
+        private boolean mRunning = true;
+
+        private final LineDecoder mCommands = new LineDecoder() {
+            void lineDecoded(String line) {
+                Exchange e = next(line);
+                if (e != null)
+                    queue(e);
+            }
+        };
+
+        private final OutputStream mStdin = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (!isRunning())
+                    throw new IOException("process ended");
+                mCommands.feed(b);
+            }
+        };
+
+        private final Thread mThread = new Thread("GattToolTranscript") {
+            public void run() {
+                try {
+                    while (true) {
+                        Exchange e;
+                        long start;
+                        synchronized (Player.this) {
+                            while (mRunning && mQueue.isEmpty())
+                                Player.this.wait();
+                            if (!mRunning)
+                                return;
+                            e = mQueue.removeFirst();
+                            start = mQueueTimes.removeFirst();
+                        }
+                        play(e, start);
+                        synchronized (GattToolTranscript.this) {
+                            mQueued--;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // destroyed
+                }
+            }
+        };
+
+        Player(boolean paced) {
+            mPaced = paced;
+            rewind();
+            mThread.setDaemon(true);
+            mThread.start();
+            Exchange banner = next("");
+            if (banner != null)
+                queue(banner);
+        }
+
+        private synchronized boolean isRunning() {
+            return mRunning;
+        }
+
+        private void queue(Exchange e) {
+            synchronized (GattToolTranscript.this) {
+                mQueued++;
+            }
+            synchronized (this) {
+                mQueue.add(e);
+                mQueueTimes.add(System.nanoTime());
+                notifyAll();
+            }
+        }
+
+        private void play(Exchange e, long start) throws InterruptedException {
+            for (int i = 0; i < e.lines.size(); i++) {
+                if (mPaced) {
+                    long wait;
+                    while ((wait = start + e.delays.get(i) - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                    }
+                }
+                if (!isRunning())
+                    return;
+                String line = e.lines.get(i);
+                emitted(line, System.nanoTime());
+                mStdout.write(line + "\n");
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mStdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mStdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return mStderr;
+        }
+
+        @Override
+        public synchronized int waitFor() throws InterruptedException {
+            while (mRunning)
+                wait();
+            return 0;
+        }
+
+        @Override
+        public synchronized int exitValue() {
+            if (mRunning)
+                throw new IllegalThreadStateException("process hasn't exited");
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+            synchronized (this) {
+                if (!mRunning)
+                    return;
+                mRunning = false;
+                notifyAll();
+            }
+            mThread.interrupt();
+            mStdout.close();
+        }
+    }
+}
@@ -142,8 +142,10 @@ public class GattToolWrapperTester implements GattToolListener {
     }
 
     @Override
-    public synchronized void gotMtuResult(GattToolWrapper w, int conn_handle, int status) {
-        System.out.println("gotMtuResult: " + conn_handle + ", status: " + status);
+    public synchronized void gotMtuResult(GattToolWrapper w, int conn_handle, int status,
+            int mtu) {
+        System.out.println("gotMtuResult: " + conn_handle + ", status: " + status
+                + ", mtu: " + mtu);
         this.notifyAll();
     }
     
@@ -0,0 +1,156 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.GattToolWrapper;
+import android.bluetooth.le.server.ServerLog;
+import android.util.Log;
+
+import org.freedesktop.dbus.DBusLog;
+import org.freedesktop.dbus.MessageReader;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Shows what building log messages nobody reads costs. A notification
+ * stream is played through the whole client pipeline, as in
+ * {@link GattToolPipelineBenchmark}, and D-Bus messages are serialized and
+ * parsed as in {@link DBusMarshallingBenchmark}, once with ServerLog and
+ * DBusLog at VERBOSE and once at their defaults. Prints CPU time and bytes
+ * per notification and per D-Bus message for both and what the guards
+ * save. On a device the VERBOSE rows include the logcat writes too, on a
+ * host only the formatting.
+ * <p>
+ * Arguments: milliseconds of notifications, D-Bus messages.
+ */
+public class LoggingBenchmark {
+    private static Method sCpu;
+    private static Method sAllocated;
+    private static Object sThreads;
+
+    static {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            sThreads = factory.getMethod("getThreadMXBean").invoke(null);
+            sCpu = Class.forName("java.lang.management.ThreadMXBean").getMethod(
+                    "getCurrentThreadCpuTime");
+            sAllocated = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            // the VM can't tell, report n/a
+        }
+    }
+
+    private static long cpu() {
+        try {
+            return sCpu == null ? -1 : (Long) sCpu.invoke(sThreads);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long allocated() {
+        try {
+            return sAllocated == null ? -1 : (Long) sAllocated.invoke(sThreads,
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void level(boolean verbose) {
+        ServerLog.setLevel(verbose ? Log.VERBOSE : Log.INFO);
+        DBusLog.setLevel(verbose ? Log.VERBOSE : Log.WARN);
+    }
+
+    /**
+     * @return Worker CPU ns and bytes per notification line.
+     */
+    private static long[] notifications(GattToolTranscript transcript, boolean verbose,
+            int stream) throws Exception {
+        level(verbose);
+        GattToolWrapper.setProcessFactory(transcript.player(false));
+        GattToolPipelineBenchmark.Session session = new GattToolPipelineBenchmark.Session(
+                transcript, true, false, transcript.getAddress());
+        session.run("fast", stream, 0);
+        long[] r = session.results.get("fast notifications");
+        if (r == null || r[0] == 0)
+            throw new IllegalStateException("the transcript has no notifications");
+        return new long[] {
+                r[1] < 0 ? -1 : r[1] / r[0], r[2] < 0 ? -1 : r[2] / r[0]
+        };
+    }
+
+    /**
+     * @return CPU ns and bytes per message written and read back.
+     */
+    private static long[] dbus(boolean verbose, int messages) throws Exception {
+        level(verbose);
+        Map<?, ?> properties = DBusMarshallingBenchmark.deviceProperties();
+        for (int i = 0; i < messages / 10; i++)
+            roundTrip(properties);
+        long cpu = cpu();
+        long bytes = allocated();
+        for (int i = 0; i < messages; i++)
+            roundTrip(properties);
+        cpu = cpu < 0 ? -1 : (cpu() - cpu) / messages;
+        bytes = bytes < 0 ? -1 : (allocated() - bytes) / messages;
+        return new long[] {
+                cpu, bytes
+        };
+    }
+
+    private static void roundTrip(Map<?, ?> properties) throws Exception {
+        byte[] wire = DBusMarshallingBenchmark.serialize(DBusMarshallingBenchmark.call("a{sv}",
+                properties));
+        new MessageReader(new ByteArrayInputStream(wire)).readMessage().getParameters();
+    }
+
+    private static String value(long v) {
+        return v < 0 ? "n/a" : String.valueOf(v);
+    }
+
+    private static void report(String name, long[] verbose, long[] quiet) {
+        System.out.println(String.format("%-22s %10s %10s %10s ns %10s %10s %10s B", name,
+                value(verbose[0]), value(quiet[0]),
+                verbose[0] < 0 ? "n/a" : String.valueOf(verbose[0] - quiet[0]),
+                value(verbose[1]), value(quiet[1]),
+                verbose[1] < 0 ? "n/a" : String.valueOf(verbose[1] - quiet[1])));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int stream = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int restore = ServerLog.getLevel();
+        int restoreDBus = DBusLog.getLevel();
+
+        SimulatedGattTool.register(SimulatedPeripheral.largeDatabase(
+                GattToolPipelineBenchmark.ADDRESS, 2, 2, 1));
+        GattToolTranscript transcript = new GattToolTranscript();
+        GattToolWrapper.setProcessFactory(transcript.recorder(SimulatedGattTool.factory()));
+        new GattToolPipelineBenchmark.Session(transcript, false, false,
+                GattToolPipelineBenchmark.ADDRESS).run("record", stream, 0);
+        for (String r : GattToolPipelineBenchmark.TRACKED)
+            transcript.track(r);
+
+        // warm up both paths before measuring either
+        notifications(transcript, true, stream);
+        notifications(transcript, false, stream);
+        long[] verbose = notifications(transcript, true, stream);
+        long[] quiet = notifications(transcript, false, stream);
+        dbus(true, messages);
+        long[] dbusVerbose = dbus(true, messages);
+        long[] dbusQuiet = dbus(false, messages);
+
+        System.out.println(String.format("%-22s %10s %10s %10s    %10s %10s %10s", "",
+                "verbose", "quiet", "saved", "verbose", "quiet", "saved"));
+        report("per notification", verbose, quiet);
+        report("per D-Bus message", dbusVerbose, dbusQuiet);
+
+        ServerLog.setLevel(restore);
+        DBusLog.setLevel(restoreDBus);
+        GattToolWrapper.setProcessFactory(null);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,112 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.AttMtu;
+import android.bluetooth.le.server.GattToolWrapper;
+
+/**
+ * Shows what the ATT MTU buys in throughput. A value is pushed through a
+ * simulated peripheral once as MTU sized write commands and once as a long
+ * read made of read blob round trips, splitting it with the same AttMtu
+ * arithmetic BluetoothGatt uses. The peripheral models an LE 4.0 link: 27
+ * byte link layer packets, a limited amount of packets per connection event
+ * and a request/response costing at least one event. The gatttool command
+ * formatting is also timed as that is CPU we spend per chunk.
+ */
+public class MtuThroughputBenchmark {
+    private static final int[] MTUS = {
+            23, 64, 128, 185, 247, 512
+    };
+
+    /**
+     * Air time model of the remote side of the link.
+     */
+    static class SimulatedPeripheral {
+        static final int LL_PAYLOAD = 27;
+        static final int L2CAP_HEADER = 4;
+
+        final double intervalMs;
+        final int packetsPerEvent;
+        long packets = 0;
+        long roundTrips = 0;
+
+        SimulatedPeripheral(double intervalMs, int packetsPerEvent) {
+            this.intervalMs = intervalMs;
+            this.packetsPerEvent = packetsPerEvent;
+        }
+
+        private static int fragments(int pdu) {
+            return (pdu + L2CAP_HEADER + LL_PAYLOAD - 1) / LL_PAYLOAD;
+        }
+
+        /** write command, no answer, packets stream back to back */
+        void writeCmd(int length) {
+            packets += fragments(length + 3);
+        }
+
+        /** read blob, the response comes on the next event at the earliest */
+        void readBlob(int length) {
+            roundTrips++;
+            packets += fragments(length + 1);
+        }
+
+        double elapsedMs() {
+            double streaming = Math.ceil((double) packets / packetsPerEvent) * intervalMs;
+            return Math.max(streaming, roundTrips * intervalMs);
+        }
+    }
+
+    private static int sSink = 0;
+
+    /** same encoding GattToolWrapper does for char-write-cmd */
+    private static void formatCommand(byte[] value, int offset, int length) {
+        StringBuilder args = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++)
+            args.append(GattToolWrapper.toSignedByteString(value[i]));
+        sSink += args.length();
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 64 * 1024;
+        double interval = args.length > 1 ? Double.parseDouble(args[1]) : 7.5;
+        int perEvent = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        byte[] value = new byte[size];
+        for (int i = 0; i < size; i++)
+            value[i] = (byte) i;
+
+        System.out.println(size + " bytes, " + interval + "ms interval, " + perEvent
+                + " packets per event");
+        for (int pass = 0; pass < 2; pass++) {
+            for (int mtu : MTUS) {
+                SimulatedPeripheral write = new SimulatedPeripheral(interval, perEvent);
+                int payload = AttMtu.writePayload(mtu);
+                long cpu = System.nanoTime();
+                for (int offset = 0; offset < size; offset += payload) {
+                    int length = Math.min(payload, size - offset);
+                    formatCommand(value, offset, length);
+                    write.writeCmd(length);
+                }
+                cpu = System.nanoTime() - cpu;
+
+                SimulatedPeripheral read = new SimulatedPeripheral(interval, perEvent);
+                payload = AttMtu.readPayload(mtu);
+                for (int offset = 0; offset < size; offset += payload)
+                    read.readBlob(Math.min(payload, size - offset));
+
+                // first pass is warm up
+                if (pass == 0)
+                    continue;
+
+                int chunks = AttMtu.chunks(size, AttMtu.writePayload(mtu));
+                System.out.println(String.format(
+                        "mtu %3d: write cmd %8.0f B/s, long read %8.0f B/s, "
+                                + "%5d chunks, %.2f us cpu/chunk",
+                        mtu, size * 1000 / write.elapsedMs(), size * 1000 / read.elapsedMs(),
+                        chunks, (double) cpu / chunks / 1000));
+            }
+        }
+        if (sSink == 0)
+            System.out.println();
+    }
+}
@@ -0,0 +1,105 @@
+
+package android.bluetooth.le.server.test;
+
+import com.broadcom.bt.le.api.BleGattID;
+import com.broadcom.bt.le.api.NotificationIndex;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compares how long it takes to resolve an incoming notification to its
+ * characteristic and device, first the way BleClientService used to do it
+ * (converting ids and scanning the characteristic list) and then through
+ * NotificationIndex. Reports the cost per notification and the share of one
+ * CPU a 1 kHz notification stream would take.
+ */
+public class NotificationBenchmark {
+    private static final int DEVICES = 8;
+    private static final int CHARACTERISTICS = 20;
+
+    private static ArrayList<BleGattID>[] sChars;
+    private static HashMap<Integer, String> sDevices = new HashMap<Integer, String>();
+    private static NotificationIndex<String, BleGattID> sIndex =
+            new NotificationIndex<String, BleGattID>();
+
+    @SuppressWarnings("unchecked")
+    private static void setup() {
+        sChars = new ArrayList[DEVICES];
+        for (int d = 0; d < DEVICES; d++) {
+            String address = String.format("00:11:22:33:44:%02X", d);
+            sDevices.put(d * 7919, address);
+            sIndex.putDevice(d * 7919, address);
+            sChars[d] = new ArrayList<BleGattID>();
+            for (int c = 0; c < CHARACTERISTICS; c++) {
+                BleGattID id = new BleGattID(c, 0x2a00 + c);
+                sChars[d].add(id);
+                sIndex.put(d * 7919, 0, c, id);
+            }
+        }
+    }
+
+    private static BleGattID legacyLookup(int connId, BluetoothGattID svcId, BluetoothGattID charId) {
+        BleGattID svc = new BleGattID(svcId.getInstanceID(), svcId.getUuid16(),
+                svcId.getServiceType());
+        BleGattID chr = new BleGattID(charId.getInstanceID(), charId.getUuid16(),
+                charId.getServiceType());
+        String device = sDevices.get(new Integer(connId));
+        ArrayList<BleGattID> chars = sChars[(connId / 7919) + svc.getInstanceID()];
+        for (int i = 0; i < chars.size(); i++) {
+            BleGattID c = chars.get(i);
+            if (c.toString().equals(chr.toString()) && c.getInstanceID() == chr.getInstanceID())
+                return device != null ? c : null;
+        }
+        return null;
+    }
+
+    private static BleGattID indexLookup(int connId, BluetoothGattID svcId, BluetoothGattID charId) {
+        BleGattID c = sIndex.get(connId, svcId.getInstanceID(), charId.getInstanceID());
+        String device = sIndex.getDevice(connId);
+        if (c == null || device == null || !c.sameUuid(charId))
+            return null;
+        return c;
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        setup();
+
+        BluetoothGattID svcId = new BluetoothGattID(0, 0x180d);
+        BluetoothGattID[] charIds = new BluetoothGattID[CHARACTERISTICS];
+        for (int c = 0; c < CHARACTERISTICS; c++)
+            charIds[c] = new BluetoothGattID(c, 0x2a00 + c);
+
+        int misses = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long legacy = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                if (legacyLookup((i % DEVICES) * 7919, svcId, charIds[i % CHARACTERISTICS]) == null)
+                    misses++;
+            legacy = System.nanoTime() - legacy;
+
+            long index = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                if (indexLookup((i % DEVICES) * 7919, svcId, charIds[i % CHARACTERISTICS]) == null)
+                    misses++;
+            index = System.nanoTime() - index;
+
+            // first pass is warm up
+            if (pass == 0)
+                continue;
+
+            System.out.println(count + " notifications, " + DEVICES + " devices, "
+                    + CHARACTERISTICS + " characteristics each, misses " + misses);
+            report("legacy", legacy, count);
+            report("index", index, count);
+        }
+    }
+
+    private static void report(String name, long nanos, int count) {
+        double perNotification = (double) nanos / count;
+        System.out.println(String.format("%s: %.2f us/notification, %.3f%% cpu at 1 kHz",
+                name, perNotification / 1000, perNotification * 1000 / 1e9 * 100));
+    }
+}
@@ -0,0 +1,90 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.GattServer;
+import android.bluetooth.le.server.test.GattServerLoopbackTester.LoopbackClient;
+import android.bluetooth.le.server.test.GattServerLoopbackTester.LoopbackTransport;
+import android.bluetooth.le.server.test.GattServerLoopbackTester.ProfileApp;
+import android.bluetooth.le.server.test.GattServerLoopbackTester.ServiceApp;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+
+/**
+ * Pushes one characteristic update to a set of subscribed clients, first
+ * with a GATTServer_HandleValueNotification call per client and then with a
+ * single GATTServer_BroadcastNotification. Every binder call unmarshals its
+ * own copy of the value, the per client loop clones it each time to account
+ * for that. Binder transaction overhead itself is not included, the call
+ * count is printed next to the timings instead.
+ */
+public class NotificationFanoutBenchmark {
+    private static final int UPDATES = 20000;
+
+    public static void main(String[] args) {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        LoopbackTransport transport = new LoopbackTransport();
+        GattServer server = new GattServer(transport);
+        transport.server = server;
+        ProfileApp profile = new ProfileApp();
+        ServiceApp service = new ServiceApp();
+        service.server = server;
+
+        BluetoothGattID svcId = new BluetoothGattID(0, 0x180d, BleConstants.GATT_SERVICE_PRIMARY);
+        server.registerProfile(new BluetoothGattID(0, 0xfff0), profile);
+        server.registerService(svcId, new BluetoothGattID(0, 0xfff0), service);
+        server.createService(profile.serverIf, svcId, 4);
+        server.addCharacteristic(service.svcHandle, new BluetoothGattID(0, 0x2a37),
+                BleConstants.GATT_PERM_READ, BleConstants.GATT_CHAR_PROP_BIT_NOTIFY);
+        server.addDescriptor(service.svcHandle,
+                BleConstants.GATT_PERM_READ | BleConstants.GATT_PERM_WRITE,
+                new BluetoothGattID(0, BleConstants.GATT_UUID_CHAR_CLIENT_CONFIG16));
+        server.startService(service.svcHandle);
+
+        for (int i = 0; i < clients; i++)
+            server.open(profile.serverIf, String.format("00:11:22:33:%02X:%02X", i >> 8,
+                    i & 0xff), true);
+        byte[] enable = new byte[] { BleConstants.GATT_CLIENT_CONFIG_NOTIFICATION_BIT, 0 };
+        for (LoopbackClient c : transport.clients.values())
+            server.onWriteRequest(c.connId, service.cccdHandle, 0, enable, true, false);
+
+        byte[] value = new byte[length];
+        int handle = service.valueHandle;
+        for (int pass = 0; pass < 2; pass++) {
+            long perClient = System.nanoTime();
+            for (int i = 0; i < UPDATES; i++) {
+                value[0] = (byte) i;
+                for (LoopbackClient c : transport.clients.values())
+                    server.sendNotification(c.connId, handle, value.clone());
+            }
+            perClient = System.nanoTime() - perClient;
+
+            long broadcast = System.nanoTime();
+            for (int i = 0; i < UPDATES; i++) {
+                value[0] = (byte) i;
+                server.broadcastNotification(handle, value.clone());
+            }
+            broadcast = System.nanoTime() - broadcast;
+
+            // first pass is warm up
+            if (pass == 0)
+                continue;
+
+            int expected = UPDATES * 4;
+            boolean ok = true;
+            for (LoopbackClient c : transport.clients.values())
+                ok &= c.notifications == expected;
+            System.out.println(UPDATES + " updates of " + length + " bytes to " + clients
+                    + " subscribed clients, " + (ok ? "all delivered" : "MISSING NOTIFICATIONS"));
+            report("per client", perClient, clients);
+            report("broadcast", broadcast, 1);
+        }
+    }
+
+    private static void report(String name, long nanos, int calls) {
+        System.out.println(String.format("%s: %.2f us/update, %d binder calls/update", name,
+                (double) nanos / UPDATES / 1000, calls));
+    }
+}
@@ -0,0 +1,266 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+import android.content.Context;
+import android.os.ServiceManager;
+
+import com.broadcom.bt.le.api.BleCharacteristic;
+import com.broadcom.bt.le.api.BleClientProfile;
+import com.broadcom.bt.le.api.BleClientService;
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.BleDescriptor;
+import com.broadcom.bt.le.api.BleGattID;
+import com.broadcom.bt.le.api.BleValueRing;
+import com.broadcom.bt.le.api.IBleCharacteristicDataCallback;
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.IBluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows notifications from a simulated heart rate monitor all the way up
+ * to a BleClientService: plain onCharacteristicChanged values, the streaming
+ * ring, and the batched delivery. The ring is first checked on its own for
+ * oversized values and partial drains, then again behind the service.
+ */
+public class NotificationPathTester {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int INTERVAL = 20;
+    private static final int VALUES = 10;
+    private static final byte[] MEASUREMENT = new byte[] { 0x06, 0x48 };
+
+    private final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private boolean mOk = true;
+
+    private class HeartRateService extends BleClientService {
+        /* how many samples onCharacteristicStream takes out per call */
+        volatile int drainPerCall = Integer.MAX_VALUE;
+        volatile int streamCalls;
+        volatile int streamValues;
+        volatile boolean streamBad;
+
+        HeartRateService() {
+            super(new BleGattID(0x180d));
+        }
+
+        @Override
+        public void onRefreshComplete(BluetoothDevice device) {
+            mEvents.add("refreshed");
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothDevice device, BleCharacteristic c) {
+            boolean ok = c.getID().getUuid16() == 0x2a37
+                    && Arrays.equals(c.getValue(), MEASUREMENT);
+            mEvents.add(ok ? "changed" : "changed wrong value");
+        }
+
+        @Override
+        public void onCharacteristicStream(BluetoothDevice device, BleCharacteristic c) {
+            BleValueRing ring = c.getStream();
+            int[] lengths = new int[Math.min(drainPerCall, ring.getCapacity())];
+            byte[] buffer = new byte[lengths.length * ring.getMaxLength()];
+            int n = ring.drain(buffer, lengths, null);
+            for (int i = 0; i < n; i++)
+                streamBad |= lengths[i] != MEASUREMENT.length
+                        || buffer[i * lengths[0]] != MEASUREMENT[0];
+            streamCalls++;
+            streamValues += n;
+        }
+    }
+
+    private class HeartRateProfile extends BleClientProfile {
+        HeartRateProfile() {
+            super(new Context(), new BleGattID(UUID.randomUUID()));
+        }
+
+        @Override
+        public void onProfileRegistered() {
+            mEvents.add("registered");
+        }
+    }
+
+    private String next() throws InterruptedException {
+        String e = mEvents.poll(10, TimeUnit.SECONDS);
+        if (e == null)
+            throw new IllegalStateException("timed out waiting for a callback");
+        return e;
+    }
+
+    private void check(String what, boolean ok, String detail) {
+        System.out.println(String.format("%-40s %s (%s)", what, ok ? "ok" : "FAILED", detail));
+        mOk &= ok;
+    }
+
+    private void expect(String what, String expected) throws InterruptedException {
+        String e = next();
+        check(what, e.equals(expected), e);
+    }
+
+    private void checkRing() {
+        BleValueRing ring = new BleValueRing(4, 2);
+        boolean first = ring.append(new byte[] { 1, 2 }, 0);
+        boolean second = ring.append(new byte[] { 3, 4 }, 0);
+        boolean oversized = ring.append(new byte[] { 5, 6, 7 }, 0);
+        check("ring signals once", first && !second, first + " " + second);
+        check("ring rejects oversized", !oversized && ring.getOversized() == 1
+                && ring.available() == 2, ring.getOversized() + " " + ring.available());
+
+        byte[] buffer = new byte[2];
+        int n = ring.drain(buffer, new int[1], null);
+        boolean again = ring.resignal();
+        check("partial drain signalled again", n == 1 && again, n + " " + again);
+        n = ring.drain(buffer, new int[1], null);
+        check("drained ring stays quiet", n == 1 && !ring.resignal(), n + " "
+                + ring.available());
+        check("append after drain signals", ring.append(new byte[] { 8 }, 0), "");
+
+        // a sample bigger than the caller's buffer must not wedge the stream
+        ring.clear();
+        ring.append(new byte[] { 1, 2 }, 0);
+        ring.append(new byte[] { 3 }, 0);
+        n = ring.drain(new byte[1], new int[2], null);
+        check("too big for buffer skipped", n == 1 && ring.getOversized() == 1
+                && ring.available() == 0, n + " " + ring.getOversized() + " "
+                + ring.available());
+        ring.append(new byte[] { 4, 5 }, 0);
+        n = ring.drain(new byte[1], new int[2], null);
+        check("stream signals after skip", n == 0 && ring.append(new byte[] { 6 }, 0),
+                n + " " + ring.available());
+    }
+
+    private void enable(HeartRateService s, BluetoothDevice d, int instance,
+            BleCharacteristic c, boolean on) {
+        BleDescriptor config = c.getDescriptor(
+                new BleGattID(BleConstants.GATT_UUID_CHAR_CLIENT_CONFIG16));
+        config.setValue(new byte[] { (byte) (on ? 1 : 0), 0 });
+        // notified values count as changed, only the descriptor goes out
+        c.setDirty(false);
+        s.writeCharacteristic(d, instance, c);
+    }
+
+    /**
+     * Lets values come in for a while, then stops them and waits for the
+     * last ones.
+     */
+    private void collect(HeartRateService s, BluetoothDevice d, int instance,
+            BleCharacteristic c) throws InterruptedException {
+        enable(s, d, instance, c, true);
+        Thread.sleep(INTERVAL * VALUES);
+        enable(s, d, instance, c, false);
+        Thread.sleep(INTERVAL * 10);
+    }
+
+    private static boolean expected(int values) {
+        return values >= VALUES / 2 && values <= VALUES * 3 / 2;
+    }
+
+    private int drainEvents(String expected) {
+        int count = 0;
+        for (String e = mEvents.poll(); e != null; e = mEvents.poll()) {
+            if (!e.equals(expected))
+                check("unexpected callback", false, e);
+            count++;
+        }
+        return count;
+    }
+
+    private boolean run() throws Exception {
+        checkRing();
+
+        SimulatedPeripheral p = SimulatedPeripheral.heartRateMonitor(ADDRESS);
+        int handle = p.getValueHandle(0x2a37);
+        p.setNotificationInterval(handle, INTERVAL);
+        SimulatedGattTool.register(p);
+        GattToolWrapper.setProcessFactory(SimulatedGattTool.factory());
+        BluetoothGatt gatt = new BluetoothGatt();
+        // callbacks run apart like coming from another process
+        ServiceManager.addService(BleConstants.BLUETOOTH_LE_SERVICE, new OnewayBinder(
+                IBleClientCallback.class, IBleCharacteristicDataCallback.class).wrap(gatt,
+                IBluetoothGatt.class));
+
+        HeartRateService service = new HeartRateService();
+        HeartRateProfile profile = new HeartRateProfile();
+        ArrayList<BleClientService> required = new ArrayList<BleClientService>();
+        required.add(service);
+        profile.init(required, null);
+        expect("register", "registered");
+
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        profile.connect(device);
+        expect("connect and discover", "refreshed");
+
+        int instance = service.getAllServiceInstanceIds(device)[0];
+        BleCharacteristic measurement = null;
+        for (BleCharacteristic c : service.getAllCharacteristics(device))
+            if (c.getID().getUuid16() == 0x2a37)
+                measurement = c;
+        service.registerForNotification(device, instance, measurement.getID());
+
+        // one onCharacteristicChanged per notification
+        collect(service, device, instance, measurement);
+        int changed = drainEvents("changed");
+        check("values delivered", expected(changed), changed + " values");
+
+        // into the ring, one sample taken per call, the rest signalled again
+        measurement.enableStreaming(8, MEASUREMENT.length);
+        service.drainPerCall = 1;
+        collect(service, device, instance, measurement);
+        BleValueRing ring = measurement.getStream();
+        check("values streamed", expected(service.streamValues) && !service.streamBad
+                && service.streamValues == ring.getTotal(), service.streamValues + " of "
+                + ring.getTotal());
+        check("nothing left behind", ring.available() == 0, ring.available() + " left");
+        check("no changed callback", drainEvents("") == 0, "");
+
+        // values too long for the ring are counted, not cut
+        measurement.enableStreaming(8, MEASUREMENT.length - 1);
+        collect(service, device, instance, measurement);
+        ring = measurement.getStream();
+        check("oversized counted", expected((int) ring.getOversized()) && ring.getTotal() == 0,
+                ring.getOversized() + " oversized, " + ring.getTotal() + " stored");
+
+        // batched, several values per call
+        profile.setNotificationBatching(VALUES, INTERVAL * VALUES / 2);
+        measurement.enableStreaming(VALUES * 2, MEASUREMENT.length);
+        service.drainPerCall = Integer.MAX_VALUE;
+        service.streamCalls = 0;
+        service.streamValues = 0;
+        collect(service, device, instance, measurement);
+        check("values batched", expected(service.streamValues)
+                && service.streamCalls * 2 <= service.streamValues, service.streamValues
+                + " values in " + service.streamCalls + " calls");
+
+        // a batch taken out one sample at a time is signalled until empty
+        measurement.enableStreaming(VALUES * 2, MEASUREMENT.length);
+        service.drainPerCall = 1;
+        service.streamValues = 0;
+        collect(service, device, instance, measurement);
+        ring = measurement.getStream();
+        check("batch drained in parts", expected(service.streamValues)
+                && service.streamValues == ring.getTotal() && ring.available() == 0,
+                service.streamValues + " of " + ring.getTotal() + ", " + ring.available()
+                        + " left");
+        measurement.disableStreaming();
+        collect(service, device, instance, measurement);
+        changed = drainEvents("changed");
+        check("batches split per value", expected(changed), changed + " values");
+
+        profile.disconnect(device);
+        GattToolWrapper.setProcessFactory(null);
+        return mOk;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = new NotificationPathTester().run();
+        System.exit(ok ? 0 : 1);
+    }
+}
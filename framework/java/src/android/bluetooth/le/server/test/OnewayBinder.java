@@ -0,0 +1,115 @@
+
+package android.bluetooth.le.server.test;
+
+import android.os.IBinder;
+import android.os.IInterface;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Puts a local service behind something that behaves like a binder from
+ * another process. Calls into the service run on the caller thread, but
+ * the callbacks handed to it are oneway: each call gets queued and runs in
+ * order on a thread of its own, so an app calling back into the service from
+ * a callback doesn't run inside the framework locks the way a plain in
+ * process call would.
+ */
+public class OnewayBinder {
+    private final Class<?>[] mOneway;
+    private final Map<Object, Object> mCallbacks = new IdentityHashMap<Object, Object>();
+
+    /**
+     * @param oneway callback interfaces to make asynchronous.
+     */
+    public OnewayBinder(Class<?>... oneway) {
+        mOneway = oneway;
+    }
+
+    /**
+     * @return a binder implementing service, ready for ServiceManager.
+     */
+    public IBinder wrap(final Object service, Class<?> iface) {
+        return (IBinder) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {
+                iface, IBinder.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                if (m.getName().equals("asBinder"))
+                    return proxy;
+                if (args != null)
+                    for (int i = 0; i < args.length; i++)
+                        args[i] = callback(args[i]);
+                return call(service, m, args);
+            }
+        });
+    }
+
+    private synchronized Object callback(Object o) {
+        Class<?> iface = null;
+        for (Class<?> c : mOneway)
+            if (c.isInstance(o))
+                iface = c;
+        if (iface == null)
+            return o;
+
+        Object p = mCallbacks.get(o);
+        if (p == null) {
+            p = oneway(o, iface);
+            mCallbacks.put(o, p);
+        }
+        return p;
+    }
+
+    private static Object oneway(final Object target, final Class<?> iface) {
+        final IBinder binder = ((IInterface) target).asBinder();
+        final ExecutorService queue = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Oneway-" + iface.getSimpleName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        return Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {
+                iface, IBinder.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, final Method m, final Object[] args)
+                    throws Throwable {
+                if (m.getName().equals("asBinder"))
+                    return proxy;
+                if (m.getDeclaringClass() == Object.class) {
+                    if (m.getName().equals("equals"))
+                        return proxy == args[0];
+                    if (m.getName().equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    return iface.getSimpleName() + "@" + target;
+                }
+                if (m.getDeclaringClass() == IBinder.class)
+                    return call(binder, m, args);
+
+                queue.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            call(target, m, args);
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    private static Object call(Object target, Method m, Object[] args) throws Throwable {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.BluetoothGatt;
+import android.bluetooth.le.server.GattToolWrapper;
+import android.os.Binder;
+
+import com.broadcom.bt.le.api.BleConstants;
+import com.broadcom.bt.le.api.IBleCharacteristicDataCallback;
+import com.broadcom.bt.le.api.IBleClientCallback;
+import com.broadcom.bt.service.gatt.BluetoothGattCharID;
+import com.broadcom.bt.service.gatt.BluetoothGattID;
+import com.broadcom.bt.service.gatt.BluetoothGattNotifications;
+import com.broadcom.bt.service.gatt.BluetoothGattValues;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs reliable writes against a simulated peripheral: parts starting past
+ * offset 0, an offset past the end of the value, a hole between parts, and
+ * two apps with queues on the same connection. Also checks an app that
+ * didn't connect doesn't get the device's operation stats.
+ */
+public class PreparedWriteTester {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int SERVICE = 0xfff0;
+    private static final int APP_A = 10001;
+    private static final int APP_B = 10002;
+
+    private final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private volatile byte mIface;
+    private volatile int mConnID;
+    private volatile BluetoothGattID mService;
+    private volatile BluetoothGattID mChar;
+    private boolean mOk = true;
+
+    private final IBleClientCallback.Stub mClient = new IBleClientCallback.Stub() {
+        public void onAppRegistered(byte s, byte serIf) {
+            mIface = serIf;
+            mEvents.add("registered");
+        }
+
+        public void onAppDeregistered(byte clientIf) {
+        }
+
+        public void onConnected(String address, int id) {
+            mConnID = id;
+            mEvents.add("connected");
+        }
+
+        public void onDisconnected(int id, String address) {
+        }
+
+        public void onSearchResult(int id, BluetoothGattID srvcId) {
+            if (srvcId.getUuid16() == SERVICE)
+                mService = srvcId;
+        }
+
+        public void onSearchCompleted(int id, int s) {
+            mEvents.add("searched");
+        }
+
+        public void onOpenMultipleCompleted(String[] connected, String[] failed) {
+        }
+
+        public void onMtuChanged(int id, int s, int mtu) {
+        }
+
+        public void onLinkRestored(int id, String address) {
+        }
+    };
+
+    private final IBleCharacteristicDataCallback.Stub mData =
+            new IBleCharacteristicDataCallback.Stub() {
+        public void onGetFirstCharacteristic(int connID, int status, BluetoothGattID svcId,
+                BluetoothGattID charId, int prop) {
+            mChar = charId;
+            mEvents.add("char");
+        }
+
+        public void onGetFirstCharacteristicDescriptor(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, BluetoothGattID descId) {
+        }
+
+        public void onGetNextCharacteristic(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId, int prop) {
+        }
+
+        public void onGetNextCharacteristicDescriptor(int connId, int status,
+                BluetoothGattID svcId, BluetoothGattID charId, BluetoothGattID descId) {
+        }
+
+        public void onReadCharacteristicValue(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId, byte[] data) {
+        }
+
+        public void onReadCharDescriptorValue(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId, BluetoothGattID descId, byte[] data) {
+        }
+
+        public void onWriteCharValue(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+            mEvents.add("write " + status);
+        }
+
+        public void onWriteCharDescrValue(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId, BluetoothGattID descId) {
+        }
+
+        public void onRegForNotifications(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onUnregisterNotifications(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onNotify(int connId, String address, BluetoothGattID svcId,
+                BluetoothGattID charId, boolean isNotify, byte[] data) {
+        }
+
+        public void onGetFirstIncludedService(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onGetNextIncludedService(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattID charId) {
+        }
+
+        public void onReadMultipleValues(int connId, int status, BluetoothGattID svcId,
+                BluetoothGattValues values) {
+        }
+
+        public void onNotifyBatch(int connId, String address,
+                BluetoothGattNotifications batch) {
+        }
+    };
+
+    private String next() throws InterruptedException {
+        String e = mEvents.poll(10, TimeUnit.SECONDS);
+        if (e == null)
+            throw new IllegalStateException("timed out waiting for a callback");
+        return e;
+    }
+
+    private void check(String what, boolean ok, String detail) {
+        System.out.println(String.format("%-40s %s (%s)", what, ok ? "ok" : "FAILED", detail));
+        mOk &= ok;
+    }
+
+    private static byte[] fill(int length, int b) {
+        byte[] ret = new byte[length];
+        Arrays.fill(ret, (byte) b);
+        return ret;
+    }
+
+    /* calls into the service as if coming from app over binder */
+    private static void as(int app) {
+        Binder.restoreCallingIdentity((long) app << 32);
+    }
+
+    private void prepare(BluetoothGatt gatt, int app, int offset, byte[] value) {
+        as(app);
+        gatt.prepareWrite(mConnID, new BluetoothGattCharID(mService, mChar), offset, 0, value);
+    }
+
+    private void execute(BluetoothGatt gatt, int app, String what, int status,
+            SimulatedPeripheral.Attribute a, byte[] value) throws InterruptedException {
+        as(app);
+        gatt.executeWrite(mConnID, true);
+        String e = next();
+        check(what, e.equals("write " + status) && Arrays.equals(a.value, value), e + ", "
+                + Arrays.toString(a.value));
+    }
+
+    private boolean run() throws Exception {
+        SimulatedPeripheral p = new SimulatedPeripheral(ADDRESS);
+        p.addService(0x1800);
+        p.addCharacteristic(0x2a00, 0x02, "Simulated".getBytes());
+        p.addService(SERVICE);
+        byte[] initial = new byte[16];
+        for (int i = 0; i < initial.length; i++)
+            initial[i] = (byte) i;
+        SimulatedPeripheral.Attribute a = p.get(p.addCharacteristic(0xfff1, 0x0a, initial));
+        SimulatedGattTool.register(p);
+        GattToolWrapper.setProcessFactory(SimulatedGattTool.factory());
+
+        BluetoothGatt gatt = new BluetoothGatt();
+        gatt.registerApp(new BluetoothGattID(UUID.randomUUID()), mClient);
+        next();
+        gatt.open(mIface, ADDRESS, true);
+        next();
+        gatt.searchService(mConnID, null);
+        next();
+        gatt.registerServiceDataCallback(mConnID, mService, ADDRESS, mData);
+        gatt.getFirstChar(mConnID, mService, null);
+        next();
+
+        // the bytes in front of the lowest offset are kept
+        prepare(gatt, APP_A, 8, fill(4, 0xbb));
+        prepare(gatt, APP_A, 4, fill(4, 0xaa));
+        byte[] expected = new byte[12];
+        System.arraycopy(initial, 0, expected, 0, 4);
+        System.arraycopy(fill(4, 0xaa), 0, expected, 4, 4);
+        System.arraycopy(fill(4, 0xbb), 0, expected, 8, 4);
+        execute(gatt, APP_A, "write starting past 0", BleConstants.GATT_SUCCESS, a, expected);
+
+        prepare(gatt, APP_A, 20, fill(2, 0xcc));
+        execute(gatt, APP_A, "offset past the end", BleConstants.GATT_INVALID_OFFSET, a,
+                expected);
+
+        prepare(gatt, APP_A, 0, fill(2, 0xcc));
+        prepare(gatt, APP_A, 4, fill(2, 0xcc));
+        execute(gatt, APP_A, "hole between parts", BleConstants.GATT_INVALID_OFFSET, a,
+                expected);
+
+        // each app only executes what it prepared itself
+        prepare(gatt, APP_A, 0, fill(2, 1));
+        prepare(gatt, APP_B, 0, fill(3, 2));
+        execute(gatt, APP_B, "second app", BleConstants.GATT_SUCCESS, a, fill(3, 2));
+        execute(gatt, APP_A, "first app", BleConstants.GATT_SUCCESS, a, fill(2, 1));
+        Thread.sleep(200);
+        check("one callback per execute", mEvents.isEmpty(), mEvents.toString());
+
+        // the connection was opened as root, the apps never asked for it
+        as(APP_B);
+        long other = gatt.getOperationStats(ADDRESS, BleConstants.GATT_OP_CONNECT)[
+                BleConstants.GATT_STAT_COUNT];
+        as(0);
+        long own = gatt.getOperationStats(ADDRESS, BleConstants.GATT_OP_CONNECT)[
+                BleConstants.GATT_STAT_COUNT];
+        check("stats kept from other apps", other == 0 && own > 0, other + " " + own);
+
+        gatt.unregisterApp(mIface);
+        GattToolWrapper.setProcessFactory(null);
+        return mOk;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = new PreparedWriteTester().run();
+        System.exit(ok ? 0 : 1);
+    }
+}
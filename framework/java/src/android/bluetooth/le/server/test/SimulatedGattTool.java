@@ -0,0 +1,562 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.GattToolWrapper;
+import android.bluetooth.le.server.test.SimulatedPeripheral.Attribute;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pure Java stand in for gatttool -I. It is a {@link Process} speaking the
+ * same line protocol on its standard streams, so a Worker can't tell it
+ * apart from the real tool, but the remote devices are
+ * {@link SimulatedPeripheral}s registered here instead of a radio.
+ * <p>
+ * Install it with
+ * {@code GattToolWrapper.setProcessFactory(SimulatedGattTool.factory())},
+ * from then on every new GattToolWrapper, including the ones BluetoothGatt
+ * creates, talks to a simulated device. Answers are delivered from a single
+ * timer thread shared by every instance, after the latency the peripheral
+ * asks for, so hundreds of them cost no more than their queued events. Like
+ * the real tool an instance answers its commands in the order they came.
+ */
+public class SimulatedGattTool extends Process {
+    /* what gatttool reports when connect can't reach the device or a command needs a link */
+    public static final int STATUS_CONNECTION_REFUSED = 111;
+    public static final int STATUS_NOT_CONNECTED = 107;
+    private static final int STATUS_INVALID_HANDLE = 0x01;
+    private static final int STATUS_READ_NOT_PERMITTED = 0x02;
+    private static final int STATUS_WRITE_NOT_PERMITTED = 0x03;
+    private static final int STATUS_ATTRIBUTE_NOT_FOUND = 0x0a;
+
+    private static final Map<String, SimulatedPeripheral> sPeripherals =
+            new HashMap<String, SimulatedPeripheral>();
+    private static final AtomicInteger sNextHandle = new AtomicInteger(1);
+    private static final ScheduledExecutorService sTimer = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SimulatedGattTool");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    public static synchronized void register(SimulatedPeripheral peripheral) {
+        sPeripherals.put(peripheral.mAddress, peripheral);
+    }
+
+    public static synchronized void unregister(String address) {
+        sPeripherals.remove(address.toUpperCase());
+    }
+
+    private static synchronized SimulatedPeripheral lookup(String address) {
+        return sPeripherals.get(address.toUpperCase());
+    }
+
+    /**
+     * Factory for GattToolWrapper.setProcessFactory.
+     */
+    public static GattToolWrapper.ProcessFactory factory() {
+        return new GattToolWrapper.ProcessFactory() {
+            public Process start() {
+                return new SimulatedGattTool();
+            }
+        };
+    }
+
+    /**
+     * Standard output, grows as needed so the timer thread never blocks on
+     * a slow reader.
+     */
+    static class Pipe extends InputStream {
+        private byte[] mBuffer = new byte[256];
+        private int mRead = 0;
+        private int mWrite = 0;
+        private boolean mClosed = false;
+
+        synchronized void write(String s) {
+            if (mClosed)
+                return;
+            byte[] b = s.getBytes();
+            if (mRead > 0) {
+                System.arraycopy(mBuffer, mRead, mBuffer, 0, mWrite - mRead);
+                mWrite -= mRead;
+                mRead = 0;
+            }
+            if (mWrite + b.length > mBuffer.length)
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mWrite + b.length));
+            System.arraycopy(b, 0, mBuffer, mWrite, b.length);
+            mWrite += b.length;
+            notifyAll();
+        }
+
+        private void waitForData() throws IOException {
+            try {
+                while (mRead == mWrite && !mClosed)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            waitForData();
+            if (mRead == mWrite)
+                return -1;
+            return mBuffer[mRead++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            waitForData();
+            if (mRead == mWrite)
+                return -1;
+            len = Math.min(len, mWrite - mRead);
+            System.arraycopy(mBuffer, mRead, b, off, len);
+            mRead += len;
+            return len;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mWrite - mRead;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Standard input, GattToolWrapper writes commands with writeChars so
+     * every other byte is a 0 that gets dropped here.
+     */
+    private class Input extends OutputStream {
+        private final StringBuilder mLine = new StringBuilder();
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!isRunning())
+                throw new IOException("process ended");
+            b &= 0xff;
+            if (b == 0 || b == '\r')
+                return;
+            if (b != '\n') {
+                mLine.append((char) b);
+                return;
+            }
+            String line = mLine.toString().trim();
+            mLine.setLength(0);
+            if (line.length() > 0)
+                commandReceived(line);
+        }
+    }
+
+    private final int mHandle = sNextHandle.getAndIncrement() & 0xffff;
+    private final Pipe mStdout = new Pipe();
+    private final Input mStdin = new Input();
+    private final InputStream mStderr = new Pipe();
+    private boolean mRunning = true;
+
+    private SimulatedPeripheral mPeripheral;
+    private int mMtu = 23;
+    private final Map<Integer, Integer> mClientConfig = new HashMap<Integer, Integer>();
+    private final Map<Integer, ScheduledFuture<?>> mNotifications =
+            new HashMap<Integer, ScheduledFuture<?>>();
+    private ScheduledFuture<?> mLinkLoss;
+    /* commands waiting for their answer and when the last one is due */
+    private final LinkedList<String> mPending = new LinkedList<String>();
+    private long mLastAnswer = 0;
+
+    private synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    private void commandReceived(final String line) {
+        String command = line.split("\\s+")[0];
+        SimulatedPeripheral p;
+        if (command.equals("connect")) {
+            String[] args = line.split("\\s+");
+            p = args.length > 1 ? lookup(args[1]) : null;
+        } else {
+            synchronized (this) {
+                p = mPeripheral;
+            }
+        }
+        if (p != null && p.drop(command))
+            return;
+
+        int latency = p == null ? 0 : p.latency(command);
+        long now = System.nanoTime();
+        long delay;
+        synchronized (this) {
+            // jitter must not let an answer overtake the one before
+            mLastAnswer = Math.max(now + TimeUnit.MILLISECONDS.toNanos(latency), mLastAnswer);
+            delay = mLastAnswer - now;
+            mPending.add(line);
+        }
+        // each run answers the oldest command, timers due together may fire either way
+        sTimer.schedule(new Runnable() {
+            public void run() {
+                String next;
+                synchronized (SimulatedGattTool.this) {
+                    next = mPending.poll();
+                }
+                if (next != null)
+                    execute(next);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private String prefix(String result) {
+        return String.format("%s(%04x): ", result, mHandle);
+    }
+
+    private void end(StringBuilder out, String result, int status) {
+        out.append(prefix(result)).append(status).append('\n');
+    }
+
+    private static void appendBytes(StringBuilder out, byte[] value, int offset, int len) {
+        for (int i = offset; i < offset + len; i++)
+            out.append(String.format(" %02x", value[i] & 0xff));
+    }
+
+    private static int parseHandle(String s) {
+        if (s.startsWith("0x"))
+            s = s.substring(2);
+        return Integer.parseInt(s, 16);
+    }
+
+    private static byte[] parseBytes(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        return b;
+    }
+
+    private synchronized void execute(String line) {
+        if (!mRunning)
+            return;
+
+        String[] args = line.split("\\s+");
+        String command = args[0];
+        StringBuilder out = new StringBuilder();
+        try {
+            if (command.equals("connect"))
+                connect(out, args);
+            else if (command.equals("disconnect"))
+                disconnect(out);
+            else if (command.equals("psm"))
+                out.append(prefix("PSM")).append(args.length > 1 ? args[1] : "0").append('\n');
+            else if (command.equals("exit") || command.equals("quit"))
+                destroy();
+            else if (mPeripheral == null)
+                end(out, endResult(command), STATUS_NOT_CONNECTED);
+            else {
+                int status = mPeripheral.failure(command);
+                if (status != 0)
+                    end(out, endResult(command), status);
+                else
+                    connectedCommand(out, command, args);
+            }
+        } catch (RuntimeException e) {
+            // malformed arguments, gatttool would print its usage
+            end(out, endResult(command), STATUS_INVALID_HANDLE);
+        }
+        mStdout.write(out.toString());
+    }
+
+    private static String endResult(String command) {
+        if (command.equals("primary"))
+            return "PRIMARY-ALL-END";
+        if (command.equals("characteristics"))
+            return "CHAR-END";
+        if (command.equals("char-desc"))
+            return "CHAR-DESC-END";
+        if (command.equals("char-read-hnd"))
+            return "CHAR-VAL-DESC";
+        if (command.equals("char-read-uuid"))
+            return "CHAR-READ-UUID-END";
+        if (command.equals("char-write-req"))
+            return "CHAR-WRITE-REQ";
+        if (command.equals("char-write-cmd"))
+            return "CHAR-WRITE-CMD";
+        if (command.equals("sec-level"))
+            return "SEC-LEVEL";
+        if (command.equals("mtu"))
+            return "MTU";
+        return "ERROR-" + command.toUpperCase();
+    }
+
+    private void connect(StringBuilder out, String[] args) {
+        String address = args.length > 1 ? args[1].toUpperCase() : "";
+        SimulatedPeripheral p = lookup(address);
+        int status = p == null ? STATUS_CONNECTION_REFUSED : p.failure("connect");
+        out.append(prefix("CONNECTED")).append(address).append(' ').append(status).append('\n');
+        if (status != 0)
+            return;
+
+        mPeripheral = p;
+        mMtu = 23;
+        mClientConfig.clear();
+        if (p.getLinkLoss() > 0)
+            mLinkLoss = sTimer.schedule(new Runnable() {
+                public void run() {
+                    StringBuilder out = new StringBuilder();
+                    synchronized (SimulatedGattTool.this) {
+                        disconnect(out);
+                    }
+                    mStdout.write(out.toString());
+                }
+            }, p.getLinkLoss(), TimeUnit.MILLISECONDS);
+    }
+
+    private void disconnect(StringBuilder out) {
+        if (mPeripheral == null)
+            return;
+        out.append(prefix("DISCONNECTED")).append(mPeripheral.mAddress).append('\n');
+        for (ScheduledFuture<?> f : mNotifications.values())
+            f.cancel(false);
+        mNotifications.clear();
+        if (mLinkLoss != null)
+            mLinkLoss.cancel(false);
+        mLinkLoss = null;
+        mPeripheral = null;
+    }
+
+    private void connectedCommand(StringBuilder out, String command, String[] args) {
+        SimulatedPeripheral p = mPeripheral;
+
+        if (command.equals("primary")) {
+            String uuid = args.length > 1 ? SimulatedPeripheral.normalizeUuid(args[1]) : null;
+            for (Attribute a : p.mAttributes) {
+                if (a.uuid == null || a.valueHandle != 0)
+                    continue;
+                if (uuid == null)
+                    out.append(prefix("PRIMARY-ALL")).append(String.format("%04x %04x ", a.handle,
+                            a.end)).append(a.uuid).append('\n');
+                else if (uuid.equals(a.uuid))
+                    out.append(prefix("PRIMARY-UUID")).append(String.format("%04x %04x", a.handle,
+                            a.end)).append('\n');
+            }
+            end(out, uuid == null ? "PRIMARY-ALL-END" : "PRIMARY-UUID-END", 0);
+
+        } else if (command.equals("characteristics")) {
+            int start = args.length > 1 ? parseHandle(args[1]) : 1;
+            int end = args.length > 2 ? parseHandle(args[2]) : 0xffff;
+            String uuid = args.length > 3 ? SimulatedPeripheral.normalizeUuid(args[3]) : null;
+            for (Attribute a : p.mAttributes) {
+                if (a.handle < start || a.handle > end || a.valueHandle == 0 || a.uuid == null)
+                    continue;
+                if (uuid == null || uuid.equals(a.uuid))
+                    out.append(prefix("CHAR")).append(String.format("%04x %02x %04x ", a.handle,
+                            a.properties, a.valueHandle)).append(a.uuid).append('\n');
+            }
+            end(out, "CHAR-END", 0);
+
+        } else if (command.equals("char-desc")) {
+            int start = args.length > 1 ? parseHandle(args[1]) : 1;
+            int end = args.length > 2 ? parseHandle(args[2]) : 0xffff;
+            for (Attribute a : p.mAttributes)
+                if (a.handle >= start && a.handle <= end)
+                    out.append(prefix("CHAR-DESC")).append(String.format("%04x ", a.handle))
+                            .append(a.type).append('\n');
+            end(out, "CHAR-DESC-END", 0);
+
+        } else if (command.equals("char-read-hnd")) {
+            int handle = parseHandle(args[1]);
+            int offset = args.length > 2 ? parseHandle(args[2]) : 0;
+            Attribute a = p.get(handle);
+            byte[] value = a == null ? null : read(a);
+            if (a == null)
+                end(out, "CHAR-VAL-DESC", STATUS_INVALID_HANDLE);
+            else if (value == null)
+                end(out, "CHAR-VAL-DESC", STATUS_READ_NOT_PERMITTED);
+            else {
+                offset = Math.min(offset, value.length);
+                out.append(prefix("CHAR-VAL-DESC")).append(0);
+                appendBytes(out, value, offset, Math.min(value.length - offset, mMtu - 1));
+                out.append('\n');
+            }
+
+        } else if (command.equals("char-read-uuid")) {
+            String uuid = SimulatedPeripheral.normalizeUuid(args[1]);
+            int start = args.length > 2 ? parseHandle(args[2]) : 1;
+            int end = args.length > 3 ? parseHandle(args[3]) : 0xffff;
+            int found = 0;
+            for (Attribute a : p.mAttributes) {
+                if (a.handle < start || a.handle > end || !uuid.equals(a.type))
+                    continue;
+                byte[] value = read(a);
+                if (value == null)
+                    continue;
+                out.append(prefix("CHAR-READ-UUID")).append(String.format("%04x", a.handle));
+                appendBytes(out, value, 0, Math.min(value.length, mMtu - 4));
+                out.append('\n');
+                found++;
+            }
+            end(out, "CHAR-READ-UUID-END", found > 0 ? 0 : STATUS_ATTRIBUTE_NOT_FOUND);
+
+        } else if (command.equals("char-write-req") || command.equals("char-write-cmd")) {
+            Attribute a = p.get(parseHandle(args[1]));
+            byte[] value = parseBytes(args.length > 2 ? args[2] : "");
+            int status = 0;
+            if (a == null)
+                status = STATUS_INVALID_HANDLE;
+            else if (!a.writable)
+                status = STATUS_WRITE_NOT_PERMITTED;
+            else
+                write(a, value);
+            end(out, endResult(command), status);
+
+        } else if (command.equals("sec-level")) {
+            end(out, "SEC-LEVEL", 0);
+
+        } else if (command.equals("mtu")) {
+            mMtu = Math.max(23, Math.min(Integer.parseInt(args[1]), p.mMaxMtu));
+            out.append(prefix("MTU")).append("0 ").append(mMtu).append('\n');
+
+        } else {
+            end(out, endResult(command), STATUS_INVALID_HANDLE);
+        }
+    }
+
+    private boolean isClientConfig(Attribute a) {
+        return a.type.equals(SimulatedPeripheral.uuid16(SimulatedPeripheral.UUID_CLIENT_CONFIG));
+    }
+
+    /**
+     * @return the value a read gets, declarations are encoded like on air,
+     *         null if it can't be read.
+     */
+    private byte[] read(Attribute a) {
+        if (isClientConfig(a)) {
+            Integer c = mClientConfig.get(a.handle);
+            int v = c == null ? 0 : c.intValue();
+            return new byte[] { (byte) v, (byte) (v >> 8) };
+        }
+        if (a.value != null)
+            return a.value;
+        if (a.uuid == null)
+            return null;
+        byte[] uuid = encodeUuid(a.uuid);
+        if (a.valueHandle == 0)
+            return uuid;
+        byte[] decl = new byte[3 + uuid.length];
+        decl[0] = (byte) a.properties;
+        decl[1] = (byte) a.valueHandle;
+        decl[2] = (byte) (a.valueHandle >> 8);
+        System.arraycopy(uuid, 0, decl, 3, uuid.length);
+        return decl;
+    }
+
+    private static byte[] encodeUuid(String uuid) {
+        if (uuid.endsWith(SimulatedPeripheral.BASE_UUID) && uuid.startsWith("0000")) {
+            int u = Integer.parseInt(uuid.substring(4, 8), 16);
+            return new byte[] { (byte) u, (byte) (u >> 8) };
+        }
+        byte[] b = parseBytes(uuid.replace("-", ""));
+        for (int i = 0; i < b.length / 2; i++) {
+            byte t = b[i];
+            b[i] = b[b.length - 1 - i];
+            b[b.length - 1 - i] = t;
+        }
+        return b;
+    }
+
+    private void write(Attribute a, byte[] value) {
+        if (!isClientConfig(a)) {
+            a.value = value;
+            return;
+        }
+        int config = value.length > 0 ? value[0] & 0x03 : 0;
+        mClientConfig.put(a.handle, config);
+
+        ScheduledFuture<?> f = mNotifications.remove(a.valueHandle);
+        if (f != null)
+            f.cancel(false);
+        int interval = mPeripheral.getNotificationInterval(a.valueHandle);
+        if (config == 0 || interval <= 0)
+            return;
+
+        final SimulatedPeripheral p = mPeripheral;
+        final Attribute v = p.get(a.valueHandle);
+        final String result = (config & 0x01) != 0 ? "NOTIFICATION" : "INDICATION";
+        mNotifications.put(a.valueHandle, sTimer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                StringBuilder out = new StringBuilder();
+                synchronized (SimulatedGattTool.this) {
+                    if (mPeripheral != p)
+                        return;
+                    byte[] value = v.value;
+                    out.append(prefix(result)).append(String.format("%04x", v.handle));
+                    appendBytes(out, value, 0, Math.min(value.length, mMtu - 3));
+                    out.append('\n');
+                }
+                mStdout.write(out.toString());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mStdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mStdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return mStderr;
+    }
+
+    @Override
+    public synchronized int waitFor() throws InterruptedException {
+        while (mRunning)
+            wait();
+        return 0;
+    }
+
+    @Override
+    public synchronized int exitValue() {
+        if (mRunning)
+            throw new IllegalThreadStateException("process hasn't exited");
+        return 0;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (!mRunning)
+            return;
+        mRunning = false;
+        for (ScheduledFuture<?> f : mNotifications.values())
+            f.cancel(false);
+        mNotifications.clear();
+        if (mLinkLoss != null)
+            mLinkLoss.cancel(false);
+        mPeripheral = null;
+        mStdout.close();
+        notifyAll();
+    }
+}
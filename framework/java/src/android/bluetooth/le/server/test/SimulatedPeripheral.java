@@ -0,0 +1,296 @@
+
+package android.bluetooth.le.server.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Remote device behind a {@link SimulatedGattTool}: an attribute database
+ * plus how the device behaves, how long each gatttool command takes, which
+ * ones fail and how often it notifies.
+ * <p>
+ * Handles are given out in the order things get added, services first, then
+ * their characteristics and descriptors, like a real device lays them out.
+ * Command names are the gatttool ones, connect, primary, characteristics,
+ * char-desc, char-read-hnd, char-read-uuid, char-write-req, char-write-cmd,
+ * sec-level and mtu.
+ */
+public class SimulatedPeripheral {
+    static final String BASE_UUID = "-0000-1000-8000-00805f9b34fb";
+    static final int UUID_PRIMARY_SERVICE = 0x2800;
+    static final int UUID_CHARACTERISTIC = 0x2803;
+    static final int UUID_CLIENT_CONFIG = 0x2902;
+
+    static class Attribute {
+        int handle;
+        String type;
+        byte[] value;
+        boolean writable;
+        /* services and characteristic declarations */
+        int end;
+        String uuid;
+        int properties;
+        int valueHandle;
+    }
+
+    private static class Behaviour {
+        int latency = -1;
+        double failRate = 0;
+        int failStatus = 0;
+        double dropRate = 0;
+    }
+
+    final String mAddress;
+    final List<Attribute> mAttributes = new ArrayList<Attribute>();
+    private Attribute mService;
+    private Attribute mChar;
+
+    private int mLatency = 0;
+    private int mJitter = 0;
+    private final Map<String, Behaviour> mBehaviour = new HashMap<String, Behaviour>();
+    private final Map<Integer, Integer> mNotifyInterval = new HashMap<Integer, Integer>();
+    private int mLinkLoss = 0;
+    int mMaxMtu = 247;
+    private final Random mRandom;
+
+    public SimulatedPeripheral(String address) {
+        mAddress = address.toUpperCase();
+        mRandom = new Random(address.hashCode());
+    }
+
+    static String uuid16(int uuid) {
+        return String.format("%08x", uuid) + BASE_UUID;
+    }
+
+    /**
+     * Turns what gatttool gets on its command line, a 16 bit hex UUID or a
+     * full one, into the long form.
+     */
+    static String normalizeUuid(String uuid) {
+        if (uuid.length() <= 4)
+            return uuid16(Integer.parseInt(uuid, 16));
+        return uuid.toLowerCase();
+    }
+
+    private Attribute add(String type) {
+        Attribute a = new Attribute();
+        a.handle = mAttributes.size() + 1;
+        a.type = type;
+        mAttributes.add(a);
+        if (mService != null)
+            mService.end = a.handle;
+        return a;
+    }
+
+    /**
+     * Starts a new primary service, what gets added next belongs to it.
+     *
+     * @return the service handle.
+     */
+    public int addService(String uuid) {
+        mService = null;
+        mChar = null;
+        Attribute s = add(uuid16(UUID_PRIMARY_SERVICE));
+        s.uuid = uuid.toLowerCase();
+        s.end = s.handle;
+        mService = s;
+        return s.handle;
+    }
+
+    public int addService(int uuid) {
+        return addService(uuid16(uuid));
+    }
+
+    /**
+     * Adds a characteristic declaration and its value.
+     *
+     * @return the value handle.
+     */
+    public int addCharacteristic(String uuid, int properties, byte[] value) {
+        Attribute decl = add(uuid16(UUID_CHARACTERISTIC));
+        Attribute v = add(uuid.toLowerCase());
+        decl.uuid = v.type;
+        decl.properties = properties & 0xff;
+        decl.valueHandle = v.handle;
+        v.value = value;
+        v.writable = (properties & 0x0c) != 0;
+        mChar = v;
+        return v.handle;
+    }
+
+    public int addCharacteristic(int uuid, int properties, byte[] value) {
+        return addCharacteristic(uuid16(uuid), properties, value);
+    }
+
+    /**
+     * Adds a writable descriptor to the last characteristic.
+     */
+    public int addDescriptor(int uuid, byte[] value) {
+        Attribute d = add(uuid16(uuid));
+        d.value = value;
+        d.writable = true;
+        d.valueHandle = mChar == null ? 0 : mChar.handle;
+        return d.handle;
+    }
+
+    /**
+     * Time every command takes to answer, jitter gets added at random on
+     * top.
+     */
+    public void setLatency(int millis, int jitter) {
+        mLatency = millis;
+        mJitter = jitter;
+    }
+
+    public void setLatency(String command, int millis) {
+        behaviour(command).latency = millis;
+    }
+
+    /**
+     * Makes command answer with status instead of doing its job, for a
+     * share of the calls between 0 and 1.
+     */
+    public void setFailure(String command, double rate, int status) {
+        Behaviour b = behaviour(command);
+        b.failRate = rate;
+        b.failStatus = status;
+    }
+
+    /**
+     * Makes command never answer, for a share of the calls.
+     */
+    public void setDropRate(String command, double rate) {
+        behaviour(command).dropRate = rate;
+    }
+
+    /**
+     * Notifies valueHandle every interval milliseconds once a client
+     * enables it on the client configuration descriptor, 0 stops it.
+     */
+    public void setNotificationInterval(int valueHandle, int interval) {
+        mNotifyInterval.put(valueHandle, interval);
+    }
+
+    /**
+     * Drops the link millis after each connection, 0 keeps it forever.
+     */
+    public void setLinkLoss(int millis) {
+        mLinkLoss = millis;
+    }
+
+    public void setMaxMtu(int mtu) {
+        mMaxMtu = mtu;
+    }
+
+    private Behaviour behaviour(String command) {
+        Behaviour b = mBehaviour.get(command);
+        if (b == null) {
+            b = new Behaviour();
+            mBehaviour.put(command, b);
+        }
+        return b;
+    }
+
+    synchronized int latency(String command) {
+        Behaviour b = mBehaviour.get(command);
+        int l = b != null && b.latency >= 0 ? b.latency : mLatency;
+        return mJitter > 0 ? l + mRandom.nextInt(mJitter + 1) : l;
+    }
+
+    /**
+     * @return the status command has to fail with this time, 0 if it
+     *         works.
+     */
+    synchronized int failure(String command) {
+        Behaviour b = mBehaviour.get(command);
+        if (b == null || b.failRate <= 0 || mRandom.nextDouble() >= b.failRate)
+            return 0;
+        return b.failStatus;
+    }
+
+    synchronized boolean drop(String command) {
+        Behaviour b = mBehaviour.get(command);
+        return b != null && b.dropRate > 0 && mRandom.nextDouble() < b.dropRate;
+    }
+
+    int getNotificationInterval(int valueHandle) {
+        Integer i = mNotifyInterval.get(valueHandle);
+        return i == null ? 0 : i.intValue();
+    }
+
+    int getLinkLoss() {
+        return mLinkLoss;
+    }
+
+    /**
+     * @return the value handle of the first characteristic with the given
+     *         16 bit UUID, -1 if there is none.
+     */
+    public int getValueHandle(int uuid) {
+        String type = uuid16(uuid);
+        for (Attribute a : mAttributes)
+            if (a.valueHandle != 0 && type.equals(a.uuid))
+                return a.valueHandle;
+        return -1;
+    }
+
+    Attribute get(int handle) {
+        if (handle < 1 || handle > mAttributes.size())
+            return null;
+        return mAttributes.get(handle - 1);
+    }
+
+    /**
+     * Heart rate monitor with GAP, heart rate and battery services, the
+     * measurement notifies once per second.
+     */
+    public static SimulatedPeripheral heartRateMonitor(String address) {
+        SimulatedPeripheral p = new SimulatedPeripheral(address);
+        p.addService(0x1800);
+        p.addCharacteristic(0x2a00, 0x02, "Simulated HRM".getBytes());
+        p.addCharacteristic(0x2a01, 0x02, new byte[] { 0x41, 0x03 });
+        p.addService(0x180d);
+        int measurement = p.addCharacteristic(0x2a37, 0x10, new byte[] { 0x06, 0x48 });
+        p.addDescriptor(UUID_CLIENT_CONFIG, new byte[] { 0, 0 });
+        p.addCharacteristic(0x2a38, 0x02, new byte[] { 0x01 });
+        p.addCharacteristic(0x2a39, 0x08, new byte[] { 0x00 });
+        p.addService(0x180f);
+        p.addCharacteristic(0x2a19, 0x12, new byte[] { 0x64 });
+        p.addDescriptor(UUID_CLIENT_CONFIG, new byte[] { 0, 0 });
+        p.setNotificationInterval(measurement, 1000);
+        return p;
+    }
+
+    /**
+     * GAP plus services vendor services holding characteristics
+     * characteristics each. They all have 128 bit UUIDs, can be read,
+     * written and notified and carry a client configuration descriptor. The
+     * first one notifies every interval milliseconds, 0 keeps it quiet.
+     */
+    public static SimulatedPeripheral largeDatabase(String address, int services,
+            int characteristics, int interval) {
+        SimulatedPeripheral p = new SimulatedPeripheral(address);
+        p.addService(0x1800);
+        p.addCharacteristic(0x2a00, 0x02, "Simulated database".getBytes());
+        int stream = -1;
+        for (int s = 0; s < services; s++) {
+            p.addService(String.format("6e40%04x-b5a3-f393-e0a9-e50e24dcca9e", s << 8));
+            for (int c = 0; c < characteristics; c++) {
+                byte[] value = new byte[20];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = (byte) (s + c + i);
+                int handle = p.addCharacteristic(String.format(
+                        "6e40%04x-b5a3-f393-e0a9-e50e24dcca9e", (s << 8) + c + 1), 0x1a, value);
+                p.addDescriptor(UUID_CLIENT_CONFIG, new byte[] { 0, 0 });
+                if (stream < 0)
+                    stream = handle;
+            }
+        }
+        if (stream > 0 && interval > 0)
+            p.setNotificationInterval(stream, interval);
+        return p;
+    }
+}
@@ -0,0 +1,82 @@
+
+package android.bluetooth.le.server.test;
+
+import android.bluetooth.le.server.GattToolWrapper;
+import android.bluetooth.le.server.TraceDecoder;
+import android.bluetooth.le.server.TraceRing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Measures what {@link TraceRing#record(int, int, long)} costs from one and
+ * from several threads, then plays a notification stream through the
+ * client pipeline, as in {@link GattToolPipelineBenchmark}, dumps the ring
+ * and decodes it again. Prints ns per event, the size of the dump and the
+ * last lines of the decoded trace.
+ * <p>
+ * Arguments: events per thread, threads, milliseconds of notifications.
+ */
+public class TraceRingBenchmark {
+    private static long nsPerEvent(final int events, int threads) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < events; i++)
+                        TraceRing.record(TraceRing.CALLBACK_START, i, TraceRing.CALLBACK_NOTIFY);
+                }
+            };
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        // every thread records in parallel, so time over events of one thread
+        return (System.nanoTime() - start) / events;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int stream = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        // warm up
+        nsPerEvent(events, 1);
+        long single = nsPerEvent(events, 1);
+        long multi = nsPerEvent(events, threads);
+        long clock = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++)
+            clock += System.nanoTime();
+        long clockCost = (System.nanoTime() - start) / events;
+
+        System.out.println(String.format("record, 1 thread:   %5d ns/event", single));
+        System.out.println(String.format("record, %d threads:  %5d ns/event", threads, multi));
+        System.out.println(String.format("System.nanoTime():  %5d ns (%d)", clockCost,
+                clock & 1));
+
+        SimulatedGattTool.register(SimulatedPeripheral.largeDatabase(
+                GattToolPipelineBenchmark.ADDRESS, 2, 2, 1));
+        GattToolTranscript transcript = new GattToolTranscript();
+        GattToolWrapper.setProcessFactory(transcript.recorder(SimulatedGattTool.factory()));
+        new GattToolPipelineBenchmark.Session(transcript, false, false,
+                GattToolPipelineBenchmark.ADDRESS).run("trace", stream, 0);
+
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        int dumped = TraceRing.dump(dump);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        int decoded = TraceDecoder.decode(new ByteArrayInputStream(dump.toByteArray()),
+                new PrintStream(text));
+        System.out.println(String.format("dumped %d events in %d bytes (%.1f B/event), "
+                + "decoded %d", dumped, dump.size(), (double) dump.size() / dumped, decoded));
+        String[] lines = text.toString().split("\n");
+        for (int i = Math.max(0, lines.length - 20); i < lines.length; i++)
+            System.out.println(lines[i]);
+
+        GattToolWrapper.setProcessFactory(null);
+        System.exit(dumped == decoded ? 0 : 1);
+    }
+}